@@ -0,0 +1,116 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.osgi.services.CachingHttpClientBuilderFactory;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Realistic effective configurations of increasing size for benchmarks.
+ * <br>
+ * The smallest configurations contain the properties that are most commonly
+ * set. Larger configurations add the remaining {@code request.config.*},
+ * builder and {@code connection.manager.*} properties and finally properties
+ * that are not interpreted by any setter, like the configuration name or
+ * properties added by other tools, which need to be skipped.
+ */
+final class BenchmarkConfigurations {
+
+    static final int MAX_SIZE = 60;
+
+    private static final List<Object[]> PROPERTIES = Arrays.asList(
+            // most common settings
+            entry("request.config.connect.timeout", 5000),
+            entry("request.config.socket.timeout", 30000),
+            entry("max.conn.total", 50),
+            entry("max.conn.per.route", 10),
+            entry("user.agent", "benchmark/1.0"),
+            // remaining request config and builder settings
+            entry("request.config.connection.request.timeout", 1000),
+            entry("request.config.max.redirects", 5),
+            entry("request.config.redirects.enabled", true),
+            entry("request.config.cookie.spec", "standard"),
+            entry("cookie.management.enabled", false),
+            entry("automatic.retries.enabled", false),
+            entry("content.compression.enabled", true),
+            entry("connection.state.enabled", false),
+            entry("auth.caching.enabled", true),
+            entry("redirect.handling.enabled", true),
+            entry("request.config.relative.redirects.allowed", true),
+            entry("request.config.decompression.enabled", true),
+            entry("request.config.circular.redirects.allowed", false),
+            entry("request.config.authentication.enabled", true),
+            entry("request.config.content.compression.enabled", true),
+            entry("request.config.expect.continue.enabled", false),
+            entry("request.config.stale.connection.check.enabled", false),
+            entry(HttpClientConfiguration.HTTP_CLIENT_CONFIG_NAME, "benchmark"),
+            entry(HttpClientConfiguration.HTTP_CLIENT_SHARED, false),
+            // connection manager settings
+            entry("connection.manager.max.total", 100),
+            entry("connection.manager.default.max.per.route", 20),
+            entry("connection.manager.validate.after.inactivity", 1000),
+            entry("connection.manager.time.to.live.ms", 60000L),
+            entry("connection.manager.max.per.route", new String[]{"backend.example.com:8080=40", "https://api.example.com=30"}),
+            // properties without setters
+            entry("felix.fileinstall.filename", "file:/opt/app/configs/net.distilledcode.httpclient.Configuration-benchmark.config"),
+            entry("webconsole.configurationFactory.nameHint", "{httpclient.config.name}")
+    );
+
+    private BenchmarkConfigurations() {
+    }
+
+    /**
+     * @param size The number of properties, at most {@link #MAX_SIZE}.
+     * @return A new, mutable configuration with {@code size} properties.
+     */
+    static Map<String, Object> configuration(final int size) {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("size must be between 0 and " + MAX_SIZE + ", it is " + size);
+        }
+        final Map<String, Object> configuration = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            if (i < PROPERTIES.size()) {
+                final Object[] entry = PROPERTIES.get(i);
+                configuration.put((String) entry[0], entry[1]);
+            } else {
+                configuration.put("application.property." + i, "value " + i);
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * A stand-in for the {@code HttpClientBuilderFactory} service registered
+     * by the httpclient-osgi bundle.
+     */
+    static HttpClientBuilderFactory defaultBuilderFactory() {
+        return new HttpClientBuilderFactory() {
+            @Override
+            public HttpClientBuilder newBuilder() {
+                return HttpClientBuilder.create();
+            }
+        };
+    }
+
+    /**
+     * A stand-in for the {@code CachingHttpClientBuilderFactory} service
+     * registered by the httpclient-osgi bundle.
+     */
+    static CachingHttpClientBuilderFactory defaultCachingBuilderFactory() {
+        return new CachingHttpClientBuilderFactory() {
+            @Override
+            public CachingHttpClientBuilder newBuilder() {
+                return CachingHttpClientBuilder.create();
+            }
+        };
+    }
+
+    private static Object[] entry(final String key, final Object value) {
+        return new Object[]{key, value};
+    }
+}
@@ -0,0 +1,118 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and allocation of creating builders and clients the way consumers
+ * of the {@code HttpClientBuilderFactory} and {@code HttpClient} services do.
+ * <br>
+ * From 25 properties on, the configuration contains {@code connection.manager.*}
+ * properties, i.e. every client gets its own configured connection manager.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ClientConstructionBenchmark {
+
+    @Param({"5", "20", "40", "60"})
+    public int properties;
+
+    private ConnectionEvictionService connectionEvictionService;
+
+    private PreconfiguredHttpClientBuilderFactory builderFactory;
+
+    private HttpClientPrototypeFactory prototypeFactory;
+
+    private HttpClientPrototypeFactory sharedPrototypeFactory;
+
+    private HttpClientPrototypeFactory lazyPrototypeFactory;
+
+    private HttpClient sharedClientHolder;
+
+    @Setup
+    public void setUp() {
+        connectionEvictionService = new ConnectionEvictionService();
+        connectionEvictionService.activate();
+        final Map<String, Object> configuration = BenchmarkConfigurations.configuration(properties);
+        builderFactory = new PreconfiguredHttpClientBuilderFactory(
+                BenchmarkConfigurations.defaultBuilderFactory(), BenchmarkConfigurations.defaultCachingBuilderFactory(),
+                configuration, connectionEvictionService,
+                new ConnectionPoolMonitor("benchmark"), null, null);
+        // an inactive ClientDrainService closes released clients synchronously, so the
+        // round trips include closing the client rather than queueing it on the drain thread
+        final ClientDrainService clientDrainService = new ClientDrainService();
+        final RequestMetrics requestMetrics = new RequestMetrics("benchmark");
+        // neither hedging nor deadlines are configured, so no HedgingService or TimerWheel is needed
+        prototypeFactory = new HttpClientPrototypeFactory(builderFactory, clientDrainService, requestMetrics, null, null, configuration);
+        final Map<String, Object> sharedConfiguration = new HashMap<>(configuration);
+        sharedConfiguration.put(HttpClientConfiguration.HTTP_CLIENT_SHARED, true);
+        sharedPrototypeFactory = new HttpClientPrototypeFactory(builderFactory, clientDrainService, requestMetrics, null, null, sharedConfiguration);
+        final Map<String, Object> lazyConfiguration = new HashMap<>(configuration);
+        lazyConfiguration.put(HttpClientConfiguration.HTTP_CLIENT_LAZY, true);
+        lazyPrototypeFactory = new HttpClientPrototypeFactory(builderFactory, clientDrainService, requestMetrics, null, null, lazyConfiguration);
+        // keep the shared client alive, so the round trips measure acquiring a view only
+        sharedClientHolder = sharedPrototypeFactory.getService(null, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sharedPrototypeFactory.ungetService(null, null, sharedClientHolder);
+        connectionEvictionService.deactivate();
+    }
+
+    @Benchmark
+    public HttpClientBuilder newBuilder() {
+        return builderFactory.newBuilder();
+    }
+
+    @Benchmark
+    public HttpClient newBuilderBuildAndClose() throws IOException {
+        final CloseableHttpClient httpClient = builderFactory.newBuilder().build();
+        httpClient.close();
+        return httpClient;
+    }
+
+    @Benchmark
+    public HttpClient getAndUngetService() {
+        final HttpClient httpClient = prototypeFactory.getService(null, null);
+        prototypeFactory.ungetService(null, null, httpClient);
+        return httpClient;
+    }
+
+    /** A consumer that never sends a request, with {@code httpclient.lazy}. */
+    @Benchmark
+    public HttpClient getAndUngetLazyService() {
+        final HttpClient httpClient = lazyPrototypeFactory.getService(null, null);
+        lazyPrototypeFactory.ungetService(null, null, httpClient);
+        return httpClient;
+    }
+
+    @Benchmark
+    public HttpClient getAndUngetSharedService() {
+        final HttpClient httpClient = sharedPrototypeFactory.getService(null, null);
+        sharedPrototypeFactory.ungetService(null, null, httpClient);
+        return httpClient;
+    }
+}
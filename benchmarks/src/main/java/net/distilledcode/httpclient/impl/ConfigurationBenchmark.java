@@ -0,0 +1,69 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType;
+import net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil;
+import net.distilledcode.httpclient.impl.metatype.reflection.Invokers.Invocation;
+import net.distilledcode.httpclient.impl.metatype.reflection.SetterAdapter;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applying a configuration to a {@code HttpClientBuilder}, either by
+ * interpreting the configuration map for every builder or by replaying
+ * a pre-compiled configuration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConfigurationBenchmark {
+
+    @Param({"5", "20", "40", "60"})
+    public int properties;
+
+    private Map<String, Object> configuration;
+
+    private Invocation[] invocations;
+
+    @Setup
+    public void setUp() {
+        configuration = BenchmarkConfigurations.configuration(properties);
+        invocations = MetaTypeBeanUtil.compileConfiguration("", configuration,
+                HttpClientConfigurationMetaType.SETTERS_HTTP_CLIENT_BUILDER);
+    }
+
+    @Benchmark
+    public HttpClientBuilder applyConfiguration() {
+        final HttpClientBuilder builder = HttpClientBuilder.create();
+        MetaTypeBeanUtil.applyConfiguration("", configuration,
+                new SetterAdapter(builder, HttpClientConfigurationMetaType.SETTERS_HTTP_CLIENT_BUILDER));
+        return builder;
+    }
+
+    @Benchmark
+    public HttpClientBuilder applyCompiledConfiguration() {
+        final HttpClientBuilder builder = HttpClientBuilder.create();
+        MetaTypeBeanUtil.applyConfiguration(invocations, builder);
+        return builder;
+    }
+
+    @Benchmark
+    public ConfigurationPlan compileConfigurationPlan() {
+        return ConfigurationPlan.compile(configuration);
+    }
+}
@@ -0,0 +1,189 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests against a {@link LoopbackServer} running in a separate JVM, using
+ * a client built by {@code PreconfiguredHttpClientBuilderFactory} from an
+ * effective configuration assembled from the parameters.
+ * <br>
+ * {@code throughput} reports requests per second, {@code latency} reports the
+ * latency percentiles (p0.50, p0.99, p0.999) and the GC profiler added by
+ * {@link BenchmarkRunner} reports the client's allocated bytes per request.
+ * Use {@code -t} to change the number of concurrent client threads and
+ * {@code -p} to select parameter values, e.g.
+ * {@code java -jar target/benchmarks.jar EndToEnd -t 32 -p pool=8,64 -p latency=exponential:5},
+ * or {@code -p metrics=false,true} to compare the overhead of recording request metrics.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    /** {@code max.conn.total} and {@code max.conn.per.route}. */
+    @Param({"4", "32"})
+    public int pool;
+
+    /** Whether the server keeps connections alive. */
+    @Param({"true", "false"})
+    public boolean keepAlive;
+
+    /** {@code content.compression.enabled}, the server gzips if the client accepts it. */
+    @Param({"true", "false"})
+    public boolean compression;
+
+    /** Whether requests are redirected once, with redirect handling enabled. */
+    @Param({"false"})
+    public boolean redirect;
+
+    /** {@code request.config.connect.timeout}, {@code .socket.timeout} and {@code .connection.request.timeout}, -1 for none. */
+    @Param({"-1"})
+    public int timeout;
+
+    /** Size of the uncompressed response body in bytes. */
+    @Param({"1024", "65536"})
+    public int responseSize;
+
+    /** Server-side latency, see {@link LoopbackServer.LatencyDistribution}. */
+    @Param({"none"})
+    public String latency;
+
+    /** Whether requests are recorded with {@code RequestMetrics}, as the {@code HttpClient} service does by default. */
+    @Param({"false"})
+    public boolean metrics;
+
+    /**
+     * Additional properties of the effective configuration, separated by {@code ;}, e.g.
+     * {@code connection.manager.validate.after.inactivity=500;connection.manager.time.to.live.ms=60000L}.
+     * Values are booleans, integers, longs if suffixed with {@code L}, or strings.
+     */
+    @Param({""})
+    public String properties;
+
+    private LoopbackServer server;
+
+    private ConnectionEvictionService connectionEvictionService;
+
+    private CloseableHttpClient httpClient;
+
+    private URI uri;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = LoopbackServer.start();
+        connectionEvictionService = new ConnectionEvictionService();
+        connectionEvictionService.activate();
+        // phase timings and caching are enabled via properties, e.g. "metrics.phases.enabled=true"
+        final RequestMetrics requestMetrics = new RequestMetrics("benchmark");
+        final CloseableHttpClient built = new PreconfiguredHttpClientBuilderFactory(BenchmarkConfigurations.defaultBuilderFactory(),
+                BenchmarkConfigurations.defaultCachingBuilderFactory(), effectiveConfiguration(), connectionEvictionService,
+                new ConnectionPoolMonitor("benchmark"), requestMetrics, null).newBuilder().build();
+        httpClient = metrics ? new InstrumentedHttpClient(built, requestMetrics) : built;
+        uri = URI.create("http://127.0.0.1:" + server.getPort()
+                + (redirect ? LoopbackServer.REDIRECT_PATH : LoopbackServer.DATA_PATH)
+                + "?size=" + responseSize + "&latency=" + latency + "&close=" + !keepAlive);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        httpClient.close();
+        connectionEvictionService.deactivate();
+        server.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long throughput(final ReadBuffer buffer) throws IOException {
+        return request(buffer);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long latency(final ReadBuffer buffer) throws IOException {
+        return request(buffer);
+    }
+
+    private long request(final ReadBuffer buffer) throws IOException {
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+            long read = 0;
+            final HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                try (InputStream content = entity.getContent()) {
+                    int n;
+                    while ((n = content.read(buffer.bytes)) != -1) {
+                        read += n;
+                    }
+                }
+            }
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new IOException("Unexpected response " + response.getStatusLine());
+            }
+            return read;
+        }
+    }
+
+    private Map<String, Object> effectiveConfiguration() {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("max.conn.total", pool);
+        configuration.put("max.conn.per.route", pool);
+        configuration.put("content.compression.enabled", compression);
+        configuration.put("redirect.handling.enabled", redirect);
+        configuration.put("request.config.redirects.enabled", redirect);
+        configuration.put("request.config.connect.timeout", timeout);
+        configuration.put("request.config.socket.timeout", timeout);
+        configuration.put("request.config.connection.request.timeout", timeout);
+        for (final String property : properties.split(";")) {
+            final int separator = property.indexOf('=');
+            if (separator > 0) {
+                configuration.put(property.substring(0, separator).trim(), typed(property.substring(separator + 1).trim()));
+            }
+        }
+        return configuration;
+    }
+
+    private static Object typed(final String value) {
+        if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+            return Boolean.valueOf(value);
+        }
+        try {
+            if (value.endsWith("L")) {
+                return Long.valueOf(value.substring(0, value.length() - 1));
+            }
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ReadBuffer {
+        final byte[] bytes = new byte[8192];
+    }
+}
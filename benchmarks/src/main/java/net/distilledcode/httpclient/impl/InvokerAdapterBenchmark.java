@@ -0,0 +1,66 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.impl.metatype.reflection.GetterAdapter;
+import net.distilledcode.httpclient.impl.metatype.reflection.Invokers;
+import net.distilledcode.httpclient.impl.metatype.reflection.SetterAdapter;
+import org.apache.http.client.config.RequestConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single property accesses via {@code SetterAdapter} and {@code GetterAdapter},
+ * compared to a plain reflective {@code Method#invoke} call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InvokerAdapterBenchmark {
+
+    private RequestConfig.Builder requestConfigBuilder;
+
+    private SetterAdapter setterAdapter;
+
+    private GetterAdapter getterAdapter;
+
+    private Method setConnectTimeout;
+
+    private Integer connectTimeout;
+
+    @Setup
+    public void setUp() throws Exception {
+        requestConfigBuilder = RequestConfig.custom();
+        setterAdapter = new SetterAdapter(requestConfigBuilder, Invokers.beanSetters(RequestConfig.Builder.class));
+        getterAdapter = new GetterAdapter(RequestConfig.DEFAULT, Invokers.beanGetters(RequestConfig.class));
+        setConnectTimeout = RequestConfig.Builder.class.getMethod("setConnectTimeout", int.class);
+        connectTimeout = 5000;
+    }
+
+    @Benchmark
+    public void setterAdapterSet() throws Exception {
+        setterAdapter.set("connect.timeout", connectTimeout);
+    }
+
+    @Benchmark
+    public Object getterAdapterGet() throws Exception {
+        return getterAdapter.get("connect.timeout");
+    }
+
+    @Benchmark
+    public Object reflectiveSet() throws Exception {
+        return setConnectTimeout.invoke(requestConfigBuilder, connectTimeout);
+    }
+}
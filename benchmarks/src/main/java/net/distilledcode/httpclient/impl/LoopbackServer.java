@@ -0,0 +1,289 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An HTTP server listening on the loopback interface only, serving generated
+ * responses. Each response is controlled by query parameters of the request:
+ * <ul>
+ *     <li>{@code size}: the size of the (uncompressed) response body in bytes</li>
+ *     <li>{@code latency}: a {@link LatencyDistribution} spec, e.g. {@code fixed:5}</li>
+ *     <li>{@code close}: if {@code true}, the connection is not kept alive</li>
+ * </ul>
+ * Requests to {@code /redirect} are redirected to {@code /data} with the same query.
+ * Bodies are gzip encoded if the request accepts it.
+ * <br>
+ * The server is run in a separate JVM via {@link #start()}, so that its
+ * allocations and CPU time do not distort the client measurements.
+ */
+final class LoopbackServer {
+
+    static final String DATA_PATH = "/data";
+
+    static final String REDIRECT_PATH = "/redirect";
+
+    private static final String PORT_ANNOUNCEMENT = "listening on port ";
+
+    private final Process process;
+
+    private final int port;
+
+    private LoopbackServer(final Process process, final int port) {
+        this.process = process;
+        this.port = port;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * Starts the server in a new JVM using the current classpath.
+     *
+     * @return the running server.
+     * @throws IOException if the server could not be started.
+     */
+    static LoopbackServer start() throws IOException {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), LoopbackServer.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = output.readLine()) != null) {
+            if (line.startsWith(PORT_ANNOUNCEMENT)) {
+                return new LoopbackServer(process, Integer.parseInt(line.substring(PORT_ANNOUNCEMENT.length())));
+            }
+        }
+        process.destroy();
+        throw new IOException("LoopbackServer terminated without announcing its port");
+    }
+
+    void stop() throws InterruptedException {
+        process.destroy();
+        process.waitFor();
+    }
+
+    /**
+     * Runs the server until its standard input is closed, i.e. until the
+     * parent process terminates.
+     */
+    public static void main(final String[] args) throws Exception {
+        final HttpServer server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .setListenerPort(0)
+                .setServerInfo("LoopbackServer")
+                .setSocketConfig(SocketConfig.custom().setTcpNoDelay(true).setSoReuseAddress(true).build())
+                .registerHandler(DATA_PATH, new DataHandler())
+                .registerHandler(REDIRECT_PATH, new RedirectHandler())
+                .create();
+        server.start();
+        System.out.println(PORT_ANNOUNCEMENT + server.getLocalPort());
+        System.out.flush();
+        try {
+            while (System.in.read() != -1) {
+                // wait for the parent to go away
+            }
+        } finally {
+            server.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static class DataHandler implements HttpRequestHandler {
+
+        private final ConcurrentMap<Integer, byte[]> bodies = new ConcurrentHashMap<>();
+
+        private final ConcurrentMap<Integer, byte[]> gzippedBodies = new ConcurrentHashMap<>();
+
+        private final ConcurrentMap<String, LatencyDistribution> latencies = new ConcurrentHashMap<>();
+
+        @Override
+        public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                throws HttpException, IOException {
+            final Map<String, String> query = query(request);
+            final LatencyDistribution latency = latency(query.get("latency"));
+            final int size = query.containsKey("size") ? Integer.parseInt(query.get("size")) : 0;
+            final boolean gzip = acceptsGzip(request);
+
+            latency.await();
+            final ByteArrayEntity entity = new ByteArrayEntity(body(size, gzip), ContentType.TEXT_PLAIN);
+            if (gzip) {
+                entity.setContentEncoding("gzip");
+            }
+            response.setStatusCode(HttpStatus.SC_OK);
+            response.setEntity(entity);
+            if ("true".equals(query.get("close"))) {
+                response.setHeader(HttpHeaders.CONNECTION, "close");
+            }
+        }
+
+        private LatencyDistribution latency(final String spec) {
+            final String key = spec == null ? "" : spec;
+            LatencyDistribution latency = latencies.get(key);
+            if (latency == null) {
+                latency = LatencyDistribution.parse(key);
+                latencies.putIfAbsent(key, latency);
+            }
+            return latency;
+        }
+
+        private byte[] body(final int size, final boolean gzip) throws IOException {
+            final ConcurrentMap<Integer, byte[]> cache = gzip ? gzippedBodies : bodies;
+            byte[] body = cache.get(size);
+            if (body == null) {
+                body = gzip ? gzip(body(size, false)) : generate(size);
+                cache.putIfAbsent(size, body);
+            }
+            return body;
+        }
+
+        private static byte[] generate(final int size) {
+            // text-like, moderately compressible content
+            final Random random = new Random(size);
+            final byte[] body = new byte[size];
+            for (int i = 0; i < size; i++) {
+                body[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(16));
+            }
+            return body;
+        }
+
+        private static byte[] gzip(final byte[] data) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(data);
+            }
+            return out.toByteArray();
+        }
+
+        private static boolean acceptsGzip(final HttpRequest request) {
+            final Header acceptEncoding = request.getFirstHeader(HttpHeaders.ACCEPT_ENCODING);
+            return acceptEncoding != null && acceptEncoding.getValue().contains("gzip");
+        }
+    }
+
+    private static class RedirectHandler implements HttpRequestHandler {
+
+        @Override
+        public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context) {
+            final String rawQuery = URI.create(request.getRequestLine().getUri()).getRawQuery();
+            response.setStatusCode(HttpStatus.SC_MOVED_TEMPORARILY);
+            response.setHeader(HttpHeaders.LOCATION, DATA_PATH + (rawQuery == null ? "" : "?" + rawQuery));
+        }
+    }
+
+    private static Map<String, String> query(final HttpRequest request) {
+        final List<NameValuePair> pairs = URLEncodedUtils.parse(URI.create(request.getRequestLine().getUri()), "UTF-8");
+        final Map<String, String> query = new HashMap<>();
+        for (final NameValuePair pair : pairs) {
+            query.put(pair.getName(), pair.getValue());
+        }
+        return query;
+    }
+
+    /**
+     * Server-side latency added before a response is sent. Specs are
+     * {@code none}, {@code fixed:<ms>}, {@code uniform:<min ms>:<max ms>}
+     * and {@code exponential:<mean ms>}.
+     */
+    abstract static class LatencyDistribution {
+
+        private static final LatencyDistribution NONE = new LatencyDistribution() {
+            @Override
+            long nextMillis() {
+                return 0;
+            }
+        };
+
+        abstract long nextMillis();
+
+        void await() {
+            final long millis = nextMillis();
+            if (millis > 0) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        static LatencyDistribution parse(final String spec) {
+            final List<String> parts = new ArrayList<>();
+            for (final String part : spec.split(":")) {
+                parts.add(part.trim());
+            }
+            switch (parts.get(0)) {
+                case "":
+                case "none":
+                    return NONE;
+                case "fixed":
+                    final long fixed = Long.parseLong(parts.get(1));
+                    return new LatencyDistribution() {
+                        @Override
+                        long nextMillis() {
+                            return fixed;
+                        }
+                    };
+                case "uniform":
+                    final long min = Long.parseLong(parts.get(1));
+                    final long max = Long.parseLong(parts.get(2));
+                    return new LatencyDistribution() {
+                        private final Random random = new Random();
+
+                        @Override
+                        long nextMillis() {
+                            synchronized (random) {
+                                return min + (long) (random.nextDouble() * (max - min + 1));
+                            }
+                        }
+                    };
+                case "exponential":
+                    final double mean = Double.parseDouble(parts.get(1));
+                    return new LatencyDistribution() {
+                        private final Random random = new Random();
+
+                        @Override
+                        long nextMillis() {
+                            synchronized (random) {
+                                return Math.round(-mean * Math.log(1 - random.nextDouble()));
+                            }
+                        }
+                    };
+                default:
+                    throw new IllegalArgumentException("Unknown latency distribution '" + spec + "'");
+            }
+        }
+    }
+}
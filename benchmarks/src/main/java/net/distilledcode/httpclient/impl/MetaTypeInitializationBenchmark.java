@@ -0,0 +1,74 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Static initialization of {@code HttpClientConfigurationMetaType}, which
+ * discovers the bean setters and getters and builds all attribute definitions.
+ * <br>
+ * Every invocation loads the {@code metatype} packages into a fresh class
+ * loader, so the measurement includes loading those classes, as it happens
+ * when the bundle is started. The HttpClient classes are shared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MetaTypeInitializationBenchmark {
+
+    private static final String METATYPE_PACKAGE = "net.distilledcode.httpclient.impl.metatype.";
+
+    private static final URL[] CODE_SOURCE = {
+            HttpClientConfigurationMetaType.class.getProtectionDomain().getCodeSource().getLocation()
+    };
+
+    @Benchmark
+    public Class<?> staticInitialization() throws Exception {
+        try (IsolatingClassLoader classLoader = new IsolatingClassLoader()) {
+            return Class.forName(HttpClientConfigurationMetaType.class.getName(), true, classLoader);
+        }
+    }
+
+    /**
+     * Loads classes of the {@code metatype} packages itself and delegates
+     * all other classes to the parent.
+     */
+    private static class IsolatingClassLoader extends URLClassLoader {
+
+        private IsolatingClassLoader() {
+            super(CODE_SOURCE, MetaTypeInitializationBenchmark.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(METATYPE_PACKAGE)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> clazz = findLoadedClass(name);
+                if (clazz == null) {
+                    clazz = findClass(name);
+                }
+                if (resolve) {
+                    resolveClass(clazz);
+                }
+                return clazz;
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Records the failure of the last attempt of a request that failed with an
+ * exception in the {@link CircuitBreakers} and the {@link LoadBalancer} of the
+ * configuration.
+ * <br>
+ * The failures of all other attempts are recorded by the retry handler of
+ * the client, which is not called for the last attempt if automatic retries
+ * are disabled, or if the exception is not an {@code IOException}. Aborted
+ * requests are not recorded as failures.
+ */
+class AttemptFailures implements ExecutionStage {
+
+    static final AttemptFailures INSTANCE = new AttemptFailures();
+
+    private AttemptFailures() {
+    }
+
+    @Override
+    public CloseableHttpResponse execute(final CloseableHttpClient httpClient, final HttpHost target,
+                                         final HttpRequest request, final HttpContext context) throws IOException {
+        // the pending attempt is kept in the context, which the client would otherwise create itself
+        final HttpContext executionContext = context != null ? context : new BasicHttpContext();
+        try {
+            return httpClient.execute(target, request, executionContext);
+        } catch (IOException | RuntimeException e) {
+            final boolean aborted = e instanceof RequestAbortedException
+                    || request instanceof HttpExecutionAware && ((HttpExecutionAware) request).isAborted();
+            CircuitBreakers.executionFailed(executionContext, aborted);
+            LoadBalancer.executionFailed(executionContext, aborted);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.cache.Resource;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory {@code HttpCacheStorage} bounded by the number of entries and
+ * by the estimated heap size of the entries. Once either bound is exceeded,
+ * the least recently used entries are evicted.
+ * <br>
+ * Unlike {@code BasicHttpCacheStorage}, which only bounds the number of
+ * entries, this keeps a cache of large responses from exhausting the heap.
+ */
+class BoundedHttpCacheStorage implements MeasurableHttpCacheStorage {
+
+    /** A rough estimate of the fixed overhead of an entry, its dates, status line and map node. */
+    static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, HttpCacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    /**
+     * @param maxEntries The maximum number of entries.
+     * @param maxBytes The maximum estimated size of all entries in bytes, a value
+     *                 less than or equal to zero only bounds the number of entries.
+     */
+    BoundedHttpCacheStorage(final int maxEntries, final long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized void putEntry(final String key, final HttpCacheEntry entry) {
+        put(key, entry);
+    }
+
+    @Override
+    public synchronized HttpCacheEntry getEntry(final String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public synchronized void removeEntry(final String key) {
+        bytes -= size(entries.remove(key));
+    }
+
+    @Override
+    public synchronized void updateEntry(final String key, final HttpCacheUpdateCallback callback)
+            throws IOException, HttpCacheUpdateException {
+        final HttpCacheEntry updated = callback.update(entries.get(key));
+        if (updated != null) {
+            put(key, updated);
+        } else {
+            removeEntry(key);
+        }
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void put(final String key, final HttpCacheEntry entry) {
+        bytes += size(entry) - size(entries.put(key, entry));
+        final Iterator<Map.Entry<String, HttpCacheEntry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= size(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    static long size(final HttpCacheEntry entry) {
+        if (entry == null) {
+            return 0;
+        }
+        long size = ENTRY_OVERHEAD_BYTES;
+        final Resource resource = entry.getResource();
+        if (resource != null) {
+            size += resource.length();
+        }
+        for (final Header header : entry.getAllHeaders()) {
+            // chars are two bytes on the heap
+            size += 2 * (header.getName().length() + header.getValue().length());
+        }
+        for (final Map.Entry<String, String> variant : entry.getVariantMap().entrySet()) {
+            size += 2 * (variant.getKey().length() + variant.getValue().length());
+        }
+        return size;
+    }
+}
@@ -0,0 +1,78 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.CacheStats;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Counts the responses of a configuration's response cache by their
+ * {@code CacheResponseStatus}.
+ * <br>
+ * The counters live as long as the configuration, whereas the storage is
+ * replaced when the configuration changes. The size of the current storage
+ * is included in snapshots.
+ */
+class CacheStatistics {
+
+    private final StripedCounter hits = new StripedCounter();
+
+    private final StripedCounter misses = new StripedCounter();
+
+    private final StripedCounter revalidations = new StripedCounter();
+
+    private final StripedCounter cacheModuleResponses = new StripedCounter();
+
+    private volatile MeasurableHttpCacheStorage storage;
+
+    /**
+     * The interceptor runs in the protocol stage of the client, which wraps
+     * the caching stage, so it sees the status of each response, including
+     * those served from the cache.
+     */
+    private final HttpResponseInterceptor interceptor = new HttpResponseInterceptor() {
+        @Override
+        public void process(final HttpResponse response, final HttpContext context) {
+            final CacheResponseStatus status = HttpCacheContext.adapt(context).getCacheResponseStatus();
+            if (status != null) {
+                record(status);
+            }
+        }
+    };
+
+    HttpResponseInterceptor getInterceptor() {
+        return interceptor;
+    }
+
+    void setStorage(final MeasurableHttpCacheStorage storage) {
+        this.storage = storage;
+    }
+
+    void record(final CacheResponseStatus status) {
+        switch (status) {
+            case CACHE_HIT:
+                hits.increment();
+                break;
+            case CACHE_MISS:
+                misses.increment();
+                break;
+            case VALIDATED:
+                revalidations.increment();
+                break;
+            case CACHE_MODULE_RESPONSE:
+                cacheModuleResponses.increment();
+                break;
+            default:
+                break;
+        }
+    }
+
+    CacheStats snapshot() {
+        final MeasurableHttpCacheStorage current = storage;
+        return new CacheStats(hits.sum(), misses.sum(), revalidations.sum(), cacheModuleResponses.sum(),
+                current != null ? current.getEntries() : 0,
+                current != null ? current.getBytes() : 0);
+    }
+}
@@ -0,0 +1,262 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.util.InetAddressUtils;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.DNS_CACHE_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.DNS_HOSTS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.DNS_MAX_ENTRIES;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.DNS_NEGATIVE_TTL_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.DNS_REFRESH_AHEAD;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.DNS_TTL_MS;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toInteger;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStringArray;
+
+/**
+ * A {@code DnsResolver} that caches lookups of a configuration, independent
+ * of the JVM-wide {@code InetAddress} cache.
+ * <br>
+ * Successful lookups are cached for the positive TTL, failed lookups for the
+ * negative TTL. At most {@code maxEntries} host names are cached, the least
+ * recently used are evicted first. With refresh-ahead, an entry that is used
+ * after {@value #REFRESH_AHEAD_PERCENT}% of its TTL has passed is refreshed in
+ * the background, so that hosts in use are never looked up on the requesting
+ * thread once they are cached. Refreshes that fail keep the cached addresses
+ * until they expire.
+ * <br>
+ * Static overrides take precedence over the cache and are never looked up.
+ */
+class CachingDnsResolver implements DnsResolver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    static final int REFRESH_AHEAD_PERCENT = 80;
+
+    static final long DEFAULT_TTL_MS = 60000;
+
+    static final long DEFAULT_NEGATIVE_TTL_MS = 5000;
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final DnsResolver delegate;
+
+    private final Map<String, InetAddress[]> overrides;
+
+    private final boolean caching;
+
+    private final long ttlNanos;
+
+    private final long negativeTtlNanos;
+
+    private final Executor refreshExecutor;
+
+    private final Map<String, CachedLookup> entries;
+
+    CachingDnsResolver(final DnsResolver delegate, final Map<String, InetAddress[]> overrides, final boolean caching,
+                       final long ttlMs, final long negativeTtlMs, final int maxEntries, final Executor refreshExecutor) {
+        this.delegate = delegate;
+        this.overrides = overrides;
+        this.caching = caching && maxEntries > 0;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMs));
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, negativeTtlMs));
+        this.refreshExecutor = refreshExecutor;
+        this.entries = new LinkedHashMap<String, CachedLookup>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedLookup> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param configuration The effective configuration.
+     * @param refreshExecutor The executor for refresh-ahead, or {@code null} to disable it.
+     * @return a resolver for the {@code dns.*} properties of {@code configuration},
+     * or {@code null} if neither the cache nor overrides are configured.
+     */
+    static CachingDnsResolver fromConfiguration(final Map<String, Object> configuration, final Executor refreshExecutor) {
+        final boolean caching = toBoolean(configuration, DNS_CACHE_ENABLED, false);
+        final Map<String, InetAddress[]> overrides = parseOverrides(toStringArray(configuration, DNS_HOSTS));
+        if (!caching && overrides.isEmpty()) {
+            return null;
+        }
+        return new CachingDnsResolver(SystemDefaultDnsResolver.INSTANCE, overrides, caching,
+                toLong(configuration, DNS_TTL_MS, DEFAULT_TTL_MS),
+                toLong(configuration, DNS_NEGATIVE_TTL_MS, DEFAULT_NEGATIVE_TTL_MS),
+                toInteger(configuration, DNS_MAX_ENTRIES, DEFAULT_MAX_ENTRIES),
+                toBoolean(configuration, DNS_REFRESH_AHEAD, true) ? refreshExecutor : null);
+    }
+
+    @Override
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        final String key = host.toLowerCase(Locale.ROOT);
+        final InetAddress[] override = overrides.get(key);
+        if (override != null) {
+            return override.clone();
+        }
+        if (!caching) {
+            return delegate.resolve(host);
+        }
+
+        final CachedLookup entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        final long now = System.nanoTime();
+        if (entry != null && now - entry.expiresAt < 0) {
+            if (refreshExecutor != null && entry.addresses != null && now - entry.refreshAt >= 0) {
+                refreshAhead(host, key, entry);
+            }
+            return entry.get();
+        }
+        return lookup(host, key).get();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private CachedLookup lookup(final String host, final String key) throws UnknownHostException {
+        final CachedLookup entry;
+        try {
+            entry = CachedLookup.resolved(delegate.resolve(host), ttlNanos);
+        } catch (UnknownHostException e) {
+            if (negativeTtlNanos > 0) {
+                put(key, CachedLookup.failed(e, negativeTtlNanos));
+            }
+            throw e;
+        }
+        if (ttlNanos > 0) {
+            put(key, entry);
+        }
+        return entry;
+    }
+
+    private void refreshAhead(final String host, final String key, final CachedLookup entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(host, key);
+                    } catch (UnknownHostException e) {
+                        // keep serving the cached addresses until they expire
+                        put(key, entry);
+                        entry.refreshing.set(false);
+                        LOG.debug("Failed to refresh {}, keeping cached addresses until they expire", host, e);
+                    } catch (RuntimeException e) {
+                        entry.refreshing.set(false);
+                        LOG.warn("Failed to refresh {}", host, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private void put(final String key, final CachedLookup entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Parses entries of the form {@code host=address[,address...]}, where
+     * addresses are IPv4 or IPv6 literals.
+     *
+     * @param specs The entries to parse.
+     * @return A map of lower case host names to their addresses.
+     */
+    static Map<String, InetAddress[]> parseOverrides(final String[] specs) {
+        final Map<String, InetAddress[]> overrides = new HashMap<>();
+        for (final String spec : specs) {
+            final int separator = spec.indexOf('=');
+            if (separator < 1) {
+                LOG.warn("Ignoring invalid entry '{}' for {}, expected host=address[,address]", spec, DNS_HOSTS);
+                continue;
+            }
+            final String host = spec.substring(0, separator).trim();
+            try {
+                final List<InetAddress> addresses = new ArrayList<>();
+                for (final String literal : spec.substring(separator + 1).split(",")) {
+                    addresses.add(toAddress(host, literal.trim()));
+                }
+                overrides.put(host.toLowerCase(Locale.ROOT), addresses.toArray(new InetAddress[addresses.size()]));
+            } catch (UnknownHostException | IllegalArgumentException e) {
+                LOG.warn("Ignoring invalid entry '{}' for {}, expected host=address[,address]", spec, DNS_HOSTS, e);
+            }
+        }
+        return Collections.unmodifiableMap(overrides);
+    }
+
+    private static InetAddress toAddress(final String host, final String literal) throws UnknownHostException {
+        if (!InetAddressUtils.isIPv4Address(literal) && !InetAddressUtils.isIPv6Address(literal)) {
+            throw new IllegalArgumentException("Not an IP address: '" + literal + "'");
+        }
+        // a literal is parsed without a lookup
+        return InetAddress.getByAddress(host, InetAddress.getByName(literal).getAddress());
+    }
+
+    private static class CachedLookup {
+
+        private final InetAddress[] addresses;
+
+        private final UnknownHostException failure;
+
+        private final long expiresAt;
+
+        private final long refreshAt;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private CachedLookup(final InetAddress[] addresses, final UnknownHostException failure, final long ttlNanos) {
+            final long now = System.nanoTime();
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = now + ttlNanos;
+            this.refreshAt = now + ttlNanos / 100 * REFRESH_AHEAD_PERCENT;
+        }
+
+        private static CachedLookup resolved(final InetAddress[] addresses, final long ttlNanos) {
+            return new CachedLookup(addresses, null, ttlNanos);
+        }
+
+        private static CachedLookup failed(final UnknownHostException failure, final long ttlNanos) {
+            return new CachedLookup(null, failure, ttlNanos);
+        }
+
+        private InetAddress[] get() throws UnknownHostException {
+            if (addresses == null) {
+                final UnknownHostException exception = new UnknownHostException(failure.getMessage());
+                exception.initCause(failure);
+                throw exception;
+            }
+            return addresses.clone();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.CircuitBreakerStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The circuit breaker of a route.
+ * <br>
+ * While closed, the outcomes of the last calls are kept in a sliding window.
+ * Once the window holds enough calls and the rate of failed or slow calls in
+ * it reaches its threshold, the breaker opens and rejects all calls. After the
+ * open duration, it lets a few probe calls through in the half-open state, and
+ * closes or opens again depending on their outcomes.
+ * <br>
+ * The state is an immutable object swapped with compare-and-set, each with its
+ * own window, so that neither acquiring nor recording takes a lock. Outcomes of
+ * calls acquired in an earlier state are ignored.
+ */
+class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    static final int SUCCESS = 1;
+
+    static final int FAILURE = 2;
+
+    static final int SLOW = 4;
+
+    private static final String CLOSED = "CLOSED";
+
+    private static final String OPEN = "OPEN";
+
+    private static final String HALF_OPEN = "HALF_OPEN";
+
+    private final String route;
+
+    private final Config config;
+
+    private final AtomicReference<State> state;
+
+    private final StripedCounter rejected = new StripedCounter();
+
+    private final AtomicLong opened = new AtomicLong();
+
+    CircuitBreaker(final String route, final Config config) {
+        this.route = route;
+        this.config = config;
+        this.state = new AtomicReference<>(new State(CLOSED, System.nanoTime(), config.windowSize, 0));
+    }
+
+    /**
+     * @return the state to record the outcome of the call with, or {@code null}
+     * if the call is rejected.
+     */
+    State tryAcquire() {
+        while (true) {
+            final State current = state.get();
+            if (current.name == CLOSED) {
+                return current;
+            }
+            final long now = System.nanoTime();
+            if (current.name == OPEN) {
+                if (now - current.sinceNanos < config.openNanos) {
+                    rejected.increment();
+                    return null;
+                }
+                transition(current, new State(HALF_OPEN, now, config.halfOpenCalls, config.halfOpenCalls));
+                continue;
+            }
+            if (current.permits.getAndDecrement() > 0) {
+                return current;
+            }
+            if (now - current.sinceNanos < config.openNanos) {
+                rejected.increment();
+                return null;
+            }
+            // the outcomes of the probes got lost, e.g. to a runtime exception
+            transition(current, new State(HALF_OPEN, now, config.halfOpenCalls, config.halfOpenCalls));
+        }
+    }
+
+    /**
+     * Records the outcome of a call acquired in {@code acquired}.
+     *
+     * @param outcome {@link #SUCCESS} or {@link #FAILURE}, optionally combined with {@link #SLOW}.
+     */
+    void record(final State acquired, final int outcome) {
+        if (state.get() != acquired) {
+            return;
+        }
+        final Window window = acquired.window;
+        window.record(outcome);
+        final int calls = window.calls.get();
+        if (acquired.name == CLOSED) {
+            if (calls >= config.minimumCalls && isTripped(window, calls)) {
+                transition(acquired, new State(OPEN, System.nanoTime(), 0, 0));
+            }
+        } else if (calls >= config.halfOpenCalls) {
+            transition(acquired, isTripped(window, calls)
+                    ? new State(OPEN, System.nanoTime(), 0, 0)
+                    : new State(CLOSED, System.nanoTime(), config.windowSize, 0));
+        }
+    }
+
+    private boolean isTripped(final Window window, final int calls) {
+        return window.failures.get() * 100.0 >= config.failureRateThreshold * calls
+                || window.slowCalls.get() * 100.0 >= config.slowCallRateThreshold * calls;
+    }
+
+    private void transition(final State from, final State to) {
+        if (!state.compareAndSet(from, to)) {
+            return;
+        }
+        if (to.name == OPEN) {
+            opened.incrementAndGet();
+            LOG.warn("Circuit breaker of {} changed from {} to {}", route, from.name, to.name);
+        } else {
+            LOG.info("Circuit breaker of {} changed from {} to {}", route, from.name, to.name);
+        }
+    }
+
+    CircuitBreakerStats snapshot() {
+        final State current = state.get();
+        final Window window = current.window;
+        final int calls = window != null ? window.calls.get() : 0;
+        return new CircuitBreakerStats(current.name, calls,
+                calls > 0 ? window.failures.get() * 100.0 / calls : 0,
+                calls > 0 ? window.slowCalls.get() * 100.0 / calls : 0,
+                rejected.sum(), opened.get());
+    }
+
+    static final class Config {
+
+        private final int windowSize;
+
+        private final int minimumCalls;
+
+        private final double failureRateThreshold;
+
+        private final double slowCallRateThreshold;
+
+        private final long openNanos;
+
+        private final int halfOpenCalls;
+
+        /**
+         * @param windowSize The number of calls in the sliding window of the closed state.
+         * @param minimumCalls The number of calls in the window before the breaker may open.
+         * @param failureRateThreshold The percentage of failed calls that opens the breaker.
+         * @param slowCallRateThreshold The percentage of slow calls that opens the breaker.
+         * @param openMs The time the breaker stays open before probing the route.
+         * @param halfOpenCalls The number of probe calls in the half-open state.
+         */
+        Config(final int windowSize, final int minimumCalls, final double failureRateThreshold,
+               final double slowCallRateThreshold, final long openMs, final int halfOpenCalls) {
+            this.windowSize = Math.max(1, windowSize);
+            this.minimumCalls = Math.max(1, Math.min(minimumCalls, this.windowSize));
+            this.failureRateThreshold = failureRateThreshold;
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+            this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        }
+    }
+
+    static final class State {
+
+        private final String name;
+
+        private final long sinceNanos;
+
+        private final Window window;
+
+        private final AtomicInteger permits;
+
+        private State(final String name, final long sinceNanos, final int windowSize, final int permits) {
+            this.name = name;
+            this.sinceNanos = sinceNanos;
+            this.window = windowSize > 0 ? new Window(windowSize) : null;
+            this.permits = new AtomicInteger(permits);
+        }
+    }
+
+    /**
+     * A ring of the outcomes of the last calls, with counters that are
+     * adjusted as outcomes are replaced.
+     */
+    private static final class Window {
+
+        private final AtomicIntegerArray outcomes;
+
+        private final AtomicLong next = new AtomicLong();
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private final AtomicInteger slowCalls = new AtomicInteger();
+
+        private Window(final int size) {
+            this.outcomes = new AtomicIntegerArray(size);
+        }
+
+        private void record(final int outcome) {
+            final int slot = (int) (next.getAndIncrement() % outcomes.length());
+            final int replaced = outcomes.getAndSet(slot, outcome);
+            if (replaced != 0) {
+                count(replaced, -1);
+            }
+            count(outcome, 1);
+        }
+
+        private void count(final int outcome, final int delta) {
+            if ((outcome & FAILURE) != 0) {
+                failures.addAndGet(delta);
+            }
+            if ((outcome & SLOW) != 0) {
+                slowCalls.addAndGet(delta);
+            }
+            calls.addAndGet(delta);
+        }
+    }
+}
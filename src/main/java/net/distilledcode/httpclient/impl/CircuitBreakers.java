@@ -0,0 +1,216 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.CircuitBreakerStats;
+import net.distilledcode.httpclient.resilience.CircuitBreakerOpenException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_FAILURE_STATUS_CODES;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_HALF_OPEN_CALLS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_MINIMUM_CALLS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_OPEN_DURATION_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_WINDOW_SIZE;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toDouble;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toInteger;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStatusCodes;
+
+/**
+ * The {@link CircuitBreaker}s of the routes of a configuration's clients.
+ * <br>
+ * The breakers hook into the exec chain of the clients. A request interceptor
+ * rejects attempts to a route whose breaker is open with a
+ * {@link CircuitBreakerOpenException}, a response interceptor records responses,
+ * and the retry handler, which sees every attempt failing with an exception,
+ * records failures. Thus every attempt of a retried request is recorded, and
+ * the retry stage does not retry rejected attempts. Without a retry stage, i.e.
+ * if automatic retries are disabled, the failure of the last attempt is
+ * recorded by the {@link AttemptFailures} stage of the {@code HttpClient}
+ * service. A response is a failure if
+ * its status is one of the {@code circuit.breaker.failure.status.codes}, and
+ * slow if it took longer than {@code circuit.breaker.slow.call.duration.ms} to
+ * arrive.
+ * <br>
+ * Routes beyond the limit of the {@link RouteMap} are not guarded.
+ */
+class CircuitBreakers {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakers.class);
+
+    static final String[] DEFAULT_FAILURE_STATUS_CODES = {"500", "502", "503", "504"};
+
+    private static final String CALL = CircuitBreakers.class.getName() + ".call";
+
+    private final CircuitBreaker.Config config;
+
+    private final Set<Integer> failureStatusCodes;
+
+    private final long slowCallNanos;
+
+    private final RouteMap<CircuitBreaker> routes = new RouteMap<CircuitBreaker>() {
+        @Override
+        CircuitBreaker create(final HttpHost target) {
+            return new CircuitBreaker(target.toURI(), config);
+        }
+    };
+
+    private final HttpRequestInterceptor requestInterceptor = new HttpRequestInterceptor() {
+        @Override
+        public void process(final HttpRequest request, final HttpContext context) throws IOException {
+            // an attempt without outcome, e.g. of an earlier execution with this context, failed
+            executionFailed(context, false);
+            final HttpHost target = target(context);
+            final CircuitBreaker breaker = routes.get(target);
+            if (breaker == null) {
+                return;
+            }
+            final CircuitBreaker.State state = breaker.tryAcquire();
+            if (state == null) {
+                throw new CircuitBreakerOpenException(target.toURI());
+            }
+            context.setAttribute(CALL, new Call(breaker, state));
+        }
+    };
+
+    private final HttpResponseInterceptor responseInterceptor = new HttpResponseInterceptor() {
+        @Override
+        public void process(final HttpResponse response, final HttpContext context) {
+            final Object call = context.removeAttribute(CALL);
+            if (call instanceof Call) {
+                ((Call) call).completed(failureStatusCodes.contains(response.getStatusLine().getStatusCode())
+                        ? CircuitBreaker.FAILURE
+                        : CircuitBreaker.SUCCESS);
+            }
+        }
+    };
+
+    /**
+     * @param config The configuration of the breakers.
+     * @param failureStatusCodes The response status codes that count as failures.
+     * @param slowCallMs The duration after which a call counts as slow.
+     */
+    CircuitBreakers(final CircuitBreaker.Config config, final Set<Integer> failureStatusCodes, final long slowCallMs) {
+        this.config = config;
+        this.failureStatusCodes = failureStatusCodes;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMs);
+    }
+
+    /**
+     * @return breakers configured by the {@code circuit.breaker.*} properties,
+     * or {@code null} unless {@code circuit.breaker.enabled} is set.
+     */
+    static CircuitBreakers fromConfiguration(final Map<String, Object> configuration) {
+        if (!toBoolean(configuration, CIRCUIT_BREAKER_ENABLED, false)) {
+            return null;
+        }
+        final Set<Integer> statusCodes =
+                toStatusCodes(configuration, CIRCUIT_BREAKER_FAILURE_STATUS_CODES, DEFAULT_FAILURE_STATUS_CODES);
+        final CircuitBreaker.Config config = new CircuitBreaker.Config(
+                toInteger(configuration, CIRCUIT_BREAKER_WINDOW_SIZE, 100),
+                toInteger(configuration, CIRCUIT_BREAKER_MINIMUM_CALLS, 20),
+                toDouble(configuration, CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD, 50),
+                toDouble(configuration, CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD, 100),
+                toLong(configuration, CIRCUIT_BREAKER_OPEN_DURATION_MS, 30000),
+                toInteger(configuration, CIRCUIT_BREAKER_HALF_OPEN_CALLS, 5));
+        return new CircuitBreakers(config, statusCodes,
+                toLong(configuration, CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS, 5000));
+    }
+
+    HttpRequestInterceptor getRequestInterceptor() {
+        return requestInterceptor;
+    }
+
+    HttpResponseInterceptor getResponseInterceptor() {
+        return responseInterceptor;
+    }
+
+    /**
+     * @param delegate The handler deciding whether to retry after recording.
+     * @return a retry handler recording failed attempts.
+     */
+    HttpRequestRetryHandler retryHandler(final HttpRequestRetryHandler delegate) {
+        return new HttpRequestRetryHandler() {
+            @Override
+            public boolean retryRequest(final IOException exception, final int executionCount, final HttpContext context) {
+                if (exception instanceof CircuitBreakerOpenException) {
+                    return false;
+                }
+                executionFailed(context, exception instanceof RequestAbortedException);
+                return delegate.retryRequest(exception, executionCount, context);
+            }
+        };
+    }
+
+    /**
+     * Records the failure of the attempt whose outcome is still pending when
+     * an execution with {@code context} ended with an exception.
+     *
+     * @param context The context of the execution.
+     * @param aborted Whether the request was aborted, in which case the attempt
+     *                is discarded without recording an outcome.
+     */
+    static void executionFailed(final HttpContext context, final boolean aborted) {
+        final Object call = context.removeAttribute(CALL);
+        if (call instanceof Call && !aborted) {
+            ((Call) call).completed(CircuitBreaker.FAILURE);
+        }
+    }
+
+    /**
+     * @return the state of the breakers, keyed by the route's target {@code scheme://host:port}.
+     */
+    Map<String, CircuitBreakerStats> snapshot() {
+        final Map<String, CircuitBreakerStats> byRoute = new TreeMap<>();
+        for (final Map.Entry<HttpHost, CircuitBreaker> entry : routes.entrySet()) {
+            byRoute.put(entry.getKey().toURI(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(byRoute);
+    }
+
+    private static HttpHost target(final HttpContext context) {
+        final HttpClientContext clientContext = HttpClientContext.adapt(context);
+        final RouteInfo route = clientContext.getHttpRoute();
+        return route != null ? route.getTargetHost() : clientContext.getTargetHost();
+    }
+
+    private final class Call {
+
+        private final CircuitBreaker breaker;
+
+        private final CircuitBreaker.State state;
+
+        private final long startNanos = System.nanoTime();
+
+        private Call(final CircuitBreaker breaker, final CircuitBreaker.State state) {
+            this.breaker = breaker;
+            this.state = state;
+        }
+
+        private void completed(final int outcome) {
+            final boolean slow = System.nanoTime() - startNanos >= slowCallNanos;
+            breaker.record(state, slow ? outcome | CircuitBreaker.SLOW : outcome);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package net.distilledcode.httpclient.impl;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bundle-wide service that closes clients which are no longer handed out,
+ * e.g. after a reconfiguration or when a consumer releases its client.
+ * <br>
+ * A drained client is closed once its in-flight exchanges have completed,
+ * or when the drain timeout expires, whichever happens first. Clients are
+ * closed on the service's own thread, so that callers, e.g. SCR deactivating
+ * a component, are never blocked.
+ * <br>
+ * Drains that are pending when the service is deactivated still complete
+ * within their timeout. Clients drained afterwards are closed immediately.
+ * <br>
+ * The service also periodically releases the underlying clients of
+ * {@link LazyHttpClient}s that have been idle for their idle release period.
+ */
+@Component(service = ClientDrainService.class)
+public class ClientDrainService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClientDrainService.class);
+
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+
+    private volatile ScheduledExecutorService executor;
+
+    @Activate
+    protected void activate() {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "httpclient-drain");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        executor = scheduler;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (executor != null) {
+            // pending drains still complete, at the latest when their timeout expires
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Closes {@code httpClient} asynchronously once its in-flight exchanges
+     * are completed, but no later than {@code timeoutMs} milliseconds from now.
+     *
+     * @param httpClient The client to drain.
+     * @param timeoutMs The maximum time to wait for in-flight exchanges,
+     *                  a value less than or equal to zero closes the client
+     *                  without waiting.
+     */
+    void drain(final TrackingHttpClient httpClient, final long timeoutMs) {
+        final ScheduledExecutorService scheduler = executor;
+        if (scheduler == null) {
+            closeQuietly(httpClient);
+            return;
+        }
+
+        final Drain drain = new Drain(httpClient, scheduler);
+        pendingDrains.incrementAndGet();
+        if (timeoutMs <= 0) {
+            drain.drained();
+            return;
+        }
+        drain.timeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (drain.done.get()) {
+                    return;
+                }
+                LOG.warn("Closing HttpClient with {} exchange(s) in flight after drain timeout of {}ms",
+                        httpClient.getInFlight(), timeoutMs);
+                drain.close();
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        httpClient.drain(drain);
+    }
+
+    /**
+     * Periodically releases the underlying client of {@code httpClient} once
+     * it has been idle for its idle release period, i.e. between one and two
+     * periods after its last use. Stops when {@code httpClient} is closed or
+     * garbage collected, or when this service is deactivated.
+     *
+     * @param httpClient The client to check for idleness.
+     */
+    void releaseWhenIdle(final LazyHttpClient httpClient) {
+        final ScheduledExecutorService scheduler = executor;
+        final long interval = httpClient.getIdleReleaseMs();
+        if (scheduler == null || interval <= 0) {
+            return;
+        }
+        final IdleReleaseTask task = new IdleReleaseTask(httpClient);
+        try {
+            task.future = scheduler.scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // rejected, the scheduler has been shut down concurrently, the client is kept until closed
+        }
+    }
+
+    int getPendingDrains() {
+        return pendingDrains.get();
+    }
+
+    private static void closeQuietly(final TrackingHttpClient httpClient) {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close HttpClient", e);
+        }
+    }
+
+    private static class IdleReleaseTask implements Runnable {
+
+        private final WeakReference<LazyHttpClient> httpClientRef;
+
+        private volatile ScheduledFuture<?> future;
+
+        private IdleReleaseTask(final LazyHttpClient httpClient) {
+            this.httpClientRef = new WeakReference<>(httpClient);
+        }
+
+        @Override
+        public void run() {
+            final LazyHttpClient httpClient = httpClientRef.get();
+            if (httpClient == null || httpClient.isClosed()) {
+                final ScheduledFuture<?> scheduledFuture = future;
+                if (scheduledFuture != null) {
+                    scheduledFuture.cancel(false);
+                }
+                return;
+            }
+            if (httpClient.releaseIfIdle()) {
+                LOG.debug("Released idle HttpClient after {}ms", httpClient.getIdleReleaseMs());
+            }
+        }
+    }
+
+    private class Drain implements TrackingHttpClient.DrainListener, Runnable {
+
+        private final TrackingHttpClient httpClient;
+
+        private final ScheduledExecutorService scheduler;
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private volatile ScheduledFuture<?> timeout;
+
+        private Drain(final TrackingHttpClient httpClient, final ScheduledExecutorService scheduler) {
+            this.httpClient = httpClient;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void drained() {
+            try {
+                scheduler.execute(this);
+            } catch (RuntimeException e) {
+                // rejected, the scheduler has terminated
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            close();
+        }
+
+        private void close() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            final ScheduledFuture<?> scheduledTimeout = timeout;
+            if (scheduledTimeout != null) {
+                scheduledTimeout.cancel(false);
+            }
+            closeQuietly(httpClient);
+            pendingDrains.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.ConcurrencyLimitStats;
+import net.distilledcode.httpclient.resilience.CircuitBreakerOpenException;
+import net.distilledcode.httpclient.resilience.ConcurrencyLimitExceededException;
+import net.distilledcode.httpclient.resilience.RateLimitExceededException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_ALGORITHM;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_BACKOFF_RATIO;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_DROP_STATUS_CODES;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_INITIAL;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_MAX;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_MIN;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_RTT_TOLERANCE;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_SMOOTHING;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toDouble;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toInteger;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStatusCodes;
+
+/**
+ * Limits the number of concurrent requests per route of the clients of a
+ * configuration, and adapts the limits to the observed round trip times and
+ * drops. Requests exceeding the limit of their route are rejected immediately
+ * with a {@link ConcurrencyLimitExceededException}, instead of queuing for a
+ * pooled connection.
+ * <br>
+ * A request is in flight until its response is consumed or closed. The round
+ * trip time is measured until the response arrives, and the request counts as
+ * a drop if it fails with an exception or its status is one of the
+ * {@code adaptive.limit.drop.status.codes}. Requests rejected by a circuit
+ * breaker or rate limiter, and aborted requests, are not drops. With the {@code aimd} algorithm,
+ * the limit grows by one for every response, and shrinks by the
+ * {@code adaptive.limit.backoff.ratio} for every drop. With the {@code gradient}
+ * algorithm, the limit follows the ratio of a long-term average round trip time
+ * to the current one, so that it shrinks as soon as the backend slows down.
+ * Either way, the limit only grows while at least half of it is used.
+ * <br>
+ * Acquiring and adapting are lock-free. Routes beyond those a {@link RouteMap}
+ * tracks are not limited.
+ */
+class ConcurrencyLimiter implements ExecutionStage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    static final String AIMD = "aimd";
+
+    static final String GRADIENT = "gradient";
+
+    static final String[] DEFAULT_DROP_STATUS_CODES = {"429", "503"};
+
+    private final Algorithm algorithm;
+
+    private final int initialLimit;
+
+    private final Set<Integer> dropStatusCodes;
+
+    private final RouteMap<Limit> routes = new RouteMap<Limit>() {
+        @Override
+        Limit create(final HttpHost target) {
+            return new Limit(algorithm.newState(initialLimit));
+        }
+    };
+
+    /**
+     * @param algorithm The algorithm adapting the limits.
+     * @param initialLimit The limit of a route before it is adapted.
+     * @param dropStatusCodes The response status codes that count as drops.
+     */
+    ConcurrencyLimiter(final Algorithm algorithm, final int initialLimit, final Set<Integer> dropStatusCodes) {
+        this.algorithm = algorithm;
+        this.initialLimit = initialLimit;
+        this.dropStatusCodes = dropStatusCodes;
+    }
+
+    /**
+     * @return a limiter configured by the {@code adaptive.limit.*} properties,
+     * or {@code null} unless {@code adaptive.limit.enabled} is set.
+     */
+    static ConcurrencyLimiter fromConfiguration(final Map<String, Object> configuration) {
+        if (!toBoolean(configuration, ADAPTIVE_LIMIT_ENABLED, false)) {
+            return null;
+        }
+        final int minLimit = Math.max(1, toInteger(configuration, ADAPTIVE_LIMIT_MIN, 1));
+        final int maxLimit = Math.max(minLimit, toInteger(configuration, ADAPTIVE_LIMIT_MAX, 200));
+        final Object name = configuration.get(ADAPTIVE_LIMIT_ALGORITHM);
+        final Algorithm algorithm;
+        if (name != null && AIMD.equals(name.toString().trim().toLowerCase(Locale.ROOT))) {
+            algorithm = new Aimd(minLimit, maxLimit, toDouble(configuration, ADAPTIVE_LIMIT_BACKOFF_RATIO, 0.9));
+        } else {
+            if (name != null && !GRADIENT.equals(name.toString().trim().toLowerCase(Locale.ROOT))) {
+                LOG.warn("Unknown {} {}, using {}", ADAPTIVE_LIMIT_ALGORITHM, name, GRADIENT);
+            }
+            algorithm = new Gradient(minLimit, maxLimit, toDouble(configuration, ADAPTIVE_LIMIT_RTT_TOLERANCE, 1.5),
+                    toDouble(configuration, ADAPTIVE_LIMIT_SMOOTHING, 0.2));
+        }
+        final Set<Integer> statusCodes =
+                toStatusCodes(configuration, ADAPTIVE_LIMIT_DROP_STATUS_CODES, DEFAULT_DROP_STATUS_CODES);
+        final int initialLimit = Math.max(minLimit, Math.min(toInteger(configuration, ADAPTIVE_LIMIT_INITIAL, 20), maxLimit));
+        return new ConcurrencyLimiter(algorithm, initialLimit, statusCodes);
+    }
+
+    /**
+     * Executes the request with {@code httpClient}, unless the limit of its route is reached.
+     *
+     * @throws ConcurrencyLimitExceededException if the limit of the request's route is reached.
+     */
+    @Override
+    public CloseableHttpResponse execute(final CloseableHttpClient httpClient, final HttpHost target,
+                                         final HttpRequest request, final HttpContext context) throws IOException {
+        final Limit limit = routes.get(target);
+        if (limit == null) {
+            return httpClient.execute(target, request, context);
+        }
+        final int inFlight = limit.tryAcquire();
+        if (inFlight < 0) {
+            throw new ConcurrencyLimitExceededException(target.toURI(), limit.getLimit());
+        }
+        final long start = System.nanoTime();
+        boolean released = true;
+        try {
+            final CloseableHttpResponse response = httpClient.execute(target, request, context);
+            limit.sample(System.nanoTime() - start, inFlight,
+                    dropStatusCodes.contains(response.getStatusLine().getStatusCode()));
+            final HttpEntity entity = response.getEntity();
+            if (entity != null && entity.isStreaming()) {
+                released = false;
+                return new TrackedHttpResponse(response, limit);
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            // rejected by a circuit breaker or rate limiter, or aborted, the route did not drop the request
+            if (!(e instanceof CircuitBreakerOpenException || e instanceof RateLimitExceededException
+                    || e instanceof RequestAbortedException)) {
+                limit.sample(System.nanoTime() - start, inFlight, true);
+            }
+            throw e;
+        } finally {
+            if (released) {
+                limit.completed();
+            }
+        }
+    }
+
+    /**
+     * @return the limits, keyed by the route's target {@code scheme://host:port}.
+     */
+    Map<String, ConcurrencyLimitStats> snapshot() {
+        final Map<String, ConcurrencyLimitStats> byRoute = new TreeMap<>();
+        for (final Map.Entry<HttpHost, Limit> entry : routes.entrySet()) {
+            byRoute.put(entry.getKey().toURI(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(byRoute);
+    }
+
+    /**
+     * The limit of a route. The state of its algorithm is an immutable object
+     * swapped with compare-and-set.
+     */
+    private final class Limit implements TrackedHttpResponse.Listener {
+
+        private final AtomicReference<State> state;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicLong rejected = new AtomicLong();
+
+        private Limit(final State initial) {
+            this.state = new AtomicReference<>(initial);
+        }
+
+        private int getLimit() {
+            return (int) state.get().limit;
+        }
+
+        /**
+         * @return the number of requests in flight including this one, or {@code -1} if the limit is reached.
+         */
+        private int tryAcquire() {
+            int current;
+            do {
+                current = inFlight.get();
+                if (current >= getLimit()) {
+                    rejected.incrementAndGet();
+                    return -1;
+                }
+            } while (!inFlight.compareAndSet(current, current + 1));
+            return current + 1;
+        }
+
+        private void sample(final long rttNanos, final int inFlight, final boolean dropped) {
+            State current;
+            State next;
+            do {
+                current = state.get();
+                next = algorithm.update(current, Math.max(1, rttNanos), inFlight, dropped);
+            } while (next != current && !state.compareAndSet(current, next));
+        }
+
+        @Override
+        public void completed() {
+            inFlight.decrementAndGet();
+        }
+
+        private ConcurrencyLimitStats snapshot() {
+            return new ConcurrencyLimitStats(getLimit(), inFlight.get(), rejected.get());
+        }
+    }
+
+    static final class State {
+
+        private final double limit;
+
+        /** The long-term average round trip time, only used by {@link Gradient}. */
+        private final double averageRttNanos;
+
+        State(final double limit, final double averageRttNanos) {
+            this.limit = limit;
+            this.averageRttNanos = averageRttNanos;
+        }
+
+        double getLimit() {
+            return limit;
+        }
+    }
+
+    abstract static class Algorithm {
+
+        final int minLimit;
+
+        final int maxLimit;
+
+        Algorithm(final int minLimit, final int maxLimit) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        State newState(final int initialLimit) {
+            return new State(initialLimit, 0);
+        }
+
+        /**
+         * @return the state after a request completed, or {@code state} if it is unchanged.
+         */
+        abstract State update(State state, long rttNanos, int inFlight, boolean dropped);
+
+        double clamp(final double limit) {
+            return Math.max(minLimit, Math.min(limit, maxLimit));
+        }
+    }
+
+    /**
+     * Additive increase, multiplicative decrease.
+     */
+    static final class Aimd extends Algorithm {
+
+        private final double backoffRatio;
+
+        Aimd(final int minLimit, final int maxLimit, final double backoffRatio) {
+            super(minLimit, maxLimit);
+            this.backoffRatio = Math.max(0.1, Math.min(backoffRatio, 1));
+        }
+
+        @Override
+        State update(final State state, final long rttNanos, final int inFlight, final boolean dropped) {
+            if (dropped) {
+                return new State(clamp(state.limit * backoffRatio), 0);
+            }
+            if (inFlight * 2 < state.limit || state.limit >= maxLimit) {
+                return state;
+            }
+            return new State(clamp(state.limit + 1), 0);
+        }
+    }
+
+    /**
+     * Scales the limit by the ratio of the long-term average round trip time,
+     * times a tolerance, to the current one, plus a small headroom that lets
+     * the limit grow while round trip times are stable.
+     */
+    static final class Gradient extends Algorithm {
+
+        private final double tolerance;
+
+        private final double smoothing;
+
+        Gradient(final int minLimit, final int maxLimit, final double tolerance, final double smoothing) {
+            super(minLimit, maxLimit);
+            this.tolerance = Math.max(1, tolerance);
+            this.smoothing = Math.max(0.01, Math.min(smoothing, 1));
+        }
+
+        @Override
+        State update(final State state, final long rttNanos, final int inFlight, final boolean dropped) {
+            double averageRtt = state.averageRttNanos == 0
+                    ? rttNanos
+                    : state.averageRttNanos + (rttNanos - state.averageRttNanos) / 100;
+            if (averageRtt / rttNanos > 2) {
+                // the backend recovered, let the average follow faster
+                averageRtt *= 0.95;
+            }
+            if (!dropped && inFlight * 2 < state.limit) {
+                return new State(state.limit, averageRtt);
+            }
+            final double gradient = dropped ? 0.5 : Math.max(0.5, Math.min(1, tolerance * averageRtt / rttNanos));
+            final double target = state.limit * gradient + Math.sqrt(state.limit);
+            return new State(clamp(state.limit * (1 - smoothing) + target * smoothing), averageRtt);
+        }
+    }
+}
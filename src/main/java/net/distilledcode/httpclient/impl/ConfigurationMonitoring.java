@@ -0,0 +1,116 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.HttpClientMetrics;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_CONFIG_NAME;
+
+/**
+ * The monitoring of a configuration: its {@link ConnectionPoolMonitor} and
+ * {@link RequestMetrics}, registered over JMX, and the latter also as
+ * {@link HttpClientMetrics} service.
+ * <br>
+ * The monitors live as long as the configuration. When the configuration's
+ * name changes, they are re-registered under the new name. The connection
+ * pool monitor is only registered while the configuration creates its own
+ * connection managers, see {@link #setConnectionPoolMonitored(boolean)}.
+ */
+class ConfigurationMonitoring {
+
+    private final ConnectionPoolMonitor connectionPoolMonitor;
+
+    private final RequestMetrics requestMetrics;
+
+    private String configName;
+
+    private boolean connectionPoolMonitored;
+
+    private JmxRegistration connectionPoolRegistration;
+
+    private JmxRegistration requestMetricsRegistration;
+
+    private ServiceRegistration<HttpClientMetrics> metricsRegistration;
+
+    ConfigurationMonitoring(final String configName) {
+        this.configName = configName;
+        this.connectionPoolMonitor = new ConnectionPoolMonitor(configName);
+        this.requestMetrics = new RequestMetrics(configName);
+    }
+
+    ConnectionPoolMonitor getConnectionPoolMonitor() {
+        return connectionPoolMonitor;
+    }
+
+    RequestMetrics getRequestMetrics() {
+        return requestMetrics;
+    }
+
+    synchronized void register(final BundleContext bundleContext) {
+        requestMetricsRegistration = JmxRegistration.register(requestMetrics, "Requests", configName);
+        metricsRegistration = bundleContext.registerService(HttpClientMetrics.class, requestMetrics, serviceProperties());
+    }
+
+    synchronized void rename(final String newConfigName) {
+        if (configName.equals(newConfigName)) {
+            return;
+        }
+        closeJmxRegistrations();
+        configName = newConfigName;
+        connectionPoolMonitor.setConfigName(newConfigName);
+        requestMetrics.setConfigName(newConfigName);
+        if (connectionPoolMonitored) {
+            connectionPoolRegistration = JmxRegistration.register(connectionPoolMonitor, "ConnectionPool", configName);
+        }
+        requestMetricsRegistration = JmxRegistration.register(requestMetrics, "Requests", configName);
+        if (metricsRegistration != null) {
+            metricsRegistration.setProperties(serviceProperties());
+        }
+    }
+
+    /**
+     * Registers the connection pool monitor, or unregisters it, depending on
+     * whether the configuration's clients use connection managers created by
+     * the bundle. Otherwise {@code HttpClientBuilder} creates the pools
+     * internally, and the monitor would only ever report zeros.
+     *
+     * @param monitored Whether the connection pools can be monitored.
+     */
+    synchronized void setConnectionPoolMonitored(final boolean monitored) {
+        connectionPoolMonitored = monitored;
+        if (monitored && connectionPoolRegistration == null) {
+            connectionPoolRegistration = JmxRegistration.register(connectionPoolMonitor, "ConnectionPool", configName);
+        } else if (!monitored && connectionPoolRegistration != null) {
+            connectionPoolRegistration.close();
+            connectionPoolRegistration = null;
+        }
+    }
+
+    synchronized void unregister() {
+        closeJmxRegistrations();
+        if (metricsRegistration != null) {
+            metricsRegistration.unregister();
+            metricsRegistration = null;
+        }
+    }
+
+    private void closeJmxRegistrations() {
+        if (connectionPoolRegistration != null) {
+            connectionPoolRegistration.close();
+            connectionPoolRegistration = null;
+        }
+        if (requestMetricsRegistration != null) {
+            requestMetricsRegistration.close();
+            requestMetricsRegistration = null;
+        }
+    }
+
+    private Dictionary<String, Object> serviceProperties() {
+        final Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put(HTTP_CLIENT_CONFIG_NAME, configName);
+        return properties;
+    }
+}
@@ -0,0 +1,50 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType;
+import net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil;
+import net.distilledcode.httpclient.impl.metatype.reflection.Invokers.Invocation;
+import net.distilledcode.httpclient.impl.metatype.reflection.SetterAdapter;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClientBuilder;
+
+import java.util.Map;
+
+/**
+ * An immutable, pre-compiled form of a configuration. The configuration map is
+ * only interpreted once, when the plan is compiled. Applying the plan to a
+ * {@code HttpClientBuilder} merely replays the resolved setter invocations and
+ * sets the pre-built {@code RequestConfig}.
+ */
+final class ConfigurationPlan {
+
+    private final Invocation[] httpClientBuilderInvocations;
+
+    private final RequestConfig requestConfig;
+
+    private ConfigurationPlan(final Invocation[] httpClientBuilderInvocations, final RequestConfig requestConfig) {
+        this.httpClientBuilderInvocations = httpClientBuilderInvocations;
+        this.requestConfig = requestConfig;
+    }
+
+    static ConfigurationPlan compile(final Map<String, Object> configuration) {
+        final RequestConfig.Builder requestConfigBuilder = RequestConfig.copy(RequestConfig.DEFAULT);
+        MetaTypeBeanUtil.applyConfiguration(HttpClientConfigurationMetaType.REQUEST_CONFIG_NAMESPACE, configuration,
+                new SetterAdapter(requestConfigBuilder, HttpClientConfigurationMetaType.SETTERS_REQUEST_CONFIG_BUILDER));
+        final Invocation[] invocations = MetaTypeBeanUtil.compileConfiguration("", configuration,
+                HttpClientConfigurationMetaType.SETTERS_HTTP_CLIENT_BUILDER);
+        return new ConfigurationPlan(invocations, requestConfigBuilder.build());
+    }
+
+    void apply(final HttpClientBuilder httpClientBuilder) {
+        MetaTypeBeanUtil.applyConfiguration(httpClientBuilderInvocations, httpClientBuilder);
+        httpClientBuilder.setDefaultRequestConfig(requestConfig);
+    }
+
+    RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    int size() {
+        return httpClientBuilderInvocations.length;
+    }
+}
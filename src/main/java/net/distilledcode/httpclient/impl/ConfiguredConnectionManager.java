@@ -0,0 +1,90 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@code PoolingHttpClientConnectionManager} created from a configuration.
+ * Resources registered via {@link #addCloseable(Closeable)}, e.g. registrations
+ * with bundle-wide services, are closed when the connection manager is shut down.
+ * <br>
+ * If a {@link ConnectionPoolMonitor} is given, the time spent waiting for a
+ * connection lease and lease timeouts are recorded with it.
+ */
+class ConfiguredConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConfiguredConnectionManager.class);
+
+    private final List<Closeable> closeables = new CopyOnWriteArrayList<>();
+
+    private final ConnectionPoolMonitor monitor;
+
+    ConfiguredConnectionManager(final Registry<ConnectionSocketFactory> socketFactoryRegistry, final DnsResolver dnsResolver,
+                                final long timeToLive, final TimeUnit timeUnit, final ConnectionPoolMonitor monitor) {
+        super(socketFactoryRegistry, null, null, dnsResolver, timeToLive, timeUnit);
+        this.monitor = monitor;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+        final ConnectionRequest connectionRequest = super.requestConnection(route, state);
+        if (monitor == null) {
+            return connectionRequest;
+        }
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(final long timeout, final TimeUnit tunit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                final long start = System.nanoTime();
+                try {
+                    final HttpClientConnection connection = connectionRequest.get(timeout, tunit);
+                    monitor.leased(System.nanoTime() - start);
+                    return connection;
+                } catch (ConnectionPoolTimeoutException e) {
+                    monitor.leaseTimedOut(System.nanoTime() - start);
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return connectionRequest.cancel();
+            }
+        };
+    }
+
+    void addCloseable(final Closeable closeable) {
+        closeables.add(closeable);
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            super.shutdown();
+        } finally {
+            for (final Closeable closeable : closeables) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close {}", closeable, e);
+                }
+            }
+            closeables.clear();
+        }
+    }
+}
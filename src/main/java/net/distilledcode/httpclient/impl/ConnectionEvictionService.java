@@ -0,0 +1,130 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bundle-wide replacement for the {@code IdleConnectionEvictor} thread that
+ * {@code HttpClientBuilder} starts for every client it builds. A single
+ * scheduler thread sweeps all tracked connection managers.
+ * <br>
+ * Connection managers are only weakly referenced, so connection managers of
+ * clients that are never closed can still be garbage collected.
+ */
+@Component(service = ConnectionEvictionService.class)
+public class ConnectionEvictionService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionEvictionService.class);
+
+    private static final long DEFAULT_SWEEP_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final AtomicInteger trackedConnectionManagers = new AtomicInteger();
+
+    private volatile ScheduledExecutorService executor;
+
+    @Activate
+    protected void activate() {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "httpclient-connection-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Periodically closes expired connections and, if {@code maxIdleTimeMs}
+     * is positive, connections that have been idle for longer than that.
+     *
+     * @param connectionManager The connection manager to sweep.
+     * @param maxIdleTimeMs The maximum idle time of a connection, or a value
+     *                      less than or equal to zero to only close expired connections.
+     * @return A {@code Closeable} that stops tracking the connection manager.
+     */
+    public Closeable track(final HttpClientConnectionManager connectionManager, final long maxIdleTimeMs) {
+        final long interval = maxIdleTimeMs > 0 ? maxIdleTimeMs : DEFAULT_SWEEP_INTERVAL_MS;
+        final EvictionTask task = new EvictionTask(connectionManager, maxIdleTimeMs);
+        final ScheduledExecutorService scheduler = executor;
+        if (scheduler == null) {
+            throw new IllegalStateException("ConnectionEvictionService is not active");
+        }
+        trackedConnectionManagers.incrementAndGet();
+        task.future = scheduler.scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+        return task;
+    }
+
+    int getTrackedConnectionManagers() {
+        return trackedConnectionManagers.get();
+    }
+
+    private class EvictionTask implements Runnable, Closeable {
+
+        private final WeakReference<HttpClientConnectionManager> connectionManagerRef;
+
+        private final long maxIdleTimeMs;
+
+        private volatile ScheduledFuture<?> future;
+
+        private volatile boolean closed;
+
+        private EvictionTask(final HttpClientConnectionManager connectionManager, final long maxIdleTimeMs) {
+            this.connectionManagerRef = new WeakReference<>(connectionManager);
+            this.maxIdleTimeMs = maxIdleTimeMs;
+        }
+
+        @Override
+        public void run() {
+            final HttpClientConnectionManager connectionManager = connectionManagerRef.get();
+            if (connectionManager == null) {
+                close();
+                return;
+            }
+            try {
+                connectionManager.closeExpiredConnections();
+                if (maxIdleTimeMs > 0) {
+                    connectionManager.closeIdleConnections(maxIdleTimeMs, TimeUnit.MILLISECONDS);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to evict connections of {}", connectionManager, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            final ScheduledFuture<?> scheduledFuture = future;
+            if (scheduledFuture != null) {
+                scheduledFuture.cancel(false);
+            }
+            trackedConnectionManagers.decrementAndGet();
+        }
+    }
+}
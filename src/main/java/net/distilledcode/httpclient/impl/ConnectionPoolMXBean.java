@@ -0,0 +1,85 @@
+package net.distilledcode.httpclient.impl;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * Live connection pool statistics of a configuration, aggregated over all
+ * connection managers created for it that have not been shut down.
+ * <br>
+ * Registered as {@code net.distilledcode.httpclient:type=ConnectionPool,name=<httpclient.config.name>}.
+ */
+public interface ConnectionPoolMXBean {
+
+    String getConfigName();
+
+    int getConnectionManagers();
+
+    int getLeased();
+
+    int getPending();
+
+    int getAvailable();
+
+    int getMax();
+
+    /**
+     * @return the statistics per route, keyed by the route, e.g. {@code {}->http://example.com:80}.
+     */
+    Map<String, RouteStats> getRoutes();
+
+    long getLeaseRequests();
+
+    long getLeaseTimeouts();
+
+    double getLeaseWaitTimeMeanMillis();
+
+    double getLeaseWaitTimeP50Millis();
+
+    double getLeaseWaitTimeP95Millis();
+
+    double getLeaseWaitTimeP99Millis();
+
+    double getLeaseWaitTimeMaxMillis();
+
+    /**
+     * @return the number of leases per wait time bucket, keyed by the bucket's
+     * exclusive upper bound in microseconds. Empty buckets are omitted.
+     */
+    Map<Long, Long> getLeaseWaitTimeHistogram();
+
+    class RouteStats {
+
+        private final int leased;
+
+        private final int pending;
+
+        private final int available;
+
+        private final int max;
+
+        @ConstructorProperties({"leased", "pending", "available", "max"})
+        public RouteStats(final int leased, final int pending, final int available, final int max) {
+            this.leased = leased;
+            this.pending = pending;
+            this.available = available;
+            this.max = max;
+        }
+
+        public int getLeased() {
+            return leased;
+        }
+
+        public int getPending() {
+            return pending;
+        }
+
+        public int getAvailable() {
+            return available;
+        }
+
+        public int getMax() {
+            return max;
+        }
+    }
+}
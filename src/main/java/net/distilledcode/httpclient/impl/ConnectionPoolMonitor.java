@@ -0,0 +1,175 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the connection managers of a configuration and records how long
+ * leasing a connection from them takes, see {@link ConnectionPoolMXBean}.
+ * <br>
+ * A single monitor is used for the lifetime of a configuration, i.e. it also
+ * covers connection managers created after the configuration changed.
+ */
+class ConnectionPoolMonitor implements ConnectionPoolMXBean {
+
+    private static final double MICROS_PER_MILLI = TimeUnit.MILLISECONDS.toMicros(1);
+
+    private volatile String configName;
+
+    private final Set<PoolingHttpClientConnectionManager> connectionManagers =
+            Collections.newSetFromMap(new ConcurrentHashMap<PoolingHttpClientConnectionManager, Boolean>());
+
+    private final LatencyHistogram leaseWaitTimes = new LatencyHistogram();
+
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+
+    ConnectionPoolMonitor(final String configName) {
+        this.configName = configName;
+    }
+
+    /**
+     * @param connectionManager The connection manager to include in the statistics.
+     * @return A {@code Closeable} that excludes the connection manager again,
+     * to be closed when it is shut down.
+     */
+    Closeable track(final PoolingHttpClientConnectionManager connectionManager) {
+        connectionManagers.add(connectionManager);
+        return new Closeable() {
+            @Override
+            public void close() {
+                connectionManagers.remove(connectionManager);
+            }
+        };
+    }
+
+    void leased(final long waitTimeNanos) {
+        leaseWaitTimes.record(waitTimeNanos);
+    }
+
+    void leaseTimedOut(final long waitTimeNanos) {
+        leaseWaitTimes.record(waitTimeNanos);
+        leaseTimeouts.incrementAndGet();
+    }
+
+    @Override
+    public String getConfigName() {
+        return configName;
+    }
+
+    void setConfigName(final String configName) {
+        this.configName = configName;
+    }
+
+    @Override
+    public int getConnectionManagers() {
+        return connectionManagers.size();
+    }
+
+    @Override
+    public int getLeased() {
+        int leased = 0;
+        for (final PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+            leased += connectionManager.getTotalStats().getLeased();
+        }
+        return leased;
+    }
+
+    @Override
+    public int getPending() {
+        int pending = 0;
+        for (final PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+            pending += connectionManager.getTotalStats().getPending();
+        }
+        return pending;
+    }
+
+    @Override
+    public int getAvailable() {
+        int available = 0;
+        for (final PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+            available += connectionManager.getTotalStats().getAvailable();
+        }
+        return available;
+    }
+
+    @Override
+    public int getMax() {
+        int max = 0;
+        for (final PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+            max += connectionManager.getTotalStats().getMax();
+        }
+        return max;
+    }
+
+    @Override
+    public Map<String, RouteStats> getRoutes() {
+        final Map<String, RouteStats> routes = new TreeMap<>();
+        for (final PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+            for (final HttpRoute route : connectionManager.getRoutes()) {
+                final PoolStats stats = connectionManager.getStats(route);
+                final String key = route.toString();
+                final RouteStats previous = routes.get(key);
+                if (previous == null) {
+                    routes.put(key, new RouteStats(stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax()));
+                } else {
+                    routes.put(key, new RouteStats(
+                            previous.getLeased() + stats.getLeased(),
+                            previous.getPending() + stats.getPending(),
+                            previous.getAvailable() + stats.getAvailable(),
+                            previous.getMax() + stats.getMax()));
+                }
+            }
+        }
+        return routes;
+    }
+
+    @Override
+    public long getLeaseRequests() {
+        return leaseWaitTimes.snapshot().getCount();
+    }
+
+    @Override
+    public long getLeaseTimeouts() {
+        return leaseTimeouts.get();
+    }
+
+    @Override
+    public double getLeaseWaitTimeMeanMillis() {
+        return leaseWaitTimes.snapshot().getMeanMicros() / MICROS_PER_MILLI;
+    }
+
+    @Override
+    public double getLeaseWaitTimeP50Millis() {
+        return leaseWaitTimes.snapshot().getQuantileMicros(0.5) / MICROS_PER_MILLI;
+    }
+
+    @Override
+    public double getLeaseWaitTimeP95Millis() {
+        return leaseWaitTimes.snapshot().getQuantileMicros(0.95) / MICROS_PER_MILLI;
+    }
+
+    @Override
+    public double getLeaseWaitTimeP99Millis() {
+        return leaseWaitTimes.snapshot().getQuantileMicros(0.99) / MICROS_PER_MILLI;
+    }
+
+    @Override
+    public double getLeaseWaitTimeMaxMillis() {
+        return leaseWaitTimes.snapshot().getMaxMicros() / MICROS_PER_MILLI;
+    }
+
+    @Override
+    public Map<Long, Long> getLeaseWaitTimeHistogram() {
+        return leaseWaitTimes.snapshot().getBuckets();
+    }
+}
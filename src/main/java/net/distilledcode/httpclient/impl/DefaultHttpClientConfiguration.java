@@ -1,5 +1,6 @@
 package net.distilledcode.httpclient.impl;
 
+import org.apache.http.osgi.services.CachingHttpClientBuilderFactory;
 import org.apache.http.osgi.services.HttpClientBuilderFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -7,6 +8,7 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 
 import java.util.Hashtable;
@@ -36,11 +38,70 @@ public class DefaultHttpClientConfiguration extends HttpClientConfiguration {
         super.unbindHttpClientBuilderFactory(factory);
     }
 
+    @Reference(target = ORIGINAL_CACHING_CLIENT_BUILDER_FACTORY_SERVICE_PID)
+    protected void bindCachingHttpClientBuilderFactory(CachingHttpClientBuilderFactory factory) {
+        super.bindCachingHttpClientBuilderFactory(factory);
+    }
+
+    protected void unbindCachingHttpClientBuilderFactory(CachingHttpClientBuilderFactory factory) {
+        super.unbindCachingHttpClientBuilderFactory(factory);
+    }
+
+    @Reference
+    protected void bindConnectionEvictionService(ConnectionEvictionService service) {
+        super.bindConnectionEvictionService(service);
+    }
+
+    protected void unbindConnectionEvictionService(ConnectionEvictionService service) {
+        super.unbindConnectionEvictionService(service);
+    }
+
+    @Reference
+    protected void bindClientDrainService(ClientDrainService service) {
+        super.bindClientDrainService(service);
+    }
+
+    protected void unbindClientDrainService(ClientDrainService service) {
+        super.unbindClientDrainService(service);
+    }
+
+    @Reference
+    protected void bindDnsRefreshService(DnsRefreshService service) {
+        super.bindDnsRefreshService(service);
+    }
+
+    protected void unbindDnsRefreshService(DnsRefreshService service) {
+        super.unbindDnsRefreshService(service);
+    }
+
+    @Reference
+    protected void bindHedgingService(HedgingService service) {
+        super.bindHedgingService(service);
+    }
+
+    protected void unbindHedgingService(HedgingService service) {
+        super.unbindHedgingService(service);
+    }
+
+    @Reference
+    protected void bindTimerWheel(TimerWheel service) {
+        super.bindTimerWheel(service);
+    }
+
+    protected void unbindTimerWheel(TimerWheel service) {
+        super.unbindTimerWheel(service);
+    }
+
     @Activate
     protected void activate(BundleContext ctx, Map<String, Object> configuration) {
         super.activate(ctx, configuration);
     }
 
+    @Modified
+    protected void modified(Map<String, Object> configuration) {
+        super.modified(configuration);
+    }
+
     @Deactivate
     protected void deactivate() {
         super.deactivate();
@@ -0,0 +1,64 @@
+package net.distilledcode.httpclient.impl;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bundle-wide service that runs the background refreshes of all
+ * {@link CachingDnsResolver}s, instead of a thread per configuration.
+ * <br>
+ * Refreshes run on a single thread, which terminates when idle. The queue is
+ * bounded, refreshes that do not fit are rejected and retried by the resolver
+ * on a later lookup.
+ */
+@Component(service = DnsRefreshService.class)
+public class DnsRefreshService implements Executor {
+
+    static final int MAX_QUEUED_REFRESHES = 1024;
+
+    private volatile ExecutorService executor;
+
+    @Activate
+    protected void activate() {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REFRESHES), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "httpclient-dns-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full or the service is not active.
+     */
+    @Override
+    public void execute(final Runnable refresh) {
+        final ExecutorService pool = executor;
+        if (pool == null) {
+            throw new RejectedExecutionException("DnsRefreshService is not active");
+        }
+        pool.execute(refresh);
+    }
+}
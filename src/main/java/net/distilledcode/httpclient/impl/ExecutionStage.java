@@ -0,0 +1,28 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * A stage of the request execution of a configuration, e.g. coalescing or
+ * hedging, whose state is shared by the clients of all views. Each client
+ * sends its requests through the stage with a {@link StagedHttpClient}.
+ */
+interface ExecutionStage {
+
+    /**
+     * @param httpClient The client of the next stage, which executes the request.
+     * @param target The target host, may be {@code null}.
+     * @param request The request to execute.
+     * @param context The context of the execution, may be {@code null}.
+     * @return the response.
+     * @throws IOException if the request fails.
+     */
+    CloseableHttpResponse execute(CloseableHttpClient httpClient, HttpHost target, HttpRequest request,
+                                  HttpContext context) throws IOException;
+}
@@ -0,0 +1,96 @@
+package net.distilledcode.httpclient.impl;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bundle-wide service that sends the hedged requests of all
+ * {@link RequestHedger}s, instead of threads per configuration.
+ * <br>
+ * A single timer thread waits for the hedge delays, and the hedged requests
+ * are sent on a pool of up to {@value #MAX_HEDGE_THREADS} threads, which
+ * terminate when idle. Hedges that find no free thread are not sent.
+ */
+@Component(service = HedgingService.class)
+public class HedgingService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HedgingService.class);
+
+    static final int MAX_HEDGE_THREADS = 64;
+
+    private volatile ScheduledThreadPoolExecutor timer;
+
+    private volatile ThreadPoolExecutor pool;
+
+    @Activate
+    protected void activate() {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, threadFactory("httpclient-hedge-timer"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        timer = scheduler;
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory("httpclient-hedge"));
+        pool = executor;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Sends a hedged request after a delay.
+     *
+     * @param hedge The task sending the hedged request.
+     * @param delayNanos The delay.
+     * @return the future to cancel the hedge with, as long as it has not started.
+     * @throws RejectedExecutionException if the service is not active.
+     */
+    Future<?> schedule(final Runnable hedge, final long delayNanos) {
+        final ScheduledThreadPoolExecutor scheduler = timer;
+        final ThreadPoolExecutor executor = pool;
+        if (scheduler == null || executor == null) {
+            throw new RejectedExecutionException("HedgingService is not active");
+        }
+        return scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(hedge);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Not sending hedged request, all {} hedge threads are busy", MAX_HEDGE_THREADS);
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        final AtomicInteger threads = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -1,6 +1,7 @@
 package net.distilledcode.httpclient.impl;
 
 import org.apache.http.client.HttpClient;
+import org.apache.http.osgi.services.CachingHttpClientBuilderFactory;
 import org.apache.http.osgi.services.HttpClientBuilderFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
@@ -8,6 +9,7 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.util.function.Predicate;
@@ -22,6 +24,7 @@ import java.util.Map;
 import static net.distilledcode.httpclient.impl.util.PredicateUtils.endsWith;
 import static net.distilledcode.httpclient.impl.util.PredicateUtils.or;
 import static net.distilledcode.httpclient.impl.util.PredicateUtils.startsWith;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
 
 @Component(
         configurationPolicy = ConfigurationPolicy.REQUIRE,
@@ -35,23 +38,83 @@ public class HttpClientConfiguration {
 
     public static final String HTTP_CLIENT_CONFIG_NAME = "httpclient.config.name";
 
+    public static final String HTTP_CLIENT_SHARED = "httpclient.shared";
+
+    public static final String HTTP_CLIENT_LAZY = "httpclient.lazy";
+
+    public static final String HTTP_CLIENT_IDLE_RELEASE_MS = "httpclient.idle.release.ms";
+
+    public static final String METRICS_ENABLED = "metrics.enabled";
+
+    public static final String METRICS_PHASES_ENABLED = "metrics.phases.enabled";
+
+    public static final String METRICS_PHASES_SAMPLING_RATE = "metrics.phases.sampling.rate";
+
+    public static final String SHUTDOWN_DRAIN_TIMEOUT_MS = "shutdown.drain.timeout.ms";
+
+    public static final long DEFAULT_SHUTDOWN_DRAIN_TIMEOUT_MS = 10000;
+
+    /** The name the default configuration is monitored as, it has no {@code httpclient.config.name}. */
+    public static final String DEFAULT_CONFIG_NAME = "default";
+
     protected static final String ORIGINAL_CLIENT_BUILDER_FACTORY_SERVICE_PID = "(service.pid=org.apache.http.httpclientfactory)";
 
+    protected static final String ORIGINAL_CACHING_CLIENT_BUILDER_FACTORY_SERVICE_PID = "(service.pid=org.apache.http.cachinghttpclientfactory)";
+
     private static final Predicate<String> FORBIDDEN_PROPERTIES_PREDICATE = or(startsWith("service."), startsWith("component."), endsWith(".target"));
 
+    private volatile Map<String, Object> defaultHttpClientConfig;
+
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
+    private CachingHttpClientBuilderFactory cachingHttpClientBuilderFactory;
+
+    private ConnectionEvictionService connectionEvictionService;
+
+    private ClientDrainService clientDrainService;
+
+    private DnsRefreshService dnsRefreshService;
+
+    private HedgingService hedgingService;
+
+    private TimerWheel timerWheel;
+
+    private BundleContext bundleContext;
+
+    private Map<String, Object> configuration;
+
+    private PreconfiguredHttpClientBuilderFactory preconfiguredHttpClientBuilderFactory;
+
+    private HttpClientPrototypeFactory httpClientPrototypeFactory;
+
+    private ConfigurationMonitoring monitoring;
+
+    private ServiceRegistration<?> httpClientRegistration;
+
+    private ServiceRegistration<HttpClientBuilderFactory> httpClientBuilderFactoryRegistration;
+
     @Reference(
+            name = "defaultHttpClientConfig",
             service = HttpClient.class,
             target = "(!(" + HttpClientConfiguration.HTTP_CLIENT_CONFIG_NAME +"=*))",
             policyOption = ReferencePolicyOption.GREEDY
     )
-    @SuppressWarnings("unused")
-    private Map<String, Object> defaultHttpClientConfig;
-
-    private HttpClientBuilderFactory httpClientBuilderFactory;
+    protected void bindDefaultHttpClientConfig(final Map<String, Object> properties) {
+        defaultHttpClientConfig = properties;
+    }
 
-    private ServiceRegistration<?> httpClientRegistration;
+    protected void updatedDefaultHttpClientConfig(final Map<String, Object> properties) {
+        defaultHttpClientConfig = properties;
+        synchronized (this) {
+            if (configuration != null) {
+                reconfigure();
+            }
+        }
+    }
 
-    private ServiceRegistration<HttpClientBuilderFactory> httpClientBuilderFactoryRegistration;
+    protected void unbindDefaultHttpClientConfig(final Map<String, Object> properties) {
+        defaultHttpClientConfig = null;
+    }
 
     @Reference(target = ORIGINAL_CLIENT_BUILDER_FACTORY_SERVICE_PID)
     protected void bindHttpClientBuilderFactory(final HttpClientBuilderFactory factory) {
@@ -64,34 +127,167 @@ public class HttpClientConfiguration {
         }
     }
 
+    @Reference(target = ORIGINAL_CACHING_CLIENT_BUILDER_FACTORY_SERVICE_PID)
+    protected void bindCachingHttpClientBuilderFactory(final CachingHttpClientBuilderFactory factory) {
+        cachingHttpClientBuilderFactory = factory;
+    }
+
+    protected void unbindCachingHttpClientBuilderFactory(final CachingHttpClientBuilderFactory factory) {
+        if (factory == cachingHttpClientBuilderFactory) {
+            cachingHttpClientBuilderFactory = null;
+        }
+    }
+
+    @Reference
+    protected void bindConnectionEvictionService(final ConnectionEvictionService service) {
+        connectionEvictionService = service;
+    }
+
+    protected void unbindConnectionEvictionService(final ConnectionEvictionService service) {
+        if (service == connectionEvictionService) {
+            connectionEvictionService = null;
+        }
+    }
+
+    @Reference
+    protected void bindClientDrainService(final ClientDrainService service) {
+        clientDrainService = service;
+    }
+
+    protected void unbindClientDrainService(final ClientDrainService service) {
+        if (service == clientDrainService) {
+            clientDrainService = null;
+        }
+    }
+
+    @Reference
+    protected void bindDnsRefreshService(final DnsRefreshService service) {
+        dnsRefreshService = service;
+    }
+
+    protected void unbindDnsRefreshService(final DnsRefreshService service) {
+        if (service == dnsRefreshService) {
+            dnsRefreshService = null;
+        }
+    }
+
+    @Reference
+    protected void bindHedgingService(final HedgingService service) {
+        hedgingService = service;
+    }
+
+    protected void unbindHedgingService(final HedgingService service) {
+        if (service == hedgingService) {
+            hedgingService = null;
+        }
+    }
+
+    @Reference
+    protected void bindTimerWheel(final TimerWheel service) {
+        timerWheel = service;
+    }
+
+    protected void unbindTimerWheel(final TimerWheel service) {
+        if (service == timerWheel) {
+            timerWheel = null;
+        }
+    }
+
     @Activate @SuppressWarnings("unused")
-    protected void activate(final BundleContext ctx, final Map<String, Object> conf) {
-        Hashtable<String, Object> properties = new Hashtable<>(conf);
-        clean(properties, FORBIDDEN_PROPERTIES_PREDICATE);
-        properties = prepareConfiguration(properties);
-        HttpClientBuilderFactory factory = new PreconfiguredHttpClientBuilderFactory(httpClientBuilderFactory, properties);
+    protected synchronized void activate(final BundleContext ctx, final Map<String, Object> conf) {
+        bundleContext = ctx;
+        configuration = conf;
+        final Hashtable<String, Object> properties = effectiveConfiguration(conf);
+        monitoring = new ConfigurationMonitoring(configName(properties));
+        monitoring.register(ctx);
+        preconfiguredHttpClientBuilderFactory = new PreconfiguredHttpClientBuilderFactory(httpClientBuilderFactory,
+                cachingHttpClientBuilderFactory, properties,
+                connectionEvictionService, monitoring.getConnectionPoolMonitor(),
+                monitoring.getRequestMetrics(), dnsRefreshService);
+        monitoring.setConnectionPoolMonitored(preconfiguredHttpClientBuilderFactory.hasConnectionManager());
         httpClientBuilderFactoryRegistration = ctx.registerService(
                 HttpClientBuilderFactory.class,
-                factory,
-                properties
-        );
-        httpClientRegistration = ctx.registerService(
-                HttpClient.class.getName(),
-                new HttpClientPrototypeFactory(factory),
+                preconfiguredHttpClientBuilderFactory,
                 properties
         );
+        registerHttpClient(properties);
         LOG.debug("Effective config for '{}': {}", conf.get(HTTP_CLIENT_CONFIG_NAME), properties);
     }
 
+    /**
+     * Applies a changed configuration without unregistering the services.
+     * The service properties are updated, and the clients handed out by the
+     * {@code HttpClient} service are replaced by clients built with the new
+     * configuration, while requests in flight complete on the previous clients.
+     */
+    @Modified @SuppressWarnings("unused")
+    protected synchronized void modified(final Map<String, Object> conf) {
+        configuration = conf;
+        reconfigure();
+    }
+
     @Deactivate @SuppressWarnings("unused")
-    protected void deactivate() {
+    protected synchronized void deactivate() {
         if (httpClientRegistration != null) {
             httpClientRegistration.unregister();
+            httpClientRegistration = null;
         }
 
         if (httpClientBuilderFactoryRegistration != null) {
             httpClientBuilderFactoryRegistration.unregister();
+            httpClientBuilderFactoryRegistration = null;
+        }
+
+        if (monitoring != null) {
+            monitoring.unregister();
+            monitoring = null;
+        }
+        httpClientPrototypeFactory = null;
+        if (preconfiguredHttpClientBuilderFactory != null) {
+            preconfiguredHttpClientBuilderFactory.close();
+            preconfiguredHttpClientBuilderFactory = null;
+        }
+        configuration = null;
+        bundleContext = null;
+    }
+
+    private void reconfigure() {
+        final Hashtable<String, Object> properties = effectiveConfiguration(configuration);
+        preconfiguredHttpClientBuilderFactory.update(properties);
+        httpClientBuilderFactoryRegistration.setProperties(properties);
+        monitoring.rename(configName(properties));
+        monitoring.setConnectionPoolMonitored(preconfiguredHttpClientBuilderFactory.hasConnectionManager());
+        if (httpClientPrototypeFactory.isShared() == toBoolean(properties, HTTP_CLIENT_SHARED, false)) {
+            httpClientPrototypeFactory.update(properties);
+            httpClientPrototypeFactory.reconfigure();
+            httpClientRegistration.setProperties(properties);
+        } else {
+            // switching between shared and per-consumer clients requires new service objects
+            httpClientRegistration.unregister();
+            registerHttpClient(properties);
         }
+        LOG.debug("Updated effective config for '{}': {}", configuration.get(HTTP_CLIENT_CONFIG_NAME), properties);
+    }
+
+    private void registerHttpClient(final Hashtable<String, Object> properties) {
+        httpClientPrototypeFactory = new HttpClientPrototypeFactory(preconfiguredHttpClientBuilderFactory,
+                clientDrainService, monitoring.getRequestMetrics(), hedgingService, timerWheel, properties);
+        httpClientRegistration = bundleContext.registerService(
+                HttpClient.class.getName(),
+                httpClientPrototypeFactory,
+                properties
+        );
+    }
+
+    private static String configName(final Map<String, Object> properties) {
+        final Object configName = properties.get(HTTP_CLIENT_CONFIG_NAME);
+        return configName != null ? configName.toString() : DEFAULT_CONFIG_NAME;
+    }
+
+    private Hashtable<String, Object> effectiveConfiguration(final Map<String, Object> conf) {
+        Hashtable<String, Object> properties = new Hashtable<>(conf);
+        clean(properties, FORBIDDEN_PROPERTIES_PREDICATE);
+        return prepareConfiguration(properties);
     }
 
     protected Hashtable<String, Object> prepareConfiguration(final Hashtable<String, Object> properties) {
@@ -26,37 +26,252 @@
  */
 package net.distilledcode.httpclient.impl;
 
+import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.osgi.services.HttpClientBuilderFactory;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.PrototypeServiceFactory;
 import org.osgi.framework.ServiceRegistration;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-class HttpClientPrototypeFactory implements PrototypeServiceFactory<CloseableHttpClient> {
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.DEFAULT_SHUTDOWN_DRAIN_TIMEOUT_MS;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_IDLE_RELEASE_MS;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_LAZY;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_SHARED;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.METRICS_ENABLED;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.SHUTDOWN_DRAIN_TIMEOUT_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_ENABLED;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
 
-    private static final Logger LOG = LoggerFactory.getLogger(HttpClientPrototypeFactory.class.getName());
+/**
+ * Hands out {@code HttpClient} instances for the {@code HttpClient} service.
+ * <br>
+ * Each instance is a view of a client built by the {@code HttpClientBuilderFactory},
+ * so that {@link #reconfigure()} can replace the clients behind all views once
+ * the configuration changed. With {@code httpclient.lazy} the clients, and
+ * their connection managers, are only built on the first request, and may be
+ * released again after {@code httpclient.idle.release.ms}. Unless
+ * {@code metrics.enabled} is {@code false}, requests are recorded with the
+ * configuration's {@link RequestMetrics}. With {@code coalesce.enabled},
+ * identical concurrent requests of all clients are coalesced by one
+ * {@link RequestCoalescer}, with {@code hedge.enabled} slow requests
+ * are hedged by one {@link RequestHedger}, and with {@code adaptive.limit.enabled}
+ * concurrent requests per route are limited by one {@link ConcurrencyLimiter}.
+ * Requests are aborted once their deadline expires by the {@link RequestDeadlines},
+ * using the bundle-wide {@link TimerWheel}. With {@code circuit.breaker.enabled}
+ * or {@code lb.enabled}, the {@link AttemptFailures} stage records failures the
+ * clients do not record.
+ * <br>
+ * Clients that are no longer used, because they were replaced or released,
+ * are drained: they are closed asynchronously once their in-flight requests
+ * completed, or when the drain timeout expires. Requests that reach a replaced
+ * client after it was drained are executed by its replacement.
+ */
+class HttpClientPrototypeFactory implements PrototypeServiceFactory<HttpClient>, SharedHttpClient.ClientFactory {
 
     private final HttpClientBuilderFactory httpClientBuilderFactory;
 
-    public HttpClientPrototypeFactory(final HttpClientBuilderFactory httpClientBuilderFactory) {
+    private final SharedHttpClient sharedHttpClient;
+
+    private final ClientDrainService clientDrainService;
+
+    private final RequestMetrics requestMetrics;
+
+    private final HedgingService hedgingService;
+
+    private final TimerWheel timerWheel;
+
+    private volatile Settings settings;
+
+    private final Set<View> views = Collections.newSetFromMap(new ConcurrentHashMap<View, Boolean>());
+
+    public HttpClientPrototypeFactory(final HttpClientBuilderFactory httpClientBuilderFactory,
+                                      final ClientDrainService clientDrainService,
+                                      final RequestMetrics requestMetrics,
+                                      final HedgingService hedgingService,
+                                      final TimerWheel timerWheel,
+                                      final Map<String, Object> effectiveConfiguration) {
         this.httpClientBuilderFactory = httpClientBuilderFactory;
+        this.clientDrainService = clientDrainService;
+        this.requestMetrics = requestMetrics;
+        this.hedgingService = hedgingService;
+        this.timerWheel = timerWheel;
+        this.settings = new Settings(effectiveConfiguration, requestMetrics, hedgingService, timerWheel);
+        this.sharedHttpClient = toBoolean(effectiveConfiguration, HTTP_CLIENT_SHARED, false) ? new SharedHttpClient(this) : null;
     }
 
     @Override
-    public CloseableHttpClient getService(final Bundle bundle, final ServiceRegistration<CloseableHttpClient> registration) {
-        return httpClientBuilderFactory.newBuilder().build();
+    public HttpClient getService(final Bundle bundle, final ServiceRegistration<HttpClient> registration) {
+        if (sharedHttpClient != null) {
+            return sharedHttpClient.acquire();
+        }
+        final View view = new View(newHttpClient());
+        views.add(view);
+        return view;
     }
 
     @Override
-    public void ungetService(final Bundle bundle, final ServiceRegistration<CloseableHttpClient> registration, final CloseableHttpClient httpClient) {
-        try {
-            httpClient.close();
-        } catch (IOException e) {
-            LOG.error("Failed to close HttpClient", e);
+    public void ungetService(final Bundle bundle, final ServiceRegistration<HttpClient> registration, final HttpClient httpClient) {
+        if (sharedHttpClient != null) {
+            drain(sharedHttpClient.release(httpClient));
+            return;
+        }
+
+        if (views.remove(httpClient)) {
+            drain(((View) httpClient).detach());
+        }
+    }
+
+    boolean isShared() {
+        return sharedHttpClient != null;
+    }
+
+    /**
+     * Replaces the settings read from the effective configuration, e.g. the
+     * drain timeout and lazy materialization. Clients built afterwards, e.g.
+     * by {@link #reconfigure()}, use the new settings.
+     *
+     * @param effectiveConfiguration the new effective configuration.
+     */
+    void update(final Map<String, Object> effectiveConfiguration) {
+        settings = new Settings(effectiveConfiguration, requestMetrics, hedgingService, timerWheel);
+    }
+
+    /**
+     * Replaces the clients behind all {@code HttpClient} instances handed out
+     * with clients newly built by the {@code HttpClientBuilderFactory}. New
+     * requests use the new clients immediately, while requests in flight
+     * complete on the previous clients, which are drained.
+     */
+    void reconfigure() {
+        if (sharedHttpClient != null) {
+            drain(sharedHttpClient.reconfigure());
+            return;
+        }
+
+        for (final View view : views) {
+            drain(view.swap(newHttpClient()));
+        }
+    }
+
+    @Override
+    public TrackingHttpClient newHttpClient() {
+        final Settings current = settings;
+        CloseableHttpClient httpClient;
+        if (current.lazy) {
+            final LazyHttpClient lazyHttpClient = new LazyHttpClient(httpClientBuilderFactory, current.idleReleaseMs);
+            clientDrainService.releaseWhenIdle(lazyHttpClient);
+            httpClient = lazyHttpClient;
+        } else {
+            httpClient = httpClientBuilderFactory.newBuilder().build();
+        }
+        if (current.recordAttemptFailures) {
+            httpClient = new StagedHttpClient(httpClient, AttemptFailures.INSTANCE);
+        }
+        if (current.limiter != null) {
+            httpClient = new StagedHttpClient(httpClient, current.limiter);
+        }
+        if (current.hedger != null) {
+            httpClient = new StagedHttpClient(httpClient, current.hedger);
+        }
+        if (current.coalescer != null) {
+            httpClient = new StagedHttpClient(httpClient, current.coalescer);
+        }
+        if (current.deadlines != null) {
+            httpClient = new StagedHttpClient(httpClient, current.deadlines);
+        }
+        if (current.metricsEnabled && requestMetrics != null) {
+            httpClient = new InstrumentedHttpClient(httpClient, requestMetrics);
+        }
+        return new TrackingHttpClient(httpClient);
+    }
+
+    private void drain(final TrackingHttpClient httpClient) {
+        if (httpClient != null) {
+            clientDrainService.drain(httpClient, settings.drainTimeoutMs);
+        }
+    }
+
+    private static class Settings {
+
+        private final long drainTimeoutMs;
+
+        private final boolean lazy;
+
+        private final long idleReleaseMs;
+
+        private final boolean metricsEnabled;
+
+        private final boolean recordAttemptFailures;
+
+        private final RequestCoalescer coalescer;
+
+        private final RequestHedger hedger;
+
+        private final ConcurrencyLimiter limiter;
+
+        private final RequestDeadlines deadlines;
+
+        private Settings(final Map<String, Object> effectiveConfiguration, final RequestMetrics requestMetrics,
+                         final HedgingService hedgingService, final TimerWheel timerWheel) {
+            this.drainTimeoutMs = toLong(effectiveConfiguration, SHUTDOWN_DRAIN_TIMEOUT_MS, DEFAULT_SHUTDOWN_DRAIN_TIMEOUT_MS);
+            this.lazy = toBoolean(effectiveConfiguration, HTTP_CLIENT_LAZY, false);
+            this.idleReleaseMs = toLong(effectiveConfiguration, HTTP_CLIENT_IDLE_RELEASE_MS, -1);
+            this.metricsEnabled = toBoolean(effectiveConfiguration, METRICS_ENABLED, true);
+            this.recordAttemptFailures = toBoolean(effectiveConfiguration, CIRCUIT_BREAKER_ENABLED, false)
+                    || toBoolean(effectiveConfiguration, LB_ENABLED, false);
+            this.coalescer = RequestCoalescer.fromConfiguration(effectiveConfiguration, requestMetrics);
+            this.hedger = RequestHedger.fromConfiguration(effectiveConfiguration, hedgingService, requestMetrics);
+            this.limiter = ConcurrencyLimiter.fromConfiguration(effectiveConfiguration);
+            this.deadlines = RequestDeadlines.fromConfiguration(effectiveConfiguration, timerWheel);
+            if (requestMetrics != null) {
+                requestMetrics.setConcurrencyLimiter(limiter);
+            }
+        }
+    }
+
+    private static class View extends DelegatingHttpClient {
+
+        private volatile TrackingHttpClient httpClient;
+
+        private boolean detached;
+
+        private View(final TrackingHttpClient httpClient) {
+            this.httpClient = httpClient;
+        }
+
+        @Override
+        protected TrackingHttpClient getHttpClient() {
+            return httpClient;
+        }
+
+        /**
+         * @return the client that was replaced, or the {@code replacement}
+         * itself if the view has already been detached.
+         */
+        private synchronized TrackingHttpClient swap(final TrackingHttpClient replacement) {
+            if (detached) {
+                return replacement;
+            }
+            final TrackingHttpClient previous = httpClient;
+            // requests that obtained the previous client just before are executed by the replacement
+            previous.replaceWith(replacement);
+            httpClient = replacement;
+            return previous;
+        }
+
+        /**
+         * @return the current client, which is no longer replaced afterwards.
+         */
+        private synchronized TrackingHttpClient detach() {
+            detached = true;
+            return httpClient;
         }
     }
 }
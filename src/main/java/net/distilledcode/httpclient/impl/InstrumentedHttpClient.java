@@ -0,0 +1,134 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@code CloseableHttpClient} that records the latency, status class and
+ * bytes sent and received of each request with the configuration's
+ * {@link RequestMetrics}.
+ */
+class InstrumentedHttpClient extends CloseableHttpClient {
+
+    private final CloseableHttpClient httpClient;
+
+    private final RequestMetrics metrics;
+
+    InstrumentedHttpClient(final CloseableHttpClient httpClient, final RequestMetrics metrics) {
+        this.httpClient = httpClient;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(final HttpHost target, final HttpRequest request, final HttpContext context)
+            throws IOException {
+        final RequestMetrics.Recorder host = metrics.host(target);
+        final long bytesSent = contentLength(request);
+        final long start = System.nanoTime();
+        final CloseableHttpResponse response;
+        try {
+            response = httpClient.execute(target, request, context);
+        } catch (IOException | RuntimeException e) {
+            metrics.failed(host, System.nanoTime() - start, bytesSent);
+            throw e;
+        }
+        metrics.completed(host, response.getStatusLine().getStatusCode(), System.nanoTime() - start, bytesSent);
+
+        final HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            response.setEntity(new CountingEntity(entity, host));
+        }
+        return response;
+    }
+
+    private static long contentLength(final HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                return Math.max(0, entity.getContentLength());
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return httpClient.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return httpClient.getConnectionManager();
+    }
+
+    private class CountingEntity extends HttpEntityWrapper {
+
+        private final RequestMetrics.Recorder host;
+
+        private CountingEntity(final HttpEntity entity, final RequestMetrics.Recorder host) {
+            super(entity);
+            this.host = host;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b != -1) {
+                        metrics.received(host, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final int n = super.read(b, off, len);
+                    if (n > 0) {
+                        metrics.received(host, n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(final OutputStream outStream) throws IOException {
+            super.writeTo(new FilterOutputStream(outStream) {
+                @Override
+                public void write(final int b) throws IOException {
+                    out.write(b);
+                    metrics.received(host, 1);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    out.write(b, off, len);
+                    metrics.received(host, len);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.distilledcode.httpclient.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers MBeans of a configuration with the platform {@code MBeanServer}
+ * as {@code net.distilledcode.httpclient:type=<type>,name=<httpclient.config.name>}.
+ * <br>
+ * Monitoring is best effort: failing to register an MBean, e.g. because
+ * two configurations share a name, is logged and otherwise ignored.
+ */
+final class JmxRegistration implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxRegistration.class);
+
+    static final String DOMAIN = "net.distilledcode.httpclient";
+
+    private final MBeanServer mBeanServer;
+
+    private final ObjectName objectName;
+
+    private JmxRegistration(final MBeanServer mBeanServer, final ObjectName objectName) {
+        this.mBeanServer = mBeanServer;
+        this.objectName = objectName;
+    }
+
+    static ObjectName objectName(final String type, final String configName) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(configName));
+    }
+
+    /**
+     * @return the registration, or {@code null} if the MBean could not be registered.
+     */
+    static JmxRegistration register(final Object mBean, final String type, final String configName) {
+        try {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = objectName(type, configName);
+            mBeanServer.registerMBean(mBean, objectName);
+            return new JmxRegistration(mBeanServer, objectName);
+        } catch (JMException | RuntimeException e) {
+            LOG.warn("Failed to register {} MBean for configuration '{}'", type, configName, e);
+            return null;
+        }
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public void close() {
+        try {
+            mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.debug("Failed to unregister MBean {}", objectName, e);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.LatencyStats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with fixed log-linear buckets: each
+ * power of two microseconds is split into {@value #SUB_BUCKETS} linear buckets,
+ * i.e. the relative error of a bucket's bounds is at most 25%.
+ * <br>
+ * Recording does not allocate and never blocks. {@link #snapshot()} is not
+ * atomic with respect to concurrent recording, which is acceptable for
+ * monitoring purposes.
+ */
+class LatencyHistogram {
+
+    private static final double MICROS_PER_MILLI = TimeUnit.MILLISECONDS.toMicros(1);
+
+    private static final int SUB_BUCKET_BITS = 2;
+
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** 2^36 microseconds is more than 19 hours, longer durations are counted in the last bucket. */
+    private static final int MAX_EXPONENT = 36;
+
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final StripedCounter count = new StripedCounter();
+
+    private final StripedCounter sumMicros = new StripedCounter();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(final long durationNanos) {
+        final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        counts.incrementAndGet(bucketIndex(micros));
+        count.increment();
+        sumMicros.add(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    Snapshot snapshot() {
+        final long[] bucketCounts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketCounts[i] = counts.get(i);
+        }
+        return new Snapshot(bucketCounts, count.sum(), sumMicros.sum(), maxMicros.get());
+    }
+
+    static int bucketIndex(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the exclusive upper bound in microseconds of the bucket at {@code index}.
+     */
+    static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static class Snapshot {
+
+        private final long[] bucketCounts;
+
+        private final long count;
+
+        private final long sumMicros;
+
+        private final long maxMicros;
+
+        private Snapshot(final long[] bucketCounts, final long count, final long sumMicros, final long maxMicros) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMaxMicros() {
+            return maxMicros;
+        }
+
+        double getMeanMicros() {
+            return count == 0 ? 0 : (double) sumMicros / count;
+        }
+
+        /**
+         * @param quantile A quantile between 0 and 1, e.g. 0.99.
+         * @return the upper bound in microseconds of the bucket containing the
+         * quantile, but at most the maximum recorded value, or 0 if empty.
+         */
+        long getQuantileMicros(final double quantile) {
+            long total = 0;
+            for (final long bucketCount : bucketCounts) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                seen += bucketCounts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        LatencyStats toLatencyStats() {
+            return new LatencyStats(
+                    count,
+                    getMeanMicros() / MICROS_PER_MILLI,
+                    getQuantileMicros(0.5) / MICROS_PER_MILLI,
+                    getQuantileMicros(0.95) / MICROS_PER_MILLI,
+                    getQuantileMicros(0.99) / MICROS_PER_MILLI,
+                    maxMicros / MICROS_PER_MILLI,
+                    getBuckets());
+        }
+
+        /**
+         * @return the counts of non-empty buckets, keyed by the bucket's
+         * exclusive upper bound in microseconds.
+         */
+        Map<Long, Long> getBuckets() {
+            final Map<Long, Long> buckets = new TreeMap<>();
+            for (int i = 0; i < bucketCounts.length; i++) {
+                if (bucketCounts[i] > 0) {
+                    buckets.put(bucketUpperBound(i), bucketCounts[i]);
+                }
+            }
+            return buckets;
+        }
+    }
+}
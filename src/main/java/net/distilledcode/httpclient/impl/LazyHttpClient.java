@@ -0,0 +1,214 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@code CloseableHttpClient} that builds the underlying client, with its
+ * connection manager, on the first request rather than when it is created.
+ * <br>
+ * If an idle release period is set, an underlying client that has not been
+ * used for that long can be {@link #releaseIfIdle() released}. It is closed
+ * and the next request builds a new one.
+ */
+class LazyHttpClient extends CloseableHttpClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LazyHttpClient.class);
+
+    private final HttpClientBuilderFactory httpClientBuilderFactory;
+
+    private final long idleReleaseNanos;
+
+    private final Object lock = new Object();
+
+    private final AtomicInteger materializations = new AtomicInteger();
+
+    private volatile Materialized materialized;
+
+    private volatile boolean closed;
+
+    /**
+     * @param httpClientBuilderFactory The factory to build the underlying client with.
+     * @param idleReleaseMs The idle period after which the underlying client
+     *                      may be released, a value less than or equal to zero
+     *                      keeps it until this client is closed.
+     */
+    LazyHttpClient(final HttpClientBuilderFactory httpClientBuilderFactory, final long idleReleaseMs) {
+        this.httpClientBuilderFactory = httpClientBuilderFactory;
+        this.idleReleaseNanos = TimeUnit.MILLISECONDS.toNanos(idleReleaseMs);
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(final HttpHost target, final HttpRequest request, final HttpContext context)
+            throws IOException {
+        if (idleReleaseNanos <= 0) {
+            return materialize().httpClient.execute(target, request, context);
+        }
+
+        Materialized current;
+        do {
+            current = materialize();
+        } while (!current.acquire());
+
+        boolean tracked = false;
+        try {
+            final CloseableHttpResponse response = current.httpClient.execute(target, request, context);
+            final HttpEntity entity = response.getEntity();
+            if (entity != null && entity.isStreaming()) {
+                tracked = true;
+                return new TrackedHttpResponse(response, current);
+            }
+            return response;
+        } finally {
+            if (!tracked) {
+                current.completed();
+            }
+        }
+    }
+
+    boolean isMaterialized() {
+        return materialized != null;
+    }
+
+    int getMaterializations() {
+        return materializations.get();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    long getIdleReleaseMs() {
+        return TimeUnit.NANOSECONDS.toMillis(idleReleaseNanos);
+    }
+
+    /**
+     * Closes the underlying client if it has not been used for the idle
+     * release period and no exchange is in flight.
+     *
+     * @return {@code true} if the underlying client was released.
+     */
+    boolean releaseIfIdle() {
+        final Materialized current = materialized;
+        if (idleReleaseNanos <= 0 || current == null || !current.releaseIfIdle(idleReleaseNanos)) {
+            return false;
+        }
+        synchronized (lock) {
+            if (materialized == current) {
+                materialized = null;
+            }
+        }
+        closeQuietly(current.httpClient);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        final Materialized current;
+        synchronized (lock) {
+            closed = true;
+            current = materialized;
+            materialized = null;
+        }
+        if (current != null) {
+            current.httpClient.close();
+        }
+    }
+
+    private Materialized materialize() {
+        Materialized current = materialized;
+        if (current == null || current.isReleased()) {
+            synchronized (lock) {
+                if (closed) {
+                    throw new IllegalStateException("HttpClient has already been closed");
+                }
+                current = materialized;
+                if (current == null || current.isReleased()) {
+                    current = new Materialized(httpClientBuilderFactory.newBuilder().build());
+                    materializations.incrementAndGet();
+                    materialized = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static void closeQuietly(final CloseableHttpClient httpClient) {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close idle HttpClient", e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return materialize().httpClient.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return materialize().httpClient.getConnectionManager();
+    }
+
+    /**
+     * An underlying client with the number of exchanges in flight, or
+     * {@code -1} once it has been released.
+     */
+    private static class Materialized implements TrackedHttpResponse.Listener {
+
+        private final CloseableHttpClient httpClient;
+
+        private final AtomicInteger users = new AtomicInteger();
+
+        private volatile long lastUsed = System.nanoTime();
+
+        private Materialized(final CloseableHttpClient httpClient) {
+            this.httpClient = httpClient;
+        }
+
+        private boolean acquire() {
+            for (;;) {
+                final int current = users.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (users.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void completed() {
+            // written before the decrement, so an idle check seeing no users sees the last use
+            lastUsed = System.nanoTime();
+            users.decrementAndGet();
+        }
+
+        private boolean isReleased() {
+            return users.get() < 0;
+        }
+
+        private boolean releaseIfIdle(final long idleReleaseNanos) {
+            return users.get() == 0
+                    && System.nanoTime() - lastUsed >= idleReleaseNanos
+                    && users.compareAndSet(0, -1);
+        }
+    }
+}
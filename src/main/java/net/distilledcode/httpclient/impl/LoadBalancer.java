@@ -0,0 +1,412 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.impl.util.PropertyUtils;
+import net.distilledcode.httpclient.metrics.LoadBalancerEndpointStats;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_EJECTION_CONSECUTIVE_FAILURES;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_EJECTION_DURATION_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_EJECTION_MAX_DURATION_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_ENDPOINTS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_FAILURE_STATUS_CODES;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_HOST;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.USE_SYSTEM_PROPERTIES;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toInteger;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStatusCodes;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStringArray;
+
+/**
+ * Client-side load balancing of the requests to a logical host across the
+ * backend endpoints of a configuration.
+ * <br>
+ * The route planner sends requests whose target host name is {@code lb.host}
+ * to one of the {@code lb.endpoints}, using "power of two choices": of two
+ * randomly picked endpoints, the one with fewer outstanding requests is used.
+ * The outstanding requests of an endpoint are the connections leased and
+ * pending in the client's connection pool, which holds a separate pool per
+ * endpoint. The {@code Host} header is still the logical host.
+ * <br>
+ * The balancing route planner replaces the route planner of the builder and
+ * also routes the requests to all other hosts. Like {@code HttpClientBuilder},
+ * it uses the proxy of the {@code http.proxyHost} and related system properties
+ * if {@code use.system.properties} is set, and no proxy otherwise, so the OSGi
+ * proxy configuration does not apply. The connections are opened to the endpoint, so TLS hostname
+ * verification and SNI use the endpoint's host name: the certificates of
+ * {@code https} endpoints must be valid for it, which usually rules out
+ * endpoints given as IP addresses.
+ * <br>
+ * An endpoint failing {@code lb.ejection.consecutive.failures} attempts in a
+ * row is ejected for {@code lb.ejection.duration.ms}, doubled with every
+ * further ejection up to {@code lb.ejection.max.duration.ms}, until it
+ * succeeds again. Failures are attempts ending with an exception, recorded by
+ * the retry handler or {@link AttemptFailures}, and responses with one of the
+ * {@code lb.failure.status.codes}. If all endpoints are ejected, all of them
+ * are used.
+ */
+class LoadBalancer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadBalancer.class);
+
+    static final String[] DEFAULT_FAILURE_STATUS_CODES = {"500", "502", "503", "504"};
+
+    private static final String ENDPOINT = LoadBalancer.class.getName() + ".endpoint";
+
+    private static final String ATTEMPT = LoadBalancer.class.getName() + ".attempt";
+
+    private final String host;
+
+    private final Endpoint[] endpoints;
+
+    private final Set<Integer> failureStatusCodes;
+
+    private final int consecutiveFailures;
+
+    private final long ejectionNanos;
+
+    private final long maxEjectionNanos;
+
+    private final boolean systemProperties;
+
+    private final HttpRequestInterceptor requestInterceptor = new HttpRequestInterceptor() {
+        @Override
+        public void process(final HttpRequest request, final HttpContext context) {
+            // an attempt still pending failed without reaching the retry handler
+            executionFailed(context, false);
+            final Object endpoint = context.getAttribute(ENDPOINT);
+            if (endpoint instanceof Endpoint) {
+                context.setAttribute(ATTEMPT, new Attempt((Endpoint) endpoint));
+            }
+        }
+    };
+
+    private final HttpResponseInterceptor responseInterceptor = new HttpResponseInterceptor() {
+        @Override
+        public void process(final HttpResponse response, final HttpContext context) {
+            final Object attempt = context.removeAttribute(ATTEMPT);
+            if (attempt instanceof Attempt) {
+                ((Attempt) attempt).completed(failureStatusCodes.contains(response.getStatusLine().getStatusCode()));
+            }
+        }
+    };
+
+    /**
+     * @param host The logical host name.
+     * @param endpoints The endpoints, as {@code [scheme://]host[:port]}.
+     * @param failureStatusCodes The response status codes that count as failures.
+     * @param consecutiveFailures The number of failures in a row that eject an endpoint.
+     * @param ejectionMs The duration of the first ejection.
+     * @param maxEjectionMs The maximum duration of an ejection.
+     * @param systemProperties Whether routes use the proxy of the system properties.
+     */
+    LoadBalancer(final String host, final List<String> endpoints, final Set<Integer> failureStatusCodes,
+                 final int consecutiveFailures, final long ejectionMs, final long maxEjectionMs,
+                 final boolean systemProperties) {
+        this.host = host;
+        this.endpoints = new Endpoint[endpoints.size()];
+        for (int i = 0; i < this.endpoints.length; i++) {
+            this.endpoints[i] = new Endpoint(endpoints.get(i));
+        }
+        this.failureStatusCodes = failureStatusCodes;
+        this.consecutiveFailures = Math.max(1, consecutiveFailures);
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMs);
+        this.maxEjectionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ejectionMs, maxEjectionMs));
+        this.systemProperties = systemProperties;
+    }
+
+    /**
+     * @return a load balancer configured by the {@code lb.*} properties, or
+     * {@code null} unless {@code lb.enabled} is set and a host and at least
+     * one valid endpoint are configured.
+     */
+    static LoadBalancer fromConfiguration(final Map<String, Object> configuration) {
+        if (!toBoolean(configuration, LB_ENABLED, false)) {
+            return null;
+        }
+        final String host = PropertyUtils.toString(configuration, LB_HOST, null);
+        if (host == null || host.trim().isEmpty()) {
+            LOG.warn("Not balancing requests, {} is not set", LB_HOST);
+            return null;
+        }
+        final List<String> endpoints = new ArrayList<>();
+        for (final String endpoint : toStringArray(configuration, LB_ENDPOINTS)) {
+            try {
+                Endpoint.parse(endpoint.trim());
+                endpoints.add(endpoint.trim());
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Ignoring invalid endpoint '{}' in {}, expected [scheme://]host[:port]", endpoint, LB_ENDPOINTS);
+            }
+        }
+        if (endpoints.isEmpty()) {
+            LOG.warn("Not balancing requests to {}, {} is empty", host, LB_ENDPOINTS);
+            return null;
+        }
+        final Set<Integer> statusCodes =
+                toStatusCodes(configuration, LB_FAILURE_STATUS_CODES, DEFAULT_FAILURE_STATUS_CODES);
+        return new LoadBalancer(host.trim(), endpoints, statusCodes,
+                toInteger(configuration, LB_EJECTION_CONSECUTIVE_FAILURES, 5),
+                toLong(configuration, LB_EJECTION_DURATION_MS, 30000),
+                toLong(configuration, LB_EJECTION_MAX_DURATION_MS, 300000),
+                toBoolean(configuration, USE_SYSTEM_PROPERTIES, false));
+    }
+
+    /**
+     * @param pool The connection pool of the client, whose leased and pending
+     *             connections are the outstanding requests, may be {@code null}
+     *             if unknown, in which case endpoints are picked at random.
+     * @return a route planner balancing the requests of one client.
+     */
+    HttpRoutePlanner routePlanner(final ConnPoolControl<HttpRoute> pool) {
+        // the route planner HttpClientBuilder#build() would create
+        final HttpRoutePlanner delegate = systemProperties
+                ? new SystemDefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE, ProxySelector.getDefault())
+                : new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE);
+        return new HttpRoutePlanner() {
+            @Override
+            public HttpRoute determineRoute(final HttpHost target, final HttpRequest request, final HttpContext context)
+                    throws HttpException {
+                if (target == null || !host.equalsIgnoreCase(target.getHostName())) {
+                    context.removeAttribute(ENDPOINT);
+                    return delegate.determineRoute(target, request, context);
+                }
+                final long now = System.nanoTime();
+                int available = 0;
+                for (final Endpoint endpoint : endpoints) {
+                    if (!endpoint.isEjected(now)) {
+                        available++;
+                    }
+                }
+                // if all endpoints are ejected, none is treated as ejected
+                final boolean all = available == 0;
+                final int candidates = all ? endpoints.length : available;
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final int first = random.nextInt(candidates);
+                Endpoint endpoint = candidate(first, all, now);
+                HttpRoute route = delegate.determineRoute(endpoint.resolve(target), request, context);
+                if (candidates > 1 && pool != null) {
+                    int second = random.nextInt(candidates - 1);
+                    if (second >= first) {
+                        second++;
+                    }
+                    final Endpoint other = candidate(second, all, now);
+                    final HttpRoute otherRoute = delegate.determineRoute(other.resolve(target), request, context);
+                    if (outstanding(pool, otherRoute) < outstanding(pool, route)) {
+                        endpoint = other;
+                        route = otherRoute;
+                    }
+                }
+                endpoint.selected.incrementAndGet();
+                context.setAttribute(ENDPOINT, endpoint);
+                return route;
+            }
+        };
+    }
+
+    HttpRequestInterceptor getRequestInterceptor() {
+        return requestInterceptor;
+    }
+
+    HttpResponseInterceptor getResponseInterceptor() {
+        return responseInterceptor;
+    }
+
+    /**
+     * @param delegate The handler deciding whether to retry after recording.
+     * @return a retry handler recording failed attempts.
+     */
+    HttpRequestRetryHandler retryHandler(final HttpRequestRetryHandler delegate) {
+        return new HttpRequestRetryHandler() {
+            @Override
+            public boolean retryRequest(final IOException exception, final int executionCount, final HttpContext context) {
+                executionFailed(context, exception instanceof RequestAbortedException);
+                return delegate.retryRequest(exception, executionCount, context);
+            }
+        };
+    }
+
+    /**
+     * Records the failure of the attempt whose outcome is still pending when
+     * an execution with {@code context} ended with an exception.
+     *
+     * @param context The context of the execution.
+     * @param aborted Whether the request was aborted, in which case the attempt
+     *                is discarded without recording an outcome.
+     */
+    static void executionFailed(final HttpContext context, final boolean aborted) {
+        final Object attempt = context.removeAttribute(ATTEMPT);
+        if (attempt instanceof Attempt && !aborted) {
+            ((Attempt) attempt).completed(true);
+        }
+    }
+
+    /**
+     * @return the state of the endpoints, keyed by the endpoint as configured.
+     */
+    Map<String, LoadBalancerEndpointStats> snapshot() {
+        final long now = System.nanoTime();
+        final Map<String, LoadBalancerEndpointStats> byEndpoint = new LinkedHashMap<>();
+        for (final Endpoint endpoint : endpoints) {
+            byEndpoint.put(endpoint.name, new LoadBalancerEndpointStats(endpoint.isEjected(now),
+                    endpoint.selected.get(), endpoint.failures.get(), endpoint.ejections.get()));
+        }
+        return Collections.unmodifiableMap(byEndpoint);
+    }
+
+    private Endpoint candidate(final int index, final boolean all, final long now) {
+        if (all) {
+            return endpoints[index];
+        }
+        int remaining = index;
+        for (final Endpoint endpoint : endpoints) {
+            if (!endpoint.isEjected(now) && remaining-- == 0) {
+                return endpoint;
+            }
+        }
+        // an endpoint was ejected concurrently
+        return endpoints[index % endpoints.length];
+    }
+
+    private void failed(final Endpoint endpoint) {
+        endpoint.failures.incrementAndGet();
+        final long now = System.nanoTime();
+        if (endpoint.isEjected(now)) {
+            return;
+        }
+        if (endpoint.consecutiveFailures.incrementAndGet() == consecutiveFailures) {
+            endpoint.consecutiveFailures.set(0);
+            final int ejections = endpoint.backoff.incrementAndGet();
+            endpoint.ejections.incrementAndGet();
+            long duration = ejectionNanos;
+            for (int i = 1; i < ejections && duration < maxEjectionNanos; i++) {
+                duration *= 2;
+            }
+            duration = Math.min(duration, maxEjectionNanos);
+            endpoint.ejectedUntilNanos = now + duration;
+            LOG.warn("Ejecting endpoint {} of {} for {}ms after {} consecutive failures",
+                    endpoint.name, host, TimeUnit.NANOSECONDS.toMillis(duration), consecutiveFailures);
+        }
+    }
+
+    private static int outstanding(final ConnPoolControl<HttpRoute> pool, final HttpRoute route) {
+        final PoolStats stats = pool.getStats(route);
+        return stats.getLeased() + stats.getPending();
+    }
+
+    /**
+     * An attempt sent to an endpoint, whose outcome is recorded once.
+     */
+    private final class Attempt {
+
+        private final Endpoint endpoint;
+
+        private Attempt(final Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        private void completed(final boolean failure) {
+            if (failure) {
+                failed(endpoint);
+            } else {
+                endpoint.succeeded();
+            }
+        }
+    }
+
+    private static final class Endpoint {
+
+        private final String name;
+
+        private final String hostName;
+
+        private final int port;
+
+        private final String scheme;
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        /** The ejections since the endpoint last succeeded, doubling the ejection duration. */
+        private final AtomicInteger backoff = new AtomicInteger();
+
+        private final AtomicLong ejections = new AtomicLong();
+
+        private final AtomicLong selected = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private volatile long ejectedUntilNanos = System.nanoTime();
+
+        private Endpoint(final String name) {
+            this.name = name;
+            final HttpHost parsed = parse(name);
+            this.hostName = parsed.getHostName();
+            this.port = parsed.getPort();
+            this.scheme = name.contains("://") ? parsed.getSchemeName() : null;
+        }
+
+        /**
+         * @param spec The endpoint as {@code [scheme://]host[:port]}.
+         * @return the endpoint, with port -1 if none is given.
+         * @throws IllegalArgumentException if the endpoint is invalid.
+         */
+        private static HttpHost parse(final String spec) {
+            final HttpHost host = HttpHost.create(spec);
+            if (host.getHostName().isEmpty()) {
+                throw new IllegalArgumentException("Missing host in '" + spec + "'");
+            }
+            return host;
+        }
+
+        /**
+         * @return the endpoint, with the scheme and port of the target unless given.
+         */
+        private HttpHost resolve(final HttpHost target) {
+            return new HttpHost(hostName, port > 0 ? port : target.getPort(),
+                    scheme != null ? scheme : target.getSchemeName());
+        }
+
+        private boolean isEjected(final long now) {
+            return now - ejectedUntilNanos < 0;
+        }
+
+        private void succeeded() {
+            if (consecutiveFailures.get() != 0) {
+                consecutiveFailures.set(0);
+            }
+            if (backoff.get() != 0 && !isEjected(System.nanoTime())) {
+                backoff.set(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.client.cache.HttpCacheStorage;
+
+/**
+ * An {@code HttpCacheStorage} that knows the number and size of its entries,
+ * which are included in the {@link CacheStatistics}.
+ */
+interface MeasurableHttpCacheStorage extends HttpCacheStorage {
+
+    int getEntries();
+
+    /**
+     * @return the (estimated) size of the entries in bytes.
+     */
+    long getBytes();
+}
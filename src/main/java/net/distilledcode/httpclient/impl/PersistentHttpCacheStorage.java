@@ -0,0 +1,770 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persistent {@code HttpCacheStorage}, which appends its entries to
+ * memory-mapped segment files in a directory and keeps an index of the
+ * entries in memory. Bodies are served directly from the mapped segments.
+ * <br>
+ * The index is written to {@code index.dat} whenever a segment is full and
+ * when the storage is closed, so a restarted storage serves its entries
+ * immediately. Entries appended after the index was last written are
+ * recovered by scanning the last segment, and a missing or unreadable index
+ * is rebuilt by scanning all segments.
+ * <br>
+ * The disk space is bounded by a fixed number of equally sized segments. Once
+ * all of them are used, the least recently used segment is compacted: entries
+ * read since the segment was filled are copied to the new segment, all others
+ * are dropped together with the segment file.
+ * <br>
+ * The directory is locked while the storage is open, so that it is never
+ * used by two storages at once, e.g. of two configurations or processes.
+ */
+class PersistentHttpCacheStorage implements MeasurableHttpCacheStorage, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PersistentHttpCacheStorage.class);
+
+    static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    static final int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    /** The number of segments the disk space is divided into, unless segments would get too small or too large. */
+    private static final int SEGMENTS = 8;
+
+    private static final String INDEX_FILE = "index.dat";
+
+    private static final String LOCK_FILE = "cache.lock";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private static final int INDEX_MAGIC = 0x48434932;
+
+    private static final byte ENTRY = 3;
+
+    private static final byte TOMBSTONE = 4;
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private final int segmentBytes;
+
+    private final int maxSegments;
+
+    private final FileLock lock;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int maxEntries;
+
+    private Segment active;
+
+    /** A logical clock, which orders the accesses of entries and segments. */
+    private long clock;
+
+    private long liveBytes;
+
+    private boolean closed;
+
+    /**
+     * Opens the storage in {@code directory}, creating the directory if necessary.
+     *
+     * @param directory The directory of the segment and index files.
+     * @param maxBytes The maximum size of all segment files in bytes, at least {@link #MIN_SEGMENT_BYTES}.
+     * @param maxEntries The maximum number of entries.
+     * @throws IOException if the directory or its files cannot be opened, the
+     * directory is in use by another storage or {@code maxBytes} is too small.
+     */
+    PersistentHttpCacheStorage(final File directory, final long maxBytes, final int maxEntries) throws IOException {
+        if (maxBytes < MIN_SEGMENT_BYTES) {
+            throw new IOException("The cache needs at least " + MIN_SEGMENT_BYTES + " bytes, not " + maxBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = (int) Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, maxBytes / SEGMENTS));
+        this.maxSegments = (int) (maxBytes / segmentBytes);
+        this.maxEntries = maxEntries;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + directory);
+        }
+        this.lock = lock(new File(directory, LOCK_FILE));
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {
+            release(lock);
+            throw e;
+        }
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized void setMaxEntries(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        trimEntries();
+    }
+
+    @Override
+    public synchronized void putEntry(final String key, final HttpCacheEntry entry) throws IOException {
+        if (closed) {
+            return;
+        }
+        final Resource resource = entry.getResource();
+        final byte[] record = resource == null || resource.length() < segmentBytes ? encode(key, entry) : null;
+        if (record == null || record.length > segmentBytes) {
+            // the entry does not fit into a segment, and an older one must not be served instead
+            removeEntry(key);
+            return;
+        }
+        append(key, record, ++clock);
+        trimEntries();
+    }
+
+    @Override
+    public synchronized HttpCacheEntry getEntry(final String key) {
+        if (closed) {
+            return null;
+        }
+        final Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        location.lastAccess = ++clock;
+        location.segment.lastAccess = clock;
+        try {
+            final HttpCacheEntry entry = decode(key, location);
+            if (entry != null) {
+                return entry;
+            }
+            LOG.debug("Dropping cache entry {}, its record in {} has a different key", key, location.segment.file);
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Dropping cache entry {}, its record in {} cannot be read", key, location.segment.file, e);
+        }
+        unlink(index.remove(key));
+        return null;
+    }
+
+    @Override
+    public synchronized void removeEntry(final String key) throws IOException {
+        if (closed) {
+            return;
+        }
+        final Location location = index.remove(key);
+        if (location != null) {
+            unlink(location);
+            // recorded so that a scan of the segments does not restore the entry
+            append(key, encode(key, null), clock);
+        }
+    }
+
+    @Override
+    public synchronized void updateEntry(final String key, final HttpCacheUpdateCallback callback)
+            throws IOException, HttpCacheUpdateException {
+        final HttpCacheEntry updated = callback.update(getEntry(key));
+        if (updated != null) {
+            putEntry(key, updated);
+        } else {
+            removeEntry(key);
+        }
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Writes the index, so that the entries are available when the storage
+     * is opened again. The mapped segments are released once the entries
+     * served from them are no longer referenced.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            active.buffer.force();
+            saveIndex();
+        } catch (IOException e) {
+            LOG.warn("Failed to write the index of the response cache in {}", directory, e);
+        } finally {
+            release(lock);
+        }
+    }
+
+    private static FileLock lock(final File file) throws IOException {
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by another storage of this process
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+        if (lock == null) {
+            throw new IOException("The cache directory " + file.getParentFile() + " is in use");
+        }
+        return lock;
+    }
+
+    private static void release(final FileLock lock) {
+        try {
+            lock.channel().close();
+        } catch (IOException e) {
+            LOG.warn("Failed to release the lock of the response cache", e);
+        }
+    }
+
+    private void open() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final int id = segmentId(file.getName());
+                if (id >= 0 && file.length() > 0) {
+                    segments.put(id, new Segment(id, file, (int) Math.min(file.length(), Integer.MAX_VALUE)));
+                }
+            }
+        }
+        for (final Segment segment : segments.values()) {
+            segment.lastAccess = ++clock;
+            segment.sealedAt = clock;
+        }
+        if (segments.isEmpty()) {
+            active = newSegment(0);
+        } else if (loadIndex()) {
+            active = segments.lastEntry().getValue();
+            scan(active, active.writePosition);
+        } else {
+            LOG.info("Rebuilding the index of the response cache in {}", directory);
+            reset();
+            for (final Segment segment : segments.values()) {
+                scan(segment, 0);
+            }
+            active = segments.lastEntry().getValue();
+        }
+        active.sealedAt = Long.MAX_VALUE;
+        while (segments.size() > maxSegments) {
+            drop(segments.firstEntry().getValue());
+        }
+        trimEntries();
+        LOG.debug("Opened the response cache in {} with {} entries in {} segments", directory, index.size(), segments.size());
+    }
+
+    private boolean loadIndex() {
+        final File file = new File(directory, INDEX_FILE);
+        if (!file.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                return false;
+            }
+            final Segment last = segments.get(in.readInt());
+            final int position = in.readInt();
+            if (last == null || last != segments.lastEntry().getValue() || position < 0 || position > last.capacity) {
+                return false;
+            }
+            last.writePosition = position;
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = readString(in);
+                final Segment segment = segments.get(in.readInt());
+                final int offset = in.readInt();
+                final int length = in.readInt();
+                final int end = segment == last ? position : segment != null ? segment.capacity : 0;
+                if (segment != null && offset >= 0 && length > 0 && (long) offset + length <= end) {
+                    link(key, new Location(segment, offset, length, 0));
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Failed to read the index of the response cache in {}", directory, e);
+            return false;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        final File tmp = new File(directory, INDEX_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(active.id);
+            out.writeInt(active.writePosition);
+            out.writeInt(index.size());
+            // least recently used first, so that reading the index restores the order
+            for (final Map.Entry<String, Location> entry : index.entrySet()) {
+                final Location location = entry.getValue();
+                writeString(out, entry.getKey());
+                out.writeInt(location.segment.id);
+                out.writeInt(location.offset);
+                out.writeInt(location.length);
+            }
+        }
+        Files.move(tmp.toPath(), new File(directory, INDEX_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds the records of {@code segment} from {@code position} to the index,
+     * up to the first record that is incomplete or cannot be read.
+     */
+    private void scan(final Segment segment, final int start) {
+        int position = start;
+        while (position + 5 <= segment.capacity) {
+            final int length = segment.buffer.getInt(position);
+            if (length <= 0 || position + 4L + length > segment.capacity) {
+                break;
+            }
+            final DataInputStream in = recordStream(segment, position, length + 4);
+            try {
+                final byte type = in.readByte();
+                final String key = readString(in);
+                if (type == ENTRY) {
+                    link(key, new Location(segment, position, length + 4, 0));
+                } else if (type == TOMBSTONE) {
+                    unlink(index.remove(key));
+                } else {
+                    break;
+                }
+            } catch (IOException e) {
+                break;
+            }
+            position += length + 4;
+        }
+        segment.writePosition = position;
+    }
+
+    private void append(final String key, final byte[] record, final long lastAccess) throws IOException {
+        if (active.writePosition + record.length > active.capacity) {
+            roll();
+        }
+        final int offset = write(active, record);
+        if (record[4] == ENTRY) {
+            link(key, new Location(active, offset, record.length, lastAccess));
+        }
+        active.lastAccess = clock;
+    }
+
+    private static int write(final Segment segment, final byte[] record) {
+        final int offset = segment.writePosition;
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + 4);
+        buffer.put(record, 4, record.length - 4);
+        // the length is written last, a scan ignores records without one
+        segment.buffer.putInt(offset, record.length - 4);
+        segment.writePosition += record.length;
+        return offset;
+    }
+
+    /**
+     * Seals the active segment and starts a new one. If the storage has no
+     * room for another segment, the least recently used segment is compacted.
+     */
+    private void roll() throws IOException {
+        final Segment sealed = active;
+        sealed.sealedAt = clock;
+        sealed.buffer.force();
+        final Map<String, Location> survivors = new LinkedHashMap<>();
+        final Map<Location, byte[]> records = new HashMap<>();
+        if (segments.size() >= maxSegments) {
+            final Segment victim = leastRecentlyUsed(sealed);
+            final Iterator<Map.Entry<String, Location>> entries = index.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String, Location> entry = entries.next();
+                final Location location = entry.getValue();
+                if (location.segment == victim) {
+                    entries.remove();
+                    unlink(location);
+                    if (location.lastAccess > victim.sealedAt) {
+                        final byte[] record = new byte[location.length];
+                        final ByteBuffer buffer = victim.buffer.duplicate();
+                        buffer.position(location.offset);
+                        buffer.get(record);
+                        survivors.put(entry.getKey(), location);
+                        records.put(location, record);
+                    }
+                }
+            }
+            drop(victim);
+            LOG.debug("Compacted segment {} of the response cache in {}, keeping {} entries",
+                    victim.id, directory, survivors.size());
+        }
+        active = newSegment(sealed.id + 1);
+        for (final Map.Entry<String, Location> survivor : survivors.entrySet()) {
+            final byte[] record = records.get(survivor.getValue());
+            if (active.writePosition + record.length <= active.capacity) {
+                final int offset = write(active, record);
+                link(survivor.getKey(), new Location(active, offset, record.length, survivor.getValue().lastAccess));
+            }
+        }
+        saveIndex();
+    }
+
+    private Segment leastRecentlyUsed(final Segment sealed) {
+        Segment victim = null;
+        for (final Segment segment : segments.values()) {
+            if (segment != sealed && (victim == null || segment.lastAccess < victim.lastAccess)) {
+                victim = segment;
+            }
+        }
+        // only the sealed segment remains if the storage has a single segment
+        return victim != null ? victim : sealed;
+    }
+
+    private Segment newSegment(final int id) throws IOException {
+        final Segment segment = new Segment(id, new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)), segmentBytes);
+        segment.lastAccess = clock;
+        segment.sealedAt = Long.MAX_VALUE;
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void drop(final Segment segment) {
+        final Iterator<Location> locations = index.values().iterator();
+        while (locations.hasNext()) {
+            final Location location = locations.next();
+            if (location.segment == segment) {
+                locations.remove();
+                unlink(location);
+            }
+        }
+        segments.remove(segment.id);
+        if (!segment.file.delete()) {
+            LOG.warn("Failed to delete {}", segment.file);
+        }
+    }
+
+    private void trimEntries() {
+        final Iterator<Location> eldest = index.values().iterator();
+        while (index.size() > maxEntries && eldest.hasNext()) {
+            unlink(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private void reset() {
+        index.clear();
+        liveBytes = 0;
+        for (final Segment segment : segments.values()) {
+            segment.writePosition = 0;
+        }
+    }
+
+    private void link(final String key, final Location location) {
+        unlink(index.put(key, location));
+        liveBytes += location.length;
+    }
+
+    private void unlink(final Location location) {
+        if (location != null) {
+            liveBytes -= location.length;
+        }
+    }
+
+    private static int segmentId(final String name) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+            try {
+                return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static DataInputStream recordStream(final Segment segment, final int offset, final int length) {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.limit(offset + length);
+        buffer.position(offset + 4);
+        return new DataInputStream(new ByteBufferInputStream(buffer));
+    }
+
+    /**
+     * Encodes a record, which is a tombstone if {@code entry} is {@code null}.
+     * A record consists of its length, its type, the key and the entry, whose
+     * body comes last, so that it can be served from the mapped segment.
+     */
+    static byte[] encode(final String key, final HttpCacheEntry entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(entry != null ? ENTRY : TOMBSTONE);
+        writeString(out, key);
+        if (entry != null) {
+            out.writeLong(entry.getRequestDate().getTime());
+            out.writeLong(entry.getResponseDate().getTime());
+            final StatusLine statusLine = entry.getStatusLine();
+            final ProtocolVersion version = statusLine.getProtocolVersion();
+            writeString(out, version.getProtocol());
+            out.writeInt(version.getMajor());
+            out.writeInt(version.getMinor());
+            out.writeInt(statusLine.getStatusCode());
+            out.writeBoolean(statusLine.getReasonPhrase() != null);
+            if (statusLine.getReasonPhrase() != null) {
+                writeString(out, statusLine.getReasonPhrase());
+            }
+            // the request method is stored as a header of the entry
+            final Header[] headers = entry.getAllHeaders();
+            out.writeInt(headers.length);
+            for (final Header header : headers) {
+                writeString(out, header.getName());
+                writeString(out, header.getValue());
+            }
+            final Map<String, String> variants = entry.getVariantMap();
+            out.writeInt(variants.size());
+            for (final Map.Entry<String, String> variant : variants.entrySet()) {
+                writeString(out, variant.getKey());
+                writeString(out, variant.getValue());
+            }
+            final Resource resource = entry.getResource();
+            if (resource == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt((int) resource.length());
+                try (InputStream in = resource.getInputStream()) {
+                    final byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+            }
+        }
+        out.flush();
+        final byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+        return record;
+    }
+
+    private static HttpCacheEntry decode(final String key, final Location location) throws IOException {
+        final ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.limit(location.offset + location.length);
+        buffer.position(location.offset + 4);
+        final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+        if (in.readByte() != ENTRY || !readString(in).equals(key)) {
+            return null;
+        }
+        final Date requestDate = new Date(in.readLong());
+        final Date responseDate = new Date(in.readLong());
+        final ProtocolVersion version = new ProtocolVersion(readString(in), in.readInt(), in.readInt());
+        final int status = in.readInt();
+        final String reason = in.readBoolean() ? readString(in) : null;
+        final int headerCount = checkCount(in.readInt(), buffer);
+        final List<Header> headers = new ArrayList<>(headerCount);
+        for (int i = 0; i < headerCount; i++) {
+            headers.add(new BasicHeader(readString(in), readString(in)));
+        }
+        final int variantCount = checkCount(in.readInt(), buffer);
+        final Map<String, String> variants = new HashMap<>();
+        for (int i = 0; i < variantCount; i++) {
+            variants.put(readString(in), readString(in));
+        }
+        final int bodyLength = in.readInt();
+        Resource resource = null;
+        if (bodyLength >= 0) {
+            if (bodyLength > buffer.remaining()) {
+                throw new IOException("Truncated body");
+            }
+            final ByteBuffer body = buffer.slice();
+            body.limit(bodyLength);
+            resource = new MappedResource(body.asReadOnlyBuffer());
+        }
+        return new HttpCacheEntry(requestDate, responseDate, new BasicStatusLine(version, status, reason),
+                headers.toArray(new Header[headers.size()]), resource, variants);
+    }
+
+    /**
+     * Strings are written as their length and UTF-8 bytes, as header values
+     * may exceed the 64 KiB {@code DataOutput#writeUTF} is limited to.
+     */
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checkCount(final int count, final ByteBuffer buffer) throws IOException {
+        // every element takes at least four bytes
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static final class Segment {
+
+        private final int id;
+
+        private final File file;
+
+        private final int capacity;
+
+        private final MappedByteBuffer buffer;
+
+        private int writePosition;
+
+        private long lastAccess;
+
+        private long sealedAt;
+
+        private Segment(final int id, final File file, final int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                 FileChannel channel = randomAccessFile.getChannel()) {
+                // the mapping stays valid after the channel is closed
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+    }
+
+    private static final class Location {
+
+        private final Segment segment;
+
+        private final int offset;
+
+        private final int length;
+
+        private long lastAccess;
+
+        private Location(final Segment segment, final int offset, final int length, final long lastAccess) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * The body of an entry, which is read from its mapped segment. Segments
+     * are never written twice, so the body stays valid after the entry has
+     * been replaced, removed or compacted.
+     */
+    private static final class MappedResource implements Resource {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient ByteBuffer body;
+
+        private MappedResource(final ByteBuffer body) {
+            this.body = body;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteBufferInputStream(body.duplicate());
+        }
+
+        @Override
+        public long length() {
+            return body.limit();
+        }
+
+        @Override
+        public void dispose() {
+            // the mapping is released with the segment
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
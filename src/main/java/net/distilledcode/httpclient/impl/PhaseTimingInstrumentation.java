@@ -0,0 +1,251 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hooks into the connection manager and request execution of clients created
+ * from a configuration in order to record their {@link PhaseTimings}.
+ * <br>
+ * DNS resolution, connect and TLS handshake happen on the requesting thread
+ * while a new connection is established, so they are correlated via a
+ * thread local and recorded once the connection is established. The sampling
+ * decision for a connection is made when its host name is resolved, the one
+ * for time to first byte per request.
+ */
+class PhaseTimingInstrumentation {
+
+    private final PhaseTimings timings;
+
+    private final double samplingRate;
+
+    private final ThreadLocal<PendingConnection> pendingConnection = new ThreadLocal<PendingConnection>() {
+        @Override
+        protected PendingConnection initialValue() {
+            return new PendingConnection();
+        }
+    };
+
+    PhaseTimingInstrumentation(final PhaseTimings timings, final double samplingRate) {
+        this.timings = timings;
+        this.samplingRate = Math.max(0, Math.min(samplingRate, 1));
+    }
+
+    /**
+     * @param dnsResolver The resolver to time.
+     * @return a resolver that times resolutions of {@code dnsResolver}.
+     */
+    DnsResolver dnsResolver(final DnsResolver dnsResolver) {
+        return new DnsResolver() {
+            @Override
+            public InetAddress[] resolve(final String host) throws UnknownHostException {
+                final PendingConnection pending = pendingConnection.get();
+                pending.reset(sample());
+                if (!pending.sampled) {
+                    return dnsResolver.resolve(host);
+                }
+                final long start = System.nanoTime();
+                try {
+                    return dnsResolver.resolve(host);
+                } finally {
+                    pending.dnsNanos = System.nanoTime() - start;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param registry The socket factories to time.
+     * @return the socket factories of {@code registry} for "http" and "https",
+     * timed.
+     */
+    Registry<ConnectionSocketFactory> socketFactoryRegistry(final Registry<ConnectionSocketFactory> registry) {
+        final RegistryBuilder<ConnectionSocketFactory> builder = RegistryBuilder.create();
+        for (final String scheme : new String[]{"http", "https"}) {
+            final ConnectionSocketFactory factory = registry.lookup(scheme);
+            if (factory instanceof LayeredConnectionSocketFactory) {
+                builder.register(scheme, new TimingLayeredSocketFactory((LayeredConnectionSocketFactory) factory));
+            } else if (factory != null) {
+                builder.register(scheme, new TimingSocketFactory(factory));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return a request executor recording the time to first byte.
+     */
+    HttpRequestExecutor requestExecutor() {
+        return new HttpRequestExecutor() {
+            @Override
+            protected HttpResponse doReceiveResponse(final HttpRequest request, final HttpClientConnection conn,
+                                                     final HttpContext context) throws HttpException, IOException {
+                if (!sample()) {
+                    return super.doReceiveResponse(request, conn, context);
+                }
+                final long start = System.nanoTime();
+                final HttpResponse response = super.doReceiveResponse(request, conn, context);
+                route(null, context).timeToFirstByte.record(System.nanoTime() - start);
+                return response;
+            }
+        };
+    }
+
+    private boolean sample() {
+        return samplingRate >= 1 || ThreadLocalRandom.current().nextDouble() < samplingRate;
+    }
+
+    private PhaseTimings.Recorder route(final HttpHost host, final HttpContext context) {
+        final RouteInfo route = HttpClientContext.adapt(context).getHttpRoute();
+        if (route != null) {
+            return timings.route(route.getTargetHost());
+        }
+        return timings.route(host != null ? host : HttpClientContext.adapt(context).getTargetHost());
+    }
+
+    /**
+     * Records a connection that has been established successfully. Failed
+     * attempts, e.g. to one of several addresses of a host, are not recorded,
+     * the pending DNS time is recorded with the attempt that succeeds.
+     */
+    private void connected(final PendingConnection pending, final HttpHost host, final HttpContext context,
+                           final long connectNanos) {
+        final PhaseTimings.Recorder recorder = route(host, context);
+        if (pending.dnsNanos >= 0) {
+            recorder.dns.record(pending.dnsNanos);
+        }
+        if (pending.tlsNanos >= 0) {
+            recorder.tls.record(pending.tlsNanos);
+            recorder.connect.record(connectNanos - pending.tlsNanos);
+        } else {
+            recorder.connect.record(connectNanos);
+        }
+        pending.reset(false);
+    }
+
+    private static class PendingConnection {
+
+        private boolean sampled;
+
+        private long dnsNanos;
+
+        private long tlsNanos;
+
+        private void reset(final boolean sampled) {
+            this.sampled = sampled;
+            this.dnsNanos = -1;
+            this.tlsNanos = -1;
+        }
+    }
+
+    private class TimingSocketFactory implements ConnectionSocketFactory {
+
+        private final ConnectionSocketFactory delegate;
+
+        private TimingSocketFactory(final ConnectionSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(final HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(final int connectTimeout, final Socket sock, final HttpHost host,
+                                    final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+                                    final HttpContext context) throws IOException {
+            final PendingConnection pending = pendingConnection.get();
+            if (!pending.sampled) {
+                return delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            }
+            final long start = System.nanoTime();
+            final Socket socket = delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            connected(pending, host, context, System.nanoTime() - start);
+            return socket;
+        }
+    }
+
+    /**
+     * Times the TCP connect and the TLS handshake of a layered socket factory
+     * separately. In order to do so, the connect steps of
+     * {@code SSLConnectionSocketFactory#connectSocket} are repeated here and
+     * the handshake is left to the delegate's {@code createLayeredSocket}.
+     */
+    private class TimingLayeredSocketFactory extends TimingSocketFactory implements LayeredConnectionSocketFactory {
+
+        private final LayeredConnectionSocketFactory delegate;
+
+        private TimingLayeredSocketFactory(final LayeredConnectionSocketFactory delegate) {
+            super(delegate);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket connectSocket(final int connectTimeout, final Socket socket, final HttpHost host,
+                                    final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+                                    final HttpContext context) throws IOException {
+            final PendingConnection pending = pendingConnection.get();
+            final Socket sock = socket != null ? socket : delegate.createSocket(context);
+            if (!pending.sampled || sock instanceof SSLSocket) {
+                // sockets that are layered already are connected and timed as a whole
+                return super.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            }
+            final long start = System.nanoTime();
+            if (localAddress != null) {
+                sock.bind(localAddress);
+            }
+            try {
+                if (connectTimeout > 0 && sock.getSoTimeout() == 0) {
+                    sock.setSoTimeout(connectTimeout);
+                }
+                sock.connect(remoteAddress, connectTimeout);
+            } catch (final IOException e) {
+                try {
+                    sock.close();
+                } catch (final IOException ignore) {
+                    // already failed
+                }
+                throw e;
+            }
+            final long tlsStart = System.nanoTime();
+            final Socket layered = delegate.createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
+            pending.tlsNanos = System.nanoTime() - tlsStart;
+            connected(pending, host, context, System.nanoTime() - start);
+            return layered;
+        }
+
+        @Override
+        public Socket createLayeredSocket(final Socket socket, final String target, final int port,
+                                          final HttpContext context) throws IOException {
+            // upgrades of tunnelled connections are not part of connectSocket and sampled on their own
+            if (!sample()) {
+                return delegate.createLayeredSocket(socket, target, port, context);
+            }
+            final long start = System.nanoTime();
+            final Socket layered = delegate.createLayeredSocket(socket, target, port, context);
+            route(null, context).tls.record(System.nanoTime() - start);
+            return layered;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.PhaseStats;
+import org.apache.http.HttpHost;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the time spent in the phases of requests per route: DNS resolution,
+ * TCP connect, TLS handshake and time to first byte.
+ * <br>
+ * As in {@link RequestMetrics}, recording is lock-free, and the routes a
+ * {@link RouteMap} cannot track are recorded as {@value RequestMetrics#OTHER_HOSTS}.
+ */
+class PhaseTimings {
+
+    private final RouteMap<Recorder> routes = new RouteMap<Recorder>() {
+        @Override
+        Recorder create(final HttpHost target) {
+            return new Recorder();
+        }
+    };
+
+    private final Recorder otherRoutes = new Recorder();
+
+    /**
+     * @param target The target host of the route.
+     * @return the recorder of {@code target}.
+     */
+    Recorder route(final HttpHost target) {
+        final Recorder recorder = routes.get(target);
+        return recorder != null ? recorder : otherRoutes;
+    }
+
+    Map<String, PhaseStats> snapshot() {
+        final Map<String, PhaseStats> byRoute = new TreeMap<>();
+        for (final Map.Entry<HttpHost, Recorder> entry : routes.entrySet()) {
+            byRoute.put(entry.getKey().toURI(), entry.getValue().snapshot());
+        }
+        if (!otherRoutes.isEmpty()) {
+            byRoute.put(RequestMetrics.OTHER_HOSTS, otherRoutes.snapshot());
+        }
+        return Collections.unmodifiableMap(byRoute);
+    }
+
+    static class Recorder {
+
+        final LatencyHistogram dns = new LatencyHistogram();
+
+        final LatencyHistogram connect = new LatencyHistogram();
+
+        final LatencyHistogram tls = new LatencyHistogram();
+
+        final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+        private boolean isEmpty() {
+            return connect.snapshot().getCount() == 0 && tls.snapshot().getCount() == 0
+                    && timeToFirstByte.snapshot().getCount() == 0;
+        }
+
+        private PhaseStats snapshot() {
+            return new PhaseStats(
+                    dns.snapshot().toLatencyStats(),
+                    connect.snapshot().toLatencyStats(),
+                    tls.snapshot().toLatencyStats(),
+                    timeToFirstByte.snapshot().toLatencyStats());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil;
+import net.distilledcode.httpclient.impl.metatype.reflection.Invokers.Invocation;
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.util.PublicSuffixMatcherLoader;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.TextUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CONNECTION_MANAGER_MAX_PER_ROUTE;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CONNECTION_MANAGER_NAMESPACE;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CONNECTION_MANAGER_TIME_TO_LIVE_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.EVICT_EXPIRED_CONNECTIONS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.EVICT_IDLE_CONNECTIONS_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.SETTERS_CONNECTION_MANAGER;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.USE_SYSTEM_PROPERTIES;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toInteger;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStringArray;
+
+/**
+ * Creates {@code PoolingHttpClientConnectionManager} instances from the
+ * {@code connection.manager.*} properties of a configuration.
+ * <br>
+ * Note that {@code HttpClientBuilder} ignores its own pool and connection
+ * settings once a connection manager is set. The builder's pool settings (e.g.
+ * {@code max.conn.total}) are therefore used as defaults for the connection
+ * manager, and its socket factories are created as the builder would create
+ * them, i.e. from the {@code javax.net.ssl.*} and {@code https.*} system
+ * properties if {@code use.system.properties} is set. An {@code SSLContext}
+ * or socket factory set on a builder in code is still ignored.
+ * <br>
+ * If connection eviction is configured, a connection manager is created and
+ * registered with the bundle-wide {@link ConnectionEvictionService}, instead
+ * of letting {@code HttpClientBuilder} start an eviction thread per client.
+ * <br>
+ * Connection managers created here are tracked by the configuration's
+ * {@link ConnectionPoolMonitor}, if any, until they are shut down.
+ * <br>
+ * If phase timings are enabled or a {@code DnsResolver} is given, e.g. a
+ * {@link CachingDnsResolver}, a connection manager is created as well, using
+ * that resolver and with socket factories and resolver instrumented by the
+ * given {@link PhaseTimingInstrumentation}.
+ * <br>
+ * If {@code lb.enabled} is set, a connection manager is created as well,
+ * because the {@link LoadBalancer} reads the outstanding requests per
+ * endpoint from its pool.
+ */
+class PoolingConnectionManagerFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PoolingConnectionManagerFactory.class);
+
+    private static final String PREFIX = CONNECTION_MANAGER_NAMESPACE + ".";
+
+    private static final String MAX_CONN_TOTAL = "max.conn.total";
+
+    private static final String MAX_CONN_PER_ROUTE = "max.conn.per.route";
+
+    private final ConnectionEvictionService connectionEvictionService;
+
+    private final ConnectionPoolMonitor monitor;
+
+    private final PhaseTimingInstrumentation phaseTimingInstrumentation;
+
+    private final DnsResolver dnsResolver;
+
+    private final boolean enabled;
+
+    private final boolean systemProperties;
+
+    private final boolean evictionEnabled;
+
+    private final long evictIdleConnectionsMs;
+
+    private final long timeToLiveMs;
+
+    private final int maxConnTotal;
+
+    private final int maxConnPerRoute;
+
+    private final Invocation[] invocations;
+
+    private final Map<HttpRoute, Integer> maxPerRoute;
+
+    PoolingConnectionManagerFactory(final Map<String, Object> configuration, final ConnectionEvictionService connectionEvictionService,
+                                    final ConnectionPoolMonitor monitor, final PhaseTimingInstrumentation phaseTimingInstrumentation,
+                                    final DnsResolver dnsResolver) {
+        this.connectionEvictionService = connectionEvictionService;
+        this.monitor = monitor;
+        this.phaseTimingInstrumentation = phaseTimingInstrumentation;
+        this.dnsResolver = dnsResolver;
+        this.evictIdleConnectionsMs = toLong(configuration, EVICT_IDLE_CONNECTIONS_MS, -1);
+        this.evictionEnabled = evictIdleConnectionsMs > 0 || toBoolean(configuration, EVICT_EXPIRED_CONNECTIONS, false);
+        this.enabled = evictionEnabled || phaseTimingInstrumentation != null || dnsResolver != null
+                || toBoolean(configuration, LB_ENABLED, false) || isConfigured(configuration);
+        this.systemProperties = toBoolean(configuration, USE_SYSTEM_PROPERTIES, false);
+        this.timeToLiveMs = toLong(configuration, CONNECTION_MANAGER_TIME_TO_LIVE_MS, -1);
+        this.maxConnTotal = toInteger(configuration, MAX_CONN_TOTAL, -1);
+        this.maxConnPerRoute = toInteger(configuration, MAX_CONN_PER_ROUTE, -1);
+        this.invocations = MetaTypeBeanUtil.compileConfiguration(CONNECTION_MANAGER_NAMESPACE, configuration, SETTERS_CONNECTION_MANAGER);
+        this.maxPerRoute = parseMaxPerRoute(toStringArray(configuration, CONNECTION_MANAGER_MAX_PER_ROUTE));
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    PoolingHttpClientConnectionManager newConnectionManager() {
+        final ConfiguredConnectionManager connectionManager;
+        final DnsResolver resolver = dnsResolver != null ? dnsResolver : SystemDefaultDnsResolver.INSTANCE;
+        final Registry<ConnectionSocketFactory> registry = socketFactoryRegistry(systemProperties);
+        if (phaseTimingInstrumentation != null) {
+            connectionManager = new ConfiguredConnectionManager(phaseTimingInstrumentation.socketFactoryRegistry(registry),
+                    phaseTimingInstrumentation.dnsResolver(resolver), timeToLiveMs, TimeUnit.MILLISECONDS, monitor);
+        } else {
+            connectionManager = new ConfiguredConnectionManager(registry, resolver,
+                    timeToLiveMs, TimeUnit.MILLISECONDS, monitor);
+        }
+        if (systemProperties && "true".equalsIgnoreCase(System.getProperty("http.keepAlive", "true"))) {
+            // the pool limits HttpClientBuilder derives from the system properties
+            final int max = Integer.parseInt(System.getProperty("http.maxConnections", "5"));
+            connectionManager.setDefaultMaxPerRoute(max);
+            connectionManager.setMaxTotal(2 * max);
+        }
+        if (maxConnTotal > 0) {
+            connectionManager.setMaxTotal(maxConnTotal);
+        }
+        if (maxConnPerRoute > 0) {
+            connectionManager.setDefaultMaxPerRoute(maxConnPerRoute);
+        }
+        MetaTypeBeanUtil.applyConfiguration(invocations, connectionManager);
+        for (final Map.Entry<HttpRoute, Integer> entry : maxPerRoute.entrySet()) {
+            connectionManager.setMaxPerRoute(entry.getKey(), entry.getValue());
+        }
+        if (evictionEnabled && connectionEvictionService != null) {
+            connectionManager.addCloseable(connectionEvictionService.track(connectionManager, evictIdleConnectionsMs));
+        }
+        if (monitor != null) {
+            connectionManager.addCloseable(monitor.track(connectionManager));
+        }
+        return connectionManager;
+    }
+
+    /**
+     * @param systemProperties Whether the socket factories are created from system properties,
+     *                         as by {@code HttpClientBuilder#useSystemProperties()}.
+     * @return the socket factories {@code HttpClientBuilder} creates for its connection manager.
+     */
+    static Registry<ConnectionSocketFactory> socketFactoryRegistry(final boolean systemProperties) {
+        final SSLConnectionSocketFactory sslSocketFactory;
+        if (systemProperties) {
+            sslSocketFactory = new SSLConnectionSocketFactory((SSLSocketFactory) SSLSocketFactory.getDefault(),
+                    split(System.getProperty("https.protocols")), split(System.getProperty("https.cipherSuites")),
+                    new DefaultHostnameVerifier(PublicSuffixMatcherLoader.getDefault()));
+        } else {
+            sslSocketFactory = new SSLConnectionSocketFactory(SSLContexts.createDefault(),
+                    new DefaultHostnameVerifier(PublicSuffixMatcherLoader.getDefault()));
+        }
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory)
+                .build();
+    }
+
+    private static String[] split(final String value) {
+        return TextUtils.isBlank(value) ? null : value.split(" *, *");
+    }
+
+    /**
+     * Parses entries of the form {@code [scheme://]host[:port]=limit}. If no
+     * scheme is given, "https" is assumed for port 443 and "http" otherwise.
+     *
+     * @param entries The entries to parse.
+     * @return A map of routes to their maximum number of connections.
+     */
+    static Map<HttpRoute, Integer> parseMaxPerRoute(final String[] entries) {
+        final Map<HttpRoute, Integer> routes = new LinkedHashMap<>();
+        for (final String entry : entries) {
+            final int separator = entry.lastIndexOf('=');
+            if (separator < 1) {
+                LOG.warn("Ignoring invalid entry '{}' for {}, expected host:port=limit", entry, CONNECTION_MANAGER_MAX_PER_ROUTE);
+                continue;
+            }
+            try {
+                final HttpRoute route = parseRoute(entry.substring(0, separator).trim());
+                final int limit = Integer.parseInt(entry.substring(separator + 1).trim());
+                routes.put(route, limit);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Ignoring invalid entry '{}' for {}, expected host:port=limit", entry, CONNECTION_MANAGER_MAX_PER_ROUTE, e);
+            }
+        }
+        return Collections.unmodifiableMap(routes);
+    }
+
+    static HttpRoute parseRoute(final String spec) {
+        String scheme = null;
+        String hostAndPort = spec;
+        final int schemeEnd = spec.indexOf("://");
+        if (schemeEnd > -1) {
+            scheme = spec.substring(0, schemeEnd).toLowerCase();
+            hostAndPort = spec.substring(schemeEnd + 3);
+        }
+
+        final String host;
+        int port = -1;
+        final int colon = hostAndPort.lastIndexOf(':');
+        if (colon > -1) {
+            host = hostAndPort.substring(0, colon);
+            port = Integer.parseInt(hostAndPort.substring(colon + 1));
+        } else {
+            host = hostAndPort;
+        }
+
+        if (host.isEmpty()) {
+            throw new IllegalArgumentException("Missing host in '" + spec + "'");
+        }
+
+        if (scheme == null) {
+            scheme = port == 443 ? "https" : "http";
+        }
+        final boolean secure = "https".equals(scheme);
+        if (port < 0) {
+            port = secure ? 443 : 80;
+        }
+        return new HttpRoute(new HttpHost(host, port, scheme), null, secure);
+    }
+
+    /**
+     * Only the properties backed by the connection manager count, because
+     * {@code connection.manager.shared} is a setting of the {@code HttpClientBuilder}.
+     */
+    private static boolean isConfigured(final Map<String, Object> configuration) {
+        if (configuration.containsKey(CONNECTION_MANAGER_TIME_TO_LIVE_MS)
+                || configuration.containsKey(CONNECTION_MANAGER_MAX_PER_ROUTE)) {
+            return true;
+        }
+        for (final String propertyName : SETTERS_CONNECTION_MANAGER.keySet()) {
+            if (configuration.containsKey(PREFIX + propertyName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,39 +1,189 @@
 package net.distilledcode.httpclient.impl;
 
-import net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType;
-import net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil;
-import net.distilledcode.httpclient.impl.metatype.reflection.SetterAdapter;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.osgi.services.CachingHttpClientBuilderFactory;
 import org.apache.http.osgi.services.HttpClientBuilderFactory;
 
+import java.io.Closeable;
 import java.util.Map;
 
-class PreconfiguredHttpClientBuilderFactory implements HttpClientBuilderFactory {
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.METRICS_PHASES_ENABLED;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.METRICS_PHASES_SAMPLING_RATE;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toDouble;
+
+class PreconfiguredHttpClientBuilderFactory implements HttpClientBuilderFactory, Closeable {
 
     private final HttpClientBuilderFactory httpClientBuilderFactory;
 
-    private final Map<String, Object> effectiveConfiguration;
+    private final CachingHttpClientBuilderFactory cachingHttpClientBuilderFactory;
+
+    private final ConnectionEvictionService connectionEvictionService;
+
+    private final ConnectionPoolMonitor connectionPoolMonitor;
+
+    private final RequestMetrics requestMetrics;
+
+    private final DnsRefreshService dnsRefreshService;
+
+    private volatile Settings settings;
 
-    public PreconfiguredHttpClientBuilderFactory(final HttpClientBuilderFactory factory, final Map<String, Object> effectiveConfiguration) {
+    /**
+     * @param factory The factory of plain builders.
+     * @param cachingFactory The factory of caching builders, used if {@code cache.enabled} is set.
+     * @param effectiveConfiguration The effective configuration.
+     * @param connectionEvictionService The bundle-wide eviction service, may be {@code null}.
+     * @param connectionPoolMonitor The configuration's pool monitor, may be {@code null}.
+     * @param requestMetrics The configuration's metrics recording phase timings and cache statistics, may be {@code null}.
+     * @param dnsRefreshService The bundle-wide DNS refresh service, may be {@code null}.
+     */
+    public PreconfiguredHttpClientBuilderFactory(final HttpClientBuilderFactory factory,
+                                                 final CachingHttpClientBuilderFactory cachingFactory,
+                                                 final Map<String, Object> effectiveConfiguration,
+                                                 final ConnectionEvictionService connectionEvictionService,
+                                                 final ConnectionPoolMonitor connectionPoolMonitor,
+                                                 final RequestMetrics requestMetrics,
+                                                 final DnsRefreshService dnsRefreshService) {
         this.httpClientBuilderFactory = factory;
-        this.effectiveConfiguration = effectiveConfiguration;
+        this.cachingHttpClientBuilderFactory = cachingFactory;
+        this.connectionEvictionService = connectionEvictionService;
+        this.connectionPoolMonitor = connectionPoolMonitor;
+        this.requestMetrics = requestMetrics;
+        this.dnsRefreshService = dnsRefreshService;
+        this.settings = new Settings(effectiveConfiguration, null);
+    }
+
+    /**
+     * Replaces the effective configuration. Builders created afterwards are
+     * configured with the new configuration, builders created before are not affected.
+     *
+     * @param effectiveConfiguration the new effective configuration.
+     */
+    synchronized void update(final Map<String, Object> effectiveConfiguration) {
+        settings = new Settings(effectiveConfiguration, settings);
+    }
+
+    /**
+     * @return whether builders are configured with a connection manager created
+     * for the configuration, whose pool is tracked by the {@link ConnectionPoolMonitor}.
+     */
+    boolean hasConnectionManager() {
+        return settings.connectionManagerFactory.isEnabled();
+    }
+
+    /**
+     * Releases the resources shared by the builders, i.e. closes a persistent
+     * response cache. Clients built before are not closed.
+     */
+    @Override
+    public synchronized void close() {
+        settings.responseCacheFactory.close();
     }
 
     @Override
     public HttpClientBuilder newBuilder() {
-        final HttpClientBuilder httpClientBuilder = httpClientBuilderFactory.newBuilder();
-        configure(httpClientBuilder);
+        final Settings current = settings;
+        final HttpClientBuilder httpClientBuilder;
+        if (current.responseCacheFactory.isEnabled()) {
+            final CachingHttpClientBuilder cachingBuilder = cachingHttpClientBuilderFactory.newBuilder();
+            current.responseCacheFactory.configure(cachingBuilder);
+            httpClientBuilder = cachingBuilder;
+        } else {
+            httpClientBuilder = httpClientBuilderFactory.newBuilder();
+        }
+        current.configure(httpClientBuilder);
         return httpClientBuilder;
     }
 
-    private void configure(HttpClientBuilder httpClientBuilder) {
-        final RequestConfig.Builder requestConfigBuilder = RequestConfig.copy(RequestConfig.DEFAULT);
-        MetaTypeBeanUtil.applyConfiguration(HttpClientConfigurationMetaType.REQUEST_CONFIG_NAMESPACE, effectiveConfiguration,
-                new SetterAdapter(requestConfigBuilder, HttpClientConfigurationMetaType.SETTERS_REQUEST_CONFIG_BUILDER));
-        final RequestConfig requestConfig = requestConfigBuilder.build();
-        MetaTypeBeanUtil.applyConfiguration("", effectiveConfiguration,
-                new SetterAdapter(httpClientBuilder, HttpClientConfigurationMetaType.SETTERS_HTTP_CLIENT_BUILDER));
-        httpClientBuilder.setDefaultRequestConfig(requestConfig);
+    private class Settings {
+
+        private final ConfigurationPlan configurationPlan;
+
+        private final PoolingConnectionManagerFactory connectionManagerFactory;
+
+        private final PhaseTimingInstrumentation phaseTimingInstrumentation;
+
+        private final ResponseCacheFactory responseCacheFactory;
+
+        private final RetryPolicy retryPolicy;
+
+        private final CircuitBreakers circuitBreakers;
+
+        private final LoadBalancer loadBalancer;
+
+        private final RateLimiter rateLimiter;
+
+        private Settings(final Map<String, Object> effectiveConfiguration, final Settings previous) {
+            this.configurationPlan = ConfigurationPlan.compile(effectiveConfiguration);
+            this.phaseTimingInstrumentation = requestMetrics != null && toBoolean(effectiveConfiguration, METRICS_PHASES_ENABLED, false)
+                    ? new PhaseTimingInstrumentation(requestMetrics.getPhaseTimings(),
+                            toDouble(effectiveConfiguration, METRICS_PHASES_SAMPLING_RATE, 1))
+                    : null;
+            this.connectionManagerFactory = new PoolingConnectionManagerFactory(effectiveConfiguration, connectionEvictionService,
+                    connectionPoolMonitor, phaseTimingInstrumentation,
+                    // one resolver, and thus one cache, for all clients built with these settings
+                    CachingDnsResolver.fromConfiguration(effectiveConfiguration, dnsRefreshService));
+            this.responseCacheFactory = new ResponseCacheFactory(effectiveConfiguration,
+                    requestMetrics != null ? requestMetrics.getCacheStatistics() : null,
+                    previous != null ? previous.responseCacheFactory : null);
+            // one policy, and thus one retry budget, for all clients built with these settings
+            this.retryPolicy = RetryPolicy.fromConfiguration(effectiveConfiguration);
+            this.circuitBreakers = CircuitBreakers.fromConfiguration(effectiveConfiguration);
+            this.loadBalancer = LoadBalancer.fromConfiguration(effectiveConfiguration);
+            // one limiter, and thus one set of buckets, for all clients built with these settings
+            this.rateLimiter = RateLimiter.fromConfiguration(effectiveConfiguration);
+            if (requestMetrics != null) {
+                requestMetrics.setCircuitBreakers(circuitBreakers);
+                requestMetrics.setLoadBalancer(loadBalancer);
+                requestMetrics.setRateLimiter(rateLimiter);
+            }
+        }
+
+        private void configure(final HttpClientBuilder httpClientBuilder) {
+            configurationPlan.apply(httpClientBuilder);
+            if (phaseTimingInstrumentation != null) {
+                httpClientBuilder.setRequestExecutor(phaseTimingInstrumentation.requestExecutor());
+            }
+            PoolingHttpClientConnectionManager connectionManager = null;
+            if (connectionManagerFactory.isEnabled()) {
+                connectionManager = connectionManagerFactory.newConnectionManager();
+                httpClientBuilder.setConnectionManager(connectionManager);
+            }
+            HttpRequestRetryHandler retryHandler = null;
+            if (retryPolicy != null) {
+                httpClientBuilder.addInterceptorFirst(retryPolicy.getInterceptor());
+                httpClientBuilder.setServiceUnavailableRetryStrategy(retryPolicy);
+                retryHandler = retryPolicy;
+            }
+            // interceptors added first run in the order they were added, and before all others:
+            // the retry policy counts the attempt, the rate limiter waits for a token, and the
+            // circuit breaker is only asked for a call once the attempt will be sent
+            if (rateLimiter != null) {
+                httpClientBuilder.addInterceptorFirst(rateLimiter.getRequestInterceptor());
+                httpClientBuilder.addInterceptorLast(rateLimiter.getResponseInterceptor());
+                retryHandler = rateLimiter.retryHandler(
+                        retryHandler != null ? retryHandler : DefaultHttpRequestRetryHandler.INSTANCE);
+            }
+            if (circuitBreakers != null) {
+                httpClientBuilder.addInterceptorFirst(circuitBreakers.getRequestInterceptor());
+                httpClientBuilder.addInterceptorLast(circuitBreakers.getResponseInterceptor());
+                retryHandler = circuitBreakers.retryHandler(
+                        retryHandler != null ? retryHandler : DefaultHttpRequestRetryHandler.INSTANCE);
+            }
+            if (loadBalancer != null) {
+                httpClientBuilder.setRoutePlanner(loadBalancer.routePlanner(connectionManager));
+                httpClientBuilder.addInterceptorLast(loadBalancer.getRequestInterceptor());
+                httpClientBuilder.addInterceptorLast(loadBalancer.getResponseInterceptor());
+                retryHandler = loadBalancer.retryHandler(
+                        retryHandler != null ? retryHandler : DefaultHttpRequestRetryHandler.INSTANCE);
+            }
+            if (retryHandler != null) {
+                httpClientBuilder.setRetryHandler(retryHandler);
+            }
+        }
     }
 }
@@ -0,0 +1,83 @@
+package net.distilledcode.httpclient.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, kept as the time at which the bucket would be
+ * full again ("generic cell rate algorithm"), so that taking a token is a
+ * single compare-and-set.
+ * <br>
+ * The bucket refills at {@code requestsPerSecond} and holds up to
+ * {@code burst} tokens. It starts full. Callers willing to wait reserve a
+ * token that only becomes available in the future.
+ */
+class RateLimitBucket {
+
+    private final long intervalNanos;
+
+    private final long capacityNanos;
+
+    /** The time at which the bucket is full, i.e. all earlier tokens are taken. */
+    private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+    RateLimitBucket(final double requestsPerSecond, final int burst) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+        this.capacityNanos = Math.max(1, burst) * intervalNanos;
+    }
+
+    /**
+     * Reserves a token, unless it becomes available later than {@code maxWaitNanos}.
+     *
+     * @param now The current {@code System.nanoTime()}.
+     * @param maxWaitNanos The longest time the caller is willing to wait.
+     * @return the time until the token becomes available. The token is only
+     * reserved if this does not exceed {@code maxWaitNanos}.
+     */
+    long reserve(final long now, final long maxWaitNanos) {
+        long current;
+        long next;
+        do {
+            current = full.get();
+            next = (current - now > 0 ? current : now) + intervalNanos;
+            final long wait = next - now - capacityNanos;
+            if (wait > maxWaitNanos) {
+                return wait;
+            }
+        } while (!full.compareAndSet(current, next));
+        return Math.max(0, next - now - capacityNanos);
+    }
+
+    /**
+     * Returns a reserved token that is not used.
+     */
+    void refund() {
+        full.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * Takes all tokens until {@code untilNanos}, at which one token becomes available.
+     */
+    void pauseUntil(final long untilNanos) {
+        advanceTo(untilNanos + capacityNanos - intervalNanos);
+    }
+
+    /**
+     * Takes tokens so that at most {@code remaining} tokens are left.
+     */
+    void limit(final long now, final long remaining) {
+        if (remaining < capacityNanos / intervalNanos) {
+            advanceTo(now + capacityNanos - remaining * intervalNanos);
+        }
+    }
+
+    private void advanceTo(final long target) {
+        long current;
+        do {
+            current = full.get();
+            if (current - target >= 0) {
+                return;
+            }
+        } while (!full.compareAndSet(current, target));
+    }
+}
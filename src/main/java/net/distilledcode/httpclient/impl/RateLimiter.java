@@ -0,0 +1,277 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.RateLimitStats;
+import net.distilledcode.httpclient.resilience.RateLimitExceededException;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_ADAPTIVE_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_BURST;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_REQUESTS_PER_SECOND;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_ROUTE_BURST;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_ROUTE_REQUESTS_PER_SECOND;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_TIMEOUT_MS;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toDouble;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toInteger;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+
+/**
+ * Token bucket rate limiting of the requests of a configuration's clients,
+ * with a {@link RateLimitBucket} shared by all routes and optionally one per route.
+ * <br>
+ * A request interceptor takes a token from each bucket before every attempt.
+ * If a token only becomes available later, the attempt waits for it up to
+ * {@code rate.limit.timeout.ms}, and fails with a {@link RateLimitExceededException}
+ * if it would have to wait longer. By default the timeout is 0, i.e. requests
+ * fail fast. The retry handler does not retry rejected attempts.
+ * <br>
+ * If {@code rate.limit.adaptive.enabled} is set, a response interceptor
+ * empties the bucket of the route, or the shared bucket if there are no
+ * buckets per route, as requested by the server: until the time given by
+ * {@code Retry-After} on 429 and 503 responses, until the reset time if
+ * {@code X-RateLimit-Remaining} is 0, and to the remaining requests otherwise.
+ * Both the {@code X-RateLimit-*} and the {@code RateLimit-*} headers are read,
+ * and reset times above 10<sup>9</sup> are taken as epoch seconds.
+ * <br>
+ * Routes a {@link RouteMap} cannot track are only limited by the shared bucket.
+ */
+class RateLimiter {
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private static final long EPOCH_SECONDS_THRESHOLD = 1000000000L;
+
+    private static final String[] REMAINING_HEADERS = {"X-RateLimit-Remaining", "RateLimit-Remaining"};
+
+    private static final String[] RESET_HEADERS = {"X-RateLimit-Reset", "RateLimit-Reset"};
+
+    private final RateLimitBucket shared;
+
+    private final double routeRequestsPerSecond;
+
+    private final int routeBurst;
+
+    private final long timeoutNanos;
+
+    private final boolean adaptive;
+
+    private final RouteMap<RateLimitBucket> routes = new RouteMap<RateLimitBucket>() {
+        @Override
+        RateLimitBucket create(final HttpHost target) {
+            return new RateLimitBucket(routeRequestsPerSecond, routeBurst);
+        }
+    };
+
+    private final StripedCounter permitted = new StripedCounter();
+
+    private final AtomicLong delayed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private final HttpRequestInterceptor requestInterceptor = new HttpRequestInterceptor() {
+        @Override
+        public void process(final HttpRequest request, final HttpContext context) throws IOException {
+            acquire(target(context));
+        }
+    };
+
+    private final HttpResponseInterceptor responseInterceptor = new HttpResponseInterceptor() {
+        @Override
+        public void process(final HttpResponse response, final HttpContext context) {
+            adapt(response, target(context));
+        }
+    };
+
+    /**
+     * @param requestsPerSecond The rate of the shared bucket, none if not positive.
+     * @param burst The capacity of the shared bucket.
+     * @param routeRequestsPerSecond The rate of the buckets per route, none if not positive.
+     * @param routeBurst The capacity of the buckets per route.
+     * @param timeoutMs The longest time a request waits for a token.
+     * @param adaptive Whether to adapt the buckets to the rate limit headers of responses.
+     */
+    RateLimiter(final double requestsPerSecond, final int burst, final double routeRequestsPerSecond,
+                final int routeBurst, final long timeoutMs, final boolean adaptive) {
+        this.shared = requestsPerSecond > 0 ? new RateLimitBucket(requestsPerSecond, burst) : null;
+        this.routeRequestsPerSecond = routeRequestsPerSecond;
+        this.routeBurst = routeBurst;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @return a rate limiter configured by the {@code rate.limit.*} properties,
+     * or {@code null} unless {@code rate.limit.enabled} is set.
+     */
+    static RateLimiter fromConfiguration(final Map<String, Object> configuration) {
+        if (!toBoolean(configuration, RATE_LIMIT_ENABLED, false)) {
+            return null;
+        }
+        return new RateLimiter(
+                toDouble(configuration, RATE_LIMIT_REQUESTS_PER_SECOND, 10),
+                toInteger(configuration, RATE_LIMIT_BURST, 10),
+                toDouble(configuration, RATE_LIMIT_ROUTE_REQUESTS_PER_SECOND, 0),
+                toInteger(configuration, RATE_LIMIT_ROUTE_BURST, 10),
+                toLong(configuration, RATE_LIMIT_TIMEOUT_MS, 0),
+                toBoolean(configuration, RATE_LIMIT_ADAPTIVE_ENABLED, true));
+    }
+
+    HttpRequestInterceptor getRequestInterceptor() {
+        return requestInterceptor;
+    }
+
+    HttpResponseInterceptor getResponseInterceptor() {
+        return responseInterceptor;
+    }
+
+    /**
+     * @param delegate The handler deciding whether to retry other exceptions.
+     * @return a retry handler that does not retry rejected attempts.
+     */
+    HttpRequestRetryHandler retryHandler(final HttpRequestRetryHandler delegate) {
+        return new HttpRequestRetryHandler() {
+            @Override
+            public boolean retryRequest(final IOException exception, final int executionCount, final HttpContext context) {
+                return !(exception instanceof RateLimitExceededException)
+                        && delegate.retryRequest(exception, executionCount, context);
+            }
+        };
+    }
+
+    RateLimitStats snapshot() {
+        return new RateLimitStats(permitted.sum(), delayed.get(), rejected.get(), throttled.get());
+    }
+
+    private void acquire(final HttpHost target) throws IOException {
+        final RateLimitBucket route = route(target);
+        final long now = System.nanoTime();
+        long wait = 0;
+        if (route != null) {
+            wait = route.reserve(now, timeoutNanos);
+            if (wait > timeoutNanos) {
+                throw rejected(target, wait);
+            }
+        }
+        if (shared != null) {
+            final long sharedWait = shared.reserve(now, timeoutNanos);
+            if (sharedWait > timeoutNanos) {
+                if (route != null) {
+                    route.refund();
+                }
+                throw rejected(target, sharedWait);
+            }
+            wait = Math.max(wait, sharedWait);
+        }
+        permitted.increment();
+        if (wait > 0) {
+            delayed.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit of " + uri(target));
+            }
+        }
+    }
+
+    private void adapt(final HttpResponse response, final HttpHost target) {
+        if (!adaptive) {
+            return;
+        }
+        final RateLimitBucket route = route(target);
+        final RateLimitBucket bucket = route != null ? route : shared;
+        if (bucket == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final int status = response.getStatusLine().getStatusCode();
+        if (status == SC_TOO_MANY_REQUESTS || status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            final long retryAfterMs = RetryPolicy.retryAfterMs(response);
+            if (retryAfterMs > 0) {
+                bucket.pauseUntil(now + TimeUnit.MILLISECONDS.toNanos(retryAfterMs));
+                throttled.incrementAndGet();
+                return;
+            }
+        }
+        final long remaining = longHeader(response, REMAINING_HEADERS);
+        if (remaining < 0) {
+            return;
+        }
+        if (remaining == 0) {
+            final long resetMs = resetMs(longHeader(response, RESET_HEADERS));
+            if (resetMs > 0) {
+                bucket.pauseUntil(now + TimeUnit.MILLISECONDS.toNanos(resetMs));
+                throttled.incrementAndGet();
+                return;
+            }
+        }
+        bucket.limit(now, remaining);
+    }
+
+    private RateLimitBucket route(final HttpHost target) {
+        return routeRequestsPerSecond > 0 ? routes.get(target) : null;
+    }
+
+    private RateLimitExceededException rejected(final HttpHost target, final long waitNanos) {
+        rejected.incrementAndGet();
+        return new RateLimitExceededException(uri(target), TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    /**
+     * @return the time until the reset, or {@code -1} if unknown.
+     */
+    private static long resetMs(final long reset) {
+        if (reset < 0) {
+            return -1;
+        }
+        return reset > EPOCH_SECONDS_THRESHOLD
+                ? TimeUnit.SECONDS.toMillis(reset) - System.currentTimeMillis()
+                : TimeUnit.SECONDS.toMillis(reset);
+    }
+
+    /**
+     * @return the value of the first of the headers present, or {@code -1} if none is present or valid.
+     */
+    private static long longHeader(final HttpResponse response, final String[] names) {
+        for (final String name : names) {
+            final Header header = response.getFirstHeader(name);
+            if (header != null) {
+                try {
+                    return Math.max(0, Long.parseLong(header.getValue().trim()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String uri(final HttpHost target) {
+        return target != null ? target.toURI() : "unknown host";
+    }
+
+    private static HttpHost target(final HttpContext context) {
+        final HttpClientContext clientContext = HttpClientContext.adapt(context);
+        final RouteInfo route = clientContext.getHttpRoute();
+        return route != null ? route.getTargetHost() : clientContext.getTargetHost();
+    }
+}
@@ -0,0 +1,353 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.COALESCE_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.COALESCE_HEADERS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.COALESCE_MAX_BODY_BYTES;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStringArray;
+
+/**
+ * Coalesces identical concurrent {@code GET} and {@code HEAD} requests of the
+ * clients of a configuration into a single exchange with the origin.
+ * <br>
+ * Requests are identical if their method, target, URI and the values of the
+ * {@code coalesce.headers} match, and if their {@code HttpContext}s hold the
+ * same cookie store, credentials provider and user token, which determine the
+ * cookies and credentials sent with a request. The first request is sent to the origin,
+ * and its response body is buffered, up to {@code coalesce.max.body.bytes}.
+ * Identical requests arriving in the meantime wait for it and are served a
+ * copy of the buffered response. If the body is too large, they are sent to
+ * the origin on their own, and if the first request fails, they fail as well.
+ * Aborting a waiting request, e.g. once its deadline expires, ends its wait
+ * with a {@code RequestAbortedException}.
+ * <br>
+ * The {@code HttpContext} of a coalesced request is not updated by the exchange.
+ */
+class RequestCoalescer implements ExecutionStage {
+
+    static final String[] DEFAULT_HEADERS = {"Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Cookie"};
+
+    static final long DEFAULT_MAX_BODY_BYTES = 1024 * 1024;
+
+    private final String[] headers;
+
+    private final long maxBodyBytes;
+
+    private final RequestMetrics metrics;
+
+    private final ConcurrentMap<Key, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param headers The names of the request headers whose values distinguish requests.
+     * @param maxBodyBytes The maximum size of a response body that is buffered for coalesced requests.
+     * @param metrics The configuration's metrics counting coalesced requests, may be {@code null}.
+     */
+    RequestCoalescer(final String[] headers, final long maxBodyBytes, final RequestMetrics metrics) {
+        this.headers = headers.clone();
+        this.maxBodyBytes = maxBodyBytes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return a coalescer configured by the {@code coalesce.*} properties,
+     * or {@code null} unless {@code coalesce.enabled} is set.
+     */
+    static RequestCoalescer fromConfiguration(final Map<String, Object> configuration, final RequestMetrics metrics) {
+        if (!toBoolean(configuration, COALESCE_ENABLED, false)) {
+            return null;
+        }
+        final String[] headers = configuration.containsKey(COALESCE_HEADERS)
+                ? toStringArray(configuration, COALESCE_HEADERS)
+                : DEFAULT_HEADERS;
+        return new RequestCoalescer(headers, toLong(configuration, COALESCE_MAX_BODY_BYTES, DEFAULT_MAX_BODY_BYTES), metrics);
+    }
+
+    /**
+     * Executes the request with {@code httpClient}, unless an identical request is in flight.
+     */
+    @Override
+    public CloseableHttpResponse execute(final CloseableHttpClient httpClient, final HttpHost target,
+                                         final HttpRequest request, final HttpContext context) throws IOException {
+        if (!isCoalescable(request)) {
+            return httpClient.execute(target, request, context);
+        }
+        final Key key = key(target, request, context);
+        final Flight flight = new Flight();
+        final Flight existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            final CloseableHttpResponse response = existing.await(request);
+            if (response == null) {
+                // the response was not buffered
+                return httpClient.execute(target, request, context);
+            }
+            if (metrics != null) {
+                metrics.coalesced();
+            }
+            return response;
+        }
+
+        if (metrics != null) {
+            metrics.originated();
+        }
+        try {
+            return buffer(flight, httpClient.execute(target, request, context));
+        } catch (IOException | RuntimeException e) {
+            flight.failure = e;
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+            flight.complete();
+        }
+    }
+
+    private static boolean isCoalescable(final HttpRequest request) {
+        final String method = request.getRequestLine().getMethod();
+        return (method.equals("GET") || method.equals("HEAD"))
+                && !(request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null);
+    }
+
+    private Key key(final HttpHost target, final HttpRequest request, final HttpContext context) {
+        final StringBuilder key = new StringBuilder(request.getRequestLine().getMethod()).append(' ');
+        if (target != null) {
+            key.append(target.toURI());
+        }
+        key.append(request.getRequestLine().getUri());
+        for (final String name : headers) {
+            key.append('\n').append(name.toLowerCase(Locale.ROOT)).append(':');
+            for (final Header header : request.getHeaders(name)) {
+                key.append(header.getValue()).append('\n');
+            }
+        }
+        if (context == null) {
+            return new Key(key.toString(), null, null, null);
+        }
+        final HttpClientContext clientContext = HttpClientContext.adapt(context);
+        return new Key(key.toString(), clientContext.getCookieStore(), clientContext.getCredentialsProvider(),
+                clientContext.getUserToken());
+    }
+
+    /**
+     * Buffers the body of the response for the waiting requests, and returns
+     * a copy, or the response itself if its body is too large.
+     */
+    private CloseableHttpResponse buffer(final Flight flight, final CloseableHttpResponse response) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            flight.response = new BufferedResponse(response, null, null);
+            return response;
+        }
+        if (entity.getContentLength() > maxBodyBytes) {
+            return response;
+        }
+        try {
+            final InputStream content = entity.getContent();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+                if (body.size() > maxBodyBytes) {
+                    // the rest is streamed to this request only
+                    final InputStreamEntity remainder = new InputStreamEntity(
+                            new SequenceInputStream(new ByteArrayInputStream(body.toByteArray()), content),
+                            entity.getContentLength());
+                    remainder.setContentType(entity.getContentType());
+                    remainder.setContentEncoding(entity.getContentEncoding());
+                    response.setEntity(remainder);
+                    return response;
+                }
+            }
+            content.close();
+            final BufferedResponse buffered = new BufferedResponse(response, entity, body.toByteArray());
+            flight.response = buffered;
+            response.close();
+            return buffered.replay();
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Identifies identical requests. The state of their contexts is compared
+     * by identity, as it is mutable and may not implement {@code equals}.
+     */
+    private static final class Key {
+
+        private final String request;
+
+        private final Object cookieStore;
+
+        private final Object credentialsProvider;
+
+        private final Object userToken;
+
+        private Key(final String request, final Object cookieStore, final Object credentialsProvider,
+                    final Object userToken) {
+            this.request = request;
+            this.cookieStore = cookieStore;
+            this.credentialsProvider = credentialsProvider;
+            this.userToken = userToken;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return request.equals(other.request)
+                    && cookieStore == other.cookieStore
+                    && credentialsProvider == other.credentialsProvider
+                    && userToken == other.userToken;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = request.hashCode();
+            result = 31 * result + System.identityHashCode(cookieStore);
+            result = 31 * result + System.identityHashCode(credentialsProvider);
+            result = 31 * result + System.identityHashCode(userToken);
+            return result;
+        }
+    }
+
+    private static final class Flight {
+
+        private boolean completed; // guarded by this
+
+        private volatile BufferedResponse response;
+
+        private volatile Exception failure;
+
+        private synchronized void complete() {
+            completed = true;
+            notifyAll();
+        }
+
+        /**
+         * @param request The waiting request, released from the wait if it is aborted.
+         * @return a copy of the buffered response, or {@code null} if the response was not buffered.
+         * @throws IOException if the request failed or the waiting request was aborted.
+         */
+        private CloseableHttpResponse await(final HttpRequest request) throws IOException {
+            final Waiter waiter = new Waiter();
+            if (request instanceof HttpExecutionAware) {
+                final HttpExecutionAware executionAware = (HttpExecutionAware) request;
+                executionAware.setCancellable(waiter);
+                // the request may have been aborted before the waiter was set
+                if (executionAware.isAborted()) {
+                    waiter.cancel();
+                }
+            }
+            synchronized (this) {
+                try {
+                    while (!completed && !waiter.cancelled) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a coalesced request");
+                }
+                if (!completed) {
+                    throw new RequestAbortedException("Request aborted while waiting for a coalesced request");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Coalesced request failed: " + failure.getMessage(), failure);
+            }
+            return response != null ? response.replay() : null;
+        }
+
+        private final class Waiter implements Cancellable {
+
+            private boolean cancelled; // guarded by Flight.this
+
+            @Override
+            public boolean cancel() {
+                synchronized (Flight.this) {
+                    cancelled = true;
+                    Flight.this.notifyAll();
+                }
+                return true;
+            }
+        }
+    }
+
+    private static final class BufferedResponse {
+
+        private final StatusLine statusLine;
+
+        private final Header[] headers;
+
+        private final Header contentType;
+
+        private final Header contentEncoding;
+
+        private final byte[] body;
+
+        private BufferedResponse(final CloseableHttpResponse response, final HttpEntity entity, final byte[] body) {
+            this.statusLine = response.getStatusLine();
+            this.headers = response.getAllHeaders();
+            this.contentType = entity != null ? entity.getContentType() : null;
+            this.contentEncoding = entity != null ? entity.getContentEncoding() : null;
+            this.body = body;
+        }
+
+        private CloseableHttpResponse replay() {
+            final ReplayedResponse response = new ReplayedResponse(statusLine);
+            response.setHeaders(headers);
+            if (body != null) {
+                final ByteArrayEntity entity = new ByteArrayEntity(body);
+                entity.setContentType(contentType);
+                entity.setContentEncoding(contentEncoding);
+                response.setEntity(entity);
+            }
+            return response;
+        }
+    }
+
+    private static final class ReplayedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        private ReplayedResponse(final StatusLine statusLine) {
+            super(statusLine);
+        }
+
+        @Override
+        public void close() {
+            // the body is held in memory
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.resilience.RequestDeadline;
+import net.distilledcode.httpclient.resilience.RequestDeadlineExceededException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.REQUEST_DEADLINE_MS;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+
+/**
+ * Aborts requests whose deadline expires, i.e. {@code request.deadline.ms}
+ * or the {@link RequestDeadline#DEADLINE_MS} attribute of the request's context.
+ * <br>
+ * The deadline spans the whole execution, including connecting, retries,
+ * redirects, and reading a streamed response body, which ends the deadline
+ * once it is fully read or closed. When it expires, the {@link TimerWheel}
+ * aborts the {@code HttpUriRequest}, which releases its connection, and the
+ * execution fails with a {@link RequestDeadlineExceededException}. Reading
+ * the body of an aborted request fails with an {@code IOException}.
+ * <br>
+ * Only {@code HttpUriRequest}s can be aborted, other requests have no deadline.
+ */
+class RequestDeadlines implements ExecutionStage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestDeadlines.class);
+
+    private final long deadlineMs;
+
+    private final TimerWheel timerWheel;
+
+    RequestDeadlines(final long deadlineMs, final TimerWheel timerWheel) {
+        this.deadlineMs = deadlineMs;
+        this.timerWheel = timerWheel;
+    }
+
+    /**
+     * @return deadlines defaulting to {@code request.deadline.ms}, or {@code null}
+     * if no timer wheel is available. Requests may set a deadline via their
+     * context even if no default is configured.
+     */
+    static RequestDeadlines fromConfiguration(final Map<String, Object> configuration, final TimerWheel timerWheel) {
+        if (timerWheel == null) {
+            return null;
+        }
+        return new RequestDeadlines(toLong(configuration, REQUEST_DEADLINE_MS, 0), timerWheel);
+    }
+
+    /**
+     * Executes the request with {@code httpClient}, aborting it once its deadline expires.
+     *
+     * @throws RequestDeadlineExceededException if the deadline expired before the response arrived.
+     */
+    @Override
+    public CloseableHttpResponse execute(final CloseableHttpClient httpClient, final HttpHost target,
+                                         final HttpRequest request, final HttpContext context) throws IOException {
+        final long requestDeadlineMs = deadlineMs(context);
+        if (requestDeadlineMs <= 0 || !(request instanceof HttpUriRequest)) {
+            return httpClient.execute(target, request, context);
+        }
+        final Expiry expiry = new Expiry((HttpUriRequest) request);
+        try {
+            expiry.timeout = timerWheel.schedule(expiry, TimeUnit.MILLISECONDS.toNanos(requestDeadlineMs));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Not enforcing the deadline of {}, the timer wheel is not active", request.getRequestLine());
+            return httpClient.execute(target, request, context);
+        }
+        boolean completed = true;
+        try {
+            final CloseableHttpResponse response = httpClient.execute(target, request, context);
+            final HttpEntity entity = response.getEntity();
+            if (entity != null && entity.isStreaming()) {
+                completed = false;
+                return new TrackedHttpResponse(response, expiry);
+            }
+            return response;
+        } catch (IOException e) {
+            if (expiry.expired) {
+                throw new RequestDeadlineExceededException(request.getRequestLine().toString(), requestDeadlineMs, e);
+            }
+            throw e;
+        } finally {
+            if (completed) {
+                expiry.completed();
+            }
+        }
+    }
+
+    private long deadlineMs(final HttpContext context) {
+        final Object override = context != null ? context.getAttribute(RequestDeadline.DEADLINE_MS) : null;
+        return override != null ? toLong(override, deadlineMs) : deadlineMs;
+    }
+
+    private static final class Expiry implements Runnable, TrackedHttpResponse.Listener {
+
+        private final HttpUriRequest request;
+
+        private volatile TimerWheel.Timeout timeout;
+
+        private volatile boolean expired;
+
+        private Expiry(final HttpUriRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            expired = true;
+            LOG.debug("Aborting {}, its deadline expired", request.getRequestLine());
+            request.abort();
+        }
+
+        @Override
+        public void completed() {
+            final TimerWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+}
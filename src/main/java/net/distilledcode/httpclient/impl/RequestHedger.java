@@ -0,0 +1,426 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AuthState;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_ADAPTIVE_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_ADAPTIVE_PERCENTILE;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_BUDGET_MAX_TOKENS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_BUDGET_RATIO;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_DELAY_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_ENABLED;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toDouble;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+
+/**
+ * Hedges idempotent requests without a body of the clients of a configuration:
+ * if the response has not arrived within the hedge delay, the request is sent
+ * a second time, and the response arriving first is used. The other request is
+ * aborted, which releases its connection.
+ * <br>
+ * The hedge delay is {@code hedge.delay.ms}, or with {@code hedge.adaptive.enabled}
+ * the {@code hedge.adaptive.percentile} of the time to response of the route,
+ * recomputed once per second. Hedged requests take a token from a budget, into
+ * which every hedgeable request deposits {@code hedge.budget.ratio} tokens.
+ * <br>
+ * The first request is sent on the calling thread, hedged requests on a thread
+ * of the {@link HedgingService}, with a child of the request's {@code HttpContext},
+ * which is thus not updated if the hedged request wins. The hedged request has
+ * retry attempts and circuit breaker calls of its own.
+ */
+class RequestHedger implements ExecutionStage {
+
+    /** The number of responses of a route needed before its percentile is used. */
+    static final int ADAPTIVE_MIN_SAMPLES = 20;
+
+    private static final long ADAPTIVE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Once a route's histogram holds this many responses, it is replaced, so that the delay follows changes. */
+    private static final long ADAPTIVE_MAX_SAMPLES = 10000;
+
+    private static final int NONE = 0;
+
+    private static final int PRIMARY = 1;
+
+    private static final int HEDGE = 2;
+
+    private static final int HEDGE_PENDING = 0;
+
+    private static final int HEDGE_STARTED = 1;
+
+    private static final int HEDGE_CANCELLED = 2;
+
+    private final HedgingService hedgingService;
+
+    private final long delayNanos;
+
+    private final double percentile;
+
+    private final TokenBudget budget;
+
+    private final RequestMetrics metrics;
+
+    private final RouteMap<Route> routes;
+
+    /**
+     * @param hedgingService The service sending the hedged requests.
+     * @param delayMs The hedge delay, or the delay until a route's percentile is known.
+     * @param percentile The percentile of a route's time to response used as its hedge delay, 0 for none.
+     * @param budget The hedge budget.
+     * @param metrics The configuration's metrics counting hedged requests, may be {@code null}.
+     */
+    RequestHedger(final HedgingService hedgingService, final long delayMs, final double percentile,
+                  final TokenBudget budget, final RequestMetrics metrics) {
+        this.hedgingService = hedgingService;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+        this.percentile = Math.max(0, Math.min(percentile, 100));
+        this.budget = budget;
+        this.metrics = metrics;
+        this.routes = this.percentile > 0 ? new RouteMap<Route>() {
+            @Override
+            Route create(final HttpHost target) {
+                return new Route();
+            }
+        } : null;
+    }
+
+    /**
+     * @return a hedger configured by the {@code hedge.*} properties, or {@code null}
+     * unless {@code hedge.enabled} is set and {@code hedgingService} is available.
+     */
+    static RequestHedger fromConfiguration(final Map<String, Object> configuration, final HedgingService hedgingService,
+                                           final RequestMetrics metrics) {
+        if (hedgingService == null || !toBoolean(configuration, HEDGE_ENABLED, false)) {
+            return null;
+        }
+        return new RequestHedger(hedgingService,
+                toLong(configuration, HEDGE_DELAY_MS, 100),
+                toBoolean(configuration, HEDGE_ADAPTIVE_ENABLED, false) ? toDouble(configuration, HEDGE_ADAPTIVE_PERCENTILE, 95) : 0,
+                new TokenBudget(Math.max(1, toLong(configuration, HEDGE_BUDGET_MAX_TOKENS, 10)),
+                        toDouble(configuration, HEDGE_BUDGET_RATIO, 0.05)),
+                metrics);
+    }
+
+    /**
+     * Executes the request with {@code httpClient}, and hedges it if it is
+     * idempotent and has no body.
+     */
+    @Override
+    public CloseableHttpResponse execute(final CloseableHttpClient httpClient, final HttpHost target,
+                                         final HttpRequest request, final HttpContext context) throws IOException {
+        if (!isHedgeable(request)) {
+            return httpClient.execute(target, request, context);
+        }
+        budget.deposit();
+        if (metrics != null) {
+            metrics.hedgeable();
+        }
+        final Route route = route(target);
+        final Race race = new Race(httpClient, target, request, context);
+        if (request instanceof HttpExecutionAware) {
+            ((HttpExecutionAware) request).setCancellable(race);
+        }
+        final long start = System.nanoTime();
+        try {
+            race.timer = hedgingService.schedule(race, route != null ? route.delayNanos() : delayNanos);
+        } catch (RejectedExecutionException e) {
+            // the service is deactivated, send the request without hedging
+        }
+        return race.race(route, start);
+    }
+
+    private static boolean isHedgeable(final HttpRequest request) {
+        return RetryPolicy.isIdempotent(request)
+                && !(request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null);
+    }
+
+    private Route route(final HttpHost target) {
+        return routes != null ? routes.get(target) : null;
+    }
+
+    /**
+     * The time to response of a route, and the hedge delay derived from it.
+     */
+    private final class Route {
+
+        private volatile LatencyHistogram histogram = new LatencyHistogram();
+
+        private volatile long delay = delayNanos;
+
+        private volatile long refreshedAt = System.nanoTime();
+
+        private void record(final long nanos) {
+            histogram.record(nanos);
+        }
+
+        private long delayNanos() {
+            final long now = System.nanoTime();
+            if (now - refreshedAt >= ADAPTIVE_REFRESH_NANOS) {
+                refreshedAt = now;
+                final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+                if (snapshot.getCount() >= ADAPTIVE_MIN_SAMPLES) {
+                    delay = Math.max(1, TimeUnit.MICROSECONDS.toNanos(snapshot.getQuantileMicros(percentile / 100)));
+                }
+                if (snapshot.getCount() >= ADAPTIVE_MAX_SAMPLES) {
+                    histogram = new LatencyHistogram();
+                }
+            }
+            return delay;
+        }
+    }
+
+    /**
+     * The race between a request and its hedged request. Whichever response
+     * arrives first wins, and the other request is aborted.
+     */
+    private final class Race implements Runnable, Cancellable {
+
+        private final CloseableHttpClient httpClient;
+
+        private final HttpHost target;
+
+        private final HttpRequest request;
+
+        private final HttpContext context;
+
+        private final Attempt primary;
+
+        private final AtomicInteger winner = new AtomicInteger(NONE);
+
+        private final AtomicInteger hedgeState = new AtomicInteger(HEDGE_PENDING);
+
+        private final CountDownLatch hedgeCompleted = new CountDownLatch(1);
+
+        private volatile Future<?> timer;
+
+        private volatile Attempt hedge;
+
+        private volatile CloseableHttpResponse hedgeResponse;
+
+        private Race(final CloseableHttpClient httpClient, final HttpHost target, final HttpRequest request,
+                     final HttpContext context) {
+            this.httpClient = httpClient;
+            this.target = target;
+            this.request = request;
+            this.context = context;
+            this.primary = new Attempt(request);
+        }
+
+        /**
+         * Sends the request on the calling thread, and waits for the hedged
+         * request if it won or the request failed.
+         */
+        private CloseableHttpResponse race(final Route route, final long start) throws IOException {
+            CloseableHttpResponse response = null;
+            IOException failure = null;
+            try {
+                response = httpClient.execute(target, primary, context);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                cancelHedge();
+                throw e;
+            }
+            if (response != null && winner.compareAndSet(NONE, PRIMARY)) {
+                cancelHedge();
+                if (route != null) {
+                    route.record(System.nanoTime() - start);
+                }
+                return response;
+            }
+            if (response != null) {
+                closeQuietly(response);
+            }
+            if (!hedgeState.compareAndSet(HEDGE_PENDING, HEDGE_CANCELLED)) {
+                try {
+                    hedgeCompleted.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    throw new InterruptedIOException("Interrupted while waiting for a hedged request");
+                }
+                if (hedgeResponse != null) {
+                    if (route != null) {
+                        route.record(System.nanoTime() - start);
+                    }
+                    return hedgeResponse;
+                }
+            } else {
+                cancelTimer();
+            }
+            throw failure != null ? failure : new IOException("Request lost the race to a hedged request that failed");
+        }
+
+        /**
+         * Sends the hedged request on a thread of the hedging service.
+         */
+        @Override
+        public void run() {
+            if (!hedgeState.compareAndSet(HEDGE_PENDING, HEDGE_STARTED)) {
+                return;
+            }
+            try {
+                if (winner.get() != NONE || !budget.tryAcquire()) {
+                    return;
+                }
+                final Attempt attempt = new Attempt(request);
+                hedge = attempt;
+                if (winner.get() != NONE) {
+                    return;
+                }
+                if (metrics != null) {
+                    metrics.hedged();
+                }
+                final CloseableHttpResponse response = httpClient.execute(target, attempt, hedgeContext());
+                if (winner.compareAndSet(NONE, HEDGE)) {
+                    hedgeResponse = response;
+                    primary.abort();
+                    if (metrics != null) {
+                        metrics.hedgeWon();
+                    }
+                } else {
+                    closeQuietly(response);
+                }
+            } catch (IOException | RuntimeException e) {
+                // the request is still in flight, or fails on its own
+            } finally {
+                hedgeCompleted.countDown();
+            }
+        }
+
+        /**
+         * Aborts both requests, called if the original request is aborted.
+         */
+        @Override
+        public boolean cancel() {
+            primary.abort();
+            cancelHedge();
+            return true;
+        }
+
+        private void cancelHedge() {
+            if (hedgeState.compareAndSet(HEDGE_PENDING, HEDGE_CANCELLED)) {
+                cancelTimer();
+                return;
+            }
+            final Attempt attempt = hedge;
+            if (attempt != null) {
+                attempt.abort();
+            }
+        }
+
+        private void cancelTimer() {
+            final Future<?> pending = timer;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+        }
+
+        /**
+         * @return a child of the request's context, with its own authentication
+         * state, which is updated while the hedged request is sent.
+         */
+        private HttpContext hedgeContext() {
+            final HttpClientContext hedgeContext = HttpClientContext.adapt(new HedgeContext(context));
+            hedgeContext.setAttribute(HttpClientContext.TARGET_AUTH_STATE, new AuthState());
+            hedgeContext.setAttribute(HttpClientContext.PROXY_AUTH_STATE, new AuthState());
+            return hedgeContext;
+        }
+    }
+
+    /**
+     * The context of a hedged request. Attributes are read from the request's
+     * context, unless the hedged request set them itself. The per-execution
+     * state kept in a context by this bundle, i.e. the retry attempts, circuit
+     * breaker call and endpoint of the request, is not inherited, so that the
+     * hedged request is retried and recorded on its own.
+     */
+    private static final class HedgeContext implements HttpContext {
+
+        private static final String EXECUTION_STATE_PREFIX =
+                RequestHedger.class.getName().substring(0, RequestHedger.class.getName().lastIndexOf('.') + 1);
+
+        private final HttpContext parent;
+
+        private final HttpContext local = new BasicHttpContext();
+
+        private HedgeContext(final HttpContext parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public Object getAttribute(final String id) {
+            final Object value = local.getAttribute(id);
+            if (value != null || parent == null || id.startsWith(EXECUTION_STATE_PREFIX)) {
+                return value;
+            }
+            return parent.getAttribute(id);
+        }
+
+        @Override
+        public void setAttribute(final String id, final Object obj) {
+            local.setAttribute(id, obj);
+        }
+
+        @Override
+        public Object removeAttribute(final String id) {
+            return local.removeAttribute(id);
+        }
+    }
+
+    private static void closeQuietly(final CloseableHttpResponse response) {
+        try {
+            response.close();
+        } catch (IOException e) {
+            // the losing request is discarded
+        }
+    }
+
+    /**
+     * A copy of the request, which can be aborted on its own.
+     */
+    private static final class Attempt extends HttpRequestBase {
+
+        private final String method;
+
+        private Attempt(final HttpRequest request) {
+            this.method = request.getRequestLine().getMethod();
+            setProtocolVersion(request.getProtocolVersion());
+            setURI(request instanceof HttpUriRequest
+                    ? ((HttpUriRequest) request).getURI()
+                    : URI.create(request.getRequestLine().getUri()));
+            setHeaders(request.getAllHeaders());
+            if (request instanceof Configurable) {
+                setConfig(((Configurable) request).getConfig());
+            }
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+    }
+}
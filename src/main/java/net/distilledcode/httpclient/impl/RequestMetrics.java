@@ -0,0 +1,300 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.CacheStats;
+import net.distilledcode.httpclient.metrics.CircuitBreakerStats;
+import net.distilledcode.httpclient.metrics.CoalescingStats;
+import net.distilledcode.httpclient.metrics.ConcurrencyLimitStats;
+import net.distilledcode.httpclient.metrics.HedgingStats;
+import net.distilledcode.httpclient.metrics.LoadBalancerEndpointStats;
+import net.distilledcode.httpclient.metrics.PhaseStats;
+import net.distilledcode.httpclient.metrics.RateLimitStats;
+import net.distilledcode.httpclient.metrics.RequestStats;
+import org.apache.http.HttpHost;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records request metrics of a configuration: totals, per target host and
+ * per response status class.
+ * <br>
+ * Recording is lock-free and, once a host has been seen, does not allocate.
+ * The number of hosts tracked individually is limited to {@value RouteMap#MAX_ROUTES},
+ * further hosts are recorded as {@value #OTHER_HOSTS}.
+ * <br>
+ * The {@link PhaseTimings} are recorded separately by the connection manager
+ * and request executor of the clients, if enabled, and the
+ * {@link CacheStatistics} by the response cache. Coalesced requests are
+ * counted by the {@link RequestCoalescer}, hedged requests by the
+ * {@link RequestHedger}, and the {@link CircuitBreakers},
+ * {@link ConcurrencyLimiter}, {@link LoadBalancer} and {@link RateLimiter}
+ * of the current settings report their own state.
+ */
+class RequestMetrics implements RequestMetricsMXBean {
+
+    static final String OTHER_HOSTS = "other";
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx", "error"};
+
+    private static final int ERROR = STATUS_CLASSES.length - 1;
+
+    private static final double MICROS_PER_MILLI = TimeUnit.MILLISECONDS.toMicros(1);
+
+    private volatile String configName;
+
+    private final Recorder total = new Recorder();
+
+    private final Recorder[] statusClasses = new Recorder[STATUS_CLASSES.length];
+
+    private final RouteMap<Recorder> hosts = new RouteMap<Recorder>() {
+        @Override
+        Recorder create(final HttpHost target) {
+            return new Recorder();
+        }
+    };
+
+    private final Recorder otherHosts = new Recorder();
+
+    private final PhaseTimings phaseTimings = new PhaseTimings();
+
+    private final CacheStatistics cacheStatistics = new CacheStatistics();
+
+    private final StripedCounter originatingRequests = new StripedCounter();
+
+    private final StripedCounter coalescedRequests = new StripedCounter();
+
+    private final StripedCounter hedgeableRequests = new StripedCounter();
+
+    private final StripedCounter hedgedRequests = new StripedCounter();
+
+    private final StripedCounter hedgeWins = new StripedCounter();
+
+    private volatile CircuitBreakers circuitBreakers;
+
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+
+    private volatile LoadBalancer loadBalancer;
+
+    private volatile RateLimiter rateLimiter;
+
+    RequestMetrics(final String configName) {
+        this.configName = configName;
+        for (int i = 0; i < statusClasses.length; i++) {
+            statusClasses[i] = new Recorder();
+        }
+    }
+
+    /**
+     * @param target The target host of the request.
+     * @return the recorder of {@code target}, to pass to the other methods.
+     */
+    Recorder host(final HttpHost target) {
+        final Recorder recorder = hosts.get(target);
+        return recorder != null ? recorder : otherHosts;
+    }
+
+    /**
+     * Records a request for which a response has been received.
+     */
+    void completed(final Recorder host, final int statusCode, final long latencyNanos, final long bytesSent) {
+        record(host, statusClass(statusCode), latencyNanos, bytesSent);
+    }
+
+    /**
+     * Records a request that failed without a response.
+     */
+    void failed(final Recorder host, final long latencyNanos, final long bytesSent) {
+        record(host, statusClasses[ERROR], latencyNanos, bytesSent);
+    }
+
+    PhaseTimings getPhaseTimings() {
+        return phaseTimings;
+    }
+
+    CacheStatistics getCacheStatistics() {
+        return cacheStatistics;
+    }
+
+    /**
+     * Records a coalescable request that is sent to the origin.
+     */
+    void originated() {
+        originatingRequests.increment();
+    }
+
+    /**
+     * Records a request served with the response of an identical concurrent request.
+     */
+    void coalesced() {
+        coalescedRequests.increment();
+    }
+
+    /**
+     * Records an idempotent request that may be hedged.
+     */
+    void hedgeable() {
+        hedgeableRequests.increment();
+    }
+
+    /**
+     * Records a hedged request.
+     */
+    void hedged() {
+        hedgedRequests.increment();
+    }
+
+    /**
+     * Records a hedged request whose response arrived first.
+     */
+    void hedgeWon() {
+        hedgeWins.increment();
+    }
+
+    void setCircuitBreakers(final CircuitBreakers circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+    }
+
+    void setConcurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    void setLoadBalancer(final LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+    }
+
+    void setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    void received(final Recorder host, final long bytes) {
+        total.bytesReceived.add(bytes);
+        host.bytesReceived.add(bytes);
+    }
+
+    private void record(final Recorder host, final Recorder statusClass, final long latencyNanos, final long bytesSent) {
+        total.record(latencyNanos, bytesSent);
+        host.record(latencyNanos, bytesSent);
+        statusClass.record(latencyNanos, bytesSent);
+    }
+
+    private Recorder statusClass(final int statusCode) {
+        final int index = statusCode / 100 - 1;
+        return statusClasses[Math.max(0, Math.min(index, ERROR - 1))];
+    }
+
+    @Override
+    public String getConfigName() {
+        return configName;
+    }
+
+    void setConfigName(final String configName) {
+        this.configName = configName;
+    }
+
+    @Override
+    public RequestStats getTotal() {
+        return total.snapshot();
+    }
+
+    @Override
+    public Map<String, RequestStats> getByHost() {
+        final Map<String, RequestStats> byHost = new TreeMap<>();
+        for (final Map.Entry<HttpHost, Recorder> entry : hosts.entrySet()) {
+            byHost.put(entry.getKey().toURI(), entry.getValue().snapshot());
+        }
+        final RequestStats other = otherHosts.snapshot();
+        if (other.getRequests() > 0) {
+            byHost.put(OTHER_HOSTS, other);
+        }
+        return Collections.unmodifiableMap(byHost);
+    }
+
+    @Override
+    public Map<String, RequestStats> getByStatusClass() {
+        final Map<String, RequestStats> byStatusClass = new LinkedHashMap<>();
+        for (int i = 0; i < statusClasses.length; i++) {
+            final RequestStats stats = statusClasses[i].snapshot();
+            if (stats.getRequests() > 0) {
+                byStatusClass.put(STATUS_CLASSES[i], stats);
+            }
+        }
+        return Collections.unmodifiableMap(byStatusClass);
+    }
+
+    @Override
+    public Map<String, PhaseStats> getPhasesByRoute() {
+        return phaseTimings.snapshot();
+    }
+
+    @Override
+    public CacheStats getCache() {
+        return cacheStatistics.snapshot();
+    }
+
+    @Override
+    public CoalescingStats getCoalescing() {
+        return new CoalescingStats(originatingRequests.sum(), coalescedRequests.sum());
+    }
+
+    @Override
+    public HedgingStats getHedging() {
+        return new HedgingStats(hedgeableRequests.sum(), hedgedRequests.sum(), hedgeWins.sum());
+    }
+
+    @Override
+    public Map<String, CircuitBreakerStats> getCircuitBreakersByRoute() {
+        final CircuitBreakers current = circuitBreakers;
+        return current != null ? current.snapshot() : Collections.<String, CircuitBreakerStats>emptyMap();
+    }
+
+    @Override
+    public Map<String, ConcurrencyLimitStats> getConcurrencyLimitsByRoute() {
+        final ConcurrencyLimiter current = concurrencyLimiter;
+        return current != null ? current.snapshot() : Collections.<String, ConcurrencyLimitStats>emptyMap();
+    }
+
+    @Override
+    public Map<String, LoadBalancerEndpointStats> getLoadBalancerEndpoints() {
+        final LoadBalancer current = loadBalancer;
+        return current != null ? current.snapshot() : Collections.<String, LoadBalancerEndpointStats>emptyMap();
+    }
+
+    @Override
+    public RateLimitStats getRateLimiting() {
+        final RateLimiter current = rateLimiter;
+        return current != null ? current.snapshot() : new RateLimitStats(0, 0, 0, 0);
+    }
+
+    static class Recorder {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private final StripedCounter bytesSent = new StripedCounter();
+
+        private final StripedCounter bytesReceived = new StripedCounter();
+
+        private void record(final long latencyNanos, final long sent) {
+            latencies.record(latencyNanos);
+            if (sent > 0) {
+                bytesSent.add(sent);
+            }
+        }
+
+        private RequestStats snapshot() {
+            final LatencyHistogram.Snapshot snapshot = latencies.snapshot();
+            return new RequestStats(
+                    snapshot.getCount(),
+                    bytesSent.sum(),
+                    bytesReceived.sum(),
+                    snapshot.getMeanMicros() / MICROS_PER_MILLI,
+                    snapshot.getQuantileMicros(0.5) / MICROS_PER_MILLI,
+                    snapshot.getQuantileMicros(0.95) / MICROS_PER_MILLI,
+                    snapshot.getQuantileMicros(0.99) / MICROS_PER_MILLI,
+                    snapshot.getMaxMicros() / MICROS_PER_MILLI,
+                    snapshot.getBuckets());
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.HttpClientMetrics;
+
+/**
+ * The {@link HttpClientMetrics} of a configuration over JMX.
+ * <br>
+ * Registered as {@code net.distilledcode.httpclient:type=Requests,name=<httpclient.config.name>}.
+ */
+public interface RequestMetricsMXBean extends HttpClientMetrics {
+}
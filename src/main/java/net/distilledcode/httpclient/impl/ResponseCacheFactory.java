@@ -0,0 +1,204 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil;
+import net.distilledcode.httpclient.impl.metatype.reflection.SetterAdapter;
+import net.distilledcode.httpclient.impl.util.PropertyUtils;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_DISK_DIRECTORY;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_DISK_MAX_BYTES;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_MAX_HEAP_BYTES;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_NAMESPACE;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_STALE_IF_ERROR;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_STALE_WHILE_REVALIDATE;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.SETTERS_CACHE_CONFIG_BUILDER;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+
+/**
+ * Configures {@code CachingHttpClientBuilder} instances from the {@code cache.*}
+ * properties of a configuration.
+ * <br>
+ * The properties of {@code CacheConfig} are mapped like those of
+ * {@code RequestConfig}, e.g. {@code cache.max.cache.entries} or
+ * {@code cache.shared.cache}. All clients built from the same settings share one
+ * {@link BoundedHttpCacheStorage}, which is additionally bounded by
+ * {@code cache.max.heap.bytes}.
+ * <br>
+ * If {@code cache.disk.directory} is set, the clients share a
+ * {@link PersistentHttpCacheStorage} in that directory instead. It is handed
+ * on to the factory of the next settings as long as its directory and size
+ * are unchanged, and closed otherwise.
+ * <br>
+ * Stale responses are revalidated in the background if their response allows
+ * it with {@code stale-while-revalidate}, or if {@code cache.stale.while.revalidate}
+ * provides a default. The revalidations of all clients run on one
+ * {@link RevalidationScheduler}, sized by the {@code cache.asynchronous.*}
+ * properties, which is handed on like a persistent storage.
+ */
+class ResponseCacheFactory implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseCacheFactory.class);
+
+    static final long DEFAULT_MAX_HEAP_BYTES = 64 * 1024 * 1024;
+
+    static final long DEFAULT_DISK_MAX_BYTES = 256 * 1024 * 1024;
+
+    private final boolean enabled;
+
+    private final CacheConfig cacheConfig;
+
+    private final MeasurableHttpCacheStorage storage;
+
+    private final MeasurableHttpCacheStorage clientStorage;
+
+    private final RevalidationScheduler revalidationScheduler;
+
+    private final CacheStatistics statistics;
+
+    /**
+     * @param configuration The effective configuration.
+     * @param statistics The configuration's cache statistics, may be {@code null}.
+     * @param previous The factory of the previous settings, may be {@code null}.
+     *                 Its persistent storage and revalidation scheduler are either taken over or released.
+     */
+    ResponseCacheFactory(final Map<String, Object> configuration, final CacheStatistics statistics,
+                         final ResponseCacheFactory previous) {
+        this.enabled = toBoolean(configuration, CACHE_ENABLED, false);
+        this.statistics = statistics;
+        if (enabled) {
+            final CacheConfig.Builder builder = CacheConfig.copy(CacheConfig.DEFAULT);
+            MetaTypeBeanUtil.applyConfiguration(CACHE_NAMESPACE, configuration,
+                    new SetterAdapter(builder, SETTERS_CACHE_CONFIG_BUILDER));
+            this.cacheConfig = builder.build();
+            this.storage = createStorage(configuration, cacheConfig.getMaxCacheEntries(), previous);
+            final long staleWhileRevalidate = toLong(configuration, CACHE_STALE_WHILE_REVALIDATE, 0);
+            final long staleIfError = toLong(configuration, CACHE_STALE_IF_ERROR, 0);
+            this.clientStorage = staleWhileRevalidate > 0 || staleIfError > 0
+                    ? new StaleDefaultsHttpCacheStorage(storage, staleWhileRevalidate, staleIfError)
+                    : storage;
+            this.revalidationScheduler = createRevalidationScheduler(cacheConfig, previous);
+        } else {
+            this.cacheConfig = null;
+            this.storage = null;
+            this.clientStorage = null;
+            this.revalidationScheduler = null;
+        }
+        if (previous != null) {
+            previous.release(storage, revalidationScheduler);
+        }
+        if (statistics != null) {
+            statistics.setStorage(storage);
+        }
+    }
+
+    private static MeasurableHttpCacheStorage createStorage(final Map<String, Object> configuration,
+                                                           final int maxEntries,
+                                                           final ResponseCacheFactory previous) {
+        final String path = PropertyUtils.toString(configuration, CACHE_DISK_DIRECTORY, "");
+        if (!path.isEmpty()) {
+            final File directory = resolve(path);
+            final long maxBytes = toLong(configuration, CACHE_DISK_MAX_BYTES, DEFAULT_DISK_MAX_BYTES);
+            if (previous != null && previous.storage instanceof PersistentHttpCacheStorage) {
+                final PersistentHttpCacheStorage persistent = (PersistentHttpCacheStorage) previous.storage;
+                if (persistent.getDirectory().equals(directory) && persistent.getMaxBytes() == maxBytes) {
+                    persistent.setMaxEntries(maxEntries);
+                    return persistent;
+                }
+                // the files must not be opened twice
+                previous.release(null, previous.revalidationScheduler);
+            }
+            try {
+                return new PersistentHttpCacheStorage(directory, maxBytes, maxEntries);
+            } catch (IOException e) {
+                LOG.warn("Cannot open the response cache in {}, caching responses on the heap instead", directory, e);
+            }
+        }
+        return new BoundedHttpCacheStorage(maxEntries, toLong(configuration, CACHE_MAX_HEAP_BYTES, DEFAULT_MAX_HEAP_BYTES));
+    }
+
+    private static RevalidationScheduler createRevalidationScheduler(final CacheConfig cacheConfig,
+                                                                     final ResponseCacheFactory previous) {
+        if (cacheConfig.getAsynchronousWorkersMax() <= 0) {
+            return null;
+        }
+        if (previous != null && previous.revalidationScheduler != null
+                && previous.revalidationScheduler.isConfiguredBy(cacheConfig)) {
+            return previous.revalidationScheduler;
+        }
+        return new RevalidationScheduler(cacheConfig);
+    }
+
+    /**
+     * Relative paths are resolved against the persistent storage area of the bundle,
+     * or against the working directory if the bundle has none.
+     */
+    static File resolve(final String path) {
+        final File file = new File(path);
+        if (file.isAbsolute()) {
+            return file;
+        }
+        final Bundle bundle = FrameworkUtil.getBundle(ResponseCacheFactory.class);
+        final BundleContext bundleContext = bundle != null ? bundle.getBundleContext() : null;
+        final File dataFile = bundleContext != null ? bundleContext.getDataFile(path) : null;
+        return dataFile != null ? dataFile : file.getAbsoluteFile();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    CacheConfig getCacheConfig() {
+        return cacheConfig;
+    }
+
+    void configure(final CachingHttpClientBuilder builder) {
+        builder.setCacheConfig(cacheConfig);
+        builder.setHttpCacheStorage(clientStorage);
+        if (revalidationScheduler != null) {
+            builder.setSchedulingStrategy(revalidationScheduler);
+        }
+        if (statistics != null) {
+            builder.addInterceptorLast(statistics.getInterceptor());
+        }
+    }
+
+    /**
+     * Closes a persistent storage, which writes its index to disk, and shuts
+     * down the revalidation scheduler.
+     */
+    @Override
+    public void close() {
+        release(null, null);
+    }
+
+    /**
+     * Releases the storage and the revalidation scheduler unless they are
+     * retained by the factory of the next settings.
+     */
+    private void release(final MeasurableHttpCacheStorage retainedStorage,
+                         final RevalidationScheduler retainedScheduler) {
+        if (storage != retainedStorage && storage instanceof Closeable) {
+            try {
+                ((Closeable) storage).close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close the response cache", e);
+            }
+        }
+        if (revalidationScheduler != null && revalidationScheduler != retainedScheduler) {
+            revalidationScheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.ServiceUnavailableRetryStrategy;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_BACKOFF_INITIAL_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_BACKOFF_MAX_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_BUDGET_MAX_TOKENS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_BUDGET_RATIO;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_DEADLINE_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_EXCEPTIONS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_MAX_ATTEMPTS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_STATUS_CODES;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toBoolean;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toDouble;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toInteger;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toLong;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStatusCodes;
+import static net.distilledcode.httpclient.impl.util.PropertyUtils.toStringArray;
+
+/**
+ * Retries idempotent requests that failed with one of the {@code retry.exceptions}
+ * or whose response has one of the {@code retry.status.codes}.
+ * <br>
+ * The delay before a retry is drawn uniformly between zero and an exponentially
+ * growing backoff ("full jitter"), unless the response carries a {@code Retry-After}
+ * header. No retry is made once {@code retry.max.attempts} are used up, if it would
+ * not start before {@code retry.deadline.ms} expires, or if the retry budget of the
+ * configuration is exhausted. The budget is a token bucket, into which every request
+ * deposits {@code retry.budget.ratio} tokens and from which every retry takes one,
+ * so that retries cannot multiply the load on a struggling backend.
+ * <br>
+ * The policy is installed both as retry handler, which retries exceptions, and as
+ * service unavailable retry strategy, which retries responses. The attempts of a
+ * request are counted in its {@code HttpContext}, where an interceptor, which runs
+ * before each attempt, starts counting whenever it sees a request other than the
+ * one counted, i.e. on every execution, regardless of how the previous one ended.
+ */
+class RetryPolicy implements HttpRequestRetryHandler, ServiceUnavailableRetryStrategy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    static final String[] DEFAULT_STATUS_CODES = {"429", "502", "503", "504"};
+
+    static final String[] DEFAULT_EXCEPTIONS = {
+            ConnectException.class.getName(),
+            ConnectTimeoutException.class.getName(),
+            NoHttpResponseException.class.getName()
+    };
+
+    private static final Set<String> IDEMPOTENT_METHODS =
+            new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+
+    private static final String ATTEMPTS = RetryPolicy.class.getName() + ".attempts";
+
+    private final int maxAttempts;
+
+    private final Set<Integer> statusCodes;
+
+    private final Set<String> exceptions;
+
+    private final long initialBackoffMs;
+
+    private final long maxBackoffMs;
+
+    private final long deadlineMs;
+
+    private final TokenBudget budget;
+
+    /** Passes the delay of a response retry to {@link #getRetryInterval()}, which is called right after deciding. */
+    private final ThreadLocal<Long> retryInterval = new ThreadLocal<>();
+
+    private final HttpRequestInterceptor interceptor = new HttpRequestInterceptor() {
+        @Override
+        public void process(final HttpRequest request, final HttpContext context) {
+            final Object attempts = context.getAttribute(ATTEMPTS);
+            if (attempts instanceof Attempts && ((Attempts) attempts).request == request) {
+                // a retry, the client passes the same request to every attempt
+                return;
+            }
+            context.setAttribute(ATTEMPTS, new Attempts(request));
+            if (budget != null) {
+                budget.deposit();
+            }
+        }
+    };
+
+    /**
+     * @param maxAttempts The maximum number of attempts, including the first one.
+     * @param statusCodes The status codes of responses that are retried.
+     * @param exceptions The class names of exceptions that are retried, including their subclasses.
+     * @param initialBackoffMs The backoff before the first retry.
+     * @param maxBackoffMs The maximum backoff, and the maximum {@code Retry-After} delay that is waited for.
+     * @param deadlineMs The time after the first attempt, after which no retry is started, zero for none.
+     * @param budget The retry budget, {@code null} for none.
+     */
+    RetryPolicy(final int maxAttempts, final Set<Integer> statusCodes, final Set<String> exceptions,
+                final long initialBackoffMs, final long maxBackoffMs, final long deadlineMs, final TokenBudget budget) {
+        this.maxAttempts = maxAttempts;
+        this.statusCodes = statusCodes;
+        this.exceptions = exceptions;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.deadlineMs = deadlineMs;
+        this.budget = budget;
+    }
+
+    /**
+     * @return a policy configured by the {@code retry.*} properties,
+     * or {@code null} unless {@code retry.enabled} is set.
+     */
+    static RetryPolicy fromConfiguration(final Map<String, Object> configuration) {
+        if (!toBoolean(configuration, RETRY_ENABLED, false)) {
+            return null;
+        }
+        final Set<Integer> statusCodes = toStatusCodes(configuration, RETRY_STATUS_CODES, DEFAULT_STATUS_CODES);
+        final Set<String> exceptions = new HashSet<>();
+        for (final String exception : configuration.containsKey(RETRY_EXCEPTIONS)
+                ? toStringArray(configuration, RETRY_EXCEPTIONS)
+                : DEFAULT_EXCEPTIONS) {
+            exceptions.add(exception.trim());
+        }
+        final long maxTokens = toLong(configuration, RETRY_BUDGET_MAX_TOKENS, 10);
+        return new RetryPolicy(
+                toInteger(configuration, RETRY_MAX_ATTEMPTS, 3),
+                statusCodes,
+                Collections.unmodifiableSet(exceptions),
+                toLong(configuration, RETRY_BACKOFF_INITIAL_MS, 100),
+                toLong(configuration, RETRY_BACKOFF_MAX_MS, 10000),
+                toLong(configuration, RETRY_DEADLINE_MS, 0),
+                maxTokens > 0 ? new TokenBudget(maxTokens, toDouble(configuration, RETRY_BUDGET_RATIO, 0.2)) : null);
+    }
+
+    HttpRequestInterceptor getInterceptor() {
+        return interceptor;
+    }
+
+    /**
+     * Called by the client if an attempt failed with an exception. The
+     * client retries immediately, so the backoff is waited for here.
+     */
+    @Override
+    public boolean retryRequest(final IOException exception, final int executionCount, final HttpContext context) {
+        final Attempts attempts = attempts(context);
+        if (!isRetryable(exception) || !attempts.idempotent) {
+            return false;
+        }
+        final long delayMs = backoffMs(attempts.count);
+        if (!mayRetry(attempts, delayMs)) {
+            return false;
+        }
+        LOG.debug("Retrying {} in {}ms after {}", attempts.requestLine, delayMs, exception.toString());
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called by the client for every response. The client waits for
+     * {@link #getRetryInterval()} before it retries.
+     */
+    @Override
+    public boolean retryRequest(final HttpResponse response, final int executionCount, final HttpContext context) {
+        final Attempts attempts = attempts(context);
+        if (!statusCodes.contains(response.getStatusLine().getStatusCode()) || !attempts.idempotent || !attempts.repeatable) {
+            return false;
+        }
+        final long retryAfterMs = retryAfterMs(response);
+        if (retryAfterMs > maxBackoffMs) {
+            LOG.debug("Not retrying {}, Retry-After of {}ms exceeds the maximum backoff", attempts.requestLine, retryAfterMs);
+            return false;
+        }
+        final long delayMs = retryAfterMs >= 0 ? retryAfterMs : backoffMs(attempts.count);
+        if (!mayRetry(attempts, delayMs)) {
+            return false;
+        }
+        LOG.debug("Retrying {} in {}ms after status {}", attempts.requestLine, delayMs, response.getStatusLine().getStatusCode());
+        retryInterval.set(delayMs);
+        return true;
+    }
+
+    @Override
+    public long getRetryInterval() {
+        final Long delayMs = retryInterval.get();
+        retryInterval.remove();
+        return delayMs != null ? delayMs : 0;
+    }
+
+    private Attempts attempts(final HttpContext context) {
+        final Object attempts = context.getAttribute(ATTEMPTS);
+        if (attempts instanceof Attempts) {
+            return (Attempts) attempts;
+        }
+        // the interceptor did not run, e.g. because the connection to a proxy failed
+        final Attempts created = new Attempts(null);
+        context.setAttribute(ATTEMPTS, created);
+        return created;
+    }
+
+    private boolean mayRetry(final Attempts attempts, final long delayMs) {
+        final boolean mayRetry = attempts.count < maxAttempts
+                && (deadlineMs <= 0 || attempts.elapsedMs() + delayMs < deadlineMs)
+                && (budget == null || budget.tryAcquire());
+        if (mayRetry) {
+            attempts.count++;
+        }
+        return mayRetry;
+    }
+
+    private boolean isRetryable(final IOException exception) {
+        for (Class<?> type = exception.getClass(); type != null; type = type.getSuperclass()) {
+            if (exceptions.contains(type.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a delay between zero and the exponential backoff before retry number {@code retry}.
+     */
+    private long backoffMs(final int retry) {
+        final long backoff = initialBackoffMs << Math.min(retry - 1, 30);
+        final long bound = backoff > 0 && backoff < maxBackoffMs ? backoff : maxBackoffMs;
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound + 1) : 0;
+    }
+
+    /**
+     * @return whether the method of {@code request} is idempotent, ignoring its case.
+     */
+    static boolean isIdempotent(final HttpRequest request) {
+        return IDEMPOTENT_METHODS.contains(request.getRequestLine().getMethod().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the delay requested by a {@code Retry-After} header, or {@code -1} if there is none.
+     */
+    static long retryAfterMs(final HttpResponse response) {
+        final Header header = response.getFirstHeader("Retry-After");
+        if (header == null) {
+            return -1;
+        }
+        final String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            final Date date = DateUtils.parseDate(value);
+            return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+        }
+    }
+
+    private static final class Attempts {
+
+        private final long startNanos = System.nanoTime();
+
+        private final String requestLine;
+
+        private final boolean idempotent;
+
+        private final boolean repeatable;
+
+        private final HttpRequest request;
+
+        private int count = 1;
+
+        private Attempts(final HttpRequest request) {
+            this.request = request;
+            this.requestLine = request != null ? request.getRequestLine().toString() : "request";
+            this.idempotent = request != null && isIdempotent(request);
+            this.repeatable = request != null && isRepeatable(request);
+        }
+
+        private long elapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        private static boolean isRepeatable(final HttpRequest request) {
+            if (request instanceof HttpEntityEnclosingRequest) {
+                final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                return entity == null || entity.isRepeatable();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.impl.client.cache.AsynchronousValidationRequest;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.SchedulingStrategy;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the background revalidations of all caching clients built from the
+ * same settings, e.g. to refresh responses served stale because of their
+ * {@code stale-while-revalidate} directive.
+ * <br>
+ * Each client schedules its own revalidations, so a revalidation of a cache
+ * key that is already queued or running is rejected, as is one that does not
+ * fit into the bounded queue. The caching client serves the stale response
+ * either way, so requesting threads never wait for a revalidation.
+ */
+class RevalidationScheduler implements SchedulingStrategy {
+
+    private final CacheConfig cacheConfig;
+
+    private final ThreadPoolExecutor executor;
+
+    private final Set<String> scheduled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param cacheConfig The cache configuration, whose asynchronous worker
+     *                    settings and revalidation queue size are applied.
+     */
+    RevalidationScheduler(final CacheConfig cacheConfig) {
+        this.cacheConfig = cacheConfig;
+        final int maxWorkers = cacheConfig.getAsynchronousWorkersMax();
+        this.executor = new ThreadPoolExecutor(Math.min(cacheConfig.getAsynchronousWorkersCore(), maxWorkers), maxWorkers,
+                cacheConfig.getAsynchronousWorkerIdleLifetimeSecs(), TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, cacheConfig.getRevalidationQueueSize())), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "httpclient-cache-revalidation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return {@code true} if this scheduler runs revalidations as configured by {@code cacheConfig}.
+     */
+    boolean isConfiguredBy(final CacheConfig cacheConfig) {
+        return this.cacheConfig.getAsynchronousWorkersMax() == cacheConfig.getAsynchronousWorkersMax()
+                && this.cacheConfig.getAsynchronousWorkersCore() == cacheConfig.getAsynchronousWorkersCore()
+                && this.cacheConfig.getAsynchronousWorkerIdleLifetimeSecs() == cacheConfig.getAsynchronousWorkerIdleLifetimeSecs()
+                && this.cacheConfig.getRevalidationQueueSize() == cacheConfig.getRevalidationQueueSize();
+    }
+
+    /**
+     * @throws RejectedExecutionException if the cache key is already being revalidated,
+     *                                    the queue is full or the scheduler is shut down.
+     */
+    @Override
+    public void schedule(final AsynchronousValidationRequest revalidation) {
+        final String identifier = revalidation.getIdentifier();
+        if (!scheduled.add(identifier)) {
+            throw new RejectedExecutionException("Already revalidating " + identifier);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        revalidation.run();
+                    } finally {
+                        scheduled.remove(identifier);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scheduled.remove(identifier);
+            throw e;
+        }
+    }
+
+    /**
+     * Called when a client is closed, the scheduler is shared and keeps running.
+     */
+    @Override
+    public void close() {
+        // shut down with the settings
+    }
+
+    /**
+     * Lets queued and running revalidations complete and rejects new ones.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,61 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpHost;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * State kept per route, i.e. per target host, created when a route is first
+ * used.
+ * <br>
+ * Lookups are lock-free and, once a route has been seen, do not allocate. As
+ * clients may send requests to any number of hosts, at most
+ * {@value #MAX_ROUTES} routes are tracked individually, further routes have
+ * no state of their own.
+ *
+ * @param <V> The type of the state of a route.
+ */
+abstract class RouteMap<V> {
+
+    static final int MAX_ROUTES = 256;
+
+    private final ConcurrentMap<HttpHost, V> routes = new ConcurrentHashMap<>();
+
+    /**
+     * @param target The target host of the route.
+     * @return the state of {@code target}, or {@code null} if {@code target}
+     * is {@code null} or the route cannot be tracked individually.
+     */
+    V get(final HttpHost target) {
+        if (target == null) {
+            return null;
+        }
+        final V value = routes.get(target);
+        if (value != null) {
+            return value;
+        }
+        if (routes.size() >= MAX_ROUTES) {
+            return null;
+        }
+        final V created = create(target);
+        final V existing = routes.putIfAbsent(target, created);
+        return existing != null ? existing : created;
+    }
+
+    /**
+     * @return the routes tracked individually and their state.
+     */
+    Set<Map.Entry<HttpHost, V>> entrySet() {
+        return Collections.unmodifiableMap(routes).entrySet();
+    }
+
+    /**
+     * @param target The target host of the route.
+     * @return the initial state of the route.
+     */
+    abstract V create(HttpHost target);
+}
@@ -0,0 +1,101 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * A {@code SharedHttpClient} builds a single {@code CloseableHttpClient}, and
+ * thus a single connection pool, and hands out lightweight views of it. The
+ * underlying client is built when the first view is acquired and is handed
+ * back for disposal when the last view is released.
+ * <br>
+ * When the configuration changes, the underlying client can be replaced via
+ * {@link #reconfigure()} without affecting the views handed out.
+ */
+class SharedHttpClient {
+
+    private final ClientFactory clientFactory;
+
+    private volatile TrackingHttpClient httpClient;
+
+    private int references;
+
+    SharedHttpClient(final ClientFactory clientFactory) {
+        this.clientFactory = clientFactory;
+    }
+
+    synchronized HttpClient acquire() {
+        if (httpClient == null) {
+            httpClient = clientFactory.newHttpClient();
+        }
+        references++;
+        return new View();
+    }
+
+    /**
+     * Replaces the underlying client, if any, with a newly built one.
+     *
+     * @return the replaced client, which needs to be disposed of by the
+     * caller, or {@code null} if there was none.
+     */
+    synchronized TrackingHttpClient reconfigure() {
+        final TrackingHttpClient previous = httpClient;
+        if (previous != null) {
+            httpClient = clientFactory.newHttpClient();
+            // requests that obtained the previous client just before are executed by the new one
+            previous.replaceWith(httpClient);
+        }
+        return previous;
+    }
+
+    /**
+     * Releases a view acquired via {@link #acquire()}.
+     *
+     * @param view The view to release.
+     * @return the underlying client if the last view was released, which needs
+     * to be disposed of by the caller, or {@code null} otherwise.
+     */
+    TrackingHttpClient release(final HttpClient view) {
+        if (!(view instanceof View) || !((View) view).release()) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (--references > 0) {
+                return null;
+            }
+            final TrackingHttpClient released = httpClient;
+            httpClient = null;
+            return released;
+        }
+    }
+
+    synchronized int getReferences() {
+        return references;
+    }
+
+    interface ClientFactory {
+        TrackingHttpClient newHttpClient();
+    }
+
+    private class View extends DelegatingHttpClient {
+
+        private volatile boolean released;
+
+        @Override
+        protected CloseableHttpClient getHttpClient() {
+            if (released) {
+                throw new IllegalStateException("HttpClient has already been released");
+            }
+            return httpClient;
+        }
+
+        private synchronized boolean release() {
+            if (released) {
+                return false;
+            }
+            released = true;
+            return true;
+        }
+    }
+}
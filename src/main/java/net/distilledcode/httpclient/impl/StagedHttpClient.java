@@ -0,0 +1,50 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Sends the requests of a client through an {@link ExecutionStage} of its
+ * configuration.
+ */
+class StagedHttpClient extends CloseableHttpClient {
+
+    private final CloseableHttpClient httpClient;
+
+    private final ExecutionStage stage;
+
+    StagedHttpClient(final CloseableHttpClient httpClient, final ExecutionStage stage) {
+        this.httpClient = httpClient;
+        this.stage = stage;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(final HttpHost target, final HttpRequest request, final HttpContext context)
+            throws IOException {
+        return stage.execute(httpClient, target, request, context);
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return httpClient.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return httpClient.getConnectionManager();
+    }
+}
@@ -0,0 +1,101 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.client.cache.HeaderConstants;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.message.BasicHeader;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decorates the storage of a response cache with default
+ * {@code stale-while-revalidate} and {@code stale-if-error} directives
+ * for entries whose response has none.
+ * <br>
+ * The defaults are added to the entries read by the caching client, rather
+ * than to the stored entries, so that they follow configuration changes.
+ */
+class StaleDefaultsHttpCacheStorage implements MeasurableHttpCacheStorage {
+
+    private final MeasurableHttpCacheStorage delegate;
+
+    private final long staleWhileRevalidateSecs;
+
+    private final long staleIfErrorSecs;
+
+    /**
+     * @param delegate The decorated storage.
+     * @param staleWhileRevalidateSecs The default {@code stale-while-revalidate} in seconds, zero for none.
+     * @param staleIfErrorSecs The default {@code stale-if-error} in seconds, zero for none.
+     */
+    StaleDefaultsHttpCacheStorage(final MeasurableHttpCacheStorage delegate,
+                                  final long staleWhileRevalidateSecs, final long staleIfErrorSecs) {
+        this.delegate = delegate;
+        this.staleWhileRevalidateSecs = staleWhileRevalidateSecs;
+        this.staleIfErrorSecs = staleIfErrorSecs;
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(final String key) throws IOException {
+        final HttpCacheEntry entry = delegate.getEntry(key);
+        return entry != null ? withDefaults(entry) : null;
+    }
+
+    @Override
+    public void putEntry(final String key, final HttpCacheEntry entry) throws IOException {
+        delegate.putEntry(key, entry);
+    }
+
+    @Override
+    public void removeEntry(final String key) throws IOException {
+        delegate.removeEntry(key);
+    }
+
+    @Override
+    public void updateEntry(final String key, final HttpCacheUpdateCallback callback)
+            throws IOException, HttpCacheUpdateException {
+        // the callback merges into the stored entry, which must not keep the defaults
+        delegate.updateEntry(key, callback);
+    }
+
+    @Override
+    public int getEntries() {
+        return delegate.getEntries();
+    }
+
+    @Override
+    public long getBytes() {
+        return delegate.getBytes();
+    }
+
+    private HttpCacheEntry withDefaults(final HttpCacheEntry entry) {
+        boolean staleWhileRevalidate = staleWhileRevalidateSecs <= 0;
+        boolean staleIfError = staleIfErrorSecs <= 0;
+        for (final Header header : entry.getHeaders(HeaderConstants.CACHE_CONTROL)) {
+            for (final HeaderElement element : header.getElements()) {
+                staleWhileRevalidate |= HeaderConstants.STALE_WHILE_REVALIDATE.equalsIgnoreCase(element.getName());
+                staleIfError |= HeaderConstants.STALE_IF_ERROR.equalsIgnoreCase(element.getName());
+            }
+        }
+        if (staleWhileRevalidate && staleIfError) {
+            return entry;
+        }
+        final StringBuilder directives = new StringBuilder();
+        if (!staleWhileRevalidate) {
+            directives.append(HeaderConstants.STALE_WHILE_REVALIDATE).append('=').append(staleWhileRevalidateSecs);
+        }
+        if (!staleIfError) {
+            directives.append(directives.length() > 0 ? ", " : "")
+                    .append(HeaderConstants.STALE_IF_ERROR).append('=').append(staleIfErrorSecs);
+        }
+        final Header[] headers = entry.getAllHeaders();
+        final Header[] withDefaults = Arrays.copyOf(headers, headers.length + 1);
+        withDefaults[headers.length] = new BasicHeader(HeaderConstants.CACHE_CONTROL, directives.toString());
+        return new HttpCacheEntry(entry.getRequestDate(), entry.getResponseDate(), entry.getStatusLine(),
+                withDefaults, entry.getResource(), entry.getVariantMap());
+    }
+}
@@ -0,0 +1,46 @@
+package net.distilledcode.httpclient.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter for frequent concurrent updates and rare reads. Updates
+ * are spread over cells selected by the updating thread, each on its own
+ * cache line, so that threads rarely contend for the same cell.
+ */
+class StripedCounter {
+
+    /** 8 longs, i.e. 64 bytes, per cell to keep cells on separate cache lines. */
+    private static final int PADDING_SHIFT = 3;
+
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES << PADDING_SHIFT);
+
+    void add(final long delta) {
+        cells.addAndGet(cell(), delta);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i << PADDING_SHIFT);
+        }
+        return sum;
+    }
+
+    private static int cell() {
+        final long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (STRIPES - 1)) << PADDING_SHIFT;
+    }
+
+    /**
+     * @return the number of processors rounded up to a power of two, at most 16.
+     */
+    static int stripes(final int processors) {
+        return Integer.highestOneBit(Math.max(1, Math.min(processors, 16)) * 2 - 1);
+    }
+}
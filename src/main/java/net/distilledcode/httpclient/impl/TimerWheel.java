@@ -0,0 +1,167 @@
+package net.distilledcode.httpclient.impl;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bundle-wide hashed timer wheel for the request deadlines of all
+ * configurations, instead of a scheduled executor task per request.
+ * <br>
+ * Timeouts are added to the slot of the {@value #TICK_MS}ms tick they expire
+ * in, out of {@value #WHEEL_SIZE} slots, so scheduling and cancelling take
+ * constant time. A single thread visits one slot per tick, runs the expired
+ * tasks and drops the cancelled ones. Timeouts thus expire up to one tick
+ * late, and cancelled timeouts are released within one turn of the wheel.
+ * Tasks run on the timer thread and must be short.
+ */
+@Component(service = TimerWheel.class)
+public class TimerWheel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimerWheel.class);
+
+    static final long TICK_MS = 10;
+
+    static final int WHEEL_SIZE = 512;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MS);
+
+    private volatile Worker worker;
+
+    @Activate
+    protected void activate() {
+        final Worker started = new Worker();
+        final Thread thread = new Thread(started, "httpclient-timer-wheel");
+        thread.setDaemon(true);
+        thread.start();
+        worker = started;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        final Worker stopped = worker;
+        worker = null;
+        if (stopped != null) {
+            stopped.stop();
+        }
+    }
+
+    /**
+     * Runs a task after a delay, unless the returned timeout is cancelled before.
+     *
+     * @param task The task to run on the timer thread.
+     * @param delayNanos The delay.
+     * @return the timeout to cancel the task with.
+     * @throws RejectedExecutionException if the timer wheel is not active.
+     */
+    Timeout schedule(final Runnable task, final long delayNanos) {
+        final Worker current = worker;
+        if (current == null) {
+            throw new RejectedExecutionException("TimerWheel is not active");
+        }
+        return current.schedule(task, delayNanos);
+    }
+
+    static final class Timeout {
+
+        private final Runnable task;
+
+        private final long deadlineNanos;
+
+        private volatile boolean cancelled;
+
+        private Timeout(final Runnable task, final long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Prevents the task from running, unless it already started.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static final class Worker implements Runnable {
+
+        private final long startNanos = System.nanoTime();
+
+        private final Queue<Timeout>[] slots;
+
+        /** The tick whose slot is visited next, or currently. */
+        private volatile long tick = 1;
+
+        private volatile boolean running = true;
+
+        private volatile Thread thread;
+
+        @SuppressWarnings("unchecked")
+        private Worker() {
+            slots = (Queue<Timeout>[]) new Queue<?>[WHEEL_SIZE];
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                slots[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        private Timeout schedule(final Runnable task, final long delayNanos) {
+            final long deadline = System.nanoTime() + Math.max(0, delayNanos);
+            final Timeout timeout = new Timeout(task, deadline);
+            // the slot of the current tick may already have been visited
+            final long expiry = Math.max((deadline - startNanos + TICK_NANOS - 1) / TICK_NANOS, tick + 1);
+            slots[(int) (expiry % WHEEL_SIZE)].add(timeout);
+            return timeout;
+        }
+
+        private void stop() {
+            running = false;
+            final Thread current = thread;
+            if (current != null) {
+                current.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (running) {
+                final long current = tick;
+                final long wait = startNanos + current * TICK_NANOS - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                expire(slots[(int) (current % WHEEL_SIZE)], System.nanoTime());
+                tick = current + 1;
+            }
+        }
+
+        private static void expire(final Queue<Timeout> slot, final long now) {
+            for (final Iterator<Timeout> it = slot.iterator(); it.hasNext(); ) {
+                final Timeout timeout = it.next();
+                if (timeout.cancelled) {
+                    it.remove();
+                } else if (timeout.deadlineNanos - now <= 0) {
+                    it.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Timer task failed", e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.distilledcode.httpclient.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket limiting extra requests, such as retries or
+ * hedged requests, to a fraction of the requests.
+ * <br>
+ * Every request deposits {@code ratio} tokens, and every extra request takes
+ * one. The bucket starts full and holds up to {@code maxTokens} tokens, which
+ * are counted in thousandths.
+ */
+class TokenBudget {
+
+    private static final long TOKEN = 1000;
+
+    private final long capacity;
+
+    private final long deposit;
+
+    private final AtomicLong balance;
+
+    TokenBudget(final long maxTokens, final double ratio) {
+        this.capacity = maxTokens * TOKEN;
+        this.deposit = (long) (Math.max(0, ratio) * TOKEN);
+        this.balance = new AtomicLong(capacity);
+    }
+
+    void deposit() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= capacity) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(capacity, current + deposit)));
+    }
+
+    boolean tryAcquire() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+}
@@ -0,0 +1,265 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * A {@code CloseableHttpResponse} that notifies a {@link Listener} once,
+ * when the response is done with its connection. That is when the response
+ * is closed or its entity's content has been fully read or closed.
+ */
+class TrackedHttpResponse implements CloseableHttpResponse {
+
+    interface Listener {
+        void completed();
+    }
+
+    private final CloseableHttpResponse response;
+
+    private final Completion completion;
+
+    TrackedHttpResponse(final CloseableHttpResponse response, final Listener listener) {
+        this.response = response;
+        this.completion = new Completion(listener);
+        final HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            response.setEntity(new TrackedEntity(entity, completion));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            response.close();
+        } finally {
+            completion.completed();
+        }
+    }
+
+    @Override
+    public StatusLine getStatusLine() {
+        return response.getStatusLine();
+    }
+
+    @Override
+    public void setStatusLine(final StatusLine statusline) {
+        response.setStatusLine(statusline);
+    }
+
+    @Override
+    public void setStatusLine(final ProtocolVersion ver, final int code) {
+        response.setStatusLine(ver, code);
+    }
+
+    @Override
+    public void setStatusLine(final ProtocolVersion ver, final int code, final String reason) {
+        response.setStatusLine(ver, code, reason);
+    }
+
+    @Override
+    public void setStatusCode(final int code) throws IllegalStateException {
+        response.setStatusCode(code);
+    }
+
+    @Override
+    public void setReasonPhrase(final String reason) throws IllegalStateException {
+        response.setReasonPhrase(reason);
+    }
+
+    @Override
+    public HttpEntity getEntity() {
+        return response.getEntity();
+    }
+
+    @Override
+    public void setEntity(final HttpEntity entity) {
+        response.setEntity(entity);
+    }
+
+    @Override
+    public Locale getLocale() {
+        return response.getLocale();
+    }
+
+    @Override
+    public void setLocale(final Locale loc) {
+        response.setLocale(loc);
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion() {
+        return response.getProtocolVersion();
+    }
+
+    @Override
+    public boolean containsHeader(final String name) {
+        return response.containsHeader(name);
+    }
+
+    @Override
+    public Header[] getHeaders(final String name) {
+        return response.getHeaders(name);
+    }
+
+    @Override
+    public Header getFirstHeader(final String name) {
+        return response.getFirstHeader(name);
+    }
+
+    @Override
+    public Header getLastHeader(final String name) {
+        return response.getLastHeader(name);
+    }
+
+    @Override
+    public Header[] getAllHeaders() {
+        return response.getAllHeaders();
+    }
+
+    @Override
+    public void addHeader(final Header header) {
+        response.addHeader(header);
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+        response.addHeader(name, value);
+    }
+
+    @Override
+    public void setHeader(final Header header) {
+        response.setHeader(header);
+    }
+
+    @Override
+    public void setHeader(final String name, final String value) {
+        response.setHeader(name, value);
+    }
+
+    @Override
+    public void setHeaders(final Header[] headers) {
+        response.setHeaders(headers);
+    }
+
+    @Override
+    public void removeHeader(final Header header) {
+        response.removeHeader(header);
+    }
+
+    @Override
+    public void removeHeaders(final String name) {
+        response.removeHeaders(name);
+    }
+
+    @Override
+    public HeaderIterator headerIterator() {
+        return response.headerIterator();
+    }
+
+    @Override
+    public HeaderIterator headerIterator(final String name) {
+        return response.headerIterator(name);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return response.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setParams(final HttpParams params) {
+        response.setParams(params);
+    }
+
+    @Override
+    public String toString() {
+        return response.toString();
+    }
+
+    private static class Completion implements EofSensorWatcher {
+
+        private final Listener listener;
+
+        private boolean completed;
+
+        private Completion(final Listener listener) {
+            this.listener = listener;
+        }
+
+        void completed() {
+            synchronized (this) {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+            }
+            listener.completed();
+        }
+
+        // the wrapped stream is closed first, so that the connection is released
+        // before the listener is notified, e.g. closing the client
+
+        @Override
+        public boolean eofDetected(final InputStream wrapped) throws IOException {
+            return closeAndComplete(wrapped);
+        }
+
+        @Override
+        public boolean streamClosed(final InputStream wrapped) throws IOException {
+            return closeAndComplete(wrapped);
+        }
+
+        @Override
+        public boolean streamAbort(final InputStream wrapped) throws IOException {
+            return closeAndComplete(wrapped);
+        }
+
+        private boolean closeAndComplete(final InputStream wrapped) throws IOException {
+            try {
+                wrapped.close();
+            } finally {
+                completed();
+            }
+            return false;
+        }
+    }
+
+    private static class TrackedEntity extends HttpEntityWrapper {
+
+        private final Completion completion;
+
+        private TrackedEntity(final HttpEntity entity, final Completion completion) {
+            super(entity);
+            this.completion = completion;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new EofSensorInputStream(super.getContent(), completion);
+        }
+
+        @Override
+        public void writeTo(final OutputStream outStream) throws IOException {
+            try {
+                super.writeTo(outStream);
+            } finally {
+                completion.completed();
+            }
+        }
+    }
+}
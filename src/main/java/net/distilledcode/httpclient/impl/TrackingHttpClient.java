@@ -0,0 +1,171 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@code CloseableHttpClient} that keeps track of its in-flight exchanges,
+ * i.e. requests that are executing or whose response has not yet been fully
+ * consumed or closed.
+ * <br>
+ * A client that is no longer handed out can be {@link #drain(DrainListener) drained}:
+ * it notifies a listener once all in-flight exchanges are completed. Requests
+ * that reach the client before, e.g. because they obtained it just before it
+ * was replaced, are still executed and drained. Requests that reach it
+ * afterwards are executed by the client that {@link #replaceWith replaced} it,
+ * if any, and rejected otherwise.
+ */
+class TrackingHttpClient extends CloseableHttpClient {
+
+    /**
+     * Added to {@link #inFlight} once the client is drained or closed, low
+     * enough to keep it negative while the remaining exchanges complete.
+     */
+    private static final int DRAINED = Integer.MIN_VALUE / 2;
+
+    private final CloseableHttpClient httpClient;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile DrainListener drainListener;
+
+    private volatile TrackingHttpClient replacement;
+
+    private final TrackedHttpResponse.Listener completionListener = new TrackedHttpResponse.Listener() {
+        @Override
+        public void completed() {
+            exchangeCompleted();
+        }
+    };
+
+    TrackingHttpClient(final CloseableHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(final HttpHost target, final HttpRequest request, final HttpContext context)
+            throws IOException {
+        if (!exchangeStarted()) {
+            final TrackingHttpClient current = replacement;
+            if (current == null) {
+                throw new IllegalStateException("HttpClient is shutting down");
+            }
+            return current.execute(target, request, context);
+        }
+        boolean tracked = false;
+        try {
+            final CloseableHttpResponse response = httpClient.execute(target, request, context);
+            final HttpEntity entity = response.getEntity();
+            if (entity != null && entity.isStreaming()) {
+                tracked = true;
+                return new TrackedHttpResponse(response, completionListener);
+            }
+            return response;
+        } finally {
+            if (!tracked) {
+                exchangeCompleted();
+            }
+        }
+    }
+
+    int getInFlight() {
+        final int current = inFlight.get();
+        return current < 0 ? current - DRAINED : current;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Calls the {@code listener} once all in-flight exchanges are completed,
+     * which may be immediately. Requests reaching the client afterwards are
+     * not executed by it.
+     *
+     * @param listener The listener to notify, typically closing this client.
+     */
+    void drain(final DrainListener listener) {
+        drainListener = listener;
+        drained();
+    }
+
+    /**
+     * Lets {@code successor} execute the requests that reach this client once
+     * it is drained or closed, instead of rejecting them.
+     *
+     * @param successor The client replacing this client.
+     */
+    void replaceWith(final TrackingHttpClient successor) {
+        replacement = successor;
+    }
+
+    /**
+     * Closes the underlying client immediately, regardless of in-flight exchanges.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            int current;
+            do {
+                current = inFlight.get();
+            } while (current >= 0 && !inFlight.compareAndSet(current, current + DRAINED));
+            httpClient.close();
+        }
+    }
+
+    /**
+     * @return {@code false} if the client is already drained or closed.
+     */
+    private boolean exchangeStarted() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current < 0) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void exchangeCompleted() {
+        if (inFlight.decrementAndGet() == 0 && drainListener != null) {
+            drained();
+        }
+    }
+
+    private void drained() {
+        // only once, and never while an exchange is started concurrently
+        if (inFlight.compareAndSet(0, DRAINED)) {
+            drainListener.drained();
+        }
+    }
+
+    interface DrainListener {
+        void drained();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return httpClient.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return httpClient.getConnectionManager();
+    }
+}
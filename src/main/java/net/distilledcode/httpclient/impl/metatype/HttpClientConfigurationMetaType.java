@@ -4,21 +4,27 @@ import net.distilledcode.httpclient.impl.metatype.reflection.GetterAdapter;
 import net.distilledcode.httpclient.impl.metatype.reflection.Invokers.Invoker;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.metatype.AttributeDefinition;
 import org.osgi.service.metatype.MetaTypeProvider;
 import org.osgi.service.metatype.ObjectClassDefinition;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import static net.distilledcode.httpclient.impl.DefaultHttpClientConfiguration.DEFAULT_HTTP_CLIENT_CONFIG_PID;
 import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_CONFIG_FACTORY_PID;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_IDLE_RELEASE_MS;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_LAZY;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_SHARED;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.METRICS_ENABLED;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.METRICS_PHASES_ENABLED;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.METRICS_PHASES_SAMPLING_RATE;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.SHUTDOWN_DRAIN_TIMEOUT_MS;
 import static net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil.attributeDefinitions;
 import static net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil.join;
 import static net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil.attributeDefinition;
@@ -26,7 +32,6 @@ import static net.distilledcode.httpclient.impl.metatype.reflection.Invokers.bea
 import static net.distilledcode.httpclient.impl.metatype.reflection.Invokers.beanSetters;
 import static net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil.camelToDotted;
 import static net.distilledcode.httpclient.impl.metatype.reflection.Invokers.conditionalNoArgsSetter;
-import static net.distilledcode.httpclient.impl.metatype.reflection.Invokers.defaultArgumentSetter;
 
 @Component(
         property = {
@@ -37,13 +42,174 @@ import static net.distilledcode.httpclient.impl.metatype.reflection.Invokers.def
 @SuppressWarnings("unused")
 public class HttpClientConfigurationMetaType implements MetaTypeProvider {
 
-    private static final Logger LOG = LoggerFactory.getLogger(HttpClientConfigurationMetaType.class);
-
     public static final String REQUEST_CONFIG_NAMESPACE = "request.config";
 
     public static final Map<String, Invoker<?>> SETTERS_REQUEST_CONFIG_BUILDER =
             Collections.unmodifiableMap(beanSetters(RequestConfig.Builder.class));
 
+    public static final String CONNECTION_MANAGER_NAMESPACE = "connection.manager";
+
+    public static final String CONNECTION_MANAGER_TIME_TO_LIVE_MS = CONNECTION_MANAGER_NAMESPACE + ".time.to.live.ms";
+
+    public static final String CONNECTION_MANAGER_MAX_PER_ROUTE = CONNECTION_MANAGER_NAMESPACE + ".max.per.route";
+
+    public static final Map<String, Invoker<?>> SETTERS_CONNECTION_MANAGER =
+            Collections.unmodifiableMap(beanSetters(PoolingHttpClientConnectionManager.class));
+
+    public static final String EVICT_EXPIRED_CONNECTIONS = "evict.expired.connections";
+
+    public static final String EVICT_IDLE_CONNECTIONS_MS = "evict.idle.connections.ms";
+
+    public static final String DNS_NAMESPACE = "dns";
+
+    public static final String DNS_CACHE_ENABLED = DNS_NAMESPACE + ".cache.enabled";
+
+    public static final String DNS_TTL_MS = DNS_NAMESPACE + ".ttl.ms";
+
+    public static final String DNS_NEGATIVE_TTL_MS = DNS_NAMESPACE + ".negative.ttl.ms";
+
+    public static final String DNS_MAX_ENTRIES = DNS_NAMESPACE + ".max.entries";
+
+    public static final String DNS_REFRESH_AHEAD = DNS_NAMESPACE + ".refresh.ahead";
+
+    public static final String DNS_HOSTS = DNS_NAMESPACE + ".hosts";
+
+    public static final String CACHE_NAMESPACE = "cache";
+
+    public static final String CACHE_ENABLED = CACHE_NAMESPACE + ".enabled";
+
+    public static final String CACHE_MAX_HEAP_BYTES = CACHE_NAMESPACE + ".max.heap.bytes";
+
+    public static final String CACHE_DISK_DIRECTORY = CACHE_NAMESPACE + ".disk.directory";
+
+    public static final String CACHE_DISK_MAX_BYTES = CACHE_NAMESPACE + ".disk.max.bytes";
+
+    public static final String CACHE_STALE_WHILE_REVALIDATE = CACHE_NAMESPACE + ".stale.while.revalidate";
+
+    public static final String CACHE_STALE_IF_ERROR = CACHE_NAMESPACE + ".stale.if.error";
+
+    // the asynchronous.* properties size the revalidation scheduler shared by the clients of a configuration
+    public static final Map<String, Invoker<?>> SETTERS_CACHE_CONFIG_BUILDER =
+            Collections.unmodifiableMap(beanSetters(CacheConfig.Builder.class));
+
+    public static final String COALESCE_NAMESPACE = "coalesce";
+
+    public static final String COALESCE_ENABLED = COALESCE_NAMESPACE + ".enabled";
+
+    public static final String COALESCE_HEADERS = COALESCE_NAMESPACE + ".headers";
+
+    public static final String COALESCE_MAX_BODY_BYTES = COALESCE_NAMESPACE + ".max.body.bytes";
+
+    public static final String RETRY_NAMESPACE = "retry";
+
+    public static final String RETRY_ENABLED = RETRY_NAMESPACE + ".enabled";
+
+    public static final String RETRY_MAX_ATTEMPTS = RETRY_NAMESPACE + ".max.attempts";
+
+    public static final String RETRY_STATUS_CODES = RETRY_NAMESPACE + ".status.codes";
+
+    public static final String RETRY_EXCEPTIONS = RETRY_NAMESPACE + ".exceptions";
+
+    public static final String RETRY_BACKOFF_INITIAL_MS = RETRY_NAMESPACE + ".backoff.initial.ms";
+
+    public static final String RETRY_BACKOFF_MAX_MS = RETRY_NAMESPACE + ".backoff.max.ms";
+
+    public static final String RETRY_DEADLINE_MS = RETRY_NAMESPACE + ".deadline.ms";
+
+    public static final String RETRY_BUDGET_RATIO = RETRY_NAMESPACE + ".budget.ratio";
+
+    public static final String RETRY_BUDGET_MAX_TOKENS = RETRY_NAMESPACE + ".budget.max.tokens";
+
+    public static final String CIRCUIT_BREAKER_NAMESPACE = "circuit.breaker";
+
+    public static final String CIRCUIT_BREAKER_ENABLED = CIRCUIT_BREAKER_NAMESPACE + ".enabled";
+
+    public static final String CIRCUIT_BREAKER_WINDOW_SIZE = CIRCUIT_BREAKER_NAMESPACE + ".window.size";
+
+    public static final String CIRCUIT_BREAKER_MINIMUM_CALLS = CIRCUIT_BREAKER_NAMESPACE + ".minimum.calls";
+
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = CIRCUIT_BREAKER_NAMESPACE + ".failure.rate.threshold";
+
+    public static final String CIRCUIT_BREAKER_FAILURE_STATUS_CODES = CIRCUIT_BREAKER_NAMESPACE + ".failure.status.codes";
+
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS = CIRCUIT_BREAKER_NAMESPACE + ".slow.call.duration.ms";
+
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD = CIRCUIT_BREAKER_NAMESPACE + ".slow.call.rate.threshold";
+
+    public static final String CIRCUIT_BREAKER_OPEN_DURATION_MS = CIRCUIT_BREAKER_NAMESPACE + ".open.duration.ms";
+
+    public static final String CIRCUIT_BREAKER_HALF_OPEN_CALLS = CIRCUIT_BREAKER_NAMESPACE + ".half.open.calls";
+
+    public static final String HEDGE_NAMESPACE = "hedge";
+
+    public static final String HEDGE_ENABLED = HEDGE_NAMESPACE + ".enabled";
+
+    public static final String HEDGE_DELAY_MS = HEDGE_NAMESPACE + ".delay.ms";
+
+    public static final String HEDGE_ADAPTIVE_ENABLED = HEDGE_NAMESPACE + ".adaptive.enabled";
+
+    public static final String HEDGE_ADAPTIVE_PERCENTILE = HEDGE_NAMESPACE + ".adaptive.percentile";
+
+    public static final String HEDGE_BUDGET_RATIO = HEDGE_NAMESPACE + ".budget.ratio";
+
+    public static final String HEDGE_BUDGET_MAX_TOKENS = HEDGE_NAMESPACE + ".budget.max.tokens";
+
+    public static final String ADAPTIVE_LIMIT_NAMESPACE = "adaptive.limit";
+
+    public static final String ADAPTIVE_LIMIT_ENABLED = ADAPTIVE_LIMIT_NAMESPACE + ".enabled";
+
+    public static final String ADAPTIVE_LIMIT_ALGORITHM = ADAPTIVE_LIMIT_NAMESPACE + ".algorithm";
+
+    public static final String ADAPTIVE_LIMIT_INITIAL = ADAPTIVE_LIMIT_NAMESPACE + ".initial";
+
+    public static final String ADAPTIVE_LIMIT_MIN = ADAPTIVE_LIMIT_NAMESPACE + ".min";
+
+    public static final String ADAPTIVE_LIMIT_MAX = ADAPTIVE_LIMIT_NAMESPACE + ".max";
+
+    public static final String ADAPTIVE_LIMIT_BACKOFF_RATIO = ADAPTIVE_LIMIT_NAMESPACE + ".backoff.ratio";
+
+    public static final String ADAPTIVE_LIMIT_RTT_TOLERANCE = ADAPTIVE_LIMIT_NAMESPACE + ".rtt.tolerance";
+
+    public static final String ADAPTIVE_LIMIT_SMOOTHING = ADAPTIVE_LIMIT_NAMESPACE + ".smoothing";
+
+    public static final String ADAPTIVE_LIMIT_DROP_STATUS_CODES = ADAPTIVE_LIMIT_NAMESPACE + ".drop.status.codes";
+
+    public static final String LB_NAMESPACE = "lb";
+
+    public static final String LB_ENABLED = LB_NAMESPACE + ".enabled";
+
+    public static final String LB_HOST = LB_NAMESPACE + ".host";
+
+    public static final String LB_ENDPOINTS = LB_NAMESPACE + ".endpoints";
+
+    public static final String LB_FAILURE_STATUS_CODES = LB_NAMESPACE + ".failure.status.codes";
+
+    public static final String LB_EJECTION_CONSECUTIVE_FAILURES = LB_NAMESPACE + ".ejection.consecutive.failures";
+
+    public static final String LB_EJECTION_DURATION_MS = LB_NAMESPACE + ".ejection.duration.ms";
+
+    public static final String LB_EJECTION_MAX_DURATION_MS = LB_NAMESPACE + ".ejection.max.duration.ms";
+
+    public static final String RATE_LIMIT_NAMESPACE = "rate.limit";
+
+    public static final String RATE_LIMIT_ENABLED = RATE_LIMIT_NAMESPACE + ".enabled";
+
+    public static final String RATE_LIMIT_REQUESTS_PER_SECOND = RATE_LIMIT_NAMESPACE + ".requests.per.second";
+
+    public static final String RATE_LIMIT_BURST = RATE_LIMIT_NAMESPACE + ".burst";
+
+    public static final String RATE_LIMIT_ROUTE_REQUESTS_PER_SECOND = RATE_LIMIT_NAMESPACE + ".route.requests.per.second";
+
+    public static final String RATE_LIMIT_ROUTE_BURST = RATE_LIMIT_NAMESPACE + ".route.burst";
+
+    public static final String RATE_LIMIT_TIMEOUT_MS = RATE_LIMIT_NAMESPACE + ".timeout.ms";
+
+    public static final String RATE_LIMIT_ADAPTIVE_ENABLED = RATE_LIMIT_NAMESPACE + ".adaptive.enabled";
+
+    public static final String REQUEST_DEADLINE_MS = "request.deadline.ms";
+
+    public static final String USE_SYSTEM_PROPERTIES = "use.system.properties";
+
     public static final Map<String, Invoker<?>> SETTERS_HTTP_CLIENT_BUILDER;
     static {
         final Map<String, Invoker<?>> invokers = new HashMap<>();
@@ -58,21 +224,97 @@ public class HttpClientConfigurationMetaType implements MetaTypeProvider {
             }
         }
         try {
-            invokers.put("evict.expired.connections",
-                    conditionalNoArgsSetter(HttpClientBuilder.class.getMethod("evictExpiredConnections"), true));
-            invokers.put("evict.idle.connections.ms",
-                    defaultArgumentSetter(
-                            HttpClientBuilder.class.getMethod("evictIdleConnections", long.class, TimeUnit.class),
-                            null, TimeUnit.MILLISECONDS));
-
+            invokers.put(USE_SYSTEM_PROPERTIES, conditionalNoArgsSetter(HttpClientBuilder.class.getMethod("useSystemProperties"), true));
         } catch (NoSuchMethodException e) {
-            LOG.warn("Failed setting up configuration option due to missing method", e);
+            throw new IllegalStateException(e);
         }
+        // evict.expired.connections and evict.idle.connections.ms are intentionally not
+        // mapped to HttpClientBuilder, which would start an eviction thread per client
         SETTERS_HTTP_CLIENT_BUILDER = Collections.unmodifiableMap(invokers);
     }
 
     private static final AttributeDefinition[] ATTRIBUTE_DEFINITIONS = join(
             attributeDefinitions(REQUEST_CONFIG_NAMESPACE, SETTERS_REQUEST_CONFIG_BUILDER, new GetterAdapter(RequestConfig.DEFAULT, beanGetters(RequestConfig.class))),
+            attributeDefinition(HTTP_CLIENT_SHARED, "Shared HttpClient", Boolean.class, "false"),
+            attributeDefinition(HTTP_CLIENT_LAZY, "Lazy HttpClient", Boolean.class, "false"),
+            attributeDefinition(HTTP_CLIENT_IDLE_RELEASE_MS, "Lazy HttpClient Idle Release Ms", Long.class, "-1"),
+            attributeDefinition(METRICS_ENABLED, "Metrics Enabled", Boolean.class, "true"),
+            attributeDefinition(METRICS_PHASES_ENABLED, "Metrics Phases Enabled", Boolean.class, "false"),
+            attributeDefinition(METRICS_PHASES_SAMPLING_RATE, "Metrics Phases Sampling Rate", Double.class, "1.0"),
+            attributeDefinition(SHUTDOWN_DRAIN_TIMEOUT_MS, "Shutdown Drain Timeout Ms", Long.class, "10000"),
+            connectionManagerAttributeDefinitions(),
+            attributeDefinition(CONNECTION_MANAGER_TIME_TO_LIVE_MS, "Connection Manager Time To Live Ms", Long.class, "-1"),
+            attributeDefinition(CONNECTION_MANAGER_MAX_PER_ROUTE, "Connection Manager Max Per Route", String[].class),
+            attributeDefinition(EVICT_EXPIRED_CONNECTIONS, "Evict Expired Connections", Boolean.class),
+            attributeDefinition(EVICT_IDLE_CONNECTIONS_MS, "Evict Idle Connections Ms", Long.class),
+            attributeDefinition(DNS_CACHE_ENABLED, "DNS Cache Enabled", Boolean.class, "false"),
+            attributeDefinition(DNS_TTL_MS, "DNS TTL Ms", Long.class, "60000"),
+            attributeDefinition(DNS_NEGATIVE_TTL_MS, "DNS Negative TTL Ms", Long.class, "5000"),
+            attributeDefinition(DNS_MAX_ENTRIES, "DNS Max Entries", Integer.class, "1000"),
+            attributeDefinition(DNS_REFRESH_AHEAD, "DNS Refresh Ahead", Boolean.class, "true"),
+            attributeDefinition(DNS_HOSTS, "DNS Hosts", String[].class),
+            attributeDefinition(CACHE_ENABLED, "Cache Enabled", Boolean.class, "false"),
+            attributeDefinition(CACHE_MAX_HEAP_BYTES, "Cache Max Heap Bytes", Long.class, "67108864"),
+            attributeDefinition(CACHE_DISK_DIRECTORY, "Cache Disk Directory", String.class),
+            attributeDefinition(CACHE_DISK_MAX_BYTES, "Cache Disk Max Bytes", Long.class, "268435456"),
+            attributeDefinition(CACHE_STALE_WHILE_REVALIDATE, "Cache Stale While Revalidate", Long.class, "0"),
+            attributeDefinition(CACHE_STALE_IF_ERROR, "Cache Stale If Error", Long.class, "0"),
+            attributeDefinitions(CACHE_NAMESPACE, SETTERS_CACHE_CONFIG_BUILDER, new GetterAdapter(CacheConfig.DEFAULT, beanGetters(CacheConfig.class))),
+            attributeDefinition(COALESCE_ENABLED, "Coalesce Enabled", Boolean.class, "false"),
+            attributeDefinition(COALESCE_HEADERS, "Coalesce Headers", String[].class,
+                    "Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Cookie"),
+            attributeDefinition(COALESCE_MAX_BODY_BYTES, "Coalesce Max Body Bytes", Long.class, "1048576"),
+            attributeDefinition(RETRY_ENABLED, "Retry Enabled", Boolean.class, "false"),
+            attributeDefinition(RETRY_MAX_ATTEMPTS, "Retry Max Attempts", Integer.class, "3"),
+            attributeDefinition(RETRY_STATUS_CODES, "Retry Status Codes", String[].class, "429", "502", "503", "504"),
+            attributeDefinition(RETRY_EXCEPTIONS, "Retry Exceptions", String[].class,
+                    "java.net.ConnectException", "org.apache.http.conn.ConnectTimeoutException",
+                    "org.apache.http.NoHttpResponseException"),
+            attributeDefinition(RETRY_BACKOFF_INITIAL_MS, "Retry Backoff Initial Ms", Long.class, "100"),
+            attributeDefinition(RETRY_BACKOFF_MAX_MS, "Retry Backoff Max Ms", Long.class, "10000"),
+            attributeDefinition(RETRY_DEADLINE_MS, "Retry Deadline Ms", Long.class, "0"),
+            attributeDefinition(RETRY_BUDGET_RATIO, "Retry Budget Ratio", Double.class, "0.2"),
+            attributeDefinition(RETRY_BUDGET_MAX_TOKENS, "Retry Budget Max Tokens", Long.class, "10"),
+            attributeDefinition(CIRCUIT_BREAKER_ENABLED, "Circuit Breaker Enabled", Boolean.class, "false"),
+            attributeDefinition(CIRCUIT_BREAKER_WINDOW_SIZE, "Circuit Breaker Window Size", Integer.class, "100"),
+            attributeDefinition(CIRCUIT_BREAKER_MINIMUM_CALLS, "Circuit Breaker Minimum Calls", Integer.class, "20"),
+            attributeDefinition(CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD, "Circuit Breaker Failure Rate Threshold", Double.class, "50"),
+            attributeDefinition(CIRCUIT_BREAKER_FAILURE_STATUS_CODES, "Circuit Breaker Failure Status Codes", String[].class,
+                    "500", "502", "503", "504"),
+            attributeDefinition(CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS, "Circuit Breaker Slow Call Duration Ms", Long.class, "5000"),
+            attributeDefinition(CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD, "Circuit Breaker Slow Call Rate Threshold", Double.class, "100"),
+            attributeDefinition(CIRCUIT_BREAKER_OPEN_DURATION_MS, "Circuit Breaker Open Duration Ms", Long.class, "30000"),
+            attributeDefinition(CIRCUIT_BREAKER_HALF_OPEN_CALLS, "Circuit Breaker Half Open Calls", Integer.class, "5"),
+            attributeDefinition(HEDGE_ENABLED, "Hedge Enabled", Boolean.class, "false"),
+            attributeDefinition(HEDGE_DELAY_MS, "Hedge Delay Ms", Long.class, "100"),
+            attributeDefinition(HEDGE_ADAPTIVE_ENABLED, "Hedge Adaptive Enabled", Boolean.class, "false"),
+            attributeDefinition(HEDGE_ADAPTIVE_PERCENTILE, "Hedge Adaptive Percentile", Double.class, "95"),
+            attributeDefinition(HEDGE_BUDGET_RATIO, "Hedge Budget Ratio", Double.class, "0.05"),
+            attributeDefinition(HEDGE_BUDGET_MAX_TOKENS, "Hedge Budget Max Tokens", Long.class, "10"),
+            attributeDefinition(ADAPTIVE_LIMIT_ENABLED, "Adaptive Limit Enabled", Boolean.class, "false"),
+            attributeDefinition(ADAPTIVE_LIMIT_ALGORITHM, "Adaptive Limit Algorithm", String.class, "gradient"),
+            attributeDefinition(ADAPTIVE_LIMIT_INITIAL, "Adaptive Limit Initial", Integer.class, "20"),
+            attributeDefinition(ADAPTIVE_LIMIT_MIN, "Adaptive Limit Min", Integer.class, "1"),
+            attributeDefinition(ADAPTIVE_LIMIT_MAX, "Adaptive Limit Max", Integer.class, "200"),
+            attributeDefinition(ADAPTIVE_LIMIT_BACKOFF_RATIO, "Adaptive Limit Backoff Ratio", Double.class, "0.9"),
+            attributeDefinition(ADAPTIVE_LIMIT_RTT_TOLERANCE, "Adaptive Limit RTT Tolerance", Double.class, "1.5"),
+            attributeDefinition(ADAPTIVE_LIMIT_SMOOTHING, "Adaptive Limit Smoothing", Double.class, "0.2"),
+            attributeDefinition(ADAPTIVE_LIMIT_DROP_STATUS_CODES, "Adaptive Limit Drop Status Codes", String[].class, "429", "503"),
+            attributeDefinition(LB_ENABLED, "LB Enabled", Boolean.class, "false"),
+            attributeDefinition(LB_HOST, "LB Host", String.class),
+            attributeDefinition(LB_ENDPOINTS, "LB Endpoints", String[].class),
+            attributeDefinition(LB_FAILURE_STATUS_CODES, "LB Failure Status Codes", String[].class, "500", "502", "503", "504"),
+            attributeDefinition(LB_EJECTION_CONSECUTIVE_FAILURES, "LB Ejection Consecutive Failures", Integer.class, "5"),
+            attributeDefinition(LB_EJECTION_DURATION_MS, "LB Ejection Duration Ms", Long.class, "30000"),
+            attributeDefinition(LB_EJECTION_MAX_DURATION_MS, "LB Ejection Max Duration Ms", Long.class, "300000"),
+            attributeDefinition(RATE_LIMIT_ENABLED, "Rate Limit Enabled", Boolean.class, "false"),
+            attributeDefinition(RATE_LIMIT_REQUESTS_PER_SECOND, "Rate Limit Requests Per Second", Double.class, "10"),
+            attributeDefinition(RATE_LIMIT_BURST, "Rate Limit Burst", Integer.class, "10"),
+            attributeDefinition(RATE_LIMIT_ROUTE_REQUESTS_PER_SECOND, "Rate Limit Route Requests Per Second", Double.class, "0"),
+            attributeDefinition(RATE_LIMIT_ROUTE_BURST, "Rate Limit Route Burst", Integer.class, "10"),
+            attributeDefinition(RATE_LIMIT_TIMEOUT_MS, "Rate Limit Timeout Ms", Long.class, "0"),
+            attributeDefinition(RATE_LIMIT_ADAPTIVE_ENABLED, "Rate Limit Adaptive Enabled", Boolean.class, "true"),
+            attributeDefinition(REQUEST_DEADLINE_MS, "Request Deadline Ms", Long.class, "0"),
             attributeDefinitions("", SETTERS_HTTP_CLIENT_BUILDER)
     );
 
@@ -102,6 +344,16 @@ public class HttpClientConfigurationMetaType implements MetaTypeProvider {
         DEFINITIONS = Collections.unmodifiableMap(defs);
     }
 
+    private static AttributeDefinition[] connectionManagerAttributeDefinitions() {
+        final PoolingHttpClientConnectionManager defaults = new PoolingHttpClientConnectionManager();
+        try {
+            return attributeDefinitions(CONNECTION_MANAGER_NAMESPACE, SETTERS_CONNECTION_MANAGER,
+                    new GetterAdapter(defaults, beanGetters(PoolingHttpClientConnectionManager.class)));
+        } finally {
+            defaults.shutdown();
+        }
+    }
+
     @Override
     public ObjectClassDefinition getObjectClassDefinition(final String id, final String locale) {
         return DEFINITIONS.get(id);
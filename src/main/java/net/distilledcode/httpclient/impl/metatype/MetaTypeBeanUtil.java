@@ -2,6 +2,7 @@ package net.distilledcode.httpclient.impl.metatype;
 
 import net.distilledcode.httpclient.impl.metatype.reflection.GetterAdapter;
 import net.distilledcode.httpclient.impl.metatype.reflection.Invokers;
+import net.distilledcode.httpclient.impl.metatype.reflection.Invokers.Invocation;
 import net.distilledcode.httpclient.impl.metatype.reflection.SetterAdapter;
 import org.apache.commons.lang3.ClassUtils;
 import org.osgi.framework.ServiceReference;
@@ -17,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class MetaTypeBeanUtil {
@@ -60,7 +62,7 @@ public class MetaTypeBeanUtil {
         for (final Map.Entry<String, Object> entry : configuration.entrySet()) {
             final String prop = entry.getKey();
             if (prop.startsWith(prefix)) {
-                final String propertyName = prop.replaceFirst(prefix, "");
+                final String propertyName = prop.substring(prefix.length());
                 final Object value = entry.getValue();
                 try {
                     object.set(propertyName, value);
@@ -71,6 +73,52 @@ public class MetaTypeBeanUtil {
         }
     }
 
+    /**
+     * Resolves every key in the {@code configuration} map that has a corresponding
+     * invoker into an {@code Invocation}. Applying the resulting invocations is
+     * equivalent to {@link #applyConfiguration(String, Map, SetterAdapter)}, but
+     * the lookups and type checks are only performed once.
+     *
+     * @param namespace Namespace of the configuration, e.g. "request.config"
+     * @param configuration Map containing the configuration to compile
+     * @param setters the setter invokers of the type the configuration will be applied to.
+     * @return the invocations that apply the configuration.
+     */
+    public static Invocation[] compileConfiguration(final String namespace, final Map<String, Object> configuration, final Map<String, Invokers.Invoker<?>> setters) {
+        final String prefix = normalizeNamespace(namespace);
+        final List<Invocation> invocations = new ArrayList<>();
+        for (final Map.Entry<String, Object> entry : configuration.entrySet()) {
+            final String prop = entry.getKey();
+            if (prop.startsWith(prefix)) {
+                final Invokers.Invoker<?> setter = setters.get(prop.substring(prefix.length()));
+                final Object value = entry.getValue();
+                if (setter != null && setter.accepts(value)) {
+                    final Invocation invocation = setter.bind(value);
+                    if (invocation != null) {
+                        invocations.add(invocation);
+                    }
+                }
+            }
+        }
+        return invocations.toArray(new Invocation[invocations.size()]);
+    }
+
+    /**
+     * Invokes each of the {@code invocations} on the {@code object}.
+     *
+     * @param invocations the invocations, e.g. created by {@link #compileConfiguration(String, Map, Map)}
+     * @param object the object to apply the invocations to.
+     */
+    public static void applyConfiguration(final Invocation[] invocations, final Object object) {
+        for (final Invocation invocation : invocations) {
+            try {
+                invocation.invoke(object);
+            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                LOG.warn("Failed to apply {}", invocation, e);
+            }
+        }
+    }
+
     public static ObjectClassDefinition createObjectClassDefinition(final String id, final String name, final String description, final AttributeDefinition[] attributeDefinitions) {
         return new SimpleObjectClassDefinition(id, name, description, attributeDefinitions);
     }
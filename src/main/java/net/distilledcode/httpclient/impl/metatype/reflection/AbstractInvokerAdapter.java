@@ -1,7 +1,5 @@
 package net.distilledcode.httpclient.impl.metatype.reflection;
 
-import org.apache.commons.lang3.ClassUtils;
-
 import java.lang.reflect.InvocationTargetException;
 import java.util.Map;
 
@@ -18,24 +16,11 @@ abstract class AbstractInvokerAdapter {
 
     Object invoke(final String invokerName, Object... params) throws InvocationTargetException, IllegalAccessException {
         Invokers.Invoker<?> invoker = invokers.get(invokerName);
-        if (invoker != null && matchingParameterTypes(invoker.getParameterTypes(), params)) {
+        if (invoker != null && invoker.accepts(params)) {
             return invoker.invoke(delegate, params);
         }
         return null;
 
     }
 
-    private boolean matchingParameterTypes(final Class<?>[] parameterTypes, final Object[] params) {
-        Class<?>[] normalizedParameterTypes = ClassUtils.primitivesToWrappers(parameterTypes);
-        if (normalizedParameterTypes.length != params.length) {
-            return false;
-        }
-        for (int i = 0; i < normalizedParameterTypes.length; i++) {
-            if (!normalizedParameterTypes[i].isAssignableFrom(ClassUtils.primitiveToWrapper(params[i].getClass()))) {
-                return false;
-            }
-        }
-        return true;
-    }
-
 }
@@ -2,9 +2,15 @@ package net.distilledcode.httpclient.impl.metatype.reflection;
 
 import net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.ClassUtils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -65,15 +71,40 @@ public class Invokers {
      * {@code Invoker} provide an indirection for calling {@code Method}s.
      * This allows e.g. injecting additional parameters in the "real" invocation,
      * or calling different methods depending on the parameter(s).
+     * <br>
+     * Public methods are called via a {@code MethodHandle} that is resolved once,
+     * when the {@code Invoker} is created. Methods that cannot be looked up
+     * publicly are called via reflection.
      *
      * @param <R> The type of the return value.
      */
     public static class Invoker<R> {
 
         private final Method method;
-        
-        public Invoker(Method method) {
+
+        private final Class<?>[] parameterTypes;
+
+        private final Class<?>[] wrappedParameterTypes;
+
+        private final MethodHandle methodHandle;
+
+        public Invoker(final Method method) {
+            this(method, method.getParameterTypes(), spreadingMethodHandle(method));
+        }
+
+        private Invoker(final Method method, final Class<?>[] parameterTypes, final MethodHandle methodHandle) {
             this.method = method;
+            this.parameterTypes = parameterTypes;
+            this.wrappedParameterTypes = ClassUtils.primitivesToWrappers(parameterTypes);
+            this.methodHandle = methodHandle;
+        }
+
+        Method method() {
+            return method;
+        }
+
+        boolean isMethodHandleBacked() {
+            return methodHandle != null;
         }
 
         /**
@@ -82,7 +113,38 @@ public class Invokers {
          * @return the expected parameter types
          */
         public Class<?>[] getParameterTypes() {
-            return method.getParameterTypes();
+            return parameterTypes.clone();
+        }
+
+        /**
+         * Checks whether the {@code params} match the expected parameter types.
+         *
+         * @param params The parameters to check.
+         * @return {@code true} if the invoker can be invoked with the {@code params}.
+         */
+        public boolean accepts(final Object... params) {
+            if (wrappedParameterTypes.length != params.length) {
+                return false;
+            }
+            for (int i = 0; i < wrappedParameterTypes.length; i++) {
+                if (params[i] == null || !wrappedParameterTypes[i].isAssignableFrom(ClassUtils.primitiveToWrapper(params[i].getClass()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Resolves the method and the arguments the {@code params} would be
+         * interpreted as, so they can be invoked repeatedly without
+         * interpreting them again.
+         *
+         * @param params The parameters available for invoking the method.
+         * @return The resolved {@code Invocation}, or {@code null} if invoking
+         * with {@code params} would not call any method.
+         */
+        public Invocation bind(final Object... params) {
+            return new Invocation(this, params);
         }
 
         /**
@@ -93,13 +155,57 @@ public class Invokers {
          * @param object The object to invoke a method on.
          * @param params The parameters available for invoking the method.
          * @return The result of the invocation.
-         * @throws InvocationTargetException If the underlying {@code Method#invoke} throws
+         * @throws InvocationTargetException If the underlying method throws
          * @throws IllegalAccessException  If the underlying {@code Method#invoke} throws
          */
-        @SuppressWarnings("unchecked")
         public R invoke(final Object object, final Object... params)
                 throws InvocationTargetException, IllegalAccessException {
-            return (R) method.invoke(object, params);
+            return invokeMethod(object, params);
+        }
+
+        /**
+         * Invokes the underlying method, bypassing any interpretation of
+         * the {@code params} subclasses may implement in {@link #invoke(Object, Object...)}.
+         */
+        @SuppressWarnings("unchecked")
+        final R invokeMethod(final Object object, final Object[] params)
+                throws InvocationTargetException, IllegalAccessException {
+            if (methodHandle == null) {
+                return (R) method.invoke(object, params);
+            }
+            try {
+                return (R) (Object) methodHandle.invokeExact(object, params);
+            } catch (ClassCastException | WrongMethodTypeException e) {
+                // same contract as Method#invoke for mismatching arguments
+                throw new IllegalArgumentException(e.getMessage(), e);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        /**
+         * Creates a {@code MethodHandle} of type {@code (Object, Object[])Object}
+         * for the {@code method}, or returns {@code null} if the method cannot
+         * be called via a public lookup.
+         */
+        private static MethodHandle spreadingMethodHandle(final Method method) {
+            if (Modifier.isStatic(method.getModifiers())
+                    || !Modifier.isPublic(method.getModifiers())
+                    || !Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                return null;
+            }
+            try {
+                final int parameterCount = method.getParameterTypes().length;
+                return MethodHandles.publicLookup()
+                        .unreflect(method)
+                        .asFixedArity()
+                        .asType(MethodType.genericMethodType(parameterCount + 1))
+                        .asSpreader(Object[].class, parameterCount);
+            } catch (IllegalAccessException | RuntimeException e) {
+                return null;
+            }
         }
     }
 
@@ -111,61 +217,112 @@ public class Invokers {
      */
     private static class ConditionalInvoker extends Invoker<Void> {
 
+        private static final Class<?>[] PARAMETER_TYPES = { Boolean.class };
+
+        private static final Object[] NO_ARGS = new Object[0];
+
+        private final Invoker<?> noArgsInvoker;
+
         private final boolean condition;
 
         private ConditionalInvoker(final Method method, final boolean condition) {
-            super(method);
+            super(method, PARAMETER_TYPES, null);
+            this.noArgsInvoker = new Invoker<>(method);
             this.condition = condition;
         }
 
-        @Override
-        public Class<?>[] getParameterTypes() {
-            return new Class[]{ Boolean.class };
-        }
-
         @Override
         public Void invoke(final Object object, final Object... params) throws InvocationTargetException, IllegalAccessException {
-            if (params.length > 0 && params[0] instanceof Boolean && (boolean)params[0] == condition) {
-                super.invoke(object);
+            if (matches(params)) {
+                noArgsInvoker.invokeMethod(object, NO_ARGS);
             }
             return null;
         }
+
+        @Override
+        public Invocation bind(final Object... params) {
+            return matches(params) ? new Invocation(noArgsInvoker, NO_ARGS) : null;
+        }
+
+        private boolean matches(final Object[] params) {
+            return params.length > 0 && params[0] instanceof Boolean && (boolean) params[0] == condition;
+        }
     }
 
     private static class DefaultParameterInvoker extends Invoker<Void> {
+
+        private final Invoker<?> methodInvoker;
+
         private final Object[] defaultParameters;
 
         private final int paramIndex;
 
         public DefaultParameterInvoker(final Method method, final Object[] defaultParameters) {
-            super(method);
-            if (method.getParameterTypes().length != defaultParameters.length) {
+            this(method, defaultParameters, ArrayUtils.indexOf(defaultParameters, null));
+        }
+
+        private DefaultParameterInvoker(final Method method, final Object[] defaultParameters, final int paramIndex) {
+            super(method, parameterTypes(method, defaultParameters, paramIndex), null);
+            this.methodInvoker = new Invoker<>(method);
+            this.defaultParameters = defaultParameters;
+            this.paramIndex = paramIndex;
+        }
+
+        private static Class<?>[] parameterTypes(final Method method, final Object[] defaultParameters, final int paramIndex) {
+            final Class<?>[] methodParameterTypes = method.getParameterTypes();
+            if (methodParameterTypes.length != defaultParameters.length) {
                 throw new IllegalArgumentException("defaultParameters needs to have as many entries as the method's parameter types '" + method.getName() + "'");
             }
-            this.defaultParameters = defaultParameters;
-            this.paramIndex = ArrayUtils.indexOf(defaultParameters, null);
+            return paramIndex > -1 ? new Class<?>[]{methodParameterTypes[paramIndex]} : new Class<?>[0];
         }
 
         @Override
-        public Class<?>[] getParameterTypes() {
-            if (paramIndex > -1) {
-                Class<?> parameterType = super.getParameterTypes()[paramIndex];
-                return new Class<?>[]{parameterType};
-            } else {
-                return new Class<?>[0];
+        public Void invoke(final Object object, final Object... params) throws InvocationTargetException, IllegalAccessException {
+            final Object[] newParams = withDefaults(params);
+            if (newParams != null) {
+                methodInvoker.invokeMethod(object, newParams);
             }
+            return null;
         }
 
         @Override
-        public Void invoke(final Object object, final Object... params) throws InvocationTargetException, IllegalAccessException {
-            if (paramIndex > -1) {
-                if (params.length == getParameterTypes().length) {
-                    Object[] newParams = Arrays.copyOf(defaultParameters, defaultParameters.length);
-                    newParams[paramIndex] = params[0];
-                    invoke(object, newParams);
-                }
+        public Invocation bind(final Object... params) {
+            final Object[] newParams = withDefaults(params);
+            return newParams != null ? new Invocation(methodInvoker, newParams) : null;
+        }
+
+        private Object[] withDefaults(final Object[] params) {
+            if (paramIndex > -1 && params.length == 1) {
+                final Object[] newParams = Arrays.copyOf(defaultParameters, defaultParameters.length);
+                newParams[paramIndex] = params[0];
+                return newParams;
             }
             return null;
         }
     }
+
+    /**
+     * An {@code Invocation} is an {@code Invoker} with all of its
+     * parameters resolved, ready to be invoked on any suitable object.
+     */
+    public static final class Invocation {
+
+        private final Invoker<?> invoker;
+
+        private final Object[] params;
+
+        private Invocation(final Invoker<?> invoker, final Object[] params) {
+            this.invoker = invoker;
+            this.params = params;
+        }
+
+        public Object invoke(final Object object) throws InvocationTargetException, IllegalAccessException {
+            return invoker.invoke(object, params);
+        }
+
+        @Override
+        public String toString() {
+            return "Invocation{" + invoker.method().getName() + Arrays.toString(params) + "}";
+        }
+    }
 }
@@ -0,0 +1,107 @@
+package net.distilledcode.httpclient.impl.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class PropertyUtils {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PropertyUtils.class);
+
+    public static boolean toBoolean(final Object value, final boolean defaultValue) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value != null) {
+            return Boolean.parseBoolean(value.toString().trim());
+        }
+        return defaultValue;
+    }
+
+    public static boolean toBoolean(final Map<String, Object> properties, final String key, final boolean defaultValue) {
+        return toBoolean(properties.get(key), defaultValue);
+    }
+
+    public static long toLong(final Object value, final long defaultValue) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value != null) {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    public static long toLong(final Map<String, Object> properties, final String key, final long defaultValue) {
+        return toLong(properties.get(key), defaultValue);
+    }
+
+    public static int toInteger(final Map<String, Object> properties, final String key, final int defaultValue) {
+        return (int) toLong(properties.get(key), defaultValue);
+    }
+
+    public static double toDouble(final Object value, final double defaultValue) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value != null) {
+            try {
+                return Double.parseDouble(value.toString().trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    public static double toDouble(final Map<String, Object> properties, final String key, final double defaultValue) {
+        return toDouble(properties.get(key), defaultValue);
+    }
+
+    public static String toString(final Map<String, Object> properties, final String key, final String defaultValue) {
+        final Object value = properties.get(key);
+        return value != null ? value.toString().trim() : defaultValue;
+    }
+
+    public static String[] toStringArray(final Object value) {
+        if (value instanceof String[]) {
+            return (String[]) value;
+        } else if (value instanceof Object[]) {
+            final Object[] values = (Object[]) value;
+            final String[] strings = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                strings[i] = String.valueOf(values[i]);
+            }
+            return strings;
+        } else if (value instanceof Collection) {
+            return toStringArray(((Collection<?>) value).toArray());
+        } else if (value != null) {
+            return new String[]{ value.toString() };
+        }
+        return new String[0];
+    }
+
+    public static String[] toStringArray(final Map<String, Object> properties, final String key) {
+        return toStringArray(properties.get(key));
+    }
+
+    public static Set<Integer> toStatusCodes(final Map<String, Object> properties, final String key,
+                                             final String[] defaultValue) {
+        final String[] codes = properties.containsKey(key) ? toStringArray(properties, key) : defaultValue;
+        final Set<Integer> statusCodes = new HashSet<>();
+        for (final String code : codes) {
+            try {
+                statusCodes.add(Integer.parseInt(code.trim()));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring invalid status code {} in {}", code, key);
+            }
+        }
+        return Collections.unmodifiableSet(statusCodes);
+    }
+}
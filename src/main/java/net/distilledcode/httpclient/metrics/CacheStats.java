@@ -0,0 +1,81 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the statistics of a configuration's response cache.
+ */
+public final class CacheStats {
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long revalidations;
+
+    private final long cacheModuleResponses;
+
+    private final long entries;
+
+    private final long bytes;
+
+    @ConstructorProperties({"hits", "misses", "revalidations", "cacheModuleResponses", "entries", "bytes"})
+    public CacheStats(final long hits, final long misses, final long revalidations, final long cacheModuleResponses,
+                      final long entries, final long bytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.revalidations = revalidations;
+        this.cacheModuleResponses = cacheModuleResponses;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the number of responses served from the cache without contacting the origin.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of responses fetched from the origin.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of responses served from the cache after a successful revalidation with the origin.
+     */
+    public long getRevalidations() {
+        return revalidations;
+    }
+
+    /**
+     * @return the number of responses generated by the cache itself, e.g. a
+     * {@code 504} for an {@code only-if-cached} request that could not be served.
+     */
+    public long getCacheModuleResponses() {
+        return cacheModuleResponses;
+    }
+
+    /**
+     * @return the number of entries currently cached.
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the estimated size of the cached entries in bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", revalidations=" + revalidations
+                + ", entries=" + entries + ", bytes=" + bytes + "}";
+    }
+}
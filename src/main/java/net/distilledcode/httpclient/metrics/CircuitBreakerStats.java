@@ -0,0 +1,80 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the circuit breaker of a route.
+ */
+public final class CircuitBreakerStats {
+
+    private final String state;
+
+    private final int calls;
+
+    private final double failureRate;
+
+    private final double slowCallRate;
+
+    private final long rejected;
+
+    private final long opened;
+
+    @ConstructorProperties({"state", "calls", "failureRate", "slowCallRate", "rejected", "opened"})
+    public CircuitBreakerStats(final String state, final int calls, final double failureRate, final double slowCallRate,
+                               final long rejected, final long opened) {
+        this.state = state;
+        this.calls = calls;
+        this.failureRate = failureRate;
+        this.slowCallRate = slowCallRate;
+        this.rejected = rejected;
+        this.opened = opened;
+    }
+
+    /**
+     * @return {@code "CLOSED"}, {@code "OPEN"} or {@code "HALF_OPEN"}.
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of calls in the sliding window of the current state.
+     */
+    public int getCalls() {
+        return calls;
+    }
+
+    /**
+     * @return the percentage of failed calls in the sliding window.
+     */
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    /**
+     * @return the percentage of slow calls in the sliding window.
+     */
+    public double getSlowCallRate() {
+        return slowCallRate;
+    }
+
+    /**
+     * @return the number of requests rejected since the breaker was created.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the number of times the breaker opened since it was created.
+     */
+    public long getOpened() {
+        return opened;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreakerStats{state=" + state + ", calls=" + calls + ", failureRate=" + failureRate
+                + ", slowCallRate=" + slowCallRate + ", rejected=" + rejected + ", opened=" + opened + "}";
+    }
+}
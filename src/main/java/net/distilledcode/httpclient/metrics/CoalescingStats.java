@@ -0,0 +1,39 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the request coalescing statistics of a configuration.
+ */
+public final class CoalescingStats {
+
+    private final long originating;
+
+    private final long coalesced;
+
+    @ConstructorProperties({"originating", "coalesced"})
+    public CoalescingStats(final long originating, final long coalesced) {
+        this.originating = originating;
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * @return the number of coalescable requests that were sent to the origin.
+     */
+    public long getOriginating() {
+        return originating;
+    }
+
+    /**
+     * @return the number of requests that were served with the response of
+     * an identical concurrent request, instead of being sent to the origin.
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingStats{originating=" + originating + ", coalesced=" + coalesced + "}";
+    }
+}
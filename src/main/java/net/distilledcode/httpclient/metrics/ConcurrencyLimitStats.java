@@ -0,0 +1,48 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the adaptive concurrency limit of a route.
+ */
+public final class ConcurrencyLimitStats {
+
+    private final int limit;
+
+    private final int inFlight;
+
+    private final long rejected;
+
+    @ConstructorProperties({"limit", "inFlight", "rejected"})
+    public ConcurrencyLimitStats(final int limit, final int inFlight, final long rejected) {
+        this.limit = limit;
+        this.inFlight = inFlight;
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return the current limit of concurrent requests to the route.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of requests to the route currently in flight.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests rejected since the limiter was created.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimitStats{limit=" + limit + ", inFlight=" + inFlight + ", rejected=" + rejected + "}";
+    }
+}
@@ -0,0 +1,49 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the request hedging statistics of a configuration.
+ */
+public final class HedgingStats {
+
+    private final long hedgeable;
+
+    private final long hedged;
+
+    private final long won;
+
+    @ConstructorProperties({"hedgeable", "hedged", "won"})
+    public HedgingStats(final long hedgeable, final long hedged, final long won) {
+        this.hedgeable = hedgeable;
+        this.hedged = hedged;
+        this.won = won;
+    }
+
+    /**
+     * @return the number of idempotent requests that could be hedged.
+     */
+    public long getHedgeable() {
+        return hedgeable;
+    }
+
+    /**
+     * @return the number of hedged requests sent because the response was
+     * not received within the hedge delay.
+     */
+    public long getHedged() {
+        return hedged;
+    }
+
+    /**
+     * @return the number of hedged requests whose response arrived first.
+     */
+    public long getWon() {
+        return won;
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingStats{hedgeable=" + hedgeable + ", hedged=" + hedged + ", won=" + won + "}";
+    }
+}
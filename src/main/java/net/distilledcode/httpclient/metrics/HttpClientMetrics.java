@@ -0,0 +1,96 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.util.Map;
+
+/**
+ * Request metrics of an HTTP client configuration, registered as a service
+ * with the configuration's {@code httpclient.config.name} as service property.
+ * <br>
+ * The metrics cover requests sent via the configuration's {@code HttpClient}
+ * service. Every call returns a new snapshot, which is cheap compared to the
+ * rate at which requests are recorded, but not free.
+ */
+public interface HttpClientMetrics {
+
+    /**
+     * @return the {@code httpclient.config.name} of the configuration, or
+     * {@code "default"} for the default configuration.
+     */
+    String getConfigName();
+
+    /**
+     * @return the statistics of all requests.
+     */
+    RequestStats getTotal();
+
+    /**
+     * @return the statistics per target host, keyed by {@code scheme://host:port}.
+     * Once the number of distinct hosts exceeds a fixed limit, further hosts
+     * are counted under the key {@code "other"}.
+     */
+    Map<String, RequestStats> getByHost();
+
+    /**
+     * @return the statistics per response status class, keyed by {@code "1xx"}
+     * to {@code "5xx"}, and {@code "error"} for requests that failed without
+     * a response. Classes without requests are omitted.
+     */
+    Map<String, RequestStats> getByStatusClass();
+
+    /**
+     * @return the phase timings per route, keyed by the route's target
+     * {@code scheme://host:port}, or an empty map unless
+     * {@code metrics.phases.enabled} is set. Only sampled requests and
+     * connections are included, see {@code metrics.phases.sampling.rate}.
+     */
+    Map<String, PhaseStats> getPhasesByRoute();
+
+    /**
+     * @return the statistics of the configuration's response cache, which
+     * are all zero unless {@code cache.enabled} is set.
+     */
+    CacheStats getCache();
+
+    /**
+     * @return the statistics of request coalescing, which are all zero
+     * unless {@code coalesce.enabled} is set.
+     */
+    CoalescingStats getCoalescing();
+
+    /**
+     * @return the statistics of request hedging, which are all zero
+     * unless {@code hedge.enabled} is set.
+     */
+    HedgingStats getHedging();
+
+    /**
+     * @return the circuit breakers per route, keyed by the route's target
+     * {@code scheme://host:port}, or an empty map unless
+     * {@code circuit.breaker.enabled} is set. The breakers are reset when
+     * the configuration changes.
+     */
+    Map<String, CircuitBreakerStats> getCircuitBreakersByRoute();
+
+    /**
+     * @return the adaptive concurrency limits per route, keyed by the route's
+     * target {@code scheme://host:port}, or an empty map unless
+     * {@code adaptive.limit.enabled} is set. The limits are reset when the
+     * configuration changes.
+     */
+    Map<String, ConcurrencyLimitStats> getConcurrencyLimitsByRoute();
+
+    /**
+     * @return the backend endpoints of the client-side load balancer, keyed
+     * by the endpoint as configured in {@code lb.endpoints}, or an empty map
+     * unless {@code lb.enabled} is set. The endpoints are reset when the
+     * configuration changes.
+     */
+    Map<String, LoadBalancerEndpointStats> getLoadBalancerEndpoints();
+
+    /**
+     * @return the statistics of rate limiting, which are all zero unless
+     * {@code rate.limit.enabled} is set. The statistics are reset when the
+     * configuration changes.
+     */
+    RateLimitStats getRateLimiting();
+}
@@ -0,0 +1,75 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable snapshot of a latency distribution.
+ */
+public final class LatencyStats {
+
+    private final long count;
+
+    private final double meanMillis;
+
+    private final double p50Millis;
+
+    private final double p95Millis;
+
+    private final double p99Millis;
+
+    private final double maxMillis;
+
+    private final Map<Long, Long> histogram;
+
+    @ConstructorProperties({"count", "meanMillis", "p50Millis", "p95Millis", "p99Millis", "maxMillis", "histogram"})
+    public LatencyStats(final long count, final double meanMillis, final double p50Millis, final double p95Millis,
+                        final double p99Millis, final double maxMillis, final Map<Long, Long> histogram) {
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+        this.histogram = Collections.unmodifiableMap(new TreeMap<>(histogram));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP95Millis() {
+        return p95Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @return the number of samples per bucket, keyed by the bucket's
+     * exclusive upper bound in microseconds. Empty buckets are omitted.
+     */
+    public Map<Long, Long> getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyStats{count=" + count + ", p50Millis=" + p50Millis + ", p99Millis=" + p99Millis + "}";
+    }
+}
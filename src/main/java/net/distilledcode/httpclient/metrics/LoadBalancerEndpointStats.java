@@ -0,0 +1,59 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of a backend endpoint of the client-side load balancer.
+ */
+public final class LoadBalancerEndpointStats {
+
+    private final boolean ejected;
+
+    private final long selected;
+
+    private final long failures;
+
+    private final long ejections;
+
+    @ConstructorProperties({"ejected", "selected", "failures", "ejections"})
+    public LoadBalancerEndpointStats(final boolean ejected, final long selected, final long failures, final long ejections) {
+        this.ejected = ejected;
+        this.selected = selected;
+        this.failures = failures;
+        this.ejections = ejections;
+    }
+
+    /**
+     * @return whether the endpoint is currently ejected, i.e. not selected for requests.
+     */
+    public boolean isEjected() {
+        return ejected;
+    }
+
+    /**
+     * @return the number of requests routed to the endpoint.
+     */
+    public long getSelected() {
+        return selected;
+    }
+
+    /**
+     * @return the number of failed attempts, i.e. exceptions and failure status codes.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the number of times the endpoint was ejected.
+     */
+    public long getEjections() {
+        return ejections;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadBalancerEndpointStats{ejected=" + ejected + ", selected=" + selected + ", failures=" + failures
+                + ", ejections=" + ejections + "}";
+    }
+}
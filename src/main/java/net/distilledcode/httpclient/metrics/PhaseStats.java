@@ -0,0 +1,56 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the time spent in the phases of requests to a
+ * route. The connection phases are only measured when a new connection is
+ * established, time to first byte for every request.
+ */
+public final class PhaseStats {
+
+    private final LatencyStats dns;
+
+    private final LatencyStats connect;
+
+    private final LatencyStats tls;
+
+    private final LatencyStats timeToFirstByte;
+
+    @ConstructorProperties({"dns", "connect", "tls", "timeToFirstByte"})
+    public PhaseStats(final LatencyStats dns, final LatencyStats connect, final LatencyStats tls,
+                      final LatencyStats timeToFirstByte) {
+        this.dns = dns;
+        this.connect = connect;
+        this.tls = tls;
+        this.timeToFirstByte = timeToFirstByte;
+    }
+
+    /**
+     * @return the time spent resolving the host name.
+     */
+    public LatencyStats getDns() {
+        return dns;
+    }
+
+    /**
+     * @return the time spent establishing the TCP connection.
+     */
+    public LatencyStats getConnect() {
+        return connect;
+    }
+
+    /**
+     * @return the time spent in the TLS handshake.
+     */
+    public LatencyStats getTls() {
+        return tls;
+    }
+
+    /**
+     * @return the time from sending the request until the response head has been received.
+     */
+    public LatencyStats getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+}
@@ -0,0 +1,59 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the rate limiting statistics of a configuration.
+ */
+public final class RateLimitStats {
+
+    private final long permitted;
+
+    private final long delayed;
+
+    private final long rejected;
+
+    private final long throttled;
+
+    @ConstructorProperties({"permitted", "delayed", "rejected", "throttled"})
+    public RateLimitStats(final long permitted, final long delayed, final long rejected, final long throttled) {
+        this.permitted = permitted;
+        this.delayed = delayed;
+        this.rejected = rejected;
+        this.throttled = throttled;
+    }
+
+    /**
+     * @return the number of requests that obtained a token, including delayed requests.
+     */
+    public long getPermitted() {
+        return permitted;
+    }
+
+    /**
+     * @return the number of requests that waited for a token.
+     */
+    public long getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * @return the number of requests rejected for lack of a token.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the number of responses whose rate limit headers emptied a bucket.
+     */
+    public long getThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimitStats{permitted=" + permitted + ", delayed=" + delayed + ", rejected=" + rejected
+                + ", throttled=" + throttled + "}";
+    }
+}
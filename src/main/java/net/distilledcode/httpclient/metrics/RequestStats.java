@@ -0,0 +1,97 @@
+package net.distilledcode.httpclient.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable snapshot of the statistics of a set of requests.
+ * <br>
+ * Latencies are measured from sending the request until the response head
+ * has been received, i.e. they do not include reading the response body.
+ * Bytes sent count request bodies with a known content length, bytes
+ * received count response body bytes as they are read.
+ */
+public final class RequestStats {
+
+    private final long requests;
+
+    private final long bytesSent;
+
+    private final long bytesReceived;
+
+    private final double latencyMeanMillis;
+
+    private final double latencyP50Millis;
+
+    private final double latencyP95Millis;
+
+    private final double latencyP99Millis;
+
+    private final double latencyMaxMillis;
+
+    private final Map<Long, Long> latencyHistogram;
+
+    @ConstructorProperties({"requests", "bytesSent", "bytesReceived", "latencyMeanMillis", "latencyP50Millis",
+            "latencyP95Millis", "latencyP99Millis", "latencyMaxMillis", "latencyHistogram"})
+    public RequestStats(final long requests, final long bytesSent, final long bytesReceived,
+                        final double latencyMeanMillis, final double latencyP50Millis, final double latencyP95Millis,
+                        final double latencyP99Millis, final double latencyMaxMillis, final Map<Long, Long> latencyHistogram) {
+        this.requests = requests;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.latencyMeanMillis = latencyMeanMillis;
+        this.latencyP50Millis = latencyP50Millis;
+        this.latencyP95Millis = latencyP95Millis;
+        this.latencyP99Millis = latencyP99Millis;
+        this.latencyMaxMillis = latencyMaxMillis;
+        this.latencyHistogram = Collections.unmodifiableMap(new TreeMap<>(latencyHistogram));
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public double getLatencyMeanMillis() {
+        return latencyMeanMillis;
+    }
+
+    public double getLatencyP50Millis() {
+        return latencyP50Millis;
+    }
+
+    public double getLatencyP95Millis() {
+        return latencyP95Millis;
+    }
+
+    public double getLatencyP99Millis() {
+        return latencyP99Millis;
+    }
+
+    public double getLatencyMaxMillis() {
+        return latencyMaxMillis;
+    }
+
+    /**
+     * @return the number of requests per latency bucket, keyed by the bucket's
+     * exclusive upper bound in microseconds. Empty buckets are omitted.
+     */
+    public Map<Long, Long> getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestStats{requests=" + requests + ", bytesSent=" + bytesSent + ", bytesReceived=" + bytesReceived
+                + ", latencyP50Millis=" + latencyP50Millis + ", latencyP99Millis=" + latencyP99Millis + "}";
+    }
+}
@@ -0,0 +1,30 @@
+package net.distilledcode.httpclient.resilience;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request while the circuit breaker of its
+ * route is open, i.e. while recent requests to the route mostly failed
+ * or were slow.
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String route;
+
+    /**
+     * @param route The route whose circuit breaker is open, as {@code scheme://host:port}.
+     */
+    public CircuitBreakerOpenException(final String route) {
+        super("Circuit breaker of " + route + " is open");
+        this.route = route;
+    }
+
+    /**
+     * @return the route whose circuit breaker is open, as {@code scheme://host:port}.
+     */
+    public String getRoute() {
+        return route;
+    }
+}
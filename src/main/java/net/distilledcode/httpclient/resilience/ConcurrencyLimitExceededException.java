@@ -0,0 +1,40 @@
+package net.distilledcode.httpclient.resilience;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request if the number of requests in flight
+ * to its route has reached the route's adaptive concurrency limit.
+ */
+public class ConcurrencyLimitExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String route;
+
+    private final int limit;
+
+    /**
+     * @param route The route whose limit is reached, as {@code scheme://host:port}.
+     * @param limit The current limit of the route.
+     */
+    public ConcurrencyLimitExceededException(final String route, final int limit) {
+        super("Concurrency limit of " + limit + " requests to " + route + " reached");
+        this.route = route;
+        this.limit = limit;
+    }
+
+    /**
+     * @return the route whose limit is reached, as {@code scheme://host:port}.
+     */
+    public String getRoute() {
+        return route;
+    }
+
+    /**
+     * @return the limit of the route at the time the request was rejected.
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,40 @@
+package net.distilledcode.httpclient.resilience;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request if the rate limit of its configuration
+ * or route leaves no token within the configured timeout.
+ */
+public class RateLimitExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String route;
+
+    private final long retryAfterMs;
+
+    /**
+     * @param route The route of the rejected request, as {@code scheme://host:port}.
+     * @param retryAfterMs The time until a token becomes available.
+     */
+    public RateLimitExceededException(final String route, final long retryAfterMs) {
+        super("Rate limit of requests to " + route + " exceeded, next token in " + retryAfterMs + "ms");
+        this.route = route;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * @return the route of the rejected request, as {@code scheme://host:port}.
+     */
+    public String getRoute() {
+        return route;
+    }
+
+    /**
+     * @return the time until a token became available when the request was rejected.
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
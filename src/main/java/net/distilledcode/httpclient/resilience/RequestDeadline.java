@@ -0,0 +1,23 @@
+package net.distilledcode.httpclient.resilience;
+
+/**
+ * Overrides the {@code request.deadline.ms} of a configuration for a single
+ * request, when set on the {@code HttpContext} the request is executed with:
+ * <pre>
+ * HttpContext context = new BasicHttpContext();
+ * context.setAttribute(RequestDeadline.DEADLINE_MS, 2000L);
+ * httpClient.execute(request, context);
+ * </pre>
+ */
+public final class RequestDeadline {
+
+    /**
+     * The context attribute holding the deadline of a request in
+     * milliseconds, as a {@code Number} or {@code String}. A deadline of 0
+     * or less disables the configured deadline for the request.
+     */
+    public static final String DEADLINE_MS = "net.distilledcode.httpclient.request.deadline.ms";
+
+    private RequestDeadline() {
+    }
+}
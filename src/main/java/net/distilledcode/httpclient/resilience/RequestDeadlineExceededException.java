@@ -0,0 +1,32 @@
+package net.distilledcode.httpclient.resilience;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown if a request was aborted because its deadline expired before the
+ * response arrived.
+ */
+public class RequestDeadlineExceededException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long deadlineMs;
+
+    /**
+     * @param requestLine The request line of the aborted request.
+     * @param deadlineMs The deadline of the request.
+     * @param cause The exception the aborted request failed with.
+     */
+    public RequestDeadlineExceededException(final String requestLine, final long deadlineMs, final Throwable cause) {
+        super("Deadline of " + deadlineMs + "ms exceeded by " + requestLine);
+        this.deadlineMs = deadlineMs;
+        initCause(cause);
+    }
+
+    /**
+     * @return the deadline of the request.
+     */
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+}
@@ -0,0 +1,74 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BoundedHttpCacheStorageTest {
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondMaxEntries() {
+        final BoundedHttpCacheStorage storage = new BoundedHttpCacheStorage(2, -1);
+        storage.putEntry("a", entry(10));
+        storage.putEntry("b", entry(10));
+        storage.getEntry("a");
+        storage.putEntry("c", entry(10));
+
+        assertThat(storage.getEntries(), is(2));
+        assertThat(storage.getEntry("a"), notNullValue());
+        assertThat(storage.getEntry("b"), nullValue());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondMaxBytes() {
+        final long entrySize = BoundedHttpCacheStorage.size(entry(1000));
+        final BoundedHttpCacheStorage storage = new BoundedHttpCacheStorage(100, 2 * entrySize);
+        storage.putEntry("a", entry(1000));
+        storage.putEntry("b", entry(1000));
+        assertThat(storage.getBytes(), is(2 * entrySize));
+
+        storage.getEntry("a");
+        storage.putEntry("c", entry(1000));
+        assertThat(storage.getEntries(), is(2));
+        assertThat(storage.getEntry("b"), nullValue());
+        assertThat(storage.getBytes(), is(2 * entrySize));
+    }
+
+    @Test
+    public void tracksBytesOnReplaceUpdateAndRemove() throws Exception {
+        final BoundedHttpCacheStorage storage = new BoundedHttpCacheStorage(100, -1);
+        storage.putEntry("a", entry(1000));
+        storage.putEntry("a", entry(10));
+        assertThat(storage.getBytes(), is(BoundedHttpCacheStorage.size(entry(10))));
+
+        storage.updateEntry("a", new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(final HttpCacheEntry existing) {
+                return entry(500);
+            }
+        });
+        assertThat(storage.getBytes(), is(BoundedHttpCacheStorage.size(entry(500))));
+
+        storage.removeEntry("a");
+        assertThat(storage.getBytes(), is(0L));
+        assertThat(storage.getEntries(), is(0));
+    }
+
+    private static HttpCacheEntry entry(final int bodySize) {
+        final Date now = new Date();
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                new Header[0], new HeapResource(new byte[bodySize]));
+    }
+}
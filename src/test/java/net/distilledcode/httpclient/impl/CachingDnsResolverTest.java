@@ -0,0 +1,209 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.DNS_HOSTS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CachingDnsResolverTest {
+
+    private final CountingResolver delegate = new CountingResolver();
+
+    private final QueuingExecutor refreshExecutor = new QueuingExecutor();
+
+    @Test
+    public void cachesWithinTtl() throws Exception {
+        final CachingDnsResolver resolver = resolver(60000, 1000, 10, null);
+        resolver.resolve("backend");
+        resolver.resolve("BACKEND");
+        assertThat(delegate.lookups.get(), is(1));
+    }
+
+    @Test
+    public void looksUpAgainAfterTtl() throws Exception {
+        final CachingDnsResolver resolver = resolver(1, 1000, 10, null);
+        resolver.resolve("backend");
+        Thread.sleep(5);
+        resolver.resolve("backend");
+        assertThat(delegate.lookups.get(), is(2));
+    }
+
+    @Test
+    public void cachesFailures() throws Exception {
+        final CachingDnsResolver resolver = resolver(60000, 60000, 10, null);
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown");
+                fail("expected UnknownHostException");
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+        assertThat(delegate.lookups.get(), is(1));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        final CachingDnsResolver resolver = resolver(60000, 1000, 2, null);
+        resolver.resolve("a");
+        resolver.resolve("b");
+        resolver.resolve("a");
+        resolver.resolve("c");
+        assertThat(resolver.size(), is(2));
+        assertThat(delegate.lookups.get(), is(3));
+
+        resolver.resolve("a");
+        assertThat(delegate.lookups.get(), is(3));
+        resolver.resolve("b");
+        assertThat(delegate.lookups.get(), is(4));
+    }
+
+    @Test
+    public void refreshesAheadInBackground() throws Exception {
+        final CachingDnsResolver resolver = resolver(200, 1000, 10, refreshExecutor);
+        resolver.resolve("backend");
+        Thread.sleep(170);
+
+        // served from the cache while a refresh is queued, but only once
+        resolver.resolve("backend");
+        resolver.resolve("backend");
+        assertThat(delegate.lookups.get(), is(1));
+        assertThat(refreshExecutor.tasks.size(), is(1));
+
+        refreshExecutor.runAll();
+        assertThat(delegate.lookups.get(), is(2));
+        resolver.resolve("backend");
+        assertThat(refreshExecutor.tasks.size(), is(0));
+    }
+
+    @Test
+    public void failedRefreshKeepsCachedAddresses() throws Exception {
+        final CachingDnsResolver resolver = resolver(200, 1000, 10, refreshExecutor);
+        resolver.resolve("backend");
+        Thread.sleep(170);
+        resolver.resolve("backend");
+
+        delegate.failing = true;
+        refreshExecutor.runAll();
+        assertThat(resolver.resolve("backend").length, is(1));
+    }
+
+    @Test
+    public void overridesAreNeverLookedUp() throws Exception {
+        final Map<String, InetAddress[]> overrides =
+                CachingDnsResolver.parseOverrides(new String[]{"Backend.test=10.0.0.1, ::1", "invalid=not-an-address"});
+        assertThat(overrides.size(), is(1));
+
+        final CachingDnsResolver resolver = new CachingDnsResolver(delegate, overrides, false, 0, 0, 0, null);
+        final InetAddress[] addresses = resolver.resolve("backend.test");
+        assertThat(addresses.length, is(2));
+        assertThat(addresses[0].getHostAddress(), is("10.0.0.1"));
+        assertThat(addresses[0].getHostName(), is("Backend.test"));
+        assertThat(delegate.lookups.get(), is(0));
+    }
+
+    @Test
+    public void notInstalledUnlessConfigured() {
+        assertThat(CachingDnsResolver.fromConfiguration(Collections.<String, Object>emptyMap(), null), nullValue());
+    }
+
+    @Test
+    public void usedByConfiguredClients() throws Exception {
+        final HttpServer server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        response.setEntity(new StringEntity("hello"));
+                    }
+                })
+                .create();
+        server.start();
+        try {
+            final Map<String, Object> configuration = new HashMap<>();
+            configuration.put(DNS_HOSTS, new String[]{"backend.test=127.0.0.1"});
+            final HttpClientBuilderFactory builderFactory = new HttpClientBuilderFactory() {
+                @Override
+                public HttpClientBuilder newBuilder() {
+                    return HttpClientBuilder.create();
+                }
+            };
+            try (CloseableHttpClient httpClient = new PreconfiguredHttpClientBuilderFactory(
+                    builderFactory, null, configuration, null, null, null, null).newBuilder().build()) {
+                final String uri = "http://backend.test:" + server.getLocalPort() + "/";
+                assertThat(EntityUtils.toString(httpClient.execute(new HttpGet(uri)).getEntity()), is("hello"));
+            }
+        } finally {
+            server.shutdown(0, TimeUnit.SECONDS);
+        }
+    }
+
+    private CachingDnsResolver resolver(final long ttlMs, final long negativeTtlMs, final int maxEntries,
+                                        final Executor refreshExecutor) {
+        return new CachingDnsResolver(delegate, Collections.<String, InetAddress[]>emptyMap(), true,
+                ttlMs, negativeTtlMs, maxEntries, refreshExecutor);
+    }
+
+    private static class CountingResolver implements DnsResolver {
+
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        private volatile boolean failing;
+
+        @Override
+        public InetAddress[] resolve(final String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (failing || host.equals("unknown")) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{127, 0, 0, 1})};
+        }
+    }
+
+    private static class QueuingExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(final Runnable task) {
+            tasks.add(task);
+        }
+
+        private void runAll() {
+            final List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            for (final Runnable task : pending) {
+                task.run();
+            }
+        }
+    }
+}
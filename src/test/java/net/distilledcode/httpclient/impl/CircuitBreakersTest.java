@@ -0,0 +1,196 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.CircuitBreakerStats;
+import net.distilledcode.httpclient.resilience.CircuitBreakerOpenException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.builderFactory;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.execute;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.prototypeFactory;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.route;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.startServer;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.unusedPort;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_HALF_OPEN_CALLS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_MINIMUM_CALLS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_OPEN_DURATION_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_WINDOW_SIZE;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakersTest {
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    private final RequestMetrics metrics = new RequestMetrics("test");
+
+    private volatile int status = 503;
+
+    private volatile long delayMs;
+
+    private HttpServer server;
+
+    private String uri;
+
+    @Before
+    public void setUp() throws IOException {
+        server = startServer(new HttpRequestHandler() {
+            @Override
+            public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                    throws UnsupportedEncodingException {
+                originRequests.incrementAndGet();
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setStatusCode(status);
+                response.setEntity(new StringEntity("hello world"));
+            }
+        });
+        uri = HttpClientTestSupport.uri(server);
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void opensAfterFailuresAndClosesAfterSuccessfulProbes() throws Exception {
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            for (int i = 0; i < 4; i++) {
+                assertThat(execute(httpClient, uri), is(503));
+            }
+            assertRejected(httpClient, uri);
+            assertThat(originRequests.get(), is(4));
+            final CircuitBreakerStats open = stats();
+            assertThat(open.getState(), is("OPEN"));
+            assertThat(open.getRejected(), is(1L));
+            assertThat(open.getOpened(), is(1L));
+
+            status = 200;
+            Thread.sleep(300);
+            assertThat(execute(httpClient, uri), is(200));
+            assertThat(stats().getState(), is("HALF_OPEN"));
+            assertThat(execute(httpClient, uri), is(200));
+            assertThat(stats().getState(), is("CLOSED"));
+            assertThat(originRequests.get(), is(6));
+        }
+    }
+
+    @Test
+    public void reopensAfterFailedProbes() throws Exception {
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            for (int i = 0; i < 4; i++) {
+                execute(httpClient, uri);
+            }
+            Thread.sleep(300);
+            assertThat(execute(httpClient, uri), is(503));
+            assertThat(execute(httpClient, uri), is(503));
+            assertRejected(httpClient, uri);
+            assertThat(stats().getOpened(), is(2L));
+        }
+    }
+
+    @Test
+    public void opensAfterSlowCalls() throws Exception {
+        status = 200;
+        delayMs = 100;
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS, 50L);
+        configuration.put(CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD, 75.0);
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            for (int i = 0; i < 4; i++) {
+                assertThat(execute(httpClient, uri), is(200));
+            }
+            assertRejected(httpClient, uri);
+            assertThat(stats().getState(), is("OPEN"));
+        }
+    }
+
+    @Test
+    public void opensAfterConnectionFailures() throws Exception {
+        final String unavailable = "http://localhost:" + unusedPort() + "/";
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            for (int i = 0; i < 4; i++) {
+                try {
+                    execute(httpClient, unavailable);
+                    fail("Expected the connection to be refused");
+                } catch (ConnectException e) {
+                    // expected
+                }
+            }
+            assertRejected(httpClient, unavailable);
+            // other routes are not affected
+            status = 200;
+            assertThat(execute(httpClient, uri), is(200));
+        }
+    }
+
+    @Test
+    public void opensAfterConnectionFailuresWithoutAutomaticRetries() throws Exception {
+        final String unavailable = "http://localhost:" + unusedPort() + "/";
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("automatic.retries.enabled", false);
+        final HttpClient httpClient = prototypeFactory(newBuilderFactory(configuration), metrics, null, null, configuration)
+                .getService(null, null);
+        for (int i = 0; i < 4; i++) {
+            try {
+                execute(httpClient, unavailable);
+                fail("Expected the connection to be refused");
+            } catch (ConnectException e) {
+                // expected
+            }
+        }
+        assertRejected(httpClient, unavailable);
+    }
+
+    private CloseableHttpClient newHttpClient(final Map<String, Object> configuration) {
+        return newBuilderFactory(configuration).newBuilder().build();
+    }
+
+    private PreconfiguredHttpClientBuilderFactory newBuilderFactory(final Map<String, Object> configuration) {
+        configuration.put(CIRCUIT_BREAKER_ENABLED, true);
+        configuration.put(CIRCUIT_BREAKER_WINDOW_SIZE, 4);
+        configuration.put(CIRCUIT_BREAKER_MINIMUM_CALLS, 4);
+        configuration.put(CIRCUIT_BREAKER_OPEN_DURATION_MS, 200L);
+        configuration.put(CIRCUIT_BREAKER_HALF_OPEN_CALLS, 2);
+        return builderFactory(configuration, metrics);
+    }
+
+    private CircuitBreakerStats stats() {
+        return metrics.getCircuitBreakersByRoute().get(route(uri));
+    }
+
+    private static void assertRejected(final HttpClient httpClient, final String uri) throws IOException {
+        try {
+            execute(httpClient, uri);
+            fail("Expected the circuit breaker to be open");
+        } catch (IOException e) {
+            assertThat(e, instanceOf(CircuitBreakerOpenException.class));
+        }
+    }
+}
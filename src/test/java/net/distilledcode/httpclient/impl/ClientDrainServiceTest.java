@@ -0,0 +1,114 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ClientDrainServiceTest {
+
+    private HttpServer server;
+
+    private HttpGet request;
+
+    private TestConnectionManager connectionManager;
+
+    private TrackingHttpClient httpClient;
+
+    private ClientDrainService clientDrainService;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws HttpException, IOException {
+                        response.setEntity(new StringEntity("hello"));
+                    }
+                })
+                .create();
+        server.start();
+        request = new HttpGet("http://localhost:" + server.getLocalPort() + "/");
+        connectionManager = new TestConnectionManager();
+        httpClient = new TrackingHttpClient(HttpClientBuilder.create().setConnectionManager(connectionManager).build());
+        clientDrainService = new ClientDrainService();
+        clientDrainService.activate();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        clientDrainService.deactivate();
+        httpClient.close();
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void closedOnceInFlightExchangeCompletes() throws Exception {
+        final CloseableHttpResponse response = httpClient.execute(request);
+        clientDrainService.drain(httpClient, TimeUnit.MINUTES.toMillis(1));
+        assertThat(clientDrainService.getPendingDrains(), is(1));
+        assertThat(connectionManager.shutdown.getCount(), is(1L));
+
+        response.close();
+        assertThat(connectionManager.shutdown.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(httpClient.isClosed(), is(true));
+    }
+
+    @Test
+    public void closedWhenDrainTimeoutExpires() throws Exception {
+        httpClient.execute(request);
+        clientDrainService.drain(httpClient, 50);
+
+        assertThat(connectionManager.shutdown.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(httpClient.getInFlight(), is(1));
+    }
+
+    @Test
+    public void closedWithoutWaitingIfTimeoutIsZero() throws Exception {
+        httpClient.execute(request);
+        clientDrainService.drain(httpClient, 0);
+
+        assertThat(connectionManager.shutdown.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void closedSynchronouslyWhenInactive() throws Exception {
+        clientDrainService.deactivate();
+        httpClient.execute(request);
+        clientDrainService.drain(httpClient, TimeUnit.MINUTES.toMillis(1));
+
+        assertThat(connectionManager.shutdown.getCount(), is(0L));
+    }
+
+    private static class TestConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private final CountDownLatch shutdown = new CountDownLatch(1);
+
+        @Override
+        public void shutdown() {
+            shutdown.countDown();
+            super.shutdown();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.ConcurrencyLimitStats;
+import net.distilledcode.httpclient.resilience.ConcurrencyLimitExceededException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.fetchAsync;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.prototypeFactory;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.route;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.startServer;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_INITIAL;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_MAX;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.ADAPTIVE_LIMIT_MIN;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    private final Semaphore originArrived = new Semaphore(0);
+
+    private final CountDownLatch originReleased = new CountDownLatch(1);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final RequestMetrics metrics = new RequestMetrics("test");
+
+    private HttpServer server;
+
+    private String uri;
+
+    @Before
+    public void setUp() throws IOException {
+        server = startServer(new HttpRequestHandler() {
+            @Override
+            public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                    throws UnsupportedEncodingException {
+                originRequests.incrementAndGet();
+                originArrived.release();
+                try {
+                    originReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setEntity(new StringEntity("hello world"));
+            }
+        });
+        uri = HttpClientTestSupport.uri(server);
+    }
+
+    @After
+    public void tearDown() {
+        originReleased.countDown();
+        executor.shutdownNow();
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void rejectsRequestsBeyondTheLimit() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(ADAPTIVE_LIMIT_ENABLED, true);
+        configuration.put(ADAPTIVE_LIMIT_INITIAL, 2);
+        configuration.put(ADAPTIVE_LIMIT_MIN, 2);
+        configuration.put(ADAPTIVE_LIMIT_MAX, 2);
+        final HttpClient httpClient = prototypeFactory(metrics, configuration).getService(null, null);
+
+        final List<Future<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            responses.add(fetchAsync(executor, httpClient, new HttpGet(uri), null));
+        }
+        assertTrue(originArrived.tryAcquire(2, 5, TimeUnit.SECONDS));
+        try {
+            httpClient.execute(new HttpGet(uri));
+            fail("Expected the request to be rejected");
+        } catch (ConcurrencyLimitExceededException e) {
+            assertThat(e.getLimit(), is(2));
+        }
+        final ConcurrencyLimitStats limited = stats();
+        assertThat(limited.getInFlight(), is(2));
+        assertThat(limited.getRejected(), is(1L));
+
+        originReleased.countDown();
+        for (final Future<String> response : responses) {
+            assertThat(response.get(5, TimeUnit.SECONDS), is("hello world"));
+        }
+        assertThat(stats().getInFlight(), is(0));
+        assertThat(originRequests.get(), is(2));
+    }
+
+    @Test
+    public void aimdBacksOffOnDropsAndGrowsWhileUsed() {
+        final ConcurrencyLimiter.Algorithm aimd = new ConcurrencyLimiter.Aimd(1, 20, 0.5);
+        final ConcurrencyLimiter.State initial = aimd.newState(10);
+
+        assertThat(aimd.update(initial, 10 * MILLIS, 10, true).getLimit(), is(5.0));
+        assertThat(aimd.update(initial, 10 * MILLIS, 10, false).getLimit(), is(11.0));
+        assertThat("not growing while less than half is used",
+                aimd.update(initial, 10 * MILLIS, 4, false).getLimit(), is(10.0));
+    }
+
+    @Test
+    public void gradientFollowsRoundTripTimes() {
+        final ConcurrencyLimiter.Algorithm gradient = new ConcurrencyLimiter.Gradient(1, 100, 1.5, 0.2);
+        ConcurrencyLimiter.State state = gradient.newState(20);
+        for (int i = 0; i < 50; i++) {
+            state = gradient.update(state, 10 * MILLIS, (int) state.getLimit(), false);
+        }
+        final double grown = state.getLimit();
+        assertTrue("grows while round trip times are stable", grown > 20);
+
+        for (int i = 0; i < 10; i++) {
+            state = gradient.update(state, 100 * MILLIS, (int) state.getLimit(), false);
+        }
+        assertTrue("shrinks once round trip times grow", state.getLimit() < grown / 2);
+    }
+
+    private ConcurrencyLimitStats stats() {
+        return metrics.getConcurrencyLimitsByRoute().get(route(uri));
+    }
+}
@@ -0,0 +1,109 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType;
+import net.distilledcode.httpclient.impl.metatype.MetaTypeBeanUtil;
+import net.distilledcode.httpclient.impl.metatype.reflection.SetterAdapter;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConfigurationPlanTest {
+
+    @Test
+    public void compile() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("request.config.socket.timeout", 2000);
+        configuration.put("request.config.connect.timeout", 1000);
+        configuration.put("user.agent", "test-agent");
+        configuration.put("redirect.handling.enabled", false);
+        configuration.put("cookie.management.enabled", true); // enabled by default, nothing to do
+        configuration.put("max.conn.total", "not a number");
+        configuration.put("httpclient.config.name", "test");
+
+        final ConfigurationPlan plan = ConfigurationPlan.compile(configuration);
+        final RequestConfig requestConfig = plan.getRequestConfig();
+        assertThat(requestConfig.getSocketTimeout(), is(2000));
+        assertThat(requestConfig.getConnectTimeout(), is(1000));
+        assertThat(requestConfig.getConnectionRequestTimeout(), is(RequestConfig.DEFAULT.getConnectionRequestTimeout()));
+        assertThat(plan.size(), is(2));
+
+        // the plan can be applied repeatedly
+        plan.apply(HttpClientBuilder.create());
+        plan.apply(HttpClientBuilder.create());
+    }
+
+    @Test
+    public void applyHasTheEffectOfTheReflectiveConfiguration() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("request.config.socket.timeout", 2000);
+        configuration.put("request.config.connect.timeout", 1000);
+        configuration.put("user.agent", "test-agent");
+        configuration.put("redirect.handling.enabled", false);
+
+        final HttpServer server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context) {
+                        response.setStatusCode(302);
+                        response.setHeader("Location", "/elsewhere");
+                        response.setHeader("X-User-Agent", request.getFirstHeader("User-Agent").getValue());
+                    }
+                })
+                .create();
+        server.start();
+        try {
+            final String uri = "http://localhost:" + server.getLocalPort() + "/";
+
+            final HttpClientBuilder planned = HttpClientBuilder.create();
+            ConfigurationPlan.compile(configuration).apply(planned);
+            assertConfigured(planned, uri);
+
+            final HttpClientBuilder reflective = HttpClientBuilder.create();
+            final RequestConfig.Builder requestConfig = RequestConfig.copy(RequestConfig.DEFAULT);
+            MetaTypeBeanUtil.applyConfiguration(HttpClientConfigurationMetaType.REQUEST_CONFIG_NAMESPACE, configuration,
+                    new SetterAdapter(requestConfig, HttpClientConfigurationMetaType.SETTERS_REQUEST_CONFIG_BUILDER));
+            MetaTypeBeanUtil.applyConfiguration("", configuration,
+                    new SetterAdapter(reflective, HttpClientConfigurationMetaType.SETTERS_HTTP_CLIENT_BUILDER));
+            reflective.setDefaultRequestConfig(requestConfig.build());
+            assertConfigured(reflective, uri);
+        } finally {
+            server.shutdown(0, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void assertConfigured(final HttpClientBuilder builder, final String uri) throws IOException {
+        final HttpClientContext context = HttpClientContext.create();
+        try (CloseableHttpClient httpClient = builder.build();
+             CloseableHttpResponse response = httpClient.execute(new HttpGet(uri), context)) {
+            EntityUtils.consume(response.getEntity());
+            // redirects are not followed, i.e. disableRedirectHandling() was called
+            assertThat(response.getStatusLine().getStatusCode(), is(302));
+            assertThat(response.getFirstHeader("X-User-Agent").getValue(), is("test-agent"));
+        }
+        final RequestConfig requestConfig = context.getRequestConfig();
+        assertThat(requestConfig.getSocketTimeout(), is(2000));
+        assertThat(requestConfig.getConnectTimeout(), is(1000));
+        assertThat(requestConfig.isRedirectsEnabled(), is(RequestConfig.DEFAULT.isRedirectsEnabled()));
+    }
+}
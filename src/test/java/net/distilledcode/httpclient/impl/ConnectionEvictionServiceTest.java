@@ -0,0 +1,122 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConnectionEvictionServiceTest {
+
+    private ConnectionEvictionService evictionService;
+
+    @Before
+    public void setUp() {
+        evictionService = new ConnectionEvictionService();
+        evictionService.activate();
+    }
+
+    @After
+    public void tearDown() {
+        evictionService.deactivate();
+    }
+
+    @Test
+    public void sweepsTrackedConnectionManagers() throws Exception {
+        final SweepCountingConnectionManager connectionManager = new SweepCountingConnectionManager(2);
+        final Closeable registration = evictionService.track(connectionManager, 10);
+        try {
+            assertThat(connectionManager.expiredSweeps.await(5, TimeUnit.SECONDS), is(true));
+            assertThat(connectionManager.idleSweeps.await(5, TimeUnit.SECONDS), is(true));
+            assertThat(evictionService.getTrackedConnectionManagers(), is(1));
+        } finally {
+            registration.close();
+            connectionManager.shutdown();
+        }
+        assertThat(evictionService.getTrackedConnectionManagers(), is(0));
+    }
+
+    @Test
+    public void connectionManagerIsUntrackedOnShutdown() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("evict.idle.connections.ms", 30000L);
+        final PoolingConnectionManagerFactory factory = new PoolingConnectionManagerFactory(configuration, evictionService, null, null, null);
+        assertThat(factory.isEnabled(), is(true));
+
+        final PoolingHttpClientConnectionManager first = factory.newConnectionManager();
+        final PoolingHttpClientConnectionManager second = factory.newConnectionManager();
+        assertThat(evictionService.getTrackedConnectionManagers(), is(2));
+
+        first.shutdown();
+        assertThat(evictionService.getTrackedConnectionManagers(), is(1));
+
+        second.close();
+        second.shutdown(); // repeated shutdown must not untrack twice
+        assertThat(evictionService.getTrackedConnectionManagers(), is(0));
+    }
+
+    @Test
+    public void evictionAloneIsSweptByTheService() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("evict.expired.connections", "true");
+        configuration.put("evict.idle.connections.ms", 30000L);
+        final PreconfiguredHttpClientBuilderFactory builderFactory = new PreconfiguredHttpClientBuilderFactory(
+                new HttpClientBuilderFactory() {
+                    @Override
+                    public HttpClientBuilder newBuilder() {
+                        return HttpClientBuilder.create();
+                    }
+                }, null, configuration, evictionService, null, null, null);
+        assertThat(builderFactory.hasConnectionManager(), is(true));
+
+        try (CloseableHttpClient httpClient = builderFactory.newBuilder().build()) {
+            assertThat(evictionService.getTrackedConnectionManagers(), is(1));
+            assertThat("no evictor thread per client", isEvictorRunning(), is(false));
+        }
+        assertThat(evictionService.getTrackedConnectionManagers(), is(0));
+    }
+
+    private static boolean isEvictorRunning() {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("Connection evictor".equals(thread.getName()) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class SweepCountingConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private final CountDownLatch expiredSweeps;
+
+        private final CountDownLatch idleSweeps;
+
+        private SweepCountingConnectionManager(final int sweeps) {
+            expiredSweeps = new CountDownLatch(sweeps);
+            idleSweeps = new CountDownLatch(sweeps);
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+            expiredSweeps.countDown();
+            super.closeExpiredConnections();
+        }
+
+        @Override
+        public void closeIdleConnections(final long idleTimeout, final TimeUnit timeUnit) {
+            idleSweeps.countDown();
+            super.closeIdleConnections(idleTimeout, timeUnit);
+        }
+    }
+}
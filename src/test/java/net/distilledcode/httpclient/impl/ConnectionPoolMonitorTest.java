@@ -0,0 +1,188 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolMonitorTest {
+
+    private HttpServer server;
+
+    private HttpGet request;
+
+    private ConnectionPoolMonitor monitor;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private CloseableHttpClient httpClient;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws HttpException, IOException {
+                        response.setEntity(new StringEntity("hello"));
+                    }
+                })
+                .create();
+        server.start();
+        request = new HttpGet("http://localhost:" + server.getLocalPort() + "/");
+        request.setConfig(RequestConfig.custom().setConnectionRequestTimeout(50).build());
+
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("connection.manager.max.total", 1);
+        configuration.put("connection.manager.default.max.per.route", 1);
+        monitor = new ConnectionPoolMonitor("test");
+        connectionManager = new PoolingConnectionManagerFactory(configuration, null, monitor, null, null).newConnectionManager();
+        httpClient = HttpClientBuilder.create().setConnectionManager(connectionManager).build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        httpClient.close();
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void poolStatsAndLeases() throws Exception {
+        assertThat(monitor.getConnectionManagers(), is(1));
+        assertThat(monitor.getMax(), is(1));
+
+        final CloseableHttpResponse response = httpClient.execute(request);
+        assertThat(monitor.getLeased(), is(1));
+        assertThat(monitor.getAvailable(), is(0));
+        final ConnectionPoolMXBean.RouteStats routeStats = monitor.getRoutes().values().iterator().next();
+        assertThat(routeStats.getLeased(), is(1));
+        assertThat(routeStats.getMax(), is(1));
+
+        EntityUtils.consume(response.getEntity());
+        assertThat(monitor.getLeased(), is(0));
+        assertThat(monitor.getAvailable(), is(1));
+        assertThat(monitor.getLeaseRequests(), is(1L));
+        assertThat(monitor.getLeaseTimeouts(), is(0L));
+    }
+
+    @Test
+    public void leaseTimeouts() throws Exception {
+        final CloseableHttpResponse response = httpClient.execute(request);
+        try {
+            httpClient.execute(request);
+            fail("expected ConnectionPoolTimeoutException");
+        } catch (ConnectionPoolTimeoutException e) {
+            // expected, the only connection is leased
+        }
+        response.close();
+
+        assertThat(monitor.getLeaseRequests(), is(2L));
+        assertThat(monitor.getLeaseTimeouts(), is(1L));
+        // the pool computes its deadline with millisecond precision, allow for it to expire early
+        assertThat("the timed out lease waited for the timeout", monitor.getLeaseWaitTimeMaxMillis() >= 40, is(true));
+    }
+
+    @Test
+    public void untrackedOnShutdown() throws Exception {
+        connectionManager.shutdown();
+        assertThat(monitor.getConnectionManagers(), is(0));
+    }
+
+    @Test
+    public void registeredAsMXBean() throws Exception {
+        EntityUtils.consume(httpClient.execute(request).getEntity());
+
+        final JmxRegistration registration = JmxRegistration.register(monitor, "ConnectionPool", "test");
+        try {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            assertThat(registration.getObjectName().toString(), is("net.distilledcode.httpclient:type=ConnectionPool,name=\"test\""));
+            assertThat((Integer) mBeanServer.getAttribute(registration.getObjectName(), "Available"), is(1));
+            assertThat((Long) mBeanServer.getAttribute(registration.getObjectName(), "LeaseRequests"), is(1L));
+
+            final TabularData routes = (TabularData) mBeanServer.getAttribute(registration.getObjectName(), "Routes");
+            final CompositeData route = (CompositeData) routes.values().iterator().next();
+            assertThat((Integer) ((CompositeData) route.get("value")).get("available"), is(1));
+
+            final TabularData histogram = (TabularData) mBeanServer.getAttribute(registration.getObjectName(), "LeaseWaitTimeHistogram");
+            assertThat(histogram.size(), is(1));
+        } finally {
+            registration.close();
+        }
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(registration.getObjectName()), is(false));
+    }
+
+    @Test
+    public void registeredOnlyWhileConnectionPoolsAreMonitored() throws Exception {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName monitored = JmxRegistration.objectName("ConnectionPool", "monitored");
+        final ObjectName renamed = JmxRegistration.objectName("ConnectionPool", "renamed");
+        final ConfigurationMonitoring monitoring = new ConfigurationMonitoring("monitored");
+        try {
+            monitoring.setConnectionPoolMonitored(false);
+            assertThat(mBeanServer.isRegistered(monitored), is(false));
+
+            monitoring.setConnectionPoolMonitored(true);
+            assertThat(mBeanServer.isRegistered(monitored), is(true));
+
+            monitoring.rename("renamed");
+            assertThat(mBeanServer.isRegistered(monitored), is(false));
+            assertThat(mBeanServer.isRegistered(renamed), is(true));
+
+            monitoring.setConnectionPoolMonitored(false);
+            assertThat(mBeanServer.isRegistered(renamed), is(false));
+        } finally {
+            monitoring.unregister();
+        }
+    }
+
+    @Test
+    public void monitoredIfBuildersUseOwnConnectionManager() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("max.conn.total", 10);
+        final HttpClientBuilderFactory builderFactory = new HttpClientBuilderFactory() {
+            @Override
+            public HttpClientBuilder newBuilder() {
+                return HttpClientBuilder.create();
+            }
+        };
+        final PreconfiguredHttpClientBuilderFactory factory = new PreconfiguredHttpClientBuilderFactory(
+                builderFactory, null, configuration, null, monitor, null, null);
+        assertThat(factory.hasConnectionManager(), is(false));
+
+        configuration.put("connection.manager.max.total", 10);
+        factory.update(configuration);
+        assertThat(factory.hasConnectionManager(), is(true));
+    }
+}
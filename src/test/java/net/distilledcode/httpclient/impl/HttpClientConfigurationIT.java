@@ -19,6 +19,9 @@ import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.component.runtime.ServiceComponentRuntime;
+import org.osgi.service.component.runtime.dto.ComponentDescriptionDTO;
+import org.osgi.service.component.runtime.dto.ReferenceDTO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +30,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Map;
+import java.util.TreeMap;
 
 import static net.distilledcode.httpclient.impl.HttpClientConfiguration.HTTP_CLIENT_CONFIG_NAME;
 import static net.distilledcode.testing.osgi.PaxUtils.debug;
@@ -39,6 +43,7 @@ import static net.distilledcode.testing.osgi.ServiceUtils.EVENT_TYPE_ANY;
 import static net.distilledcode.testing.osgi.ServiceUtils.awaitServiceEvent;
 import static net.distilledcode.testing.osgi.ServiceUtils.properties;
 import static net.distilledcode.testing.osgi.ServiceUtils.withEachService;
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
@@ -68,6 +73,9 @@ public class HttpClientConfigurationIT {
     @Inject
     private ConfigurationAdmin configurationAdmin;
 
+    @Inject
+    private ServiceComponentRuntime serviceComponentRuntime;
+
     @org.ops4j.pax.exam.Configuration
     public Option[] config() throws IOException, URISyntaxException {
         final File projectJarFile = findProjectBundle("httpclient-configuration-support-*.jar");
@@ -126,7 +134,8 @@ public class HttpClientConfigurationIT {
         final Configuration configuration = configFor(DefaultHttpClientConfiguration.DEFAULT_HTTP_CLIENT_CONFIG_PID);
         assertThat(configuration.getProperties(), nullValue());
 
-        awaitServiceEvent(bundleContext, objectClassFilter(type), ServiceEvent.REGISTERED, new Action() {
+        // configuration changes are applied without re-registering the services
+        awaitServiceEvent(bundleContext, objectClassFilter(type), ServiceEvent.MODIFIED, new Action() {
             @Override
             public void perform() throws IOException {
                 LOG.trace("Updating config {}", configuration);
@@ -144,11 +153,11 @@ public class HttpClientConfigurationIT {
             }
         });
 
-        awaitServiceEvent(bundleContext, objectClassFilter(HttpClient.class), ServiceEvent.REGISTERED, new Action() {
+        awaitServiceEvent(bundleContext, objectClassFilter(HttpClient.class), ServiceEvent.MODIFIED, new Action() {
             @Override
             public void perform() throws IOException {
                 try {
-                    awaitServiceEvent(bundleContext, objectClassFilter(HttpClientBuilderFactory.class), ServiceEvent.REGISTERED, new Action() {
+                    awaitServiceEvent(bundleContext, objectClassFilter(HttpClientBuilderFactory.class), ServiceEvent.MODIFIED, new Action() {
                         @Override
                         public void perform() throws IOException {
                             configuration.delete();
@@ -168,6 +177,27 @@ public class HttpClientConfigurationIT {
         });
     }
 
+    @Test
+    public void defaultConfigurationBindsReferencesOfConfiguration() throws Exception {
+        // SCR XML is only generated for references whose bind methods are overridden in the subclass
+        final Map<String, String> references = referencesOf("net.distilledcode.httpclient.impl.HttpClientConfiguration");
+        references.remove("defaultHttpClientConfig");
+        assertThat(referencesOf("net.distilledcode.httpclient.impl.DefaultHttpClientConfiguration"), is(references));
+    }
+
+    private Map<String, String> referencesOf(final String componentName) {
+        for (final ComponentDescriptionDTO description : serviceComponentRuntime.getComponentDescriptionDTOs()) {
+            if (description.name.equals(componentName)) {
+                final Map<String, String> interfacesByName = new TreeMap<>();
+                for (final ReferenceDTO reference : description.references) {
+                    interfacesByName.put(reference.name, reference.interfaceName);
+                }
+                return interfacesByName;
+            }
+        }
+        throw new AssertionError("No component " + componentName);
+    }
+
     @Test
     public void clientRegistrationWithFactoryConfiguration() throws Exception {
         assertFactoryConfigRegistration(HttpClient.class);
@@ -0,0 +1,195 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HttpClientPrototypeFactoryTest {
+
+    // an inactive ClientDrainService closes drained clients synchronously
+
+    @Test
+    public void reconfigureReplacesClientsBehindServiceObjects() throws Exception {
+        final TestBuilderFactory builderFactory = new TestBuilderFactory();
+        final HttpClientPrototypeFactory prototypeFactory = new HttpClientPrototypeFactory(builderFactory, new ClientDrainService(), null, null, null, configuration(false, false));
+
+        final HttpClient first = prototypeFactory.getService(null, null);
+        final HttpClient second = prototypeFactory.getService(null, null);
+        assertThat(builderFactory.connectionManagers.size(), is(2));
+
+        prototypeFactory.reconfigure();
+        assertThat(builderFactory.connectionManagers.size(), is(4));
+        assertThat(builderFactory.connectionManagers.get(0).shutdown, is(true));
+        assertThat(builderFactory.connectionManagers.get(1).shutdown, is(true));
+        assertThat(builderFactory.connectionManagers.get(2).shutdown, is(false));
+        assertThat(builderFactory.connectionManagers.get(3).shutdown, is(false));
+
+        prototypeFactory.ungetService(null, null, first);
+        prototypeFactory.ungetService(null, null, second);
+        assertThat(builderFactory.connectionManagers.get(2).shutdown, is(true));
+        assertThat(builderFactory.connectionManagers.get(3).shutdown, is(true));
+
+        prototypeFactory.reconfigure();
+        assertThat("released service objects are not reconfigured", builderFactory.connectionManagers.size(), is(4));
+    }
+
+    @Test
+    public void reconfigureReplacesSharedClient() throws Exception {
+        final TestBuilderFactory builderFactory = new TestBuilderFactory();
+        final HttpClientPrototypeFactory prototypeFactory = new HttpClientPrototypeFactory(builderFactory, new ClientDrainService(), null, null, null, configuration(true, false));
+
+        final HttpClient first = prototypeFactory.getService(null, null);
+        prototypeFactory.getService(null, null);
+
+        prototypeFactory.reconfigure();
+        assertThat(builderFactory.connectionManagers.size(), is(2));
+        assertThat(builderFactory.connectionManagers.get(0).shutdown, is(true));
+
+        prototypeFactory.ungetService(null, null, first);
+        assertThat(builderFactory.connectionManagers.get(1).shutdown, is(false));
+    }
+
+    @Test
+    public void lazyClientIsBuiltOnFirstRequest() throws Exception {
+        final TestBuilderFactory builderFactory = new TestBuilderFactory();
+        final HttpClientPrototypeFactory prototypeFactory = new HttpClientPrototypeFactory(
+                builderFactory, new ClientDrainService(), null, null, null, configuration(false, true));
+
+        final HttpClient httpClient = prototypeFactory.getService(null, null);
+        prototypeFactory.reconfigure();
+        assertThat("no client is built before the first request", builderFactory.connectionManagers.size(), is(0));
+
+        httpClient.getConnectionManager();
+        assertThat(builderFactory.connectionManagers.size(), is(1));
+
+        prototypeFactory.ungetService(null, null, httpClient);
+        assertThat(builderFactory.connectionManagers.get(0).shutdown, is(true));
+    }
+
+    @Test
+    public void requestsRacingReconfigurationSucceed() throws Exception {
+        assertRequestsRacingReconfigurationSucceed(false);
+    }
+
+    @Test
+    public void requestsRacingReconfigurationOfSharedClientSucceed() throws Exception {
+        assertRequestsRacingReconfigurationSucceed(true);
+    }
+
+    private static void assertRequestsRacingReconfigurationSucceed(final boolean shared) throws Exception {
+        final HttpServer server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        response.setEntity(new StringEntity("hello"));
+                    }
+                })
+                .create();
+        server.start();
+        final ClientDrainService drainService = new ClientDrainService();
+        drainService.activate();
+        try {
+            final Map<String, Object> configuration = configuration(shared, false);
+            configuration.put(HttpClientConfiguration.SHUTDOWN_DRAIN_TIMEOUT_MS, 10000L);
+            final HttpClientPrototypeFactory prototypeFactory = new HttpClientPrototypeFactory(new HttpClientBuilderFactory() {
+                @Override
+                public HttpClientBuilder newBuilder() {
+                    return HttpClientBuilder.create();
+                }
+            }, drainService, null, null, null, configuration);
+            final HttpClient httpClient = prototypeFactory.getService(null, null);
+            final String uri = "http://localhost:" + server.getLocalPort() + "/";
+
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (running.get()) {
+                                EntityUtils.consume(httpClient.execute(new HttpGet(uri)).getEntity());
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (int i = 0; i < 50 && failure.get() == null; i++) {
+                prototypeFactory.reconfigure();
+                Thread.sleep(5);
+            }
+            running.set(false);
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            assertThat(String.valueOf(failure.get()), failure.get() == null, is(true));
+            prototypeFactory.ungetService(null, null, httpClient);
+        } finally {
+            drainService.deactivate();
+            server.shutdown(0, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Map<String, Object> configuration(final boolean shared, final boolean lazy) {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(HttpClientConfiguration.HTTP_CLIENT_SHARED, shared);
+        configuration.put(HttpClientConfiguration.HTTP_CLIENT_LAZY, lazy);
+        // drained clients are closed without waiting
+        configuration.put(HttpClientConfiguration.SHUTDOWN_DRAIN_TIMEOUT_MS, 0L);
+        return configuration;
+    }
+
+    private static class TestBuilderFactory implements HttpClientBuilderFactory {
+
+        private final List<TestConnectionManager> connectionManagers = new ArrayList<>();
+
+        @Override
+        public HttpClientBuilder newBuilder() {
+            final TestConnectionManager connectionManager = new TestConnectionManager();
+            connectionManagers.add(connectionManager);
+            return HttpClientBuilder.create().setConnectionManager(connectionManager);
+        }
+    }
+
+    private static class TestConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private boolean shutdown;
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            super.shutdown();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The fixture of the tests sending requests through preconfigured clients to
+ * a local server.
+ */
+final class HttpClientTestSupport {
+
+    static final HttpClientBuilderFactory BUILDER_FACTORY = new HttpClientBuilderFactory() {
+        @Override
+        public HttpClientBuilder newBuilder() {
+            return HttpClientBuilder.create();
+        }
+    };
+
+    private HttpClientTestSupport() {
+    }
+
+    /**
+     * @return a bootstrap for a server listening on the loopback address.
+     */
+    static ServerBootstrap bootstrap() {
+        return ServerBootstrap.bootstrap().setLocalAddress(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return a started server handling all requests with {@code handler}.
+     */
+    static HttpServer startServer(final HttpRequestHandler handler) throws IOException {
+        final HttpServer server = bootstrap().registerHandler("*", handler).create();
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return the URI of the server's root, {@code http://localhost:<port>/}.
+     */
+    static String uri(final HttpServer server) {
+        return "http://localhost:" + server.getLocalPort() + "/";
+    }
+
+    /**
+     * @return a port of the loopback address no server listens on.
+     */
+    static int unusedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * @return {@code uri} without the trailing slash, the key of its route in the metrics.
+     */
+    static String route(final String uri) {
+        return uri.substring(0, uri.length() - 1);
+    }
+
+    static PreconfiguredHttpClientBuilderFactory builderFactory(final Map<String, Object> configuration,
+                                                                final RequestMetrics metrics) {
+        return new PreconfiguredHttpClientBuilderFactory(BUILDER_FACTORY, null, configuration, null, null, metrics, null);
+    }
+
+    /**
+     * @return a client built by a builder of {@link #builderFactory(Map, RequestMetrics)}.
+     */
+    static CloseableHttpClient newHttpClient(final Map<String, Object> configuration, final RequestMetrics metrics) {
+        return builderFactory(configuration, metrics).newBuilder().build();
+    }
+
+    /**
+     * @return a factory of the clients of the {@code HttpClient} service,
+     * whose replaced clients are closed without draining.
+     */
+    static HttpClientPrototypeFactory prototypeFactory(final HttpClientBuilderFactory builderFactory,
+                                                       final RequestMetrics metrics, final HedgingService hedgingService,
+                                                       final TimerWheel timerWheel,
+                                                       final Map<String, Object> configuration) {
+        configuration.put(HttpClientConfiguration.SHUTDOWN_DRAIN_TIMEOUT_MS, 0L);
+        return new HttpClientPrototypeFactory(builderFactory, new ClientDrainService(), metrics, hedgingService,
+                timerWheel, configuration);
+    }
+
+    static HttpClientPrototypeFactory prototypeFactory(final RequestMetrics metrics,
+                                                       final Map<String, Object> configuration) {
+        return prototypeFactory(BUILDER_FACTORY, metrics, null, null, configuration);
+    }
+
+    /**
+     * Executes a {@code GET} request and consumes the response.
+     *
+     * @return the status code of the response.
+     */
+    static int execute(final HttpClient httpClient, final String uri) throws IOException {
+        final HttpResponse response = httpClient.execute(new HttpGet(uri));
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * @return the body of the response.
+     */
+    static String fetch(final HttpClient httpClient, final HttpUriRequest request, final HttpContext context)
+            throws IOException {
+        return EntityUtils.toString(httpClient.execute(request, context).getEntity());
+    }
+
+    /**
+     * @return the body of the response, fetched by {@code executor}.
+     */
+    static Future<String> fetchAsync(final ExecutorService executor, final HttpClient httpClient,
+                                     final HttpUriRequest request, final HttpContext context) {
+        return executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return fetch(httpClient, request, context);
+            }
+        });
+    }
+}
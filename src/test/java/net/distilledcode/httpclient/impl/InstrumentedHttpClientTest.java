@@ -0,0 +1,143 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.RequestStats;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class InstrumentedHttpClientTest {
+
+    private HttpServer server;
+
+    private String baseUri;
+
+    private RequestMetrics metrics;
+
+    private InstrumentedHttpClient httpClient;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("/missing", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context) {
+                        response.setStatusCode(404);
+                    }
+                })
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws HttpException, IOException {
+                        if (request instanceof HttpEntityEnclosingRequest) {
+                            EntityUtils.consume(((HttpEntityEnclosingRequest) request).getEntity());
+                        }
+                        response.setEntity(new StringEntity("hello"));
+                    }
+                })
+                .create();
+        server.start();
+        baseUri = "http://localhost:" + server.getLocalPort();
+        metrics = new RequestMetrics("test");
+        httpClient = new InstrumentedHttpClient(HttpClientBuilder.create().build(), metrics);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        httpClient.close();
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void recordsRequestsAndBytes() throws Exception {
+        final HttpPost post = new HttpPost(baseUri + "/");
+        post.setEntity(new StringEntity("0123456789"));
+        assertThat(EntityUtils.toString(httpClient.execute(post).getEntity()), is("hello"));
+        EntityUtils.consume(httpClient.execute(new HttpGet(baseUri + "/missing")).getEntity());
+
+        final RequestStats total = metrics.getTotal();
+        assertThat(total.getRequests(), is(2L));
+        assertThat(total.getBytesSent(), is(10L));
+        assertThat(total.getBytesReceived(), is(5L));
+        assertThat(total.getLatencyHistogram().isEmpty(), is(false));
+
+        final Map<String, RequestStats> byStatusClass = metrics.getByStatusClass();
+        assertThat(byStatusClass.keySet().toString(), is("[2xx, 4xx]"));
+        assertThat(byStatusClass.get("2xx").getRequests(), is(1L));
+
+        final RequestStats host = metrics.getByHost().get(baseUri);
+        assertThat(host.getRequests(), is(2L));
+        assertThat(host.getBytesReceived(), is(5L));
+    }
+
+    @Test
+    public void recordsFailedRequests() throws Exception {
+        final int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        try {
+            httpClient.execute(new HttpGet("http://localhost:" + closedPort + "/"));
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected, nothing listens on the port
+        }
+        assertThat(metrics.getByStatusClass().get("error").getRequests(), is(1L));
+        assertThat(metrics.getTotal().getRequests(), is(1L));
+    }
+
+    @Test
+    public void limitsTrackedHosts() throws Exception {
+        for (int i = 0; i <= RouteMap.MAX_ROUTES; i++) {
+            metrics.completed(metrics.host(new HttpHost("host" + i)), 200, 1000, 0);
+        }
+        final Map<String, RequestStats> byHost = metrics.getByHost();
+        assertThat(byHost.size(), is(RouteMap.MAX_ROUTES + 1));
+        assertThat(byHost.get(RequestMetrics.OTHER_HOSTS).getRequests(), is(1L));
+    }
+
+    @Test
+    public void registeredAsMXBean() throws Exception {
+        EntityUtils.toString(httpClient.execute(new HttpGet(baseUri + "/")).getEntity());
+
+        final JmxRegistration registration = JmxRegistration.register(metrics, "Requests", "test");
+        try {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = registration.getObjectName();
+            final CompositeData total = (CompositeData) mBeanServer.getAttribute(objectName, "Total");
+            assertThat((Long) total.get("requests"), is(1L));
+            assertThat((Long) total.get("bytesReceived"), is(5L));
+            assertThat((String) mBeanServer.getAttribute(objectName, "ConfigName"), is("test"));
+        } finally {
+            registration.close();
+        }
+    }
+}
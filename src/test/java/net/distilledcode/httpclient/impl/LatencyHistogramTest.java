@@ -0,0 +1,56 @@
+package net.distilledcode.httpclient.impl;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketBoundsContainTheirValues() {
+        for (long micros = 0; micros < 1 << 20; micros += 1 + micros / 7) {
+            final int index = LatencyHistogram.bucketIndex(micros);
+            assertTrue("upper bound of " + micros, micros < LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                assertTrue("lower bound of " + micros, micros >= LatencyHistogram.bucketUpperBound(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void longDurationsAreCountedInTheLastBucket() {
+        assertThat(LatencyHistogram.bucketIndex(Long.MAX_VALUE), is(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void quantiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.getCount(), is(100L));
+        assertThat(snapshot.getMaxMicros(), is(100000L));
+        assertThat(snapshot.getMeanMicros(), is(50500.0));
+        assertWithin25Percent(snapshot.getQuantileMicros(0.5), 50000);
+        assertWithin25Percent(snapshot.getQuantileMicros(0.99), 99000);
+        assertThat(snapshot.getQuantileMicros(1), is(100000L));
+    }
+
+    @Test
+    public void emptySnapshot() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertThat(snapshot.getCount(), is(0L));
+        assertThat(snapshot.getMeanMicros(), is(0.0));
+        assertThat(snapshot.getQuantileMicros(0.99), is(0L));
+    }
+
+    private static void assertWithin25Percent(final long actual, final long expected) {
+        assertTrue(actual + " is not within 25% of " + expected, Math.abs(actual - expected) <= expected / 4);
+    }
+}
@@ -0,0 +1,187 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LazyHttpClientTest {
+
+    private HttpServer server;
+
+    private HttpGet request;
+
+    private TestBuilderFactory builderFactory;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws HttpException, IOException {
+                        response.setEntity(new StringEntity("hello"));
+                    }
+                })
+                .create();
+        server.start();
+        request = new HttpGet("http://localhost:" + server.getLocalPort() + "/");
+        builderFactory = new TestBuilderFactory();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void builtOnceOnFirstRequest() throws Exception {
+        final LazyHttpClient httpClient = new LazyHttpClient(builderFactory, -1);
+        assertThat(httpClient.isMaterialized(), is(false));
+
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await();
+                        return EntityUtils.toString(httpClient.execute(request).getEntity());
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<String> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS), is("hello"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(httpClient.getMaterializations(), is(1));
+        assertThat(builderFactory.connectionManagers.size(), is(1));
+
+        httpClient.close();
+        assertThat(builderFactory.connectionManagers.get(0).shutdown, is(true));
+    }
+
+    @Test
+    public void notReleasedWithoutIdleReleasePeriod() throws Exception {
+        final LazyHttpClient httpClient = new LazyHttpClient(builderFactory, -1);
+        EntityUtils.consume(httpClient.execute(request).getEntity());
+
+        assertThat(httpClient.releaseIfIdle(), is(false));
+        assertThat(httpClient.isMaterialized(), is(true));
+        httpClient.close();
+    }
+
+    @Test
+    public void releasedWhenIdleAndRebuiltOnNextRequest() throws Exception {
+        final LazyHttpClient httpClient = new LazyHttpClient(builderFactory, 1);
+        EntityUtils.consume(httpClient.execute(request).getEntity());
+        Thread.sleep(5);
+
+        assertThat(httpClient.releaseIfIdle(), is(true));
+        assertThat(httpClient.isMaterialized(), is(false));
+        assertThat(builderFactory.connectionManagers.get(0).shutdown, is(true));
+
+        EntityUtils.consume(httpClient.execute(request).getEntity());
+        assertThat(httpClient.getMaterializations(), is(2));
+        httpClient.close();
+    }
+
+    @Test
+    public void notReleasedWhileExchangeIsInFlight() throws Exception {
+        final LazyHttpClient httpClient = new LazyHttpClient(builderFactory, 1);
+        final CloseableHttpResponse response = httpClient.execute(request);
+        Thread.sleep(5);
+
+        assertThat(httpClient.releaseIfIdle(), is(false));
+        assertThat(EntityUtils.toString(response.getEntity()), is("hello"));
+        Thread.sleep(5);
+        assertThat(httpClient.releaseIfIdle(), is(true));
+        httpClient.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedClientRejectsRequests() throws Exception {
+        final LazyHttpClient httpClient = new LazyHttpClient(builderFactory, -1);
+        httpClient.close();
+        httpClient.execute(request);
+    }
+
+    @Test
+    public void releasedByClientDrainService() throws Exception {
+        final ClientDrainService clientDrainService = new ClientDrainService();
+        clientDrainService.activate();
+        try {
+            final LazyHttpClient httpClient = new LazyHttpClient(builderFactory, 20);
+            clientDrainService.releaseWhenIdle(httpClient);
+            EntityUtils.consume(httpClient.execute(request).getEntity());
+
+            assertThat(builderFactory.connectionManagers.get(0).shutdownLatch.await(5, TimeUnit.SECONDS), is(true));
+            assertThat(httpClient.isMaterialized(), is(false));
+            httpClient.close();
+        } finally {
+            clientDrainService.deactivate();
+        }
+    }
+
+    private static class TestBuilderFactory implements HttpClientBuilderFactory {
+
+        private final List<TestConnectionManager> connectionManagers = new CopyOnWriteArrayList<>();
+
+        @Override
+        public HttpClientBuilder newBuilder() {
+            final TestConnectionManager connectionManager = new TestConnectionManager();
+            connectionManagers.add(connectionManager);
+            return HttpClientBuilder.create().setConnectionManager(connectionManager);
+        }
+    }
+
+    private static class TestConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+
+        private volatile boolean shutdown;
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            shutdownLatch.countDown();
+            super.shutdown();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.LoadBalancerEndpointStats;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.builderFactory;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.execute;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.prototypeFactory;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.startServer;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.unusedPort;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_EJECTION_CONSECUTIVE_FAILURES;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_EJECTION_DURATION_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_ENDPOINTS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.LB_HOST;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.USE_SYSTEM_PROPERTIES;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class LoadBalancerTest {
+
+    private static final String URI = "http://backend/";
+
+    private final RequestMetrics metrics = new RequestMetrics("test");
+
+    private final List<Backend> backends = new ArrayList<>();
+
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    private final Semaphore arrived = new Semaphore(0);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        released.countDown();
+        executor.shutdownNow();
+        for (final Backend backend : backends) {
+            backend.server.shutdown(0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void spreadsRequestsAcrossEndpoints() throws Exception {
+        final List<String> endpoints = startBackends(3, false);
+        try (CloseableHttpClient httpClient = newHttpClient(endpoints, new HashMap<String, Object>())) {
+            for (int i = 0; i < 30; i++) {
+                assertThat(execute(httpClient, URI), is(200));
+            }
+        }
+        for (final Backend backend : backends) {
+            assertTrue(backend.requests.get() > 0);
+            assertThat("the logical host is sent", backend.host, is("backend"));
+        }
+        long selected = 0;
+        for (final LoadBalancerEndpointStats stats : metrics.getLoadBalancerEndpoints().values()) {
+            selected += stats.getSelected();
+        }
+        assertThat(selected, is(30L));
+    }
+
+    @Test
+    public void prefersEndpointsWithFewerOutstandingRequests() throws Exception {
+        final List<String> endpoints = startBackends(2, true);
+        try (CloseableHttpClient httpClient = newHttpClient(endpoints, new HashMap<String, Object>())) {
+            final Future<Integer> first = executeAsync(httpClient);
+            assertTrue(arrived.tryAcquire(5, TimeUnit.SECONDS));
+            final Future<Integer> second = executeAsync(httpClient);
+            assertTrue(arrived.tryAcquire(5, TimeUnit.SECONDS));
+            assertThat(backends.get(0).requests.get(), is(1));
+            assertThat(backends.get(1).requests.get(), is(1));
+            released.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS), is(200));
+            assertThat(second.get(5, TimeUnit.SECONDS), is(200));
+        }
+    }
+
+    @Test
+    public void ejectsFailingEndpointsWithBackoff() throws Exception {
+        final List<String> endpoints = startBackends(2, false);
+        final Backend failing = backends.get(0);
+        failing.status = 503;
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(LB_EJECTION_CONSECUTIVE_FAILURES, 2);
+        configuration.put(LB_EJECTION_DURATION_MS, 1000L);
+        try (CloseableHttpClient httpClient = newHttpClient(endpoints, configuration)) {
+            for (int i = 0; i < 30; i++) {
+                execute(httpClient, URI);
+            }
+            assertThat(failing.requests.get(), is(2));
+            final LoadBalancerEndpointStats ejected = metrics.getLoadBalancerEndpoints().get(endpoints.get(0));
+            assertThat(ejected.isEjected(), is(true));
+            assertThat(ejected.getEjections(), is(1L));
+            assertThat(ejected.getFailures(), is(2L));
+
+            failing.status = 200;
+            Thread.sleep(1200);
+            for (int i = 0; i < 30; i++) {
+                assertThat(execute(httpClient, URI), is(200));
+            }
+            assertTrue(failing.requests.get() > 2);
+            assertThat(metrics.getLoadBalancerEndpoints().get(endpoints.get(0)).isEjected(), is(false));
+        }
+    }
+
+    @Test
+    public void ejectsUnavailableEndpoints() throws Exception {
+        final List<String> endpoints = startBackends(1, false);
+        endpoints.add("localhost:" + unusedPort());
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(LB_EJECTION_CONSECUTIVE_FAILURES, 1);
+        int refused = 0;
+        try (CloseableHttpClient httpClient = newHttpClient(endpoints, configuration)) {
+            for (int i = 0; i < 20; i++) {
+                try {
+                    assertThat(execute(httpClient, URI), is(200));
+                } catch (ConnectException e) {
+                    refused++;
+                }
+            }
+        }
+        assertTrue(refused <= 1);
+        assertThat(backends.get(0).requests.get(), is(20 - refused));
+    }
+
+    @Test
+    public void ejectsUnavailableEndpointsWithoutAutomaticRetries() throws Exception {
+        final List<String> endpoints = startBackends(1, false);
+        final String unavailable = "localhost:" + unusedPort();
+        endpoints.add(unavailable);
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("automatic.retries.enabled", false);
+        configuration.put(LB_EJECTION_CONSECUTIVE_FAILURES, 1);
+        final HttpClient httpClient = prototypeFactory(newBuilderFactory(endpoints, configuration), metrics, null, null,
+                configuration).getService(null, null);
+        int refused = 0;
+        for (int i = 0; i < 20; i++) {
+            try {
+                assertThat(execute(httpClient, URI), is(200));
+            } catch (ConnectException e) {
+                refused++;
+            }
+        }
+        assertThat(refused, is(1));
+        assertThat(metrics.getLoadBalancerEndpoints().get(unavailable).getEjections(), is(1L));
+        assertThat(backends.get(0).requests.get(), is(19));
+    }
+
+    @Test
+    public void routesOtherHostsWithTheSystemProxySelector() throws Exception {
+        final List<String> endpoints = startBackends(2, false);
+        final List<String> selected = new CopyOnWriteArrayList<>();
+        final ProxySelector proxySelector = ProxySelector.getDefault();
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(final java.net.URI uri) {
+                // sockets also ask for a SOCKS proxy
+                if ("http".equals(uri.getScheme())) {
+                    selected.add(uri.getAuthority());
+                }
+                return Collections.singletonList(Proxy.NO_PROXY);
+            }
+
+            @Override
+            public void connectFailed(final java.net.URI uri, final SocketAddress address, final IOException e) {
+            }
+        });
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(USE_SYSTEM_PROPERTIES, true);
+        try (CloseableHttpClient httpClient = newHttpClient(endpoints, configuration)) {
+            assertThat(execute(httpClient, URI), is(200));
+            assertTrue(selected.size() > 0);
+            for (final String authority : selected) {
+                assertTrue(authority + " is an endpoint", endpoints.contains(authority));
+            }
+
+            selected.clear();
+            final String other = endpoints.get(0);
+            assertThat(execute(httpClient, "http://" + other + "/"), is(200));
+            assertThat(selected, is(Collections.singletonList(other)));
+            assertThat("other hosts are not balanced", backends.get(0).host, is(other));
+        } finally {
+            ProxySelector.setDefault(proxySelector);
+        }
+    }
+
+    private List<String> startBackends(final int count, final boolean blocking) throws IOException {
+        final List<String> endpoints = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Backend backend = new Backend(blocking);
+            backends.add(backend);
+            endpoints.add("localhost:" + backend.server.getLocalPort());
+        }
+        return endpoints;
+    }
+
+    private CloseableHttpClient newHttpClient(final List<String> endpoints, final Map<String, Object> configuration) {
+        return newBuilderFactory(endpoints, configuration).newBuilder().build();
+    }
+
+    private PreconfiguredHttpClientBuilderFactory newBuilderFactory(final List<String> endpoints,
+                                                                    final Map<String, Object> configuration) {
+        configuration.put(LB_ENABLED, true);
+        configuration.put(LB_HOST, "backend");
+        configuration.put(LB_ENDPOINTS, endpoints.toArray(new String[0]));
+        return builderFactory(configuration, metrics);
+    }
+
+    private Future<Integer> executeAsync(final CloseableHttpClient httpClient) {
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return execute(httpClient, URI);
+            }
+        });
+    }
+
+    private final class Backend {
+
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private final HttpServer server;
+
+        private volatile int status = 200;
+
+        private volatile String host;
+
+        private Backend(final boolean blocking) throws IOException {
+            server = startServer(new HttpRequestHandler() {
+                @Override
+                public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                        throws UnsupportedEncodingException {
+                    requests.incrementAndGet();
+                    host = request.getFirstHeader("Host").getValue();
+                    arrived.release();
+                    if (blocking) {
+                        try {
+                            released.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    response.setStatusCode(status);
+                    response.setEntity(new StringEntity("hello world"));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PersistentHttpCacheStorageTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storesEntries() throws Exception {
+        final PersistentHttpCacheStorage storage = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+        storage.putEntry("a", entry("hello"));
+
+        final HttpCacheEntry entry = storage.getEntry("a");
+        assertThat(body(entry), is("hello"));
+        assertThat(entry.getStatusLine().getStatusCode(), is(HttpStatus.SC_OK));
+        assertThat(entry.getFirstHeader("ETag").getValue(), is("\"v1\""));
+        assertThat(entry.getVariantMap().get("gzip"), is("a-gzip"));
+        assertThat(storage.getEntries(), is(1));
+
+        storage.removeEntry("a");
+        assertThat(storage.getEntry("a"), nullValue());
+        assertThat(storage.getBytes(), is(0L));
+    }
+
+    @Test
+    public void reopensWithIndex() throws Exception {
+        final PersistentHttpCacheStorage storage = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+        storage.putEntry("a", entry("first"));
+        storage.putEntry("b", entry("second"));
+        storage.removeEntry("b");
+        storage.close();
+        assertThat(new File(folder.getRoot(), "index.dat").isFile(), is(true));
+
+        final PersistentHttpCacheStorage reopened = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+        assertThat(body(reopened.getEntry("a")), is("first"));
+        assertThat(reopened.getEntry("b"), nullValue());
+        assertThat(reopened.getBytes(), is(storage.getBytes()));
+    }
+
+    @Test
+    public void recoversWithoutIndex() throws Exception {
+        final PersistentHttpCacheStorage storage = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+        storage.putEntry("a", entry("first"));
+        storage.putEntry("a", entry("replaced"));
+        storage.putEntry("b", entry("second"));
+        storage.removeEntry("b");
+        storage.close();
+        assertThat(new File(folder.getRoot(), "index.dat").delete(), is(true));
+
+        final PersistentHttpCacheStorage reopened = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+        assertThat(body(reopened.getEntry("a")), is("replaced"));
+        assertThat(reopened.getEntry("b"), nullValue());
+        assertThat(reopened.getEntries(), is(1));
+    }
+
+    @Test
+    public void boundsDiskSpaceAndKeepsRecentlyReadEntries() throws Exception {
+        final long maxBytes = 2 * PersistentHttpCacheStorage.MIN_SEGMENT_BYTES;
+        final PersistentHttpCacheStorage storage = new PersistentHttpCacheStorage(folder.getRoot(), maxBytes, 1000);
+        final String body = new String(new char[10000]).replace('\0', 'x');
+        storage.putEntry("hot", entry(body));
+        for (int i = 0; i < 6; i++) {
+            storage.putEntry("cold" + i, entry(body));
+        }
+        // the first segment is full, reading the entry keeps it when the segment is compacted
+        storage.getEntry("hot");
+        for (int i = 6; i < 30; i++) {
+            storage.putEntry("cold" + i, entry(body));
+            storage.getEntry("hot");
+        }
+
+        assertThat(body(storage.getEntry("hot")), is(body));
+        assertThat(storage.getEntry("cold0"), nullValue());
+        assertThat(storage.getEntry("cold29"), notNullValue());
+        assertThat(storage.getBytes() <= maxBytes, is(true));
+        assertThat(segmentFiles().length <= 2, is(true));
+    }
+
+    @Test
+    public void staysWithinSmallDiskSpace() throws Exception {
+        final long maxBytes = PersistentHttpCacheStorage.MIN_SEGMENT_BYTES + 1000;
+        final PersistentHttpCacheStorage storage = new PersistentHttpCacheStorage(folder.getRoot(), maxBytes, 1000);
+        final String body = new String(new char[10000]).replace('\0', 'x');
+        for (int i = 0; i < 20; i++) {
+            storage.putEntry("entry" + i, entry(body));
+        }
+
+        long segmentBytes = 0;
+        for (final File segment : segmentFiles()) {
+            segmentBytes += segment.length();
+        }
+        assertThat(segmentBytes <= maxBytes, is(true));
+        assertThat(storage.getEntry("entry19"), notNullValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDiskSpaceSmallerThanASegment() throws Exception {
+        new PersistentHttpCacheStorage(folder.getRoot(), PersistentHttpCacheStorage.MIN_SEGMENT_BYTES - 1, 100);
+    }
+
+    @Test
+    public void locksDirectory() throws Exception {
+        final PersistentHttpCacheStorage storage = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+        try {
+            new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+            fail("the directory is in use");
+        } catch (IOException e) {
+            // expected
+        }
+        storage.close();
+
+        new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100).close();
+    }
+
+    @Test
+    public void storesLongHeaderValues() throws Exception {
+        final String value = new String(new char[70000]).replace('\0', 'v');
+        final Date now = new Date();
+        final PersistentHttpCacheStorage storage = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+        storage.putEntry("a", new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                new Header[]{new BasicHeader("Link", value)}, new HeapResource("hello".getBytes()),
+                Collections.<String, String>emptyMap()));
+        storage.close();
+
+        final PersistentHttpCacheStorage reopened = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 100);
+        assertThat(reopened.getEntry("a").getFirstHeader("Link").getValue(), is(value));
+    }
+
+    @Test
+    public void boundsEntries() throws Exception {
+        final PersistentHttpCacheStorage storage = new PersistentHttpCacheStorage(folder.getRoot(), 1024 * 1024, 2);
+        storage.putEntry("a", entry("a"));
+        storage.putEntry("b", entry("b"));
+        storage.getEntry("a");
+        storage.putEntry("c", entry("c"));
+
+        assertThat(storage.getEntries(), is(2));
+        assertThat(storage.getEntry("b"), nullValue());
+    }
+
+    private static HttpCacheEntry entry(final String body) {
+        final Date now = new Date();
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                new Header[]{new BasicHeader("ETag", "\"v1\"")}, new HeapResource(body.getBytes()),
+                Collections.singletonMap("gzip", "a-gzip"));
+    }
+
+    private File[] segmentFiles() {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith("segment-");
+            }
+        });
+    }
+
+    private static String body(final HttpCacheEntry entry) throws Exception {
+        return EntityUtils.toString(new InputStreamEntity(entry.getResource().getInputStream()));
+    }
+}
@@ -0,0 +1,122 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.PhaseStats;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.execute;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.route;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.startServer;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.METRICS_PHASES_ENABLED;
+import static net.distilledcode.httpclient.impl.HttpClientConfiguration.METRICS_PHASES_SAMPLING_RATE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PhaseTimingInstrumentationTest {
+
+    private HttpServer server;
+
+    private String uri;
+
+    private RequestMetrics metrics;
+
+    @Before
+    public void setUp() throws IOException {
+        server = startServer(new HttpRequestHandler() {
+            @Override
+            public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                    throws UnsupportedEncodingException {
+                response.setEntity(new StringEntity("hello"));
+            }
+        });
+        uri = HttpClientTestSupport.uri(server);
+        metrics = new RequestMetrics("test");
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void recordsPhasesPerRoute() throws Exception {
+        try (CloseableHttpClient httpClient = newHttpClient(true, 1.0)) {
+            execute(httpClient, uri);
+            execute(httpClient, uri);
+        }
+
+        final PhaseStats phases = metrics.getPhasesByRoute().get(route(uri));
+        // the connection is reused for the second request
+        assertThat(phases.getDns().getCount(), is(1L));
+        assertThat(phases.getConnect().getCount(), is(1L));
+        assertThat(phases.getTls().getCount(), is(0L));
+        assertThat(phases.getTimeToFirstByte().getCount(), is(2L));
+    }
+
+    @Test
+    public void samplesNothingWithRateZero() throws Exception {
+        try (CloseableHttpClient httpClient = newHttpClient(true, 0.0)) {
+            execute(httpClient, uri);
+        }
+        assertThat(metrics.getPhasesByRoute().isEmpty(), is(true));
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        try (CloseableHttpClient httpClient = newHttpClient(false, 1.0)) {
+            execute(httpClient, uri);
+        }
+        assertThat(metrics.getPhasesByRoute().isEmpty(), is(true));
+    }
+
+    @Test
+    public void wrapsSocketFactoriesOfRegistry() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new PlainConnectionSocketFactory() {
+                    @Override
+                    public Socket createSocket(final HttpContext context) throws IOException {
+                        created.incrementAndGet();
+                        return super.createSocket(context);
+                    }
+                })
+                .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+                .build();
+        final Registry<ConnectionSocketFactory> timed =
+                new PhaseTimingInstrumentation(metrics.getPhaseTimings(), 1.0).socketFactoryRegistry(registry);
+
+        try (Socket socket = timed.lookup("http").createSocket(null)) {
+            assertThat(created.get(), is(1));
+        }
+        assertThat(timed.lookup("https") instanceof LayeredConnectionSocketFactory, is(true));
+    }
+
+    private CloseableHttpClient newHttpClient(final boolean enabled, final double samplingRate) {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(METRICS_PHASES_ENABLED, enabled);
+        configuration.put(METRICS_PHASES_SAMPLING_RATE, samplingRate);
+        return HttpClientTestSupport.newHttpClient(configuration, metrics);
+    }
+}
@@ -0,0 +1,109 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PoolingConnectionManagerFactoryTest {
+
+    @Test
+    public void disabledWithoutConnectionManagerProperties() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("max.conn.total", 50);
+        configuration.put("connection.manager.shared", true); // HttpClientBuilder setting
+        assertThat(new PoolingConnectionManagerFactory(configuration, null, null, null, null).isEnabled(), is(false));
+    }
+
+    @Test
+    public void connectionManagerProperties() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("connection.manager.max.total", 100);
+        configuration.put("connection.manager.default.max.per.route", 10);
+        configuration.put("connection.manager.validate.after.inactivity", 500);
+        configuration.put("connection.manager.max.per.route", new String[]{
+                "backend.example.com:8080=40",
+                "secure.example.com:443=30",
+                "http://plain.example.com=20",
+                "invalid"
+        });
+
+        final PoolingConnectionManagerFactory factory = new PoolingConnectionManagerFactory(configuration, null, null, null, null);
+        assertThat(factory.isEnabled(), is(true));
+
+        final PoolingHttpClientConnectionManager connectionManager = factory.newConnectionManager();
+        try {
+            assertThat(connectionManager.getMaxTotal(), is(100));
+            assertThat(connectionManager.getDefaultMaxPerRoute(), is(10));
+            assertThat(connectionManager.getValidateAfterInactivity(), is(500));
+            assertThat(connectionManager.getMaxPerRoute(route("backend.example.com", 8080, "http")), is(40));
+            assertThat(connectionManager.getMaxPerRoute(route("secure.example.com", 443, "https")), is(30));
+            assertThat(connectionManager.getMaxPerRoute(route("plain.example.com", 80, "http")), is(20));
+            assertThat(connectionManager.getMaxPerRoute(route("other.example.com", 80, "http")), is(10));
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+    @Test
+    public void builderPoolSettingsAreDefaults() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("max.conn.total", 50);
+        configuration.put("max.conn.per.route", 5);
+        configuration.put("connection.manager.max.total", 60);
+
+        final PoolingHttpClientConnectionManager connectionManager =
+                new PoolingConnectionManagerFactory(configuration, null, null, null, null).newConnectionManager();
+        try {
+            assertThat(connectionManager.getMaxTotal(), is(60));
+            assertThat(connectionManager.getDefaultMaxPerRoute(), is(5));
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+    @Test
+    public void systemPropertiesConfigurePoolLikeHttpClientBuilder() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("connection.manager.validate.after.inactivity", 500);
+        configuration.put("use.system.properties", true);
+
+        final String maxConnections = System.getProperty("http.maxConnections");
+        System.setProperty("http.maxConnections", "7");
+        try {
+            final PoolingHttpClientConnectionManager connectionManager =
+                    new PoolingConnectionManagerFactory(configuration, null, null, null, null).newConnectionManager();
+            try {
+                assertThat(connectionManager.getDefaultMaxPerRoute(), is(7));
+                assertThat(connectionManager.getMaxTotal(), is(14));
+            } finally {
+                connectionManager.shutdown();
+            }
+        } finally {
+            if (maxConnections != null) {
+                System.setProperty("http.maxConnections", maxConnections);
+            } else {
+                System.clearProperty("http.maxConnections");
+            }
+        }
+    }
+
+    @Test
+    public void parseRoute() throws Exception {
+        assertThat(PoolingConnectionManagerFactory.parseRoute("example.com"), equalTo(route("example.com", 80, "http")));
+        assertThat(PoolingConnectionManagerFactory.parseRoute("example.com:443"), equalTo(route("example.com", 443, "https")));
+        assertThat(PoolingConnectionManagerFactory.parseRoute("https://example.com"), equalTo(route("example.com", 443, "https")));
+        assertThat(PoolingConnectionManagerFactory.parseRoute("HTTPS://example.com:8443"), equalTo(route("example.com", 8443, "https")));
+    }
+
+    private static HttpRoute route(final String host, final int port, final String scheme) {
+        return new HttpRoute(new HttpHost(host, port, scheme), null, "https".equals(scheme));
+    }
+}
@@ -0,0 +1,198 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.CircuitBreakerStats;
+import net.distilledcode.httpclient.metrics.RateLimitStats;
+import net.distilledcode.httpclient.resilience.RateLimitExceededException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.execute;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.route;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.startServer;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CIRCUIT_BREAKER_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_BURST;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_REQUESTS_PER_SECOND;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_ROUTE_BURST;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_ROUTE_REQUESTS_PER_SECOND;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RATE_LIMIT_TIMEOUT_MS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimiterTest {
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    /** Headers of the next responses, as name, value, ... */
+    private final Queue<String[]> responseHeaders = new ConcurrentLinkedQueue<>();
+
+    private final RequestMetrics metrics = new RequestMetrics("test");
+
+    private HttpServer server;
+
+    private String uri;
+
+    @Before
+    public void setUp() throws IOException {
+        server = startServer(new HttpRequestHandler() {
+            @Override
+            public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                    throws UnsupportedEncodingException {
+                originRequests.incrementAndGet();
+                final String[] headers = responseHeaders.poll();
+                if (headers != null) {
+                    for (int i = 0; i < headers.length; i += 2) {
+                        response.setHeader(headers[i], headers[i + 1]);
+                    }
+                    if (response.containsHeader("Retry-After")) {
+                        response.setStatusCode(429);
+                    }
+                }
+                response.setEntity(new StringEntity("hello world"));
+            }
+        });
+        uri = HttpClientTestSupport.uri(server);
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void failsFastOnceTheBurstIsUsed() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RATE_LIMIT_REQUESTS_PER_SECOND, 1.0);
+        configuration.put(RATE_LIMIT_BURST, 2);
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            assertThat(execute(httpClient, uri), is(200));
+            assertThat(execute(httpClient, uri), is(200));
+            try {
+                execute(httpClient, uri);
+                fail("Expected the request to be rejected");
+            } catch (RateLimitExceededException e) {
+                assertTrue(e.getRetryAfterMs() > 0 && e.getRetryAfterMs() <= 1000);
+            }
+        }
+        assertThat(originRequests.get(), is(2));
+        final RateLimitStats stats = metrics.getRateLimiting();
+        assertThat(stats.getPermitted(), is(2L));
+        assertThat(stats.getRejected(), is(1L));
+    }
+
+    @Test
+    public void rejectedRequestsAreNotSeenByCircuitBreakers() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RATE_LIMIT_REQUESTS_PER_SECOND, 1.0);
+        configuration.put(RATE_LIMIT_BURST, 2);
+        configuration.put(CIRCUIT_BREAKER_ENABLED, true);
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            assertThat(execute(httpClient, uri), is(200));
+            assertThat(execute(httpClient, uri), is(200));
+            assertRejected(httpClient);
+        }
+        final CircuitBreakerStats breaker = metrics.getCircuitBreakersByRoute().get(route(uri));
+        assertThat(breaker.getCalls(), is(2));
+        assertThat(breaker.getFailureRate(), is(0.0));
+    }
+
+    @Test
+    public void waitsForTokensWithinTheTimeout() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RATE_LIMIT_REQUESTS_PER_SECOND, 20.0);
+        configuration.put(RATE_LIMIT_BURST, 1);
+        configuration.put(RATE_LIMIT_TIMEOUT_MS, 1000L);
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                assertThat(execute(httpClient, uri), is(200));
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+        }
+        assertThat(originRequests.get(), is(5));
+        assertThat(metrics.getRateLimiting().getRejected(), is(0L));
+        assertTrue(metrics.getRateLimiting().getDelayed() >= 3);
+    }
+
+    @Test
+    public void limitsRoutesIndividually() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RATE_LIMIT_REQUESTS_PER_SECOND, 0.0);
+        configuration.put(RATE_LIMIT_ROUTE_REQUESTS_PER_SECOND, 1.0);
+        configuration.put(RATE_LIMIT_ROUTE_BURST, 1);
+        final String otherRoute = "http://127.0.0.1:" + server.getLocalPort() + "/";
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            assertThat(execute(httpClient, uri), is(200));
+            assertThat(execute(httpClient, otherRoute), is(200));
+            assertRejected(httpClient);
+        }
+    }
+
+    @Test
+    public void pausesAsRequestedByRetryAfter() throws Exception {
+        responseHeaders.add(new String[] {"Retry-After", "1"});
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            assertThat(execute(httpClient, uri), is(429));
+            assertRejected(httpClient);
+            Thread.sleep(1100);
+            assertThat(execute(httpClient, uri), is(200));
+        }
+        assertThat(metrics.getRateLimiting().getThrottled(), is(1L));
+    }
+
+    @Test
+    public void pausesUntilTheQuotaIsReset() throws Exception {
+        responseHeaders.add(new String[] {"X-RateLimit-Remaining", "0", "X-RateLimit-Reset", "1"});
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            assertThat(execute(httpClient, uri), is(200));
+            assertRejected(httpClient);
+            Thread.sleep(1100);
+            assertThat(execute(httpClient, uri), is(200));
+        }
+    }
+
+    @Test
+    public void limitsTokensToTheRemainingQuota() throws Exception {
+        responseHeaders.add(new String[] {"RateLimit-Remaining", "1"});
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RATE_LIMIT_REQUESTS_PER_SECOND, 1.0);
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            assertThat(execute(httpClient, uri), is(200));
+            assertThat(execute(httpClient, uri), is(200));
+            assertRejected(httpClient);
+        }
+    }
+
+    private void assertRejected(final CloseableHttpClient httpClient) throws IOException {
+        try {
+            execute(httpClient, uri);
+            fail("Expected the request to be rejected");
+        } catch (RateLimitExceededException e) {
+            assertThat(e.getRoute(), is(route(uri)));
+        }
+    }
+
+    private CloseableHttpClient newHttpClient(final Map<String, Object> configuration) {
+        configuration.put(RATE_LIMIT_ENABLED, true);
+        return HttpClientTestSupport.newHttpClient(configuration, metrics);
+    }
+}
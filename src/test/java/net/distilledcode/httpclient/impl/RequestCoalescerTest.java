@@ -0,0 +1,203 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.CoalescingStats;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.fetchAsync;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.prototypeFactory;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.startServer;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.COALESCE_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.COALESCE_MAX_BODY_BYTES;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCoalescerTest {
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    private final Semaphore originArrived = new Semaphore(0);
+
+    private final CountDownLatch originReleased = new CountDownLatch(1);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final RequestMetrics metrics = new RequestMetrics("test");
+
+    private HttpServer server;
+
+    private String uri;
+
+    @Before
+    public void setUp() throws IOException {
+        server = startServer(new HttpRequestHandler() {
+            @Override
+            public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                    throws UnsupportedEncodingException {
+                originRequests.incrementAndGet();
+                originArrived.release();
+                try {
+                    originReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setEntity(new StringEntity("hello world"));
+            }
+        });
+        uri = HttpClientTestSupport.uri(server);
+    }
+
+    @After
+    public void tearDown() {
+        originReleased.countDown();
+        executor.shutdownNow();
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void coalescesIdenticalConcurrentRequests() throws Exception {
+        final HttpClientPrototypeFactory prototypeFactory = newPrototypeFactory(new HashMap<String, Object>());
+        final HttpClient first = prototypeFactory.getService(null, null);
+        final HttpClient second = prototypeFactory.getService(null, null);
+
+        final List<Future<String>> responses = new ArrayList<>();
+        responses.add(get(first, null));
+        awaitOriginRequest();
+        final CountDownLatch waiting = new CountDownLatch(7);
+        for (int i = 0; i < 7; i++) {
+            responses.add(get(i % 2 == 0 ? first : second, null, null, waiting));
+        }
+        assertTrue("the requests join the one in flight", waiting.await(5, TimeUnit.SECONDS));
+        originReleased.countDown();
+
+        for (final Future<String> response : responses) {
+            assertThat(response.get(5, TimeUnit.SECONDS), is("hello world"));
+        }
+        assertThat(originRequests.get(), is(1));
+        final CoalescingStats stats = metrics.getCoalescing();
+        assertThat(stats.getOriginating(), is(1L));
+        assertThat(stats.getCoalesced(), is(7L));
+    }
+
+    @Test
+    public void distinguishesRequestsByVaryingHeaders() throws Exception {
+        final HttpClient httpClient = newPrototypeFactory(new HashMap<String, Object>()).getService(null, null);
+
+        final Future<String> alice = get(httpClient, "Basic YWxpY2U6");
+        awaitOriginRequest();
+        final Future<String> bob = get(httpClient, "Basic Ym9iOg==");
+        awaitOriginRequest();
+        originReleased.countDown();
+
+        assertThat(alice.get(5, TimeUnit.SECONDS), is("hello world"));
+        assertThat(bob.get(5, TimeUnit.SECONDS), is("hello world"));
+        assertThat(metrics.getCoalescing().getCoalesced(), is(0L));
+    }
+
+    @Test
+    public void distinguishesRequestsByCookieStore() throws Exception {
+        final HttpClient httpClient = newPrototypeFactory(new HashMap<String, Object>()).getService(null, null);
+
+        final Future<String> alice = get(httpClient, null, contextWith(new BasicCookieStore()), null);
+        awaitOriginRequest();
+        final Future<String> bob = get(httpClient, null, contextWith(new BasicCookieStore()), null);
+        awaitOriginRequest();
+        originReleased.countDown();
+
+        assertThat(alice.get(5, TimeUnit.SECONDS), is("hello world"));
+        assertThat(bob.get(5, TimeUnit.SECONDS), is("hello world"));
+        assertThat(originRequests.get(), is(2));
+        assertThat(metrics.getCoalescing().getCoalesced(), is(0L));
+    }
+
+    @Test
+    public void sendsRequestsOnTheirOwnIfTheBodyIsTooLarge() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(COALESCE_MAX_BODY_BYTES, 4L);
+        final HttpClient httpClient = newPrototypeFactory(configuration).getService(null, null);
+
+        final Future<String> first = get(httpClient, null);
+        awaitOriginRequest();
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final Future<String> second = get(httpClient, null, null, waiting);
+        assertTrue(waiting.await(5, TimeUnit.SECONDS));
+        originReleased.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS), is("hello world"));
+        assertThat(second.get(5, TimeUnit.SECONDS), is("hello world"));
+        assertThat(originRequests.get(), is(2));
+        assertThat(metrics.getCoalescing().getCoalesced(), is(0L));
+    }
+
+    private HttpClientPrototypeFactory newPrototypeFactory(final Map<String, Object> configuration) {
+        configuration.put(COALESCE_ENABLED, true);
+        return prototypeFactory(metrics, configuration);
+    }
+
+    private Future<String> get(final HttpClient httpClient, final String authorization) {
+        return get(httpClient, authorization, null, null);
+    }
+
+    /**
+     * @param waiting Counted down once the request waits for the response of
+     *                an identical request, may be {@code null}.
+     */
+    private Future<String> get(final HttpClient httpClient, final String authorization, final HttpContext context,
+                               final CountDownLatch waiting) {
+        final HttpGet get = new HttpGet(uri) {
+            private boolean waited;
+
+            @Override
+            public void setCancellable(final Cancellable cancellable) {
+                super.setCancellable(cancellable);
+                // the first cancellable of a coalesced request is the one releasing its wait
+                if (waiting != null && !waited) {
+                    waited = true;
+                    waiting.countDown();
+                }
+            }
+        };
+        if (authorization != null) {
+            get.setHeader("Authorization", authorization);
+        }
+        return fetchAsync(executor, httpClient, get, context);
+    }
+
+    private static HttpContext contextWith(final CookieStore cookieStore) {
+        final HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(cookieStore);
+        return context;
+    }
+
+    private void awaitOriginRequest() throws InterruptedException {
+        assertTrue("a request reaches the origin", originArrived.tryAcquire(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,200 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.resilience.RequestDeadline;
+import net.distilledcode.httpclient.resilience.RequestDeadlineExceededException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.BUILDER_FACTORY;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.bootstrap;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.fetch;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.fetchAsync;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.prototypeFactory;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.COALESCE_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.REQUEST_DEADLINE_MS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestDeadlinesTest {
+
+    private final TimerWheel timerWheel = new TimerWheel();
+
+    private final Semaphore slowArrived = new Semaphore(0);
+
+    private HttpServer server;
+
+    private String uri;
+
+    @Before
+    public void setUp() throws IOException {
+        timerWheel.activate();
+        server = bootstrap()
+                .registerHandler("/slow", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        slowArrived.release();
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        response.setEntity(new StringEntity("slow"));
+                    }
+                })
+                .registerHandler("/trickle", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context) {
+                        response.setEntity(new InputStreamEntity(new TricklingInputStream(), -1));
+                    }
+                })
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        response.setEntity(new StringEntity("fast"));
+                    }
+                })
+                .create();
+        server.start();
+        uri = HttpClientTestSupport.uri(server);
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown(0, TimeUnit.SECONDS);
+        timerWheel.deactivate();
+    }
+
+    @Test
+    public void abortsRequestsOnceTheDeadlineExpires() throws Exception {
+        final HttpClient httpClient = newHttpClient(200L);
+        final long start = System.nanoTime();
+        try {
+            fetch(httpClient, new HttpGet(uri + "slow"), null);
+            fail("Expected the deadline to expire");
+        } catch (RequestDeadlineExceededException e) {
+            assertThat(e.getDeadlineMs(), is(200L));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 450);
+    }
+
+    @Test
+    public void abortsSlowlyReadBodies() throws Exception {
+        final HttpClient httpClient = newHttpClient(300L);
+        final long start = System.nanoTime();
+        try {
+            fetch(httpClient, new HttpGet(uri + "trickle"), null);
+            fail("Expected the deadline to expire");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1500);
+    }
+
+    @Test
+    public void contextOverridesTheConfiguredDeadline() throws Exception {
+        final HttpContext withDeadline = new BasicHttpContext();
+        withDeadline.setAttribute(RequestDeadline.DEADLINE_MS, 200L);
+        try {
+            fetch(newHttpClient(0L), new HttpGet(uri + "slow"), withDeadline);
+            fail("Expected the deadline to expire");
+        } catch (RequestDeadlineExceededException e) {
+            assertThat(e.getDeadlineMs(), is(200L));
+        }
+
+        final HttpContext withoutDeadline = new BasicHttpContext();
+        withoutDeadline.setAttribute(RequestDeadline.DEADLINE_MS, 0L);
+        assertThat(fetch(newHttpClient(200L), new HttpGet(uri + "slow"), withoutDeadline), is("slow"));
+    }
+
+    @Test
+    public void abortsRequestsWaitingForCoalescedRequests() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(COALESCE_ENABLED, true);
+        final HttpClient httpClient = newHttpClient(0L, configuration);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<String> first = fetchAsync(executor, httpClient, new HttpGet(uri + "slow"), null);
+            assertTrue(slowArrived.tryAcquire(5, TimeUnit.SECONDS));
+
+            final HttpContext withDeadline = new BasicHttpContext();
+            withDeadline.setAttribute(RequestDeadline.DEADLINE_MS, 200L);
+            final long start = System.nanoTime();
+            try {
+                fetch(httpClient, new HttpGet(uri + "slow"), withDeadline);
+                fail("Expected the deadline to expire");
+            } catch (RequestDeadlineExceededException e) {
+                assertThat(e.getDeadlineMs(), is(200L));
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 350);
+            assertThat("the coalesced request is not affected", first.get(5, TimeUnit.SECONDS), is("slow"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void doesNotAbortCompletedRequests() throws Exception {
+        final HttpClient httpClient = newHttpClient(1000L);
+        final HttpGet request = new HttpGet(uri);
+        assertThat(fetch(httpClient, request, null), is("fast"));
+        Thread.sleep(1100);
+        assertThat(request.isAborted(), is(false));
+    }
+
+    private HttpClient newHttpClient(final long deadlineMs) {
+        return newHttpClient(deadlineMs, new HashMap<String, Object>());
+    }
+
+    private HttpClient newHttpClient(final long deadlineMs, final Map<String, Object> configuration) {
+        configuration.put(REQUEST_DEADLINE_MS, deadlineMs);
+        return prototypeFactory(BUILDER_FACTORY, null, null, timerWheel, configuration).getService(null, null);
+    }
+
+    /**
+     * Returns one byte every 100ms, for 3 seconds.
+     */
+    private static class TricklingInputStream extends InputStream {
+
+        private int remaining = 30;
+
+        @Override
+        public int read() throws IOException {
+            if (remaining-- == 0) {
+                return -1;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return 'x';
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.HedgingStats;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.BUILDER_FACTORY;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.fetch;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.prototypeFactory;
+import static net.distilledcode.httpclient.impl.HttpClientTestSupport.startServer;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_BUDGET_MAX_TOKENS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_BUDGET_RATIO;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_DELAY_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.HEDGE_ENABLED;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class RequestHedgerTest {
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    /** Whether the next requests are answered slowly, requests beyond are answered fast. */
+    private final Queue<Boolean> slow = new ConcurrentLinkedQueue<>();
+
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    private final RequestMetrics metrics = new RequestMetrics("test");
+
+    private final HedgingService hedgingService = new HedgingService();
+
+    private HttpServer server;
+
+    private String uri;
+
+    @Before
+    public void setUp() throws IOException {
+        hedgingService.activate();
+        server = startServer(new HttpRequestHandler() {
+            @Override
+            public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                    throws UnsupportedEncodingException {
+                originRequests.incrementAndGet();
+                if (Boolean.TRUE.equals(slow.poll())) {
+                    try {
+                        released.await(500, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    response.setEntity(new StringEntity("slow"));
+                } else {
+                    response.setEntity(new StringEntity("fast"));
+                }
+            }
+        });
+        uri = HttpClientTestSupport.uri(server);
+    }
+
+    @After
+    public void tearDown() {
+        released.countDown();
+        server.shutdown(0, TimeUnit.SECONDS);
+        hedgingService.deactivate();
+    }
+
+    @Test
+    public void hedgesSlowRequests() throws Exception {
+        slow.add(true);
+        final HttpClient httpClient = newPrototypeFactory(new HashMap<String, Object>()).getService(null, null);
+
+        final long start = System.nanoTime();
+        assertThat(fetch(httpClient, new HttpGet(uri), null), is("fast"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+        assertThat(originRequests.get(), is(2));
+        final HedgingStats stats = metrics.getHedging();
+        assertThat(stats.getHedgeable(), is(1L));
+        assertThat(stats.getHedged(), is(1L));
+        assertThat(stats.getWon(), is(1L));
+    }
+
+    @Test
+    public void doesNotHedgeFastRequests() throws Exception {
+        final HttpClient httpClient = newPrototypeFactory(new HashMap<String, Object>()).getService(null, null);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(fetch(httpClient, new HttpGet(uri), null), is("fast"));
+        }
+        Thread.sleep(100);
+        assertThat(originRequests.get(), is(5));
+        assertThat(metrics.getHedging().getHedged(), is(0L));
+    }
+
+    @Test
+    public void hedgesIdempotentMethodsIgnoringTheirCase() throws Exception {
+        slow.add(true);
+        final HttpClient httpClient = newPrototypeFactory(new HashMap<String, Object>()).getService(null, null);
+
+        final HttpRequestBase get = new HttpRequestBase() {
+            @Override
+            public String getMethod() {
+                return "get";
+            }
+        };
+        get.setURI(URI.create(uri));
+        assertThat(fetch(httpClient, get, null), is("fast"));
+        assertThat(metrics.getHedging().getHedged(), is(1L));
+    }
+
+    @Test
+    public void doesNotHedgeNonIdempotentRequests() throws Exception {
+        slow.add(true);
+        final HttpClient httpClient = newPrototypeFactory(new HashMap<String, Object>()).getService(null, null);
+
+        final HttpPost post = new HttpPost(uri);
+        post.setEntity(new StringEntity("payload"));
+        assertThat(fetch(httpClient, post, null), is("slow"));
+        assertThat(originRequests.get(), is(1));
+        assertThat(metrics.getHedging().getHedgeable(), is(0L));
+    }
+
+    @Test
+    public void stopsHedgingWhenTheBudgetIsExhausted() throws Exception {
+        slow.addAll(Arrays.asList(true, false, true));
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(HEDGE_BUDGET_MAX_TOKENS, 1L);
+        configuration.put(HEDGE_BUDGET_RATIO, 0.0);
+        final HttpClient httpClient = newPrototypeFactory(configuration).getService(null, null);
+
+        assertThat(fetch(httpClient, new HttpGet(uri), null), is("fast"));
+        assertThat(fetch(httpClient, new HttpGet(uri), null), is("slow"));
+        assertThat(originRequests.get(), is(3));
+        assertThat(metrics.getHedging().getHedged(), is(1L));
+    }
+
+    private HttpClientPrototypeFactory newPrototypeFactory(final Map<String, Object> configuration) {
+        configuration.put(HEDGE_ENABLED, true);
+        configuration.put(HEDGE_DELAY_MS, 50L);
+        return prototypeFactory(BUILDER_FACTORY, metrics, hedgingService, null, configuration);
+    }
+}
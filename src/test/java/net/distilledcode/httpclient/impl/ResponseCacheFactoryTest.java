@@ -0,0 +1,285 @@
+package net.distilledcode.httpclient.impl;
+
+import net.distilledcode.httpclient.metrics.CacheStats;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.osgi.services.CachingHttpClientBuilderFactory;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_DISK_DIRECTORY;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_STALE_IF_ERROR;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.CACHE_STALE_WHILE_REVALIDATE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ResponseCacheFactoryTest {
+
+    private static final HttpClientBuilderFactory BUILDER_FACTORY = new HttpClientBuilderFactory() {
+        @Override
+        public HttpClientBuilder newBuilder() {
+            return HttpClientBuilder.create();
+        }
+    };
+
+    private static final CachingHttpClientBuilderFactory CACHING_BUILDER_FACTORY = new CachingHttpClientBuilderFactory() {
+        @Override
+        public CachingHttpClientBuilder newBuilder() {
+            return CachingHttpClientBuilder.create();
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    private final CountDownLatch originReleased = new CountDownLatch(1);
+
+    private HttpServer server;
+
+    private String baseUri;
+
+    private RequestMetrics metrics;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("/fresh", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        originRequests.incrementAndGet();
+                        response.setHeader("Cache-Control", "max-age=60");
+                        response.setEntity(new StringEntity("fresh"));
+                    }
+                })
+                .registerHandler("/validated", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        originRequests.incrementAndGet();
+                        response.setHeader("Cache-Control", "max-age=0");
+                        response.setHeader("ETag", "\"v1\"");
+                        final Header ifNoneMatch = request.getFirstHeader("If-None-Match");
+                        if (ifNoneMatch != null && ifNoneMatch.getValue().equals("\"v1\"")) {
+                            response.setStatusCode(304);
+                        } else {
+                            response.setEntity(new StringEntity("validated"));
+                        }
+                    }
+                })
+                .registerHandler("/stale", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        final int count = originRequests.incrementAndGet();
+                        if (count > 1) {
+                            awaitQuietly(originReleased);
+                        }
+                        // stale on arrival, after ten seconds with a max-age of five
+                        response.setHeader("Date", DateUtils.formatDate(new Date(System.currentTimeMillis() - 10000)));
+                        response.setHeader("Cache-Control", "max-age=5" + (request.getRequestLine().getUri().contains("directive")
+                                ? ", stale-while-revalidate=60" : ""));
+                        response.setEntity(new StringEntity("v" + count));
+                    }
+                })
+                .registerHandler("/failing", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        if (originRequests.incrementAndGet() > 1) {
+                            response.setStatusCode(503);
+                            return;
+                        }
+                        response.setHeader("Date", DateUtils.formatDate(new Date(System.currentTimeMillis() - 10000)));
+                        response.setHeader("Cache-Control", "max-age=5");
+                        response.setEntity(new StringEntity("ok"));
+                    }
+                })
+                .create();
+        server.start();
+        baseUri = "http://localhost:" + server.getLocalPort();
+        metrics = new RequestMetrics("test");
+    }
+
+    @After
+    public void tearDown() {
+        originReleased.countDown();
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void servesFreshResponsesFromCache() throws Exception {
+        final PreconfiguredHttpClientBuilderFactory factory = factory(true);
+        try (CloseableHttpClient httpClient = factory.newBuilder().build()) {
+            assertThat(get(httpClient, "/fresh"), is("fresh"));
+            assertThat(get(httpClient, "/fresh"), is("fresh"));
+        }
+        // a second client of the configuration shares the cache
+        try (CloseableHttpClient httpClient = factory.newBuilder().build()) {
+            assertThat(get(httpClient, "/fresh"), is("fresh"));
+        }
+        assertThat(originRequests.get(), is(1));
+
+        final CacheStats cache = metrics.getCache();
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.getHits(), is(2L));
+        assertThat(cache.getEntries(), is(1L));
+        assertThat(cache.getBytes() > 0, is(true));
+    }
+
+    @Test
+    public void countsRevalidations() throws Exception {
+        try (CloseableHttpClient httpClient = factory(true).newBuilder().build()) {
+            assertThat(get(httpClient, "/validated"), is("validated"));
+            assertThat(get(httpClient, "/validated"), is("validated"));
+        }
+        assertThat(originRequests.get(), is(2));
+        assertThat(metrics.getCache().getRevalidations(), is(1L));
+    }
+
+    @Test
+    public void servesPersistedResponsesAfterRestart() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(CACHE_ENABLED, true);
+        configuration.put(CACHE_DISK_DIRECTORY, folder.getRoot().getAbsolutePath());
+
+        final PreconfiguredHttpClientBuilderFactory factory = factory(configuration);
+        try (CloseableHttpClient httpClient = factory.newBuilder().build()) {
+            assertThat(get(httpClient, "/fresh"), is("fresh"));
+        }
+        // the storage is handed on to the updated settings
+        factory.update(configuration);
+        try (CloseableHttpClient httpClient = factory.newBuilder().build()) {
+            assertThat(get(httpClient, "/fresh"), is("fresh"));
+        }
+        factory.close();
+
+        try (CloseableHttpClient httpClient = factory(configuration).newBuilder().build()) {
+            assertThat(get(httpClient, "/fresh"), is("fresh"));
+        }
+        assertThat(originRequests.get(), is(1));
+        assertThat(metrics.getCache().getHits(), is(2L));
+    }
+
+    @Test
+    public void servesStaleWhileRevalidatingOnce() throws Exception {
+        assertStaleWhileRevalidate(factory(true), "/stale?directive");
+    }
+
+    @Test
+    public void servesStaleWhileRevalidatingByDefault() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(CACHE_ENABLED, true);
+        configuration.put(CACHE_STALE_WHILE_REVALIDATE, 60);
+        assertStaleWhileRevalidate(factory(configuration), "/stale");
+    }
+
+    @Test
+    public void servesStaleIfErrorByDefault() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(CACHE_ENABLED, true);
+        configuration.put(CACHE_STALE_IF_ERROR, 60);
+        try (CloseableHttpClient httpClient = factory(configuration).newBuilder().build()) {
+            assertThat(get(httpClient, "/failing"), is("ok"));
+            assertThat(get(httpClient, "/failing"), is("ok"));
+        }
+        assertThat(originRequests.get(), is(2));
+    }
+
+    private void assertStaleWhileRevalidate(final PreconfiguredHttpClientBuilderFactory factory, final String path)
+            throws Exception {
+        try (CloseableHttpClient first = factory.newBuilder().build();
+             CloseableHttpClient second = factory.newBuilder().build()) {
+            assertThat(get(first, path), is("v1"));
+
+            // served while the origin blocks the revalidation, which runs once for both clients
+            assertThat(get(first, path), is("v1"));
+            awaitOriginRequests(2);
+            assertThat(get(second, path), is("v1"));
+            assertThat(get(first, path), is("v1"));
+            assertThat(originRequests.get(), is(2));
+            originReleased.countDown();
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            String body = get(second, path);
+            while (body.equals("v1") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                body = get(second, path);
+            }
+            // the refreshed response is stale as well, so it may have been refreshed again
+            assertThat(body.equals("v1"), is(false));
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        try (CloseableHttpClient httpClient = factory(false).newBuilder().build()) {
+            get(httpClient, "/fresh");
+            get(httpClient, "/fresh");
+        }
+        assertThat(originRequests.get(), is(2));
+        assertThat(metrics.getCache().getMisses(), is(0L));
+    }
+
+    private PreconfiguredHttpClientBuilderFactory factory(final boolean cacheEnabled) {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(CACHE_ENABLED, cacheEnabled);
+        return factory(configuration);
+    }
+
+    private PreconfiguredHttpClientBuilderFactory factory(final Map<String, Object> configuration) {
+        return new PreconfiguredHttpClientBuilderFactory(BUILDER_FACTORY, CACHING_BUILDER_FACTORY, configuration,
+                null, null, metrics, null);
+    }
+
+    private void awaitOriginRequests(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (originRequests.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String get(final CloseableHttpClient httpClient, final String path) throws IOException {
+        return EntityUtils.toString(httpClient.execute(new HttpGet(baseUri + path)).getEntity());
+    }
+}
@@ -0,0 +1,221 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.osgi.services.HttpClientBuilderFactory;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_BACKOFF_INITIAL_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_BACKOFF_MAX_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_BUDGET_MAX_TOKENS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_BUDGET_RATIO;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_DEADLINE_MS;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_ENABLED;
+import static net.distilledcode.httpclient.impl.metatype.HttpClientConfigurationMetaType.RETRY_MAX_ATTEMPTS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static final HttpClientBuilderFactory BUILDER_FACTORY = new HttpClientBuilderFactory() {
+        @Override
+        public HttpClientBuilder newBuilder() {
+            return HttpClientBuilder.create();
+        }
+    };
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    /** The number of requests answered with 503 before the origin recovers. */
+    private volatile int failures = Integer.MAX_VALUE;
+
+    private volatile String retryAfter;
+
+    private HttpServer server;
+
+    private String uri;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws UnsupportedEncodingException {
+                        if (originRequests.incrementAndGet() <= failures) {
+                            response.setStatusCode(503);
+                            if (retryAfter != null) {
+                                response.setHeader("Retry-After", retryAfter);
+                            }
+                        } else {
+                            response.setEntity(new StringEntity("hello world"));
+                        }
+                    }
+                })
+                .create();
+        server.start();
+        uri = "http://localhost:" + server.getLocalPort() + "/";
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void retriesUnavailableResponses() throws IOException {
+        failures = 2;
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            assertThat(execute(httpClient, new HttpGet(uri)), is(200));
+        }
+        assertThat(originRequests.get(), is(3));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws IOException {
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            assertThat(execute(httpClient, new HttpGet(uri)), is(503));
+        }
+        assertThat(originRequests.get(), is(3));
+    }
+
+    @Test
+    public void doesNotRetryNonIdempotentRequests() throws IOException {
+        final HttpPost post = new HttpPost(uri);
+        post.setEntity(new StringEntity("payload"));
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            assertThat(execute(httpClient, post), is(503));
+        }
+        assertThat(originRequests.get(), is(1));
+    }
+
+    @Test
+    public void honorsRetryAfter() throws IOException {
+        failures = 1;
+        retryAfter = "1";
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RETRY_BACKOFF_MAX_MS, 5000L);
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            final long start = System.nanoTime();
+            assertThat(execute(httpClient, new HttpGet(uri)), is(200));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+        }
+        assertThat(originRequests.get(), is(2));
+    }
+
+    @Test
+    public void doesNotWaitForRetryAfterBeyondMaximumBackoff() throws IOException {
+        retryAfter = "3600";
+        try (CloseableHttpClient httpClient = newHttpClient(new HashMap<String, Object>())) {
+            assertThat(execute(httpClient, new HttpGet(uri)), is(503));
+        }
+        assertThat(originRequests.get(), is(1));
+    }
+
+    @Test
+    public void doesNotRetryBeyondDeadline() throws IOException {
+        retryAfter = "1";
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RETRY_DEADLINE_MS, 500L);
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            assertThat(execute(httpClient, new HttpGet(uri)), is(503));
+        }
+        assertThat(originRequests.get(), is(1));
+    }
+
+    @Test
+    public void stopsRetryingWhenTheBudgetIsExhausted() throws IOException {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RETRY_MAX_ATTEMPTS, 10);
+        configuration.put(RETRY_BUDGET_MAX_TOKENS, 3L);
+        configuration.put(RETRY_BUDGET_RATIO, 0.0);
+        try (CloseableHttpClient httpClient = newHttpClient(configuration)) {
+            assertThat(execute(httpClient, new HttpGet(uri)), is(503));
+            assertThat(originRequests.get(), is(4));
+            assertThat(execute(httpClient, new HttpGet(uri)), is(503));
+            assertThat(originRequests.get(), is(5));
+        }
+    }
+
+    @Test
+    public void retriesConfiguredExceptionsOnly() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RETRY_ENABLED, true);
+        configuration.put(RETRY_BACKOFF_INITIAL_MS, 1L);
+        final RetryPolicy policy = RetryPolicy.fromConfiguration(configuration);
+        final HttpContext context = new BasicHttpContext();
+        policy.getInterceptor().process(new HttpGet(uri), context);
+
+        assertThat(policy.retryRequest(new SocketTimeoutException(), 1, context), is(false));
+
+        policy.getInterceptor().process(new HttpGet(uri), context);
+        assertThat(policy.retryRequest(new HttpHostConnectException(new ConnectException(), null), 1, context), is(true));
+        assertThat(policy.retryRequest(new NoHttpResponseException("closed"), 2, context), is(true));
+        assertThat(policy.retryRequest(new NoHttpResponseException("closed"), 3, context), is(false));
+    }
+
+    @Test
+    public void countsAttemptsPerExecutionWithSharedContext() throws Exception {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put(RETRY_ENABLED, true);
+        configuration.put(RETRY_BACKOFF_INITIAL_MS, 1L);
+        final RetryPolicy policy = RetryPolicy.fromConfiguration(configuration);
+        final HttpContext context = new BasicHttpContext();
+        final HttpGet first = new HttpGet(uri);
+        policy.getInterceptor().process(first, context);
+        assertThat(policy.retryRequest(new NoHttpResponseException("closed"), 1, context), is(true));
+        // the retry fails with an exception the policy is never asked about
+        policy.getInterceptor().process(first, context);
+
+        policy.getInterceptor().process(new HttpGet(uri), context);
+        assertThat(policy.retryRequest(new NoHttpResponseException("closed"), 1, context), is(true));
+        assertThat(policy.retryRequest(new NoHttpResponseException("closed"), 2, context), is(true));
+        assertThat(policy.retryRequest(new NoHttpResponseException("closed"), 3, context), is(false));
+    }
+
+    private CloseableHttpClient newHttpClient(final Map<String, Object> configuration) {
+        configuration.put(RETRY_ENABLED, true);
+        if (!configuration.containsKey(RETRY_BACKOFF_INITIAL_MS)) {
+            configuration.put(RETRY_BACKOFF_INITIAL_MS, 10L);
+        }
+        return new PreconfiguredHttpClientBuilderFactory(BUILDER_FACTORY, null, configuration, null, null, null, null)
+                .newBuilder()
+                .build();
+    }
+
+    private static int execute(final CloseableHttpClient httpClient, final HttpUriRequest request) throws IOException {
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class SharedHttpClientTest {
+
+    @Test
+    public void singleClientForAllViews() throws Exception {
+        final TestClientFactory factory = new TestClientFactory();
+        final SharedHttpClient sharedHttpClient = new SharedHttpClient(factory);
+
+        final HttpClient first = sharedHttpClient.acquire();
+        final HttpClient second = sharedHttpClient.acquire();
+
+        assertThat(first, not(sameInstance(second)));
+        assertThat(factory.connectionManagers.size(), is(1));
+        assertThat(sharedHttpClient.getReferences(), is(2));
+    }
+
+    @Test
+    public void handedBackWhenLastViewIsReleased() throws Exception {
+        final TestClientFactory factory = new TestClientFactory();
+        final SharedHttpClient sharedHttpClient = new SharedHttpClient(factory);
+
+        final HttpClient first = sharedHttpClient.acquire();
+        final HttpClient second = sharedHttpClient.acquire();
+        final TestConnectionManager connectionManager = factory.connectionManagers.get(0);
+
+        assertThat(sharedHttpClient.release(first), nullValue());
+        assertThat("releasing twice must not count twice", sharedHttpClient.release(first), nullValue());
+
+        final TrackingHttpClient released = sharedHttpClient.release(second);
+        assertThat(released, notNullValue());
+        assertThat(sharedHttpClient.getReferences(), is(0));
+        assertThat("disposal is left to the caller", connectionManager.shutdown, is(false));
+
+        released.close();
+        assertThat(connectionManager.shutdown, is(true));
+    }
+
+    @Test
+    public void rebuiltAfterFullRelease() throws Exception {
+        final TestClientFactory factory = new TestClientFactory();
+        final SharedHttpClient sharedHttpClient = new SharedHttpClient(factory);
+
+        sharedHttpClient.release(sharedHttpClient.acquire());
+        sharedHttpClient.acquire();
+
+        assertThat(factory.connectionManagers.size(), is(2));
+    }
+
+    @Test
+    public void reconfigureHandsBackReplacedClient() throws Exception {
+        final TestClientFactory factory = new TestClientFactory();
+        final SharedHttpClient sharedHttpClient = new SharedHttpClient(factory);
+        assertThat("nothing to replace before the first acquire", sharedHttpClient.reconfigure(), nullValue());
+
+        sharedHttpClient.acquire();
+        final TrackingHttpClient replaced = sharedHttpClient.reconfigure();
+        assertThat(replaced, notNullValue());
+        assertThat(factory.connectionManagers.size(), is(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasedViewIsUnusable() throws Exception {
+        final SharedHttpClient sharedHttpClient = new SharedHttpClient(new TestClientFactory());
+        final HttpClient view = sharedHttpClient.acquire();
+        sharedHttpClient.release(view);
+        view.getParams();
+    }
+
+    private static class TestClientFactory implements SharedHttpClient.ClientFactory {
+
+        private final List<TestConnectionManager> connectionManagers = new ArrayList<>();
+
+        @Override
+        public TrackingHttpClient newHttpClient() {
+            final TestConnectionManager connectionManager = new TestConnectionManager();
+            connectionManagers.add(connectionManager);
+            return new TrackingHttpClient(HttpClientBuilder.create().setConnectionManager(connectionManager).build());
+        }
+    }
+
+    private static class TestConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private boolean shutdown;
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            super.shutdown();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.distilledcode.httpclient.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StripedCounterTest {
+
+    @Test
+    public void stripesArePowersOfTwo() {
+        assertThat(StripedCounter.stripes(0), is(1));
+        assertThat(StripedCounter.stripes(1), is(1));
+        assertThat(StripedCounter.stripes(3), is(4));
+        assertThat(StripedCounter.stripes(8), is(8));
+        assertThat(StripedCounter.stripes(96), is(16));
+    }
+
+    @Test
+    public void concurrentUpdatesAreCounted() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        counter.increment();
+                        counter.add(2);
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(counter.sum(), is(8 * 10000 * 3L));
+    }
+}
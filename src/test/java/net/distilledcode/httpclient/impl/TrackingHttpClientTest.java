@@ -0,0 +1,174 @@
+package net.distilledcode.httpclient.impl;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TrackingHttpClientTest {
+
+    private HttpServer server;
+
+    private HttpGet request;
+
+    private TestConnectionManager connectionManager;
+
+    private TrackingHttpClient httpClient;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override
+                    public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context)
+                            throws HttpException, IOException {
+                        response.setEntity(new StringEntity("hello"));
+                    }
+                })
+                .create();
+        server.start();
+        request = new HttpGet("http://localhost:" + server.getLocalPort() + "/");
+        connectionManager = new TestConnectionManager();
+        httpClient = new TrackingHttpClient(HttpClientBuilder.create().setConnectionManager(connectionManager).build());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        httpClient.close();
+        server.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void drainedOnceResponseIsConsumed() throws Exception {
+        final CloseableHttpResponse response = httpClient.execute(request);
+        assertThat(httpClient.getInFlight(), is(1));
+
+        final CountingDrainListener listener = new CountingDrainListener();
+        httpClient.drain(listener);
+        assertThat(listener.drained, is(0));
+        assertThat(EntityUtils.toString(response.getEntity()), is("hello"));
+
+        assertThat(httpClient.getInFlight(), is(0));
+        assertThat(listener.drained, is(1));
+        assertThat("draining does not close the client", connectionManager.shutdown, is(false));
+    }
+
+    @Test
+    public void drainedOnceResponseIsClosed() throws Exception {
+        final CloseableHttpResponse response = httpClient.execute(request);
+        final CountingDrainListener listener = new CountingDrainListener();
+        httpClient.drain(listener);
+        assertThat(listener.drained, is(0));
+
+        response.close();
+        response.close(); // must not complete twice
+        assertThat(httpClient.getInFlight(), is(0));
+        assertThat(listener.drained, is(1));
+    }
+
+    @Test
+    public void drainedImmediatelyWithoutExchanges() throws Exception {
+        EntityUtils.consume(httpClient.execute(request).getEntity());
+        assertThat(httpClient.getInFlight(), is(0));
+
+        final CountingDrainListener listener = new CountingDrainListener();
+        httpClient.drain(listener);
+        assertThat(listener.drained, is(1));
+    }
+
+    @Test
+    public void drainingClientExecutesRequestsUntilDrained() throws Exception {
+        final CloseableHttpResponse response = httpClient.execute(request);
+        final CountingDrainListener listener = new CountingDrainListener();
+        httpClient.drain(listener);
+
+        // e.g. a request that obtained the client just before it was replaced
+        final CloseableHttpResponse late = httpClient.execute(request);
+        assertThat(httpClient.getInFlight(), is(2));
+
+        response.close();
+        assertThat(listener.drained, is(0));
+        assertThat(EntityUtils.toString(late.getEntity()), is("hello"));
+        assertThat(listener.drained, is(1));
+    }
+
+    @Test
+    public void drainedClientRejectsNewRequests() throws Exception {
+        httpClient.drain(new CountingDrainListener());
+        try {
+            httpClient.execute(request);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertThat(httpClient.getInFlight(), is(0));
+    }
+
+    @Test
+    public void drainedClientForwardsRequestsToItsReplacement() throws Exception {
+        final TrackingHttpClient replacement = new TrackingHttpClient(HttpClientBuilder.create().build());
+        try {
+            httpClient.replaceWith(replacement);
+            httpClient.drain(new CountingDrainListener());
+            httpClient.close();
+
+            final CloseableHttpResponse response = httpClient.execute(request);
+            assertThat(replacement.getInFlight(), is(1));
+            assertThat(EntityUtils.toString(response.getEntity()), is("hello"));
+            assertThat(replacement.getInFlight(), is(0));
+            assertThat(httpClient.getInFlight(), is(0));
+        } finally {
+            replacement.close();
+        }
+    }
+
+    @Test
+    public void closeIsIdempotent() throws Exception {
+        httpClient.close();
+        httpClient.close();
+        assertThat(httpClient.isClosed(), is(true));
+        assertThat(connectionManager.shutdown, is(true));
+    }
+
+    private static class CountingDrainListener implements TrackingHttpClient.DrainListener {
+
+        private volatile int drained;
+
+        @Override
+        public void drained() {
+            drained++;
+        }
+    }
+
+    private static class TestConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private volatile boolean shutdown;
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            super.shutdown();
+        }
+    }
+}
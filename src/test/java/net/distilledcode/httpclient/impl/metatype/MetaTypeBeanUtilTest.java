@@ -1,6 +1,7 @@
 package net.distilledcode.httpclient.impl.metatype;
 
 import net.distilledcode.httpclient.impl.metatype.reflection.GetterAdapter;
+import net.distilledcode.httpclient.impl.metatype.reflection.Invokers.Invocation;
 import net.distilledcode.httpclient.impl.metatype.reflection.SetterAdapter;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
@@ -73,6 +74,34 @@ public class MetaTypeBeanUtilTest {
         assertThat(testBean.allElse, equalTo(properties.get("all.else")));
     }
 
+    @Test
+    public void compileConfiguration() throws Exception {
+
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("test.bean.foo.bar", "The Foo Bar");
+        properties.put("test.bean.min.count", 5);
+        properties.put("test.bean.max.iteration.count", 10L);
+        properties.put("test.bean.no.setter", "set it anyways");
+        properties.put("test.bean.type.mismatch", 10); // expects string
+        properties.put("test.bean.all.else", new String[]{ "foo", "bar"});
+        properties.put("min.count", 15); // outside of namespace
+
+        final Invocation[] invocations = MetaTypeBeanUtil.compileConfiguration("test.bean", properties, beanSetters(TestBean.class));
+        assertThat(invocations.length, is(4));
+
+        for (int i = 0; i < 2; i++) {
+            TestBean testBean = new TestBean();
+            MetaTypeBeanUtil.applyConfiguration(invocations, testBean);
+
+            TestBean defaultTestBean = new TestBean();
+            assertThat(testBean.fooBar, equalTo(properties.get("test.bean.foo.bar")));
+            assertThat(testBean.minCount, equalTo(properties.get("test.bean.min.count")));
+            assertThat(testBean.maxIterationCount, equalTo(properties.get("test.bean.max.iteration.count")));
+            assertThat(testBean.typeMismatch, equalTo(defaultTestBean.typeMismatch));
+            assertThat(testBean.allElse, equalTo(properties.get("test.bean.all.else")));
+        }
+    }
+
     @Test
     public void applyConfigurationWithNamespace() throws Exception {
 
@@ -9,6 +9,7 @@ import static org.hamcrest.CoreMatchers.allOf;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 public class InvokersTest {
@@ -86,4 +87,47 @@ public class InvokersTest {
         featureDisabler.invoke(testBean, false);
         assertThat(testBean.featureEnabled, is(true));
     }
+
+    @Test
+    public void conditionalSetterBinding() throws Exception {
+        Invokers.Invoker<?> featureDisabler = Invokers.conditionalNoArgsSetter(TestBean.class.getDeclaredMethod("disableFeature"), false);
+        assertThat(featureDisabler.bind(true), is(nullValue()));
+
+        Invokers.Invocation invocation = featureDisabler.bind(false);
+        TestBean testBean = new TestBean();
+        invocation.invoke(testBean);
+        assertThat(testBean.featureEnabled, is(false));
+    }
+
+    @Test
+    public void accepts() throws Exception {
+        Invokers.Invoker<?> setMaxRedirects = new Invokers.Invoker<>(RequestConfig.Builder.class.getDeclaredMethod("setMaxRedirects", int.class));
+        assertThat(setMaxRedirects.accepts(17), is(true));
+        assertThat(setMaxRedirects.accepts("17"), is(false));
+        assertThat(setMaxRedirects.accepts(17, 18), is(false));
+        assertThat(setMaxRedirects.accepts((Object) null), is(false));
+    }
+
+    @Test
+    public void publicMethodsAreInvokedViaMethodHandles() throws Exception {
+        Invokers.Invoker<?> setMaxRedirects = Invokers.beanSetters(RequestConfig.Builder.class).get("max.redirects");
+        assertThat(setMaxRedirects.isMethodHandleBacked(), is(true));
+
+        RequestConfig.Builder builder = RequestConfig.custom();
+        setMaxRedirects.bind(17).invoke(builder);
+        assertThat(builder.build().getMaxRedirects(), is(17));
+    }
+
+    @Test
+    public void nonPublicMethodsAreInvokedViaReflection() throws Exception {
+        Invokers.Invoker<?> getFooBar = Invokers.beanGetters(TestBean.class).get("foo.bar");
+        assertThat(getFooBar.isMethodHandleBacked(), is(false));
+        assertThat(getFooBar.invoke(new TestBean()), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void methodHandleRejectsMismatchingArguments() throws Exception {
+        Invokers.Invoker<?> setMaxRedirects = Invokers.beanSetters(RequestConfig.Builder.class).get("max.redirects");
+        setMaxRedirects.invoke(RequestConfig.custom(), "17");
+    }
 }